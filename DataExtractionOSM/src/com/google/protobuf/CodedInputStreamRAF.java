@@ -33,6 +33,8 @@ package com.google.protobuf;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -59,6 +61,27 @@ public final class CodedInputStreamRAF {
   public static CodedInputStreamRAF newInstance(RandomAccessFile raf, int bufferSize) {
 	return new CodedInputStreamRAF(raf, bufferSize);
   }
+  
+  /**
+   * Create a new CodedInputStream reading directly from a (memory mapped) buffer.
+   * The buffer content is never modified and stream reads through its own
+   * view of the buffer, so one mapping could be shared by many streams
+   * (each stream itself is still not thread safe).
+   */
+  public static CodedInputStreamRAF newInstance(ByteBuffer mappedFile) {
+	return new CodedInputStreamRAF(mappedFile, BUFFER_SIZE_DEF);
+  }
+  
+  /**
+   * Maps whole file into memory in read only mode. 
+   */
+  public static ByteBuffer mapFile(RandomAccessFile raf) throws IOException {
+	long length = raf.length();
+	if (length > Integer.MAX_VALUE) {
+	  throw new IOException("File is too big to be mapped : " + length);
+	}
+	return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+  }
 
 
   // -----------------------------------------------------------------
@@ -189,6 +212,16 @@ public final class CodedInputStreamRAF {
   /** Read a {@code string} field value from the stream. */
   public String readString() throws IOException {
     final int size = readRawVarint32();
+    if (mapped != null) {
+      if (size <= (bufferSize - bufferPos) && size > 0 && size <= buffer.length) {
+        // Fast path: decode from mapped region through reusable buffer
+        mapped.position(bufferPos);
+        mapped.get(buffer, 0, size);
+        bufferPos += size;
+        return new String(buffer, 0, size, "UTF-8");
+      }
+      return new String(readRawBytes(size), "UTF-8");
+    }
     if (size <= (bufferSize - bufferPos) && size > 0) {
       // Fast path:  We already have the bytes in a contiguous buffer, so
       //   just copy directly from it.
@@ -207,7 +240,7 @@ public final class CodedInputStreamRAF {
   /** Read a {@code bytes} field value from the stream. */
   public ByteString readBytes() throws IOException {
     final int size = readRawVarint32();
-    if (size <= (bufferSize - bufferPos) && size > 0) {
+    if (mapped == null && size <= (bufferSize - bufferPos) && size > 0) {
       // Fast path:  We already have the bytes in a contiguous buffer, so
       //   just copy directly from it.
       final ByteString result = ByteString.copyFrom(buffer, bufferPos, size);
@@ -259,6 +292,9 @@ public final class CodedInputStreamRAF {
    * upper bits.
    */
   public int readRawVarint32() throws IOException {
+    if (mapped != null && bufferSize - bufferPos >= 10) {
+      return readRawVarint32Mapped();
+    }
     byte tmp = readRawByte();
     if (tmp >= 0) {
       return tmp;
@@ -292,6 +328,51 @@ public final class CodedInputStreamRAF {
     return result;
   }
 
+  /**
+   * Decodes varint directly from mapped buffer without checking buffer
+   * bounds for each byte (at least 10 bytes should be available).
+   */
+  private int readRawVarint32Mapped() throws IOException {
+    final ByteBuffer m = mapped;
+    int pos = bufferPos;
+    byte tmp = m.get(pos++);
+    if (tmp >= 0) {
+      bufferPos = pos;
+      return tmp;
+    }
+    int result = tmp & 0x7f;
+    if ((tmp = m.get(pos++)) >= 0) {
+      result |= tmp << 7;
+    } else {
+      result |= (tmp & 0x7f) << 7;
+      if ((tmp = m.get(pos++)) >= 0) {
+        result |= tmp << 14;
+      } else {
+        result |= (tmp & 0x7f) << 14;
+        if ((tmp = m.get(pos++)) >= 0) {
+          result |= tmp << 21;
+        } else {
+          result |= (tmp & 0x7f) << 21;
+          result |= (tmp = m.get(pos++)) << 28;
+          if (tmp < 0) {
+            // Discard upper 32 bits.
+            int i = 0;
+            for (; i < 5; i++) {
+              if (m.get(pos++) >= 0) {
+                break;
+              }
+            }
+            if (i == 5) {
+              throw InvalidProtocolBufferException.malformedVarint();
+            }
+          }
+        }
+      }
+    }
+    bufferPos = pos;
+    return result;
+  }
+
   /**
    * Reads a varint from the input one byte at a time, so that it does not
    * read any bytes after the end of the varint.  If you simply wrapped the
@@ -425,6 +506,8 @@ public final class CodedInputStreamRAF {
   private int bufferSizeAfterLimit;
   private int bufferPos;
   private final RandomAccessFile raf;
+  // not null only for memory mapped mode (then whole file is considered as a buffer)
+  private final ByteBuffer mapped;
   private int lastTag;
 
   /**
@@ -459,6 +542,26 @@ public final class CodedInputStreamRAF {
     bufferPos = 0;
     totalBytesRetired = 0;
     this.raf = raf;
+    this.mapped = null;
+  }
+  
+  private CodedInputStreamRAF(final ByteBuffer mappedFile, int bufferSize) {
+    BUFFER_SIZE = bufferSize;
+    // used only as a temporary buffer to decode strings
+    buffer = new byte[BUFFER_SIZE];
+    this.raf = null;
+    this.mapped = mappedFile.duplicate();
+    this.mapped.clear();
+    this.bufferSize = this.mapped.limit();
+    bufferPos = 0;
+    totalBytesRetired = 0;
+  }
+  
+  /**
+   * Returns true if stream reads from memory mapped buffer
+   */
+  public boolean isMemoryMapped() {
+    return mapped != null;
   }
 
   /**
@@ -615,6 +718,15 @@ public final class CodedInputStreamRAF {
         return false;
       }
     }
+    
+    if (mapped != null) {
+      // whole file is already in the buffer so it is the end of file
+      if (mustSucceed) {
+        throw InvalidProtocolBufferException.truncatedMessage();
+      } else {
+        return false;
+      }
+    }
 
     totalBytesRetired += bufferSize;
 
@@ -653,6 +765,9 @@ public final class CodedInputStreamRAF {
     if (bufferPos == bufferSize) {
       refillBuffer(true);
     }
+    if (mapped != null) {
+      return mapped.get(bufferPos++);
+    }
     return buffer[bufferPos++];
   }
 
@@ -674,7 +789,16 @@ public final class CodedInputStreamRAF {
       throw InvalidProtocolBufferException.truncatedMessage();
     }
 
-    if (size <= bufferSize - bufferPos) {
+    if (mapped != null) {
+      if (size > bufferSize - bufferPos) {
+        throw InvalidProtocolBufferException.truncatedMessage();
+      }
+      final byte[] bytes = new byte[size];
+      mapped.position(bufferPos);
+      mapped.get(bytes);
+      bufferPos += size;
+      return bytes;
+    } else if (size <= bufferSize - bufferPos) {
       // We have all the bytes we need already.
       final byte[] bytes = new byte[size];
       System.arraycopy(buffer, bufferPos, bytes, 0, size);
@@ -783,6 +907,8 @@ public final class CodedInputStreamRAF {
     if (size <= bufferSize - bufferPos) {
       // We have all the bytes we need already.
       bufferPos += size;
+    } else if (mapped != null) {
+      throw InvalidProtocolBufferException.truncatedMessage();
     } else {
       // Skipping more bytes than are in the buffer.  First skip what we have.
       int pos = bufferSize - bufferPos;
@@ -803,11 +929,20 @@ public final class CodedInputStreamRAF {
   }
   
   public void seek(long pointer) throws IOException{
+	  if (pointer > currentLimit) {
+		  // Then fail.
+		  throw InvalidProtocolBufferException.truncatedMessage();
+	  }
+	  if (mapped != null) {
+		  if (pointer > mapped.limit()) {
+			  throw InvalidProtocolBufferException.truncatedMessage();
+		  }
+		  // whole file is the buffer (totalBytesRetired is 0) so pushed limit stays valid after seek 
+		  bufferPos = (int) pointer;
+		  recomputeBufferSizeAfterLimit();
+		  return;
+	  }
 	  if(pointer - totalBytesRetired >= 0  && pointer - totalBytesRetired < bufferSize){
-		  if (pointer > currentLimit) {
-		      // Then fail.
-		      throw InvalidProtocolBufferException.truncatedMessage();
-		    }
 		  bufferPos = (int) (pointer - totalBytesRetired); 
 	  } else {
 		  totalBytesRetired = (int) pointer;
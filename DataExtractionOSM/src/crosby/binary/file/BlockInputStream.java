@@ -2,6 +2,7 @@ package crosby.binary.file;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 
 public class BlockInputStream {
     // TODO: Should be seekable input stream!
@@ -11,8 +12,13 @@ public class BlockInputStream {
     }
 
     public void process() throws IOException {
-        while (input.available() > 0) {
-            FileBlock.process(input, adaptor);
+        // available() is not end of file for piped and network streams,
+        // so file ends when there is no next block
+        PushbackInputStream in = new PushbackInputStream(input);
+        int b;
+        while ((b = in.read()) != -1) {
+            in.unread(b);
+            FileBlock.process(in, adaptor);
         }
         adaptor.complete();
     }
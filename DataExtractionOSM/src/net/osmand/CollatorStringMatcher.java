@@ -2,8 +2,12 @@ package net.osmand;
 
 
 import java.text.Collator;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.osmand.StringMatcher;
+import net.sf.junidecode.Junidecode;
 
 /**
  * Abstract collator matcher that basically supports subclasses with some collator
@@ -34,6 +38,14 @@ public class CollatorStringMatcher implements StringMatcher {
 		return collator;
 	}
 	
+	public StringMatcherMode getMode() {
+		return mode;
+	}
+	
+	public String getPart() {
+		return part;
+	}
+	
 	@Override
 	public boolean matches(String name) {
 		return cmatches(collator, name, part, mode);
@@ -126,6 +138,127 @@ public class CollatorStringMatcher implements StringMatcher {
 		return false;
 	}
 	
+	/**
+	 * Key of name that doesn't depend on collator (without accents, transliterated, lower cased and without
+	 * punctuation and spaces which are ignored by collator), it is used to find candidates in sorted name indexes. 
+	 * Key of name prefix is always a prefix of name key, so candidates found by key should be checked by collator.
+	 * Key should fold letters at least as much as primary collator does, so accents are removed before transliteration
+	 * (otherwise 'ё' and 'е' which are equal for russian collator are transliterated differently).
+	 */
+	public static String getNameKey(String name) {
+		String s = transliterate(name);
+		StringBuilder key = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = Character.toLowerCase(s.charAt(i));
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+				key.append(c);
+			}
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * @return keys (not longer than maxLength) of name parts started from the beginning of words,
+	 * the first is key of whole name (see {@link StringMatcherMode#CHECK_STARTS_FROM_SPACE})
+	 */
+	public static List<String> getWordStartKeys(String name, int maxLength) {
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < name.length(); i++) {
+			if (i == 0 || (isSpace(name.charAt(i - 1)) && !isSpace(name.charAt(i)))) {
+				String key = getNameKey(name.substring(i));
+				if (key.length() > maxLength) {
+					key = key.substring(0, maxLength);
+				}
+				if (key.length() > 0 && !keys.contains(key)) {
+					keys.add(key);
+				}
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * @return keys (see {@link #getNameKey(String)}) of separate words of name without empty and repeated keys
+	 */
+	public static List<String> getWordKeys(String name) {
+		List<String> keys = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i <= name.length(); i++) {
+			if (i == name.length() || isSpace(name.charAt(i))) {
+				if (i > start) {
+					String key = getNameKey(name.substring(start, i));
+					if (key.length() > 0 && !keys.contains(key)) {
+						keys.add(key);
+					}
+				}
+				start = i + 1;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Key of name (see {@link #getNameKey(String)}) where beginning of each word is marked by space.
+	 * If name matches part in {@link StringMatcherMode#CHECK_STARTS_FROM_SPACE} mode then
+	 * {@link #matchesWordStartsKey(byte[], byte[])} returns true for their keys (but not vice versa).
+	 */
+	public static String getWordStartsKey(String name) {
+		StringBuilder key = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (i > 0 && isSpace(name.charAt(i - 1)) && !isSpace(ch) && key.length() > 0 && key.charAt(key.length() - 1) != ' ') {
+				key.append(' ');
+			}
+			String s = transliterate(String.valueOf(ch));
+			for (int j = 0; j < s.length(); j++) {
+				char c = Character.toLowerCase(s.charAt(j));
+				if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+					key.append(c);
+				}
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param nameKey key of searched part (see {@link #getNameKey(String)})
+	 * @param wordStartsKey ascii bytes of {@link #getWordStartsKey(String)}
+	 * @return true if nameKey is a prefix of wordStartsKey (spaces are ignored) starting from beginning of some word
+	 */
+	public static boolean matchesWordStartsKey(byte[] nameKey, byte[] wordStartsKey) {
+		for (int start = 0; start < wordStartsKey.length; start++) {
+			if (start > 0 && wordStartsKey[start - 1] != ' ') {
+				continue;
+			}
+			int i = 0;
+			for (int p = start; p < wordStartsKey.length && i < nameKey.length; p++) {
+				if (wordStartsKey[p] == ' ') {
+					continue;
+				}
+				if (wordStartsKey[p] != nameKey[i]) {
+					break;
+				}
+				i++;
+			}
+			if (i == nameKey.length) {
+				return true;
+			}
+		}
+		return nameKey.length == 0;
+	}
+
+	private static String transliterate(String name) {
+		String s = Normalizer.normalize(name, Normalizer.Form.NFD);
+		StringBuilder b = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (Character.getType(c) != Character.NON_SPACING_MARK) {
+				b.append(c);
+			}
+		}
+		return Junidecode.unidecode(b.toString());
+	}
+
 	private static boolean isSpace(char c){
 		return !Character.isLetter(c) && !Character.isDigit(c);
 	}
@@ -17,6 +17,7 @@ import net.osmand.binary.BinaryMapAddressReaderAdapter.AddressRegion;
 import net.osmand.binary.BinaryMapIndexReader.MapIndex;
 import net.osmand.binary.BinaryMapIndexReader.MapRoot;
 import net.osmand.binary.BinaryMapPoiReaderAdapter.PoiRegion;
+import net.osmand.binary.BinaryMapRoutingHierarchyReaderAdapter.RoutingHierarchyIndex;
 import net.osmand.binary.BinaryMapTransportReaderAdapter.TransportIndex;
 import net.osmand.data.Building;
 import net.osmand.data.City;
@@ -243,6 +244,9 @@ public class BinaryInspector {
 					} else if (part instanceof PoiRegion) {
 						ous.writeTag(OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 						map = "POI";
+					} else if (part instanceof RoutingHierarchyIndex) {
+						ous.writeTag(BinaryMapRoutingHierarchyReaderAdapter.ROUTING_HIERARCHY_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
+						map = "Routing hierarchy";
 					} else {
 						throw new UnsupportedOperationException();
 					}
@@ -315,6 +319,8 @@ public class BinaryInspector {
 					partname = "Poi";
 				} else if(p instanceof AddressRegion){
 					partname = "Address";
+				} else if(p instanceof RoutingHierarchyIndex){
+					partname = "Routing hierarchy";
 				}
 				String name = p.getName() == null ? "" : p.getName(); 
 				System.out.println(MessageFormat.format("{0}. {1} data {3} - {2} bytes", i, partname, p.getLength(), name));
@@ -1,10 +1,18 @@
 package net.osmand.binary;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import net.osmand.CollatorStringMatcher;
 import net.osmand.StringMatcher;
 import net.osmand.binary.BinaryMapIndexReader.SearchRequest;
+import net.osmand.binary.BinaryMapNameTrigramReaderAdapter.NameTrigramIndex;
 import net.osmand.data.Building;
 import net.osmand.data.City;
 import net.osmand.data.City.CityType;
@@ -20,22 +28,62 @@ import com.google.protobuf.WireFormat;
 
 public class BinaryMapAddressReaderAdapter {
 	
+	// name index is not a part of generated OsmandOdb (see OsmAndAddressNameIndex in osmand_odb.proto)
+	public final static int NAME_INDEX_FIELD_NUMBER = 8; // OsmAndAddressIndex.nameIndex
+	public final static int NAME_INDEX_TABLE_FIELD_NUMBER = 2;
+	public final static int NAME_INDEX_BLOCKS_FIELD_NUMBER = 5;
+	public final static int NAME_INDEX_ATOMS_FIELD_NUMBER = 4;
+	public final static int NAME_INDEX_KEY_FIELD_NUMBER = 1;
+	public final static int NAME_INDEX_TYPE_FIELD_NUMBER = 2;
+	public final static int NAME_INDEX_SHIFT_FIELD_NUMBER = 5;
+	public final static int NAME_INDEX_CITY_SHIFT_FIELD_NUMBER = 6;
+	
+	public final static int NAME_KEY_LENGTH = 10;
+	
+	// types of name index records
+	public final static int CITY_TOWN_TYPE = 1;
+	public final static int VILLAGES_TYPE = 2;
+	public final static int POSTCODES_TYPE = 3;
+	public final static int STREET_TYPE = 4;
+	
 	public static class AddressRegion extends BinaryIndexPart {
 		String enName;
 		
 		int postcodesOffset = -1;
 		int villagesOffset = -1;
 		int citiesOffset = -1;
+		int nameIndexOffset = -1;
+		NameTrigramIndex trigramIndex = null;
 		
 		LatLon calculatedCenter = null;
+		
+		// first keys of name index blocks, read when name index is used the first time 
+		// (under lock of region because region is shared by readers of the same file)
+		String[] nameIndexBlockKeys = null;
+		int[] nameIndexBlockShifts = null;
+		int nameIndexDataOffset = -1;
+		int nameIndexEnd = -1;
+	}
+	
+	private static class NameIndexAtom implements Comparable<NameIndexAtom> {
+		int type;
+		int shift;
+		int cityShift;
+		
+		@Override
+		public int compareTo(NameIndexAtom o) {
+			return shift < o.shift ? -1 : (shift == o.shift ? 0 : 1);
+		}
 	}
 	
 	private CodedInputStreamRAF codedIS;
 	private final BinaryMapIndexReader map;
+	private final BinaryMapNameTrigramReaderAdapter trigramAdapter;
 	
 	protected BinaryMapAddressReaderAdapter(BinaryMapIndexReader map){
 		this.codedIS = map.codedIS;
 		this.map = map;
+		this.trigramAdapter = new BinaryMapNameTrigramReaderAdapter(map);
 	}
 
 	private void skipUnknownField(int t) throws IOException {
@@ -78,6 +126,16 @@ public class BinaryMapAddressReaderAdapter {
 				length = readInt();
 				codedIS.seek(region.postcodesOffset + length + 4);
 				break;
+			case NAME_INDEX_FIELD_NUMBER :
+				region.nameIndexOffset = codedIS.getTotalBytesRead();
+				length = readInt();
+				codedIS.seek(region.nameIndexOffset + length + 4);
+				break;
+			case BinaryMapNameTrigramReaderAdapter.ADDRESS_TRIGRAM_INDEX_FIELD_NUMBER :
+				region.trigramIndex = new NameTrigramIndex(codedIS.getTotalBytesRead());
+				length = readInt();
+				codedIS.seek(region.trigramIndex.filePointer + length + 4);
+				break;
 			default:
 				skipUnknownField(t);
 				break;
@@ -533,4 +591,305 @@ public class BinaryMapAddressReaderAdapter {
 	
 	
 
+	private void readNameIndexTable(AddressRegion region) throws IOException {
+		List<String> keys = new ArrayList<String>();
+		List<Integer> shifts = new ArrayList<Integer>();
+		codedIS.seek(region.nameIndexOffset);
+		int length = readInt();
+		region.nameIndexEnd = region.nameIndexOffset + 4 + length;
+		int oldLimit = codedIS.pushLimit(length);
+		boolean end = false;
+		while (!end) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case 0:
+				end = true;
+				break;
+			case NAME_INDEX_TABLE_FIELD_NUMBER :
+				int tableLength = readInt();
+				int oldTableLimit = codedIS.pushLimit(tableLength);
+				boolean endTable = false;
+				while (!endTable) {
+					int tt = codedIS.readTag();
+					switch (WireFormat.getTagFieldNumber(tt)) {
+					case 0:
+						endTable = true;
+						break;
+					case OsmandOdb.IndexedStringTable.KEY_FIELD_NUMBER:
+						keys.add(codedIS.readString());
+						break;
+					case OsmandOdb.IndexedStringTable.VAL_FIELD_NUMBER:
+						shifts.add(codedIS.readUInt32());
+						break;
+					default:
+						skipUnknownField(tt);
+						break;
+					}
+				}
+				codedIS.popLimit(oldTableLimit);
+				break;
+			case NAME_INDEX_BLOCKS_FIELD_NUMBER :
+				// shifts of blocks are counted from here
+				region.nameIndexDataOffset = codedIS.getTotalBytesRead();
+				codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
+				end = true;
+				break;
+			default:
+				skipUnknownField(t);
+				break;
+			}
+		}
+		codedIS.popLimit(oldLimit);
+		int[] blockShifts = new int[shifts.size()];
+		for (int i = 0; i < blockShifts.length; i++) {
+			blockShifts[i] = shifts.get(i);
+		}
+		region.nameIndexBlockShifts = blockShifts;
+		region.nameIndexBlockKeys = keys.toArray(new String[keys.size()]);
+	}
+	
+	/**
+	 * Finds records of name index with key started by query key (binary search by first keys of blocks).
+	 * @return records sorted in file order without duplicates
+	 */
+	private List<NameIndexAtom> searchNameIndex(AddressRegion region, String query, int typesMask) throws IOException {
+		synchronized (region) {
+			if (region.nameIndexBlockKeys == null) {
+				readNameIndexTable(region);
+			}
+		}
+		String key = CollatorStringMatcher.getNameKey(query);
+		if (key.length() > NAME_KEY_LENGTH) {
+			key = key.substring(0, NAME_KEY_LENGTH);
+		}
+		List<NameIndexAtom> atoms = new ArrayList<NameIndexAtom>();
+		String[] blockKeys = region.nameIndexBlockKeys;
+		if (blockKeys.length == 0) {
+			return atoms;
+		}
+		// the last block started before key can contain keys started by key (blocks with equal first keys are not in table)
+		int block = Arrays.binarySearch(blockKeys, key);
+		block = Math.max(0, block < 0 ? -block - 2 : block - 1);
+		// keys started by key follow each other, so blocks are read sequentially
+		codedIS.seek(region.nameIndexDataOffset + region.nameIndexBlockShifts[block]);
+		while (true) {
+			int length = codedIS.readRawVarint32();
+			int oldLimit = codedIS.pushLimit(length);
+			boolean finished = readNameIndexBlock(key, typesMask, atoms);
+			codedIS.popLimit(oldLimit);
+			if (finished || codedIS.getTotalBytesRead() >= region.nameIndexEnd
+					|| WireFormat.getTagFieldNumber(codedIS.readTag()) != NAME_INDEX_BLOCKS_FIELD_NUMBER) {
+				break;
+			}
+		}
+		Collections.sort(atoms);
+		List<NameIndexAtom> result = new ArrayList<NameIndexAtom>(atoms.size());
+		for (NameIndexAtom a : atoms) {
+			if (result.isEmpty() || result.get(result.size() - 1).shift != a.shift) {
+				result.add(a);
+			}
+		}
+		return result;
+	}
+
+	// returns true if block has key greater than all keys started by key
+	private boolean readNameIndexBlock(String key, int typesMask, List<NameIndexAtom> atoms) throws IOException {
+		while (true) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case 0:
+				return false;
+			case NAME_INDEX_ATOMS_FIELD_NUMBER:
+				int length = codedIS.readRawVarint32();
+				int oldLimit = codedIS.pushLimit(length);
+				NameIndexAtom atom = new NameIndexAtom();
+				String atomKey = null;
+				boolean end = false;
+				while (!end) {
+					int at = codedIS.readTag();
+					switch (WireFormat.getTagFieldNumber(at)) {
+					case 0:
+						end = true;
+						break;
+					case NAME_INDEX_KEY_FIELD_NUMBER:
+						atomKey = codedIS.readString();
+						break;
+					case NAME_INDEX_TYPE_FIELD_NUMBER:
+						atom.type = codedIS.readUInt32();
+						break;
+					case NAME_INDEX_SHIFT_FIELD_NUMBER:
+						atom.shift = codedIS.readUInt32();
+						break;
+					case NAME_INDEX_CITY_SHIFT_FIELD_NUMBER:
+						atom.cityShift = codedIS.readUInt32();
+						break;
+					default:
+						skipUnknownField(at);
+						break;
+					}
+				}
+				codedIS.popLimit(oldLimit);
+				if (atomKey.startsWith(key)) {
+					if ((typesMask & (1 << atom.type)) != 0) {
+						atoms.add(atom);
+					}
+				} else if (atomKey.compareTo(key) > 0) {
+					codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
+					return true;
+				}
+				break;
+			default:
+				skipUnknownField(t);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Reads only records found by name index and matched by collator matcher 
+	 * (prefix modes of {@link CollatorStringMatcher} are supported), region should have name index
+	 * @param typesMask bit mask of types (1 << CITY_TOWN_TYPE | 1 << STREET_TYPE ...) 
+	 */
+	protected void searchAddressDataByName(AddressRegion region, List<MapObject> result, SearchRequest<MapObject> resultMatcher, 
+			CollatorStringMatcher nameMatcher, boolean useEn, int typesMask) throws IOException {
+		List<NameIndexAtom> atoms = searchNameIndex(region, nameMatcher.getPart(), typesMask);
+		TIntObjectHashMap<City> streetCities = new TIntObjectHashMap<City>();
+		TIntObjectHashMap<int[]> streetCitiesLocation = new TIntObjectHashMap<int[]>();
+		for (NameIndexAtom a : atoms) {
+			if (resultMatcher != null && resultMatcher.isCancelled()) {
+				break;
+			}
+			MapObject o = readAddressRecord(region, a, streetCities, streetCitiesLocation, nameMatcher, useEn);
+			if (o != null && (resultMatcher == null || resultMatcher.publish(o))) {
+				result.add(o);
+			}
+		}
+	}
+	
+	/**
+	 * Reads city, postcode or street (with its city) referenced by name index record
+	 * @param nameMatcher null to read record without name check
+	 * @return null if name of record is not matched
+	 */
+	private MapObject readAddressRecord(AddressRegion region, NameIndexAtom a, TIntObjectHashMap<City> streetCities,
+			TIntObjectHashMap<int[]> streetCitiesLocation, StringMatcher nameMatcher, boolean useEn) throws IOException {
+		int offset = region.filePointer + a.shift;
+		MapObject o = null;
+		if (a.type == STREET_TYPE) {
+			int cityOffset = region.filePointer + a.cityShift;
+			City c = streetCities.get(cityOffset);
+			if (c == null) {
+				codedIS.seek(cityOffset);
+				int length = codedIS.readRawVarint32();
+				int oldLimit = codedIS.pushLimit(length);
+				c = readCity(null, cityOffset, false, null, null, false);
+				codedIS.popLimit(oldLimit);
+				streetCities.put(cityOffset, c);
+				streetCitiesLocation.put(cityOffset, readCityLocation24(cityOffset));
+			}
+			int[] city24 = streetCitiesLocation.get(cityOffset);
+			codedIS.seek(offset);
+			int length = codedIS.readRawVarint32();
+			int oldLimit = codedIS.pushLimit(length);
+			Street s = new Street(c);
+			s.setFileOffset(offset);
+			readStreet(s, null, false, city24[0], city24[1], null);
+			codedIS.popLimit(oldLimit);
+			if (nameMatcher == null || nameMatcher.matches(s.getName(useEn))) {
+				o = s;
+			}
+		} else {
+			codedIS.seek(offset);
+			int length = codedIS.readRawVarint32();
+			int oldLimit = codedIS.pushLimit(length);
+			if (a.type == POSTCODES_TYPE) {
+				PostCode p = readPostcode(null, offset, null, false, null);
+				if (nameMatcher == null || nameMatcher.matches(p.getName())) {
+					o = p;
+				}
+			} else {
+				o = readCity(null, offset, false, null, nameMatcher, useEn);
+			}
+			codedIS.popLimit(oldLimit);
+		}
+		return o;
+	}
+	
+	/**
+	 * Reads records found by trigram index which names are similar to name query of request 
+	 * (region should have trigram index)
+	 * @param typesMask bit mask of types (1 << CITY_TOWN_TYPE | 1 << STREET_TYPE ...) 
+	 */
+	protected void searchAddressDataByNameFuzzy(AddressRegion region, SearchRequest<MapObject> req, int typesMask,
+			List<MapObject> found, TIntArrayList nameDistances) throws IOException {
+		List<String> queryWords = CollatorStringMatcher.getWordKeys(req.nameQuery);
+		if (queryWords.isEmpty()) {
+			return;
+		}
+		NameTrigramIndex index = region.trigramIndex;
+		int[] candidates = trigramAdapter.searchCandidates(index, queryWords, req, BinaryMapNameTrigramReaderAdapter.MAX_CANDIDATES);
+		TIntObjectHashMap<City> streetCities = new TIntObjectHashMap<City>();
+		TIntObjectHashMap<int[]> streetCitiesLocation = new TIntObjectHashMap<int[]>();
+		for (int shift : candidates) {
+			if (req.isCancelled()) {
+				return;
+			}
+			int p = index.findParent(shift);
+			if (p < 0) {
+				continue;
+			}
+			NameIndexAtom a = new NameIndexAtom();
+			a.shift = shift;
+			if (index.parents[p] == shift) {
+				a.type = index.parentTypes[p];
+			} else {
+				a.type = STREET_TYPE;
+				a.cityShift = index.parents[p];
+			}
+			if ((typesMask & (1 << a.type)) == 0) {
+				continue;
+			}
+			MapObject o = readAddressRecord(region, a, streetCities, streetCitiesLocation, null, false);
+			int d = BinaryMapNameTrigramReaderAdapter.getNameDistance(queryWords, 
+					BinaryMapNameTrigramReaderAdapter.getNameWordKeys(o.getName(), o.getEnName()));
+			if (d >= 0) {
+				found.add(o);
+				nameDistances.add(d);
+			}
+		}
+	}
+	
+	private int[] readCityLocation24(int cityOffset) throws IOException {
+		codedIS.seek(cityOffset);
+		int length = codedIS.readRawVarint32();
+		int oldLimit = codedIS.pushLimit(length);
+		int x = 0;
+		int y = 0;
+		boolean end = false;
+		while (!end) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case 0:
+				end = true;
+				break;
+			case OsmandOdb.CityIndex.X_FIELD_NUMBER:
+				x = codedIS.readFixed32();
+				break;
+			case OsmandOdb.CityIndex.Y_FIELD_NUMBER:
+				y = codedIS.readFixed32();
+				codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
+				end = true;
+				break;
+			default:
+				skipUnknownField(t);
+				break;
+			}
+		}
+		codedIS.popLimit(oldLimit);
+		return new int[] { x >> 7, y >> 7 };
+	}
+
 }
@@ -0,0 +1,145 @@
+package net.osmand.binary;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.IOException;
+import java.util.List;
+
+import net.osmand.binary.BinaryMapIndexReader.MapIndex;
+import net.osmand.binary.BinaryMapIndexReader.TagValuePair;
+
+/**
+ * Reusable view over the last decoded map object (used by streaming search).
+ * It is valid only inside {@link BinaryMapIndexReader.MapDataObjectVisitor#visit(BinaryMapDataObjectCursor)},
+ * so values that should be kept need to be copied (see {@link #toBinaryMapDataObject(boolean)}).
+ */
+public class BinaryMapDataObjectCursor {
+
+	final TIntArrayList coordinates = new TIntArrayList();
+	final TIntArrayList types = new TIntArrayList();
+	final TLongArrayList restrictions = new TLongArrayList();
+	boolean restrictionsRead = false;
+	int stringId = -1;
+	long id = 0;
+	int highwayAttributes = 0;
+	MapIndex mapIndex = null;
+
+	// information about current map tree block (base id and string table are stored after all objects)
+	long baseId = 0;
+	int stringTableOffset = -1;
+	int stringTableLength = 0;
+	List<String> stringTable = null;
+
+	private final BinaryMapIndexReader reader;
+
+	BinaryMapDataObjectCursor(BinaryMapIndexReader reader) {
+		this.reader = reader;
+	}
+
+	void startObject(MapIndex mapIndex) {
+		this.mapIndex = mapIndex;
+		restrictions.clear();
+		restrictionsRead = false;
+		stringId = -1;
+		id = 0;
+		highwayAttributes = 0;
+	}
+
+	void startBlock() {
+		baseId = 0;
+		stringTableOffset = -1;
+		stringTableLength = 0;
+		stringTable = null;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public int getPointsLength() {
+		return coordinates.size() / 2;
+	}
+
+	public int getPoint31XTile(int ind) {
+		return coordinates.get(2 * ind);
+	}
+
+	public int getPoint31YTile(int ind) {
+		return coordinates.get(2 * ind + 1);
+	}
+
+	public int getTypesLength() {
+		return types.size();
+	}
+
+	public int getType(int ind) {
+		return types.get(ind);
+	}
+
+	public TagValuePair getTagValue(int indType) {
+		if (mapIndex == null) {
+			return null;
+		}
+		return mapIndex.decodeType(types.get(indType));
+	}
+
+	public int getHighwayAttributes() {
+		return highwayAttributes;
+	}
+
+	public MapIndex getMapIndex() {
+		return mapIndex;
+	}
+
+	public int getRestrictionCount() {
+		return restrictions.size();
+	}
+
+	public byte getRestrictionType(int k) {
+		return (byte) (restrictions.get(k) & 7);
+	}
+
+	public long getRestriction(int k) {
+		long l = restrictions.get(k);
+		return ((l >> 3) << 1) | (id & 1l);
+	}
+
+	public boolean hasName() {
+		return stringId != -1;
+	}
+
+	/**
+	 * Name is decoded lazily : string table of the block is read only on first request
+	 */
+	public String getName() throws IOException {
+		if (stringId == -1 || stringTableOffset == -1) {
+			return null;
+		}
+		if (stringTable == null) {
+			stringTable = reader.readStringTable(stringTableOffset, stringTableLength);
+		}
+		return stringTable.get(stringId);
+	}
+
+	/**
+	 * Copies current object to keep it after visit
+	 */
+	public BinaryMapDataObject toBinaryMapDataObject(boolean readName) throws IOException {
+		BinaryMapDataObject dataObject = new BinaryMapDataObject();
+		dataObject.coordinates = coordinates.toArray();
+		dataObject.types = types.toArray();
+		dataObject.mapIndex = mapIndex;
+		dataObject.id = id;
+		dataObject.stringId = stringId;
+		dataObject.highwayAttributes = highwayAttributes;
+		if (restrictionsRead) {
+			dataObject.restrictions = restrictions.toArray();
+		}
+		if (readName) {
+			dataObject.name = getName();
+		}
+		return dataObject;
+	}
+
+}
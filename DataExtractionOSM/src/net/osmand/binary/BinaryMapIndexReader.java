@@ -8,12 +8,15 @@ import gnu.trove.map.hash.TIntObjectHashMap;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -25,6 +28,7 @@ import net.osmand.StringMatcher;
 import net.osmand.CollatorStringMatcher.StringMatcherMode;
 import net.osmand.binary.BinaryMapAddressReaderAdapter.AddressRegion;
 import net.osmand.binary.BinaryMapPoiReaderAdapter.PoiRegion;
+import net.osmand.binary.BinaryMapRoutingHierarchyReaderAdapter.RoutingHierarchyIndex;
 import net.osmand.binary.BinaryMapTransportReaderAdapter.TransportIndex;
 import net.osmand.data.Amenity;
 import net.osmand.data.AmenityType;
@@ -57,22 +61,45 @@ public class BinaryMapIndexReader {
 	private List<PoiRegion> poiIndexes = new ArrayList<PoiRegion>();
 	private List<AddressRegion> addressIndexes = new ArrayList<AddressRegion>();
 	private List<TransportIndex> transportIndexes = new ArrayList<TransportIndex>();
+	private List<RoutingHierarchyIndex> routingHierarchyIndexes = new ArrayList<RoutingHierarchyIndex>();
 	private List<BinaryIndexPart> indexes = new ArrayList<BinaryIndexPart>();
 	
 	protected CodedInputStreamRAF codedIS;
+	// not null if file is memory mapped (mapping is shared between readers of the same file),
+	// reference is dropped on close and mapping is released by GC
+	private ByteBuffer mappedFile;
 	
 	private final BinaryMapTransportReaderAdapter transportAdapter;
 	private final BinaryMapPoiReaderAdapter poiAdapter;
 	private final BinaryMapAddressReaderAdapter addressAdapter;
+	private final BinaryMapRoutingHierarchyReaderAdapter routingHierarchyAdapter;
+	
+	// use in memory index of map tree leaf blocks bounds to read only intersecting blocks
+	private boolean cacheMapTreeBounds = false;
 	
 	public BinaryMapIndexReader(final RandomAccessFile raf) throws IOException {
 		this(raf, false);
 	}
 	
 	public BinaryMapIndexReader(final RandomAccessFile raf, boolean readOnlyMapData) throws IOException {
+		this(raf, readOnlyMapData, false);
+	}
+	
+	/**
+	 * @param useMemoryMapping map whole file into memory and decode directly from mapping 
+	 * instead of reading it through RandomAccessFile buffer (not possible for files > 2GB)
+	 */
+	public BinaryMapIndexReader(final RandomAccessFile raf, boolean readOnlyMapData, boolean useMemoryMapping) throws IOException {
 		this.raf = raf;
-		codedIS = CodedInputStreamRAF.newInstance(raf, 1024 * 5);
+		if (useMemoryMapping) {
+			mappedFile = CodedInputStreamRAF.mapFile(raf);
+			codedIS = CodedInputStreamRAF.newInstance(mappedFile);
+		} else {
+			mappedFile = null;
+			codedIS = CodedInputStreamRAF.newInstance(raf, 1024 * 5);
+		}
 		codedIS.setSizeLimit(Integer.MAX_VALUE); // 2048 MB
+		routingHierarchyAdapter = new BinaryMapRoutingHierarchyReaderAdapter(this);
 		if(!readOnlyMapData){
 			transportAdapter = new BinaryMapTransportReaderAdapter(this);
 			addressAdapter = new BinaryMapAddressReaderAdapter(this);
@@ -85,6 +112,47 @@ public class BinaryMapIndexReader {
 		init();
 	}
 	
+	/**
+	 * Creates one more reader (read cursor) for the same file without parsing it again.
+	 * Parsed index parts (map roots, encoding rules, poi, address and transport regions) 
+	 * are shared with referenceToSameFile, only the input stream is new. 
+	 * So different threads could search the same file at the same time, each with its own reader.
+	 * State of shared parts that is read lazily (map trees, name index tables, trigram indexes, transport string tables)
+	 * is initialized under lock of the part.
+	 * 
+	 * @param raf new file handle for the same file, it could be null only if 
+	 * referenceToSameFile is memory mapped (then the mapping is shared)
+	 */
+	public BinaryMapIndexReader(final RandomAccessFile raf, BinaryMapIndexReader referenceToSameFile) throws IOException {
+		this.raf = raf;
+		this.mappedFile = referenceToSameFile.mappedFile;
+		if (mappedFile != null) {
+			codedIS = CodedInputStreamRAF.newInstance(mappedFile);
+		} else if (raf != null) {
+			codedIS = CodedInputStreamRAF.newInstance(raf, 1024 * 5);
+		} else {
+			throw new IllegalArgumentException("File should be specified for not memory mapped reader"); //$NON-NLS-1$
+		}
+		codedIS.setSizeLimit(Integer.MAX_VALUE); // 2048 MB
+		version = referenceToSameFile.version;
+		mapIndexes = new ArrayList<MapIndex>(referenceToSameFile.mapIndexes);
+		poiIndexes = new ArrayList<PoiRegion>(referenceToSameFile.poiIndexes);
+		addressIndexes = new ArrayList<AddressRegion>(referenceToSameFile.addressIndexes);
+		transportIndexes = new ArrayList<TransportIndex>(referenceToSameFile.transportIndexes);
+		routingHierarchyIndexes = new ArrayList<RoutingHierarchyIndex>(referenceToSameFile.routingHierarchyIndexes);
+		indexes = new ArrayList<BinaryIndexPart>(referenceToSameFile.indexes);
+		routingHierarchyAdapter = new BinaryMapRoutingHierarchyReaderAdapter(this);
+		if (referenceToSameFile.transportAdapter != null) {
+			transportAdapter = new BinaryMapTransportReaderAdapter(this);
+			addressAdapter = new BinaryMapAddressReaderAdapter(this);
+			poiAdapter = new BinaryMapPoiReaderAdapter(this);
+		} else {
+			transportAdapter = null;
+			addressAdapter = null;
+			poiAdapter = null;
+		}
+	}
+	
 	private void init() throws IOException {
 		boolean initCorrectly = false;
 		while(true){
@@ -152,6 +220,17 @@ public class BinaryMapIndexReader {
 				}
 				codedIS.seek(poiInd.filePointer + poiInd.length);
 				break;
+			case BinaryMapRoutingHierarchyReaderAdapter.ROUTING_HIERARCHY_FIELD_NUMBER:
+				RoutingHierarchyIndex hierarchy = new RoutingHierarchyIndex();
+				hierarchy.length = readInt();
+				hierarchy.filePointer = codedIS.getTotalBytesRead();
+				oldLimit = codedIS.pushLimit(hierarchy.length);
+				routingHierarchyAdapter.readRoutingHierarchyHeader(hierarchy);
+				codedIS.popLimit(oldLimit);
+				routingHierarchyIndexes.add(hierarchy);
+				indexes.add(hierarchy);
+				codedIS.seek(hierarchy.filePointer + hierarchy.length);
+				break;
 			case OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER :
 				int cversion = codedIS.readUInt32();
 				calculateCenterPointForRegions();
@@ -247,12 +326,72 @@ public class BinaryMapIndexReader {
 		return transportIndexes.size() > 0;
 	}
 	
+	public boolean hasRoutingHierarchy(String routerName) {
+		for (RoutingHierarchyIndex ind : routingHierarchyIndexes) {
+			if (Algoritms.objectEquals(routerName, ind.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns routing hierarchy built for specified router, graph is read on first request 
+	 * and then shared between all readers of the same file.
+	 * @return null if file doesn't contain it
+	 */
+	public RoutingHierarchyIndex getRoutingHierarchy(String routerName) throws IOException {
+		for (RoutingHierarchyIndex ind : routingHierarchyIndexes) {
+			if (Algoritms.objectEquals(routerName, ind.getName())) {
+				synchronized (ind) {
+					if (!ind.isLoaded()) {
+						routingHierarchyAdapter.readRoutingHierarchy(ind);
+					}
+				}
+				return ind;
+			}
+		}
+		return null;
+	}
+	
 	
 
 	public RandomAccessFile getRaf() {
 		return raf;
 	}
 	
+	public boolean isMemoryMapped() {
+		return codedIS.isMemoryMapped();
+	}
+	
+	/**
+	 * When it is enabled, bounds of all map tree blocks containing data are read once 
+	 * (for each map level on first search) and kept in memory, so next searches 
+	 * read only blocks intersecting request bounds and skip all other subtrees without touching the file.
+	 */
+	public void setCacheMapTreeBounds(boolean cacheMapTreeBounds) {
+		this.cacheMapTreeBounds = cacheMapTreeBounds;
+	}
+	
+	public boolean isCacheMapTreeBounds() {
+		return cacheMapTreeBounds;
+	}
+	
+	/**
+	 * When it is enabled (default), search poi by name compares name keys stored with poi (accent-folded and lower cased)
+	 * and decodes only poi which keys match query, collator is used only to check them.
+	 * Files without name keys are searched by collator.
+	 */
+	public void setUsePoiNameKeys(boolean usePoiNameKeys) {
+		if (poiAdapter != null) {
+			poiAdapter.usePoiNameKeys = usePoiNameKeys;
+		}
+	}
+	
+	public boolean isUsePoiNameKeys() {
+		return poiAdapter != null && poiAdapter.usePoiNameKeys;
+	}
+	
 	public int readByte() throws IOException{
 		byte b = codedIS.readRawByte();
 		if(b < 0){
@@ -289,12 +428,19 @@ public class BinaryMapIndexReader {
 	
 	
 	/**
-	 * Transport public methods
+	 * Transport public methods.
+	 * Routes are kept in cache of reader (see {@link #setTransportRoutesCacheSize(int)}) and shared by calls so
+	 * they (and their stop lists) should not be modified.
 	 */
 	public TIntObjectHashMap<TransportRoute> getTransportRoutes(int[] filePointers) throws IOException {
 		TIntObjectHashMap<TransportRoute> result = new TIntObjectHashMap<TransportRoute>();
 		Map<TransportIndex, TIntArrayList> groupPoints = new HashMap<TransportIndex, TIntArrayList>();
 		for(int filePointer : filePointers){
+			TransportRoute cached = transportAdapter.getCachedTransportRoute(filePointer);
+			if (cached != null) {
+				result.put(filePointer, cached);
+				continue;
+			}
 			TransportIndex ind = getTransportIndex(filePointer);
 			if (ind != null) {
 				if (!groupPoints.containsKey(ind)) {
@@ -304,25 +450,47 @@ public class BinaryMapIndexReader {
 			}
 		}
 		Iterator<Entry<TransportIndex, TIntArrayList>> it = groupPoints.entrySet().iterator();
-		if(it.hasNext()){
+		while (it.hasNext()) {
 			Entry<TransportIndex, TIntArrayList> e = it.next();
 			TransportIndex ind = e.getKey();
 			TIntArrayList pointers = e.getValue();
 			pointers.sort();
 			TIntObjectHashMap<String> stringTable = new TIntObjectHashMap<String>();
+			List<TransportRoute> routes = new ArrayList<TransportRoute>();
 			for (int i = 0; i < pointers.size(); i++) {
 				int filePointer = pointers.get(i);
-				TransportRoute transportRoute = transportAdapter.getTransportRoute(filePointer, stringTable, false);
-				result.put(filePointer, transportRoute);
+				if (!result.containsKey(filePointer)) {
+					TransportRoute transportRoute = transportAdapter.getTransportRoute(filePointer, stringTable, false);
+					result.put(filePointer, transportRoute);
+					routes.add(transportRoute);
+				}
 			}
 			transportAdapter.initializeStringTable(ind, stringTable);
-			for(TransportRoute r : result.values(new TransportRoute[result.size()])){
+			// names of routes read from other transport indexes are already initialized
+			for(TransportRoute r : routes){
 				transportAdapter.initializeNames(false, r, stringTable);
 			}
+			for (int i = 0; i < pointers.size(); i++) {
+				transportAdapter.cacheTransportRoute(pointers.get(i), result.get(pointers.get(i)));
+			}
 		}
 		return result;
 	}
 	
+	/**
+	 * Max number of decoded transport routes kept by reader (0 - routes are not cached)
+	 */
+	public void setTransportRoutesCacheSize(int size) {
+		if (transportAdapter != null) {
+			transportAdapter.routesCacheSize = size;
+			transportAdapter.clearTransportRoutesCache();
+		}
+	}
+	
+	public int getTransportRoutesCacheSize() {
+		return transportAdapter == null ? 0 : transportAdapter.routesCacheSize;
+	}
+	
 	/**
 	 * Transport public methods
 	 */
@@ -333,14 +501,21 @@ public class BinaryMapIndexReader {
 		}
 		List<net.osmand.data.TransportRoute> list = new ArrayList<TransportRoute>();
 		TIntObjectHashMap<String> stringTable = new TIntObjectHashMap<String>();
+		List<net.osmand.data.TransportRoute> read = new ArrayList<TransportRoute>();
 		for(int filePointer : stop.getReferencesToRoutes()){
-			TransportRoute tr = transportAdapter.getTransportRoute(filePointer, stringTable, true);
+			TransportRoute tr = transportAdapter.getCachedTransportRoute(filePointer);
+			if (tr == null) {
+				tr = transportAdapter.getTransportRoute(filePointer, stringTable, true);
+				read.add(tr);
+			}
 			if(tr != null){
 				list.add(tr);				
 			}
 		}
-		transportAdapter.initializeStringTable(ind, stringTable);
-		for(TransportRoute route : list){
+		if (!read.isEmpty()) {
+			transportAdapter.initializeStringTable(ind, stringTable);
+		}
+		for(TransportRoute route : read){
 			transportAdapter.initializeNames(true, route, stringTable);
 		}
 		return list;
@@ -481,7 +656,14 @@ public class BinaryMapIndexReader {
 	public List<City> getVillages(String region, SearchRequest<MapObject> resultMatcher, StringMatcher nameMatcher, boolean useEn) throws IOException {
 		List<City> cities = new ArrayList<City>();
 		AddressRegion r = getRegionByName(region);
-		if(r.villagesOffset != -1){
+		if (r.villagesOffset != -1 && isNameIndexMatcher(r, nameMatcher)) {
+			List<MapObject> villages = new ArrayList<MapObject>();
+			addressAdapter.searchAddressDataByName(r, villages, resultMatcher, (CollatorStringMatcher) nameMatcher, useEn,
+					1 << BinaryMapAddressReaderAdapter.VILLAGES_TYPE);
+			for (MapObject o : villages) {
+				cities.add((City) o);
+			}
+		} else if(r.villagesOffset != -1){
 			codedIS.seek(r.villagesOffset);
 			int len = readInt();
 			int old = codedIS.pushLimit(len);
@@ -492,6 +674,56 @@ public class BinaryMapIndexReader {
 	}
 
 	
+	public boolean hasAddressNameIndex(String region) {
+		return getRegionByName(region).nameIndexOffset != -1;
+	}
+	
+	// name index finds names started by query (or words of names started by query)
+	private boolean isNameIndexMatcher(AddressRegion r, StringMatcher nameMatcher) {
+		if (r.nameIndexOffset == -1 || !(nameMatcher instanceof CollatorStringMatcher)) {
+			return false;
+		}
+		CollatorStringMatcher matcher = (CollatorStringMatcher) nameMatcher;
+		return matcher.getMode() != StringMatcherMode.CHECK_CONTAINS && CollatorStringMatcher.getNameKey(matcher.getPart()).length() > 0;
+	}
+	
+	/**
+	 * Searches cities, villages, postcodes and streets which name (or word in name) starts with query, 
+	 * only found records are read (region should have name index {@link #hasAddressNameIndex(String)})
+	 * @param typesMask bit mask of types (1 << BinaryMapAddressReaderAdapter.CITY_TOWN_TYPE | ...)
+	 */
+	public List<MapObject> searchAddressDataByName(String region, SearchRequest<MapObject> resultMatcher, CollatorStringMatcher nameMatcher, 
+			boolean useEn, int typesMask) throws IOException {
+		AddressRegion r = getRegionByName(region);
+		if (!isNameIndexMatcher(r, nameMatcher)) {
+			throw new IllegalArgumentException("Name index can't be used for " + region); //$NON-NLS-1$
+		}
+		List<MapObject> result = new ArrayList<MapObject>();
+		addressAdapter.searchAddressDataByName(r, result, resultMatcher, nameMatcher, useEn, typesMask);
+		return result;
+	}
+	
+	public boolean hasAddressNameTrigramIndex(String region) {
+		return getRegionByName(region).trigramIndex != null;
+	}
+	
+	/**
+	 * Searches cities, postcodes and streets which names are similar to name query of request (typos are allowed),
+	 * results are sorted by similarity and by distance to request point. Region should have trigram index. 
+	 * @param typesMask bit mask of types (1 << BinaryMapAddressReaderAdapter.CITY_TOWN_TYPE | ...)
+	 */
+	public List<MapObject> searchAddressDataByNameFuzzy(String region, SearchRequest<MapObject> req, int typesMask) throws IOException {
+		AddressRegion r = getRegionByName(region);
+		if (r.trigramIndex == null || req.nameQuery == null) {
+			throw new IllegalArgumentException("Trigram index can't be used for " + region); //$NON-NLS-1$
+		}
+		List<MapObject> found = new ArrayList<MapObject>();
+		TIntArrayList nameDistances = new TIntArrayList();
+		addressAdapter.searchAddressDataByNameFuzzy(r, req, typesMask, found, nameDistances);
+		BinaryMapNameTrigramReaderAdapter.publishRanked(found, nameDistances, req);
+		return req.getSearchResults();
+	}
+	
 	public void preloadStreets(City c, SearchRequest<Street> resultMatcher) throws IOException {
 		checkAddressIndex(c.getFileOffset());
 		codedIS.seek(c.getFileOffset());
@@ -725,6 +957,17 @@ public class BinaryMapIndexReader {
 	
 	
 	public List<BinaryMapDataObject> searchMapIndex(SearchRequest<BinaryMapDataObject> req) throws IOException {
+		searchMapIndex(req, null);
+		return req.getSearchResults();
+	}
+	
+	/**
+	 * Streaming variant of map search : accepted objects are not collected into search results 
+	 * and no object is allocated for them, instead visitor receives reusable cursor over decoded object.
+	 * If visitor is null, objects are collected into search results as usual.
+	 */
+	public void searchMapIndex(SearchRequest<BinaryMapDataObject> req, MapDataObjectVisitor visitor) throws IOException {
+		BinaryMapDataObjectCursor cursor = new BinaryMapDataObjectCursor(this);
 		req.numberOfVisitedObjects = 0;
 		req.numberOfAcceptedObjects = 0;
 		req.numberOfAcceptedSubtrees = 0;
@@ -735,22 +978,42 @@ public class BinaryMapIndexReader {
 					if (index.right < req.left || index.left > req.right || index.top > req.bottom || index.bottom < req.top) {
 						continue;
 					}
-					// lazy initializing trees
-					if(index.trees == null){
-						index.trees = new ArrayList<MapTree>();
-						codedIS.seek(index.filePointer);
-						int oldLimit = codedIS.pushLimit(index.length);
-						readMapLevel(index);
-						codedIS.popLimit(oldLimit);
+					// lazy initializing trees (map root could be shared between readers of the same file)
+					List<MapTree> trees;
+					synchronized (index) {
+						if (index.trees == null) {
+							index.trees = new ArrayList<MapTree>();
+							codedIS.seek(index.filePointer);
+							int oldLimit = codedIS.pushLimit(index.length);
+							readMapLevel(index);
+							codedIS.popLimit(oldLimit);
+						}
+						trees = index.trees;
+						if (cacheMapTreeBounds && index.dataBlocks == null) {
+							index.dataBlocks = readMapTreeDataBlocks(index);
+						}
+					}
+					
+					if (cacheMapTreeBounds) {
+						for (MapTree block : index.dataBlocks) {
+							if (block.right < req.left || block.left > req.right || block.top > req.bottom || block.bottom < req.top) {
+								continue;
+							}
+							codedIS.seek(block.filePointer);
+							int oldLimit = codedIS.pushLimit(block.length);
+							searchMapTreeBounds(block.pleft, block.pright, block.ptop, block.pbottom, req, mapIndex, cursor, visitor);
+							codedIS.popLimit(oldLimit);
+						}
+						continue;
 					}
 					
-					for (MapTree tree : index.trees) {
+					for (MapTree tree : trees) {
 						if (tree.right < req.left || tree.left > req.right || tree.top > req.bottom || tree.bottom < req.top) {
 							continue;
 						}
 						codedIS.seek(tree.filePointer);
 						int oldLimit = codedIS.pushLimit(tree.length);
-						searchMapTreeBounds(index.left, index.right, index.top, index.bottom, req, mapIndex);
+						searchMapTreeBounds(index.left, index.right, index.top, index.bottom, req, mapIndex, cursor, visitor);
 						codedIS.popLimit(oldLimit);
 					}
 				}
@@ -758,14 +1021,74 @@ public class BinaryMapIndexReader {
 		}
 		log.info("Search is done. Visit " + req.numberOfVisitedObjects + " objects. Read " + req.numberOfAcceptedObjects + " objects."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 		log.info("Read " + req.numberOfReadSubtrees + " subtrees. Go through " + req.numberOfAcceptedSubtrees + " subtrees.");   //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
-		return req.getSearchResults();
+	}
+	
+	private List<MapTree> readMapTreeDataBlocks(MapRoot index) throws IOException {
+		List<MapTree> blocks = new ArrayList<MapTree>();
+		for (MapTree tree : index.trees) {
+			readMapTreeDataBlocks(index.left, index.right, index.top, index.bottom, tree.filePointer, tree.length, blocks);
+		}
+		log.info("Map level " + index.minZoom + "-" + index.maxZoom + " has " + blocks.size() + " data blocks"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return blocks;
+	}
+	
+	private void readMapTreeDataBlocks(int pleft, int pright, int ptop, int pbottom, int filePointer, int length, 
+			List<MapTree> blocks) throws IOException {
+		codedIS.seek(filePointer);
+		int oldLimit = codedIS.pushLimit(length);
+		MapTree block = new MapTree();
+		block.filePointer = filePointer;
+		block.length = length;
+		block.pleft = pleft;
+		block.pright = pright;
+		block.ptop = ptop;
+		block.pbottom = pbottom;
+		boolean end = false;
+		while (!end) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case 0:
+				end = true;
+				break;
+			case OsmandOdb.MapTree.BOTTOM_FIELD_NUMBER:
+				block.bottom = codedIS.readSInt32() + pbottom;
+				break;
+			case OsmandOdb.MapTree.LEFT_FIELD_NUMBER:
+				block.left = codedIS.readSInt32() + pleft;
+				break;
+			case OsmandOdb.MapTree.RIGHT_FIELD_NUMBER:
+				block.right = codedIS.readSInt32() + pright;
+				break;
+			case OsmandOdb.MapTree.TOP_FIELD_NUMBER:
+				block.top = codedIS.readSInt32() + ptop;
+				break;
+			case OsmandOdb.MapTree.LEAFS_FIELD_NUMBER:
+				// block contains data (it could not contain subtrees), bounds are already read
+				blocks.add(block);
+				codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
+				end = true;
+				break;
+			case OsmandOdb.MapTree.SUBTREES_FIELD_NUMBER:
+				int subLength = readInt();
+				int subFilePointer = codedIS.getTotalBytesRead();
+				readMapTreeDataBlocks(block.left, block.right, block.top, block.bottom, subFilePointer, subLength, blocks);
+				codedIS.seek(subFilePointer + subLength);
+				break;
+			default:
+				skipUnknownField(t);
+				break;
+			}
+		}
+		codedIS.popLimit(oldLimit);
 	}
 	
 	
 	
 	
 	protected void searchMapTreeBounds(int pleft, int pright, int ptop, int pbottom,
-			SearchRequest<BinaryMapDataObject> req, MapIndex root) throws IOException {
+			SearchRequest<BinaryMapDataObject> req, MapIndex root, BinaryMapDataObjectCursor cursor, 
+			MapDataObjectVisitor visitor) throws IOException {
 		int init = 0;
 		int lastIndexResult = -1;
 		int cright = 0;
@@ -808,24 +1131,32 @@ public class BinaryMapIndexReader {
 				init |= 8;
 				break;
 			case OsmandOdb.MapTree.LEAFS_FIELD_NUMBER :
-				int length = codedIS.readRawVarint32();
-				int oldLimit = codedIS.pushLimit(length);
 				if(lastIndexResult == -1){
 					lastIndexResult = req.searchResults.size();
+					if (visitor != null) {
+						// base id and string table are written after all objects of the block, so read them first
+						prepareMapDataBlock(cursor);
+					}
 				}
-				BinaryMapDataObject mapObject = readMapDataObject(cleft, cright, ctop, cbottom, req, root);
-				if(mapObject != null){
-					req.searchResults.add(mapObject);
-					
-				}
+				int length = codedIS.readRawVarint32();
+				int oldLimit = codedIS.pushLimit(length);
+				boolean accepted = readMapDataObject(cleft, cright, ctop, cbottom, req, root, cursor);
 				codedIS.popLimit(oldLimit);
+				if (accepted) {
+					if (visitor != null) {
+						visitor.visit(cursor);
+					} else {
+						// name and base id are initialized after block is read
+						req.searchResults.add(cursor.toBinaryMapDataObject(false));
+					}
+				}
 				break;
 			case OsmandOdb.MapTree.SUBTREES_FIELD_NUMBER :
 				// left, ... already initialized 
 				length = readInt();
 				int filePointer = codedIS.getTotalBytesRead();
 				oldLimit = codedIS.pushLimit(length);
-				searchMapTreeBounds(cleft, cright, ctop, cbottom, req, root);
+				searchMapTreeBounds(cleft, cright, ctop, cbottom, req, root, cursor, visitor);
 				codedIS.popLimit(oldLimit);
 				codedIS.seek(filePointer + length);
 				if(lastIndexResult >= 0){
@@ -835,7 +1166,7 @@ public class BinaryMapIndexReader {
 			case OsmandOdb.MapTree.BASEID_FIELD_NUMBER :
 			case OsmandOdb.MapTree.OLDBASEID_FIELD_NUMBER :
 				long baseId = codedIS.readUInt64();
-				if (lastIndexResult != -1) {
+				if (lastIndexResult != -1 && visitor == null) {
 					for (int i = lastIndexResult; i < req.searchResults.size(); i++) {
 						BinaryMapDataObject rs = req.searchResults.get(i);
 						rs.id += baseId;
@@ -850,6 +1181,11 @@ public class BinaryMapIndexReader {
 			case OsmandOdb.MapTree.STRINGTABLE_FIELD_NUMBER :
 			case OsmandOdb.MapTree.OLDSTRINGTABLE_FIELD_NUMBER :
 				length = codedIS.readRawVarint32();
+				if (visitor != null) {
+					// names are read lazily by cursor
+					codedIS.skipRawBytes(length);
+					break;
+				}
 				oldLimit = codedIS.pushLimit(length);
 				List<String> stringTable = readStringTable();
 				codedIS.popLimit(oldLimit);
@@ -870,14 +1206,63 @@ public class BinaryMapIndexReader {
 		}
 	}
 	
+	/**
+	 * Reads base id and string table position of the block (stream is positioned after first leaf tag)
+	 * and returns back to the first leaf. 
+	 */
+	private void prepareMapDataBlock(BinaryMapDataObjectCursor cursor) throws IOException {
+		cursor.startBlock();
+		int start = codedIS.getTotalBytesRead();
+		codedIS.skipRawBytes(codedIS.readRawVarint32());
+		while (true) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case 0:
+				codedIS.seek(start);
+				return;
+			case OsmandOdb.MapTree.LEAFS_FIELD_NUMBER:
+				codedIS.skipRawBytes(codedIS.readRawVarint32());
+				break;
+			case OsmandOdb.MapTree.BASEID_FIELD_NUMBER:
+			case OsmandOdb.MapTree.OLDBASEID_FIELD_NUMBER:
+				cursor.baseId = codedIS.readUInt64();
+				break;
+			case OsmandOdb.MapTree.STRINGTABLE_FIELD_NUMBER:
+			case OsmandOdb.MapTree.OLDSTRINGTABLE_FIELD_NUMBER:
+				cursor.stringTableLength = codedIS.readRawVarint32();
+				cursor.stringTableOffset = codedIS.getTotalBytesRead();
+				codedIS.skipRawBytes(cursor.stringTableLength);
+				break;
+			default:
+				skipUnknownField(t);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Reads string table at specified position and restores current position of the stream 
+	 */
+	List<String> readStringTable(int offset, int length) throws IOException {
+		int pointer = codedIS.getTotalBytesRead();
+		codedIS.seek(offset);
+		int oldLimit = codedIS.pushLimit(length);
+		List<String> stringTable = readStringTable();
+		codedIS.popLimit(oldLimit);
+		codedIS.seek(pointer);
+		return stringTable;
+	}
+	
 	private int MASK_TO_READ = ~((1 << SHIFT_COORDINATES) - 1);
-	private BinaryMapDataObject readMapDataObject(int left, int right, int top, int bottom, SearchRequest<BinaryMapDataObject> req, 
-			MapIndex root) throws IOException {
+	private boolean readMapDataObject(int left, int right, int top, int bottom, SearchRequest<BinaryMapDataObject> req, 
+			MapIndex root, BinaryMapDataObjectCursor cursor) throws IOException {
 		int tag = WireFormat.getTagFieldNumber(codedIS.readTag());
 		if(OsmandOdb.MapData.COORDINATES_FIELD_NUMBER != tag) {
 			throw new IllegalArgumentException();
 		}
-		req.cacheCoordinates.clear();
+		TIntArrayList coordinates = cursor.coordinates;
+		coordinates.clear();
 		int size = codedIS.readRawVarint32();
 		int old = codedIS.pushLimit(size);
 		int px = left & MASK_TO_READ;
@@ -891,8 +1276,8 @@ public class BinaryMapIndexReader {
 		while(codedIS.getBytesUntilLimit() > 0){
 			int x = (codedIS.readSInt32() << SHIFT_COORDINATES) + px;
 			int y = (codedIS.readSInt32() << SHIFT_COORDINATES) + py;
-			req.cacheCoordinates.add(x);
-			req.cacheCoordinates.add(y);
+			coordinates.add(x);
+			coordinates.add(y);
 			px = x;
 			py = y;
 			if(!contains && req.left <= x && req.right >= x && req.top <= y && req.bottom >= y){
@@ -914,7 +1299,7 @@ public class BinaryMapIndexReader {
 		codedIS.popLimit(old);
 		if(!contains){
 			codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
-			return null;
+			return false;
 		}
 		
 		// READ types
@@ -922,55 +1307,58 @@ public class BinaryMapIndexReader {
 		if(OsmandOdb.MapData.TYPES_FIELD_NUMBER != tag) {
 			throw new IllegalArgumentException();
 		}
-		req.cacheTypes.clear();
+		TIntArrayList types = cursor.types;
+		types.clear();
 		int sizeL = codedIS.readRawVarint32();
-		byte[] types = codedIS.readRawBytes(sizeL);
+		byte[] typesBytes = codedIS.readRawBytes(sizeL);
 		for(int i=0; i<sizeL/2; i++){
-			req.cacheTypes.add(Algoritms.parseSmallIntFromBytes(types, i*2));
+			types.add(Algoritms.parseSmallIntFromBytes(typesBytes, i*2));
 		}
 		
 		boolean accept = true;
 		if (req.searchFilter != null) {
-			accept = req.searchFilter.accept(req.cacheTypes, root);
+			accept = req.searchFilter.accept(types, root);
 		}
 		
 		
 		if(!accept){
 			codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
-			return null;
+			return false;
 		}
 		
 		req.numberOfAcceptedObjects++;
 		
-		BinaryMapDataObject dataObject = new BinaryMapDataObject();		
-		dataObject.coordinates = req.cacheCoordinates.toArray();
-		dataObject.types = req.cacheTypes.toArray();
-		dataObject.mapIndex = root;
-		
+		cursor.startObject(root);
 		while(true){
 			int t = codedIS.readTag();
 			tag = WireFormat.getTagFieldNumber(t);
 			switch (tag) {
 			case 0:
-				return dataObject;
+				// base id is known before reading objects only in stream mode (otherwise it is 0)
+				if (cursor.baseId != 0) {
+					cursor.id += cursor.baseId;
+					for (int j = 0; j < cursor.restrictions.size(); j++) {
+						cursor.restrictions.set(j, cursor.restrictions.get(j) + cursor.baseId);
+					}
+				}
+				return true;
 			case OsmandOdb.MapData.RESTRICTIONS_FIELD_NUMBER :
 				sizeL = codedIS.readRawVarint32();
-				TLongArrayList list = new TLongArrayList();
 				old = codedIS.pushLimit(sizeL);
 				while(codedIS.getBytesUntilLimit() > 0){
-					list.add(codedIS.readSInt64());
+					cursor.restrictions.add(codedIS.readSInt64());
 				}
 				codedIS.popLimit(old);
-				dataObject.restrictions = list.toArray();
+				cursor.restrictionsRead = true;
 				break;
 			case OsmandOdb.MapData.HIGHWAYMETA_FIELD_NUMBER :
-				dataObject.highwayAttributes = codedIS.readInt32();
+				cursor.highwayAttributes = codedIS.readInt32();
 				break;
 			case OsmandOdb.MapData.ID_FIELD_NUMBER :
-				dataObject.id = codedIS.readSInt64();
+				cursor.id = codedIS.readSInt64();
 				break;
 			case OsmandOdb.MapData.STRINGID_FIELD_NUMBER :
-				dataObject.stringId = codedIS.readUInt32();
+				cursor.stringId = codedIS.readUInt32();
 				break;
 			default:
 				skipUnknownField(t);
@@ -993,6 +1381,35 @@ public class BinaryMapIndexReader {
 		return req.getSearchResults();
 	}
 	
+	public boolean hasPoiNameTrigramIndex() throws IOException {
+		for (PoiRegion poiIndex : poiIndexes) {
+			if (poiAdapter.getNameTrigramIndex(poiIndex) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Searches poi which names are similar to name query of request (typos are allowed), 
+	 * results are sorted by similarity and by distance to request point. Poi indexes without trigram index are skipped.
+	 */
+	public List<Amenity> searchPoiByNameFuzzy(SearchRequest<Amenity> req) throws IOException {
+		if (req.nameQuery == null || req.nameQuery.length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		List<Amenity> found = new ArrayList<Amenity>();
+		TIntArrayList nameDistances = new TIntArrayList();
+		for (PoiRegion poiIndex : poiIndexes) {
+			poiAdapter.searchPoiByNameFuzzy(poiIndex, req, found, nameDistances);
+			if (req.isCancelled()) {
+				break;
+			}
+		}
+		BinaryMapNameTrigramReaderAdapter.publishRanked(found, nameDistances, req);
+		return req.getSearchResults();
+	}
+	
 	public Map<AmenityType, List<String>> searchPoiCategoriesByName(String query, Map<AmenityType, List<String>> map) {
 		if (query == null || query.length() == 0) {
 			throw new IllegalArgumentException();
@@ -1112,6 +1529,20 @@ public class BinaryMapIndexReader {
 	}
 	
 	
+	/**
+	 * Request to search objects by name (with typos) ranked by distance to point
+	 * @param limit maximum number of results (-1 not limited)
+	 */
+	public static <T> SearchRequest<T> buildSearchByNameRequest(int x, int y, String nameQuery, int limit, ResultMatcher<T> resultMatcher){
+		SearchRequest<T> request = new SearchRequest<T>();
+		request.x = x;
+		request.y = y;
+		request.nameQuery = nameQuery;
+		request.limit = limit;
+		request.resultMatcher = resultMatcher;
+		return request;
+	}
+	
 	public static SearchRequest<TransportStop> buildSearchTransportRequest(int sleft, int sright, int stop, int sbottom, int limit, List<TransportStop> stops){
 		SearchRequest<TransportStop> request = new SearchRequest<TransportStop>();
 		if (stops != null) {
@@ -1128,11 +1559,15 @@ public class BinaryMapIndexReader {
 	
 	public void close() throws IOException{
 		if(codedIS != null){
-			raf.close();
+			if (raf != null) {
+				raf.close();
+			}
 			codedIS = null;
+			mappedFile = null;
 			mapIndexes.clear();
 			addressIndexes.clear();
 			transportIndexes.clear();
+			routingHierarchyIndexes.clear();
 		}
 	}
 	
@@ -1142,6 +1577,15 @@ public class BinaryMapIndexReader {
 		
 	}
 	
+	public static interface MapDataObjectVisitor {
+		
+		/**
+		 * Cursor is reused for next objects, so it is valid only inside that method
+		 */
+		public void visit(BinaryMapDataObjectCursor object) throws IOException;
+		
+	}
+	
 	public static interface SearchPoiTypeFilter {
 		
 		public boolean accept(AmenityType type, String subcategory);
@@ -1342,6 +1786,8 @@ public class BinaryMapIndexReader {
 		}
 		
 		private List<MapTree> trees = null;
+		// blocks with map data (leafs) of all trees, initialized only if map tree bounds are cached
+		private List<MapTree> dataBlocks = null;
 	}
 	
 	private static class MapTree {
@@ -1353,6 +1799,12 @@ public class BinaryMapIndexReader {
 		int top = 0;
 		int bottom = 0;
 		
+		// parent bounds (tree bounds are stored as delta to them)
+		int pleft = 0;
+		int pright = 0;
+		int ptop = 0;
+		int pbottom = 0;
+		
 	}
 
 	
@@ -1360,6 +1812,8 @@ public class BinaryMapIndexReader {
 	private static boolean testAddressSearch = false;
 	private static boolean testPoiSearch = true;
 	private static boolean testTransportSearch = false;
+	private static boolean testPoiSearchByNameKeys = false;
+	private static boolean testAddressNameIndex = false;
 	
 	public static void main(String[] args) throws IOException {
 		RandomAccessFile raf = new RandomAccessFile(new File("/home/victor/projects/OsmAnd/data/osmand_index/Parkcharge_me.obf"), "r");
@@ -1376,6 +1830,12 @@ public class BinaryMapIndexReader {
 		if(testTransportSearch) {
 			testTransportSearch(reader);
 		}
+		if (testPoiSearchByNameKeys) {
+			testPoiSearchByNameKeys(reader, 10);
+		}
+		if (testAddressNameIndex) {
+			testAddressNameIndex(reader, 50);
+		}
 
 		if (testPoiSearch) {
 			PoiRegion poiRegion = reader.getPoiIndexes().get(0);
@@ -1478,6 +1938,75 @@ public class BinaryMapIndexReader {
 		System.out.println("Villages " + villages.size());
 	}
 
+	/**
+	 * Searches villages by name index and by full scan and compares results. Beginnings of some village names are 
+	 * searched as they are and with 'ё' and 'е' swapped (they are equal for russian collator).
+	 */
+	private static void testAddressNameIndex(BinaryMapIndexReader reader, int namesCount) throws IOException {
+		String reg = reader.getRegionNames().get(0);
+		if (!reader.hasAddressNameIndex(reg)) {
+			System.out.println("Region " + reg + " doesn't have name index");
+			return;
+		}
+		Collator collator = Collator.getInstance(new Locale("ru")); //$NON-NLS-1$
+		collator.setStrength(Collator.PRIMARY);
+		List<City> all = reader.getVillages(reg, null, null, false);
+		List<String> queries = new ArrayList<String>();
+		for (int i = 0; i < all.size() && queries.size() < namesCount; i += Math.max(1, all.size() / namesCount)) {
+			String name = all.get(i).getName();
+			queries.add(name.substring(0, Math.min(name.length(), 4)));
+		}
+		queries.addAll(swapYo(queries));
+		int differences = 0;
+		for (String query : queries) {
+			if (CollatorStringMatcher.getNameKey(query).length() == 0) {
+				continue;
+			}
+			for (StringMatcherMode mode : new StringMatcherMode[] { StringMatcherMode.CHECK_ONLY_STARTS_WITH,
+					StringMatcherMode.CHECK_STARTS_FROM_SPACE }) {
+				final CollatorStringMatcher matcher = new CollatorStringMatcher(collator, query, mode);
+				List<City> byIndex = reader.getVillages(reg, null, matcher, false);
+				// matcher which is not collator matcher is checked by full scan
+				List<City> byScan = reader.getVillages(reg, null, new StringMatcher() {
+					@Override
+					public boolean matches(String name) {
+						return matcher.matches(name);
+					}
+				}, false);
+				if (!getIds(byIndex).equals(getIds(byScan))) {
+					System.out.println("Different villages for '" + query + "' " + mode + " : " + byIndex.size() + " by name index, "
+							+ byScan.size() + " by full scan");
+					differences++;
+				}
+			}
+		}
+		System.out.println("Search villages by name " + queries + " : " + differences + " different results");
+	}
+	
+	private static List<Long> getIds(List<? extends MapObject> objects) {
+		List<Long> ids = new ArrayList<Long>();
+		for (MapObject o : objects) {
+			ids.add(o.getId());
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+	
+	/**
+	 * @return strings containing 'ё' or 'е' where they are swapped
+	 */
+	private static List<String> swapYo(List<String> strings) {
+		List<String> swapped = new ArrayList<String>();
+		for (String s : strings) {
+			String r = s.replace('Ё', '\0').replace('Е', 'Ё').replace('\0', 'Е');
+			r = r.replace('ё', '\0').replace('е', 'ё').replace('\0', 'е');
+			if (!r.equals(s)) {
+				swapped.add(r);
+			}
+		}
+		return swapped;
+	}
+
 	private static void testMapSearch(BinaryMapIndexReader reader) throws IOException {
 		System.out.println(reader.mapIndexes.get(0).encodingRules);
 		int sleft = MapUtils.get31TileNumberX(27.596);
@@ -1491,6 +2020,84 @@ public class BinaryMapIndexReader {
 				System.out.println(" " + obj.getName());
 			}
 		}
+		testMapTreeBoundsCache(reader, 27.596, 53.921, 15);
+		testMapTreeBoundsCache(reader, 27.596, 53.921, 17);
+	}
+	
+	/**
+	 * Types names of some poi letter by letter (names with 'ё' and 'е' also are typed with these letters swapped,
+	 * they are equal for collator of russian default locale) and compares results and time of each search by name 
+	 * with and without name keys.
+	 */
+	private static void testPoiSearchByNameKeys(BinaryMapIndexReader reader, int namesCount) throws IOException {
+		PoiRegion poiRegion = reader.getPoiIndexes().get(0);
+		int left = MapUtils.get31TileNumberX(poiRegion.leftLongitude);
+		int right = MapUtils.get31TileNumberX(poiRegion.rightLongitude);
+		int top = MapUtils.get31TileNumberY(poiRegion.topLatitude);
+		int bottom = MapUtils.get31TileNumberY(poiRegion.bottomLatitude);
+		List<Amenity> all = reader.searchPoi(buildSearchPoiRequest(left, right, top, bottom, -1, null, null));
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < all.size() && names.size() < namesCount; i += Math.max(1, all.size() / namesCount)) {
+			if (!Algoritms.isEmpty(all.get(i).getName())) {
+				names.add(all.get(i).getName());
+			}
+		}
+		names.addAll(swapYo(names));
+		int x = (left >> 1) + (right >> 1);
+		int y = (top >> 1) + (bottom >> 1);
+		boolean useKeys = reader.isUsePoiNameKeys();
+		// the first round warms up file cache and jit
+		for (int round = 0; round < 2; round++) {
+			long[] time = new long[2];
+			int keystrokes = 0;
+			int differences = 0;
+			for (String name : names) {
+				for (int l = 1; l <= name.length(); l++) {
+					List<Long> ids = null;
+					for (int k = 0; k < 2; k++) {
+						reader.setUsePoiNameKeys(k == 1);
+						SearchRequest<Amenity> req = buildSearchPoiRequest(x, y, name.substring(0, l), null);
+						long t = System.nanoTime();
+						reader.searchPoiByName(req);
+						time[k] += System.nanoTime() - t;
+						List<Long> found = new ArrayList<Long>();
+						for (Amenity a : req.getSearchResults()) {
+							found.add(a.getId());
+						}
+						if (ids != null && !ids.equals(found)) {
+							differences++;
+						}
+						ids = found;
+					}
+					keystrokes++;
+				}
+			}
+			if (round == 1) {
+				System.out.println("Search poi by name " + names + " : " + keystrokes + " keystrokes, " + differences + " different results");
+				System.out.println("Per keystroke without name keys " + time[0] / keystrokes / 1000 + " mcs, with name keys "
+						+ time[1] / keystrokes / 1000 + " mcs");
+			}
+		}
+		reader.setUsePoiNameKeys(useKeys);
+	}
+	
+	private static void testMapTreeBoundsCache(BinaryMapIndexReader reader, double lon, double lat, int zoom) throws IOException {
+		// viewport of 800x600 pixels (256 pixel tiles) around location
+		int cx = MapUtils.get31TileNumberX(lon);
+		int cy = MapUtils.get31TileNumberY(lat);
+		int dx = 400 << (31 - zoom - 8);
+		int dy = 300 << (31 - zoom - 8);
+		boolean cache = reader.isCacheMapTreeBounds();
+		for (int i = 0; i < 2; i++) {
+			reader.setCacheMapTreeBounds(i == 1);
+			SearchRequest<BinaryMapDataObject> req = buildSearchRequest(cx - dx, cx + dx, cy - dy, cy + dy, zoom, null);
+			long time = System.nanoTime();
+			reader.searchMapIndex(req);
+			System.out.println("Zoom " + zoom + (i == 1 ? " with" : " without") + " bounds cache : read " + req.numberOfReadSubtrees 
+					+ " subtrees, accepted " + req.numberOfAcceptedSubtrees + " subtrees, found " + req.getSearchResults().size()
+					+ " objects, " + (System.nanoTime() - time) / 1000 + " mcs");
+		}
+		reader.setCacheMapTreeBounds(cache);
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,405 @@
+package net.osmand.binary;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.osmand.CollatorStringMatcher;
+import net.osmand.binary.BinaryMapIndexReader.SearchRequest;
+import net.osmand.data.MapObject;
+import net.osmand.osm.LatLon;
+import net.osmand.osm.MapUtils;
+import net.sf.junidecode.Junidecode;
+
+import com.google.protobuf.CodedInputStreamRAF;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Reads trigram index of names (see OsmAndNameTrigramIndex in osmand_odb.proto) written inside poi and address indexes.
+ * It finds objects which names are similar to query (with typos and other transliteration), candidates found by common trigrams
+ * are checked by edit distance of words and ranked by it and by distance to search point.
+ * Field numbers are declared here because that message is not a part of generated OsmandOdb.
+ */
+public class BinaryMapNameTrigramReaderAdapter {
+
+	public final static int POI_TRIGRAM_INDEX_FIELD_NUMBER = 10; // OsmAndPoiIndex.trigramIndex
+	public final static int ADDRESS_TRIGRAM_INDEX_FIELD_NUMBER = 9; // OsmAndAddressIndex.trigramIndex
+
+	public final static int TRIGRAMS_FIELD_NUMBER = 1;
+	public final static int POSTING_SIZES_FIELD_NUMBER = 2;
+	public final static int PARENTS_FIELD_NUMBER = 3;
+	public final static int PARENT_TYPES_FIELD_NUMBER = 4;
+	public final static int POSTINGS_FIELD_NUMBER = 5;
+	public final static int PARENT_LOCATIONS_FIELD_NUMBER = 6;
+
+	// '$' (beginning of word), a-z, 0-9
+	private final static int TRIGRAM_ALPHABET = 37;
+	// decoded candidates are limited to keep time of query bounded
+	public final static int MAX_CANDIDATES = 500;
+
+	public static class NameTrigramIndex {
+		int filePointer;
+		// index is loaded under lock of index (regions with index are shared by readers of the same file)
+		boolean loaded = false;
+		// sorted trigram codes and shifts of their posting lists (one more than trigrams)
+		int[] trigrams;
+		int[] postingShifts;
+		int postingsOffset;
+		// sorted shifts of records containing other named records (cities for streets, poi box data for poi) and their types
+		int[] parents;
+		int[] parentTypes;
+		// 24 zoom coordinates of parents (null if they are not written)
+		int[] parentX24;
+		int[] parentY24;
+
+		public NameTrigramIndex(int filePointer) {
+			this.filePointer = filePointer;
+		}
+
+		/**
+		 * @return index of parent record of record with shift (parent itself if shift is parent shift) or -1
+		 */
+		public int findParent(int shift) {
+			int i = Arrays.binarySearch(parents, shift);
+			return i >= 0 ? i : -i - 2;
+		}
+	}
+
+	private CodedInputStreamRAF codedIS;
+	private final BinaryMapIndexReader map;
+
+	protected BinaryMapNameTrigramReaderAdapter(BinaryMapIndexReader map){
+		this.codedIS = map.codedIS;
+		this.map = map;
+	}
+
+	private void skipUnknownField(int t) throws IOException {
+		map.skipUnknownField(t);
+	}
+
+	/**
+	 * @return trigram code of 3 characters of name key ('$' for beginning of word)
+	 */
+	public static int getTrigramCode(char c1, char c2, char c3) {
+		return (getTrigramChar(c1) * TRIGRAM_ALPHABET + getTrigramChar(c2)) * TRIGRAM_ALPHABET + getTrigramChar(c3);
+	}
+
+	private static int getTrigramChar(char c) {
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 1;
+		} else if (c >= '0' && c <= '9') {
+			return c - '0' + 27;
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds trigrams of word key padded by 2 characters at the beginning (all trigrams of prefix are trigrams of word)
+	 */
+	public static void addTrigrams(String wordKey, TIntArrayList trigrams) {
+		String s = "$$" + wordKey;
+		for (int i = 0; i + 2 < s.length(); i++) {
+			int code = getTrigramCode(s.charAt(i), s.charAt(i + 1), s.charAt(i + 2));
+			if (!trigrams.contains(code)) {
+				trigrams.add(code);
+			}
+		}
+	}
+
+	/**
+	 * @return keys of words of name and of its english name (transliterated name if it is empty)
+	 */
+	public static List<String> getNameWordKeys(String name, String enName) {
+		List<String> keys = CollatorStringMatcher.getWordKeys(name);
+		// transliteration could split words (i.e. chinese characters)
+		String en = enName == null || enName.length() == 0 ? Junidecode.unidecode(name) : enName;
+		for (String k : CollatorStringMatcher.getWordKeys(en)) {
+			if (!keys.contains(k)) {
+				keys.add(k);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @return number of typos allowed in query word
+	 */
+	public static int getMaxDistance(int wordLength) {
+		if (wordLength <= 3) {
+			return 0;
+		} else if (wordLength <= 6) {
+			return 1;
+		}
+		return 2;
+	}
+
+	/**
+	 * @return minimal edit distance (with transpositions) between query and prefixes of word
+	 */
+	public static int getPrefixDistance(String query, String word, int maxDistance) {
+		int m = query.length();
+		int n = Math.min(word.length(), m + maxDistance);
+		int[] prev2 = new int[n + 1];
+		int[] prev = new int[n + 1];
+		int[] cur = new int[n + 1];
+		for (int j = 0; j <= n; j++) {
+			prev[j] = j;
+		}
+		for (int i = 1; i <= m; i++) {
+			cur[0] = i;
+			for (int j = 1; j <= n; j++) {
+				int cost = query.charAt(i - 1) == word.charAt(j - 1) ? 0 : 1;
+				int d = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+				if (i > 1 && j > 1 && query.charAt(i - 1) == word.charAt(j - 2) && query.charAt(i - 2) == word.charAt(j - 1)) {
+					d = Math.min(d, prev2[j - 2] + 1);
+				}
+				cur[j] = d;
+			}
+			int[] t = prev2;
+			prev2 = prev;
+			prev = cur;
+			cur = t;
+		}
+		int min = Integer.MAX_VALUE;
+		for (int j = 0; j <= n; j++) {
+			min = Math.min(min, prev[j]);
+		}
+		return min;
+	}
+
+	/**
+	 * @return sum of distances of query words to the closest words of name or -1 if some query word has no similar word
+	 */
+	public static int getNameDistance(List<String> queryWords, List<String> nameWords) {
+		int total = 0;
+		for (String q : queryWords) {
+			int maxDistance = getMaxDistance(q.length());
+			int best = Integer.MAX_VALUE;
+			for (int i = 0; i < nameWords.size() && best > 0; i++) {
+				best = Math.min(best, getPrefixDistance(q, nameWords.get(i), maxDistance));
+			}
+			if (best > maxDistance) {
+				return -1;
+			}
+			total += best;
+		}
+		return total;
+	}
+
+	private void readIndex(NameTrigramIndex index) throws IOException {
+		codedIS.seek(index.filePointer);
+		int oldLimit = codedIS.pushLimit(map.readInt());
+		TIntArrayList trigrams = new TIntArrayList();
+		TIntArrayList postingSizes = new TIntArrayList();
+		TIntArrayList parents = new TIntArrayList();
+		TIntArrayList parentTypes = new TIntArrayList();
+		TIntArrayList parentLocations = new TIntArrayList();
+		boolean end = false;
+		while (!end) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case 0:
+				end = true;
+				break;
+			case TRIGRAMS_FIELD_NUMBER:
+				readPackedInts(trigrams, true);
+				break;
+			case POSTING_SIZES_FIELD_NUMBER:
+				readPackedInts(postingSizes, false);
+				break;
+			case PARENTS_FIELD_NUMBER:
+				readPackedInts(parents, true);
+				break;
+			case PARENT_TYPES_FIELD_NUMBER:
+				readPackedInts(parentTypes, false);
+				break;
+			case PARENT_LOCATIONS_FIELD_NUMBER:
+				int length = codedIS.readRawVarint32();
+				int old = codedIS.pushLimit(length);
+				int x = 0;
+				int y = 0;
+				while (codedIS.getBytesUntilLimit() > 0) {
+					x += codedIS.readSInt32();
+					y += codedIS.readSInt32();
+					parentLocations.add(x);
+					parentLocations.add(y);
+				}
+				codedIS.popLimit(old);
+				break;
+			case POSTINGS_FIELD_NUMBER:
+				int postingsLength = codedIS.readRawVarint32();
+				index.postingsOffset = codedIS.getTotalBytesRead();
+				codedIS.skipRawBytes(postingsLength);
+				break;
+			default:
+				skipUnknownField(t);
+				break;
+			}
+		}
+		codedIS.popLimit(oldLimit);
+		index.trigrams = trigrams.toArray();
+		index.postingShifts = new int[postingSizes.size() + 1];
+		for (int i = 0; i < postingSizes.size(); i++) {
+			index.postingShifts[i + 1] = index.postingShifts[i] + postingSizes.get(i);
+		}
+		index.parents = parents.toArray();
+		index.parentTypes = new int[index.parents.length];
+		for (int i = 0; i < parentTypes.size() && i < index.parentTypes.length; i++) {
+			index.parentTypes[i] = parentTypes.get(i);
+		}
+		if (parentLocations.size() == 2 * index.parents.length) {
+			index.parentX24 = new int[index.parents.length];
+			index.parentY24 = new int[index.parents.length];
+			for (int i = 0; i < index.parents.length; i++) {
+				index.parentX24[i] = parentLocations.get(2 * i);
+				index.parentY24[i] = parentLocations.get(2 * i + 1);
+			}
+		}
+		index.loaded = true;
+	}
+
+	private void readPackedInts(TIntArrayList list, boolean deltaCoded) throws IOException {
+		int length = codedIS.readRawVarint32();
+		int oldLimit = codedIS.pushLimit(length);
+		int value = 0;
+		while (codedIS.getBytesUntilLimit() > 0) {
+			int v = codedIS.readUInt32();
+			value = deltaCoded ? value + v : v;
+			list.add(value);
+		}
+		codedIS.popLimit(oldLimit);
+	}
+
+	/**
+	 * Finds records which names have enough trigrams of query words.
+	 * @return shifts of candidates in file order (not more than maxCandidates with the most trigrams, 
+	 * records with equal number of trigrams closer to request point are preferred)
+	 */
+	protected int[] searchCandidates(NameTrigramIndex index, List<String> queryWords, SearchRequest<?> req,
+			int maxCandidates) throws IOException {
+		synchronized (index) {
+			if (!index.loaded) {
+				readIndex(index);
+			}
+		}
+		TIntArrayList queryTrigrams = new TIntArrayList();
+		int allowedMisses = 0;
+		for (String q : queryWords) {
+			addTrigrams(q, queryTrigrams);
+			// each typo breaks at most 3 trigrams
+			allowedMisses += 3 * getMaxDistance(q.length());
+		}
+		int required = Math.max(1, queryTrigrams.size() - allowedMisses);
+		TIntArrayList found = new TIntArrayList();
+		for (int i = 0; i < queryTrigrams.size(); i++) {
+			if (req.isCancelled()) {
+				return new int[0];
+			}
+			int ind = Arrays.binarySearch(index.trigrams, queryTrigrams.get(i));
+			if (ind < 0) {
+				continue;
+			}
+			codedIS.seek(index.postingsOffset + index.postingShifts[ind]);
+			int oldLimit = codedIS.pushLimit(index.postingShifts[ind + 1] - index.postingShifts[ind]);
+			int shift = 0;
+			while (codedIS.getBytesUntilLimit() > 0) {
+				shift += codedIS.readUInt32();
+				found.add(shift);
+			}
+			codedIS.popLimit(oldLimit);
+		}
+		found.sort();
+		TIntArrayList candidates = new TIntArrayList();
+		TIntArrayList missing = new TIntArrayList();
+		for (int i = 0; i < found.size();) {
+			int j = i;
+			while (j < found.size() && found.get(j) == found.get(i)) {
+				j++;
+			}
+			int hits = j - i;
+			if (hits >= required) {
+				candidates.add(found.get(i));
+				missing.add(queryTrigrams.size() - hits);
+			}
+			i = j;
+		}
+		if (candidates.size() > maxCandidates) {
+			candidates = selectBestCandidates(index, candidates, missing, req, maxCandidates);
+		}
+		return candidates.toArray();
+	}
+
+	private TIntArrayList selectBestCandidates(NameTrigramIndex index, TIntArrayList candidates, TIntArrayList missing,
+			SearchRequest<?> req, int maxCandidates) {
+		boolean proximity = index.parentX24 != null && (req.x != 0 || req.y != 0);
+		// number of missing trigrams << 50 | square distance from parent to request point (in 24 zoom tiles, cut to 50 bits)
+		final long[] keys = new long[candidates.size()];
+		Integer[] order = new Integer[candidates.size()];
+		for (int i = 0; i < keys.length; i++) {
+			long dist = 0;
+			if (proximity) {
+				int p = index.findParent(candidates.get(i));
+				if (p >= 0) {
+					long dx = index.parentX24[p] - (req.x >> 7);
+					long dy = index.parentY24[p] - (req.y >> 7);
+					dist = Math.min(dx * dx + dy * dy, (1l << 50) - 1);
+				}
+			}
+			keys[i] = (((long) missing.get(i)) << 50) | dist;
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return keys[o1] < keys[o2] ? -1 : (keys[o1] == keys[o2] ? 0 : 1);
+			}
+		});
+		TIntArrayList best = new TIntArrayList(maxCandidates);
+		for (int i = 0; i < maxCandidates; i++) {
+			best.add(candidates.get(order[i]));
+		}
+		best.sort();
+		return best;
+	}
+
+	/**
+	 * Publishes found objects sorted by name distance and then by distance to search point
+	 * (not more than limit of request if it is specified)
+	 */
+	protected static <T extends MapObject> void publishRanked(final List<T> objects, final TIntArrayList nameDistances,
+			SearchRequest<T> req) {
+		final LatLon point = req.x == 0 && req.y == 0 ? null :
+			new LatLon(MapUtils.get31LatitudeY(req.y), MapUtils.get31LongitudeX(req.x));
+		Integer[] order = new Integer[objects.size()];
+		final double[] distances = new double[objects.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+			LatLon l = objects.get(i).getLocation();
+			distances[i] = point == null || l == null ? 0 : MapUtils.getDistance(point, l);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int d1 = nameDistances.get(o1);
+				int d2 = nameDistances.get(o2);
+				if (d1 != d2) {
+					return d1 < d2 ? -1 : 1;
+				}
+				return Double.compare(distances[o1], distances[o2]);
+			}
+		});
+		int published = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (req.isCancelled() || (req.limit > 0 && published >= req.limit)) {
+				break;
+			}
+			if (req.publish(objects.get(order[i]))) {
+				published++;
+			}
+		}
+	}
+}
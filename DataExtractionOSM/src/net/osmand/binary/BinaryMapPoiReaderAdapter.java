@@ -2,6 +2,7 @@ package net.osmand.binary;
 
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.IOException;
@@ -18,6 +19,7 @@ import net.osmand.CollatorStringMatcher;
 import net.osmand.LogUtil;
 import net.osmand.CollatorStringMatcher.StringMatcherMode;
 import net.osmand.binary.BinaryMapIndexReader.SearchRequest;
+import net.osmand.binary.BinaryMapNameTrigramReaderAdapter.NameTrigramIndex;
 import net.osmand.data.Amenity;
 import net.osmand.data.AmenityType;
 import net.osmand.osm.MapUtils;
@@ -35,6 +37,9 @@ public class BinaryMapPoiReaderAdapter {
 	private static final int ZOOM_TO_SKIP_FILTER = 3;
 	private static final int BUCKET_SEARCH_BY_NAME = 5;
 	
+	// OsmAndPoiBoxDataAtom.nameKey (is not present in generated OsmandOdb)
+	public static final int NAME_KEY_FIELD_NUMBER = 1;
+	
 	public static class PoiRegion extends BinaryIndexPart {
 
 		List<String> categories = new ArrayList<String>();
@@ -46,6 +51,10 @@ public class BinaryMapPoiReaderAdapter {
 		double topLatitude;
 		double bottomLatitude;
 		
+		// trigram index is written after poi data, so it is looked up only when it is needed
+		boolean trigramIndexLookedUp = false;
+		NameTrigramIndex trigramIndex = null;
+		
 		public double getLeftLongitude() {
 			return leftLongitude;
 		}
@@ -65,10 +74,22 @@ public class BinaryMapPoiReaderAdapter {
 	
 	private CodedInputStreamRAF codedIS;
 	private final BinaryMapIndexReader map;
+	private Collator collator;
+	boolean usePoiNameKeys = true;
+	private final BinaryMapNameTrigramReaderAdapter trigramAdapter;
 	
 	protected BinaryMapPoiReaderAdapter(BinaryMapIndexReader map){
 		this.codedIS = map.codedIS;
 		this.map = map;
+		this.trigramAdapter = new BinaryMapNameTrigramReaderAdapter(map);
+	}
+	
+	private Collator getCollator() {
+		if (collator == null) {
+			collator = Collator.getInstance();
+			collator.setStrength(Collator.PRIMARY);
+		}
+		return collator;
 	}
 
 	private void skipUnknownField(int t) throws IOException {
@@ -164,8 +185,14 @@ public class BinaryMapPoiReaderAdapter {
 	
 	protected void searchPoiByName( PoiRegion region, SearchRequest<Amenity> req) throws IOException {
 		TIntLongHashMap offsets = new TIntLongHashMap();
-		Collator instance = Collator.getInstance();
-		instance.setStrength(Collator.PRIMARY);
+		Collator instance = getCollator();
+		byte[] nameKey = null;
+		if (usePoiNameKeys) {
+			String key = CollatorStringMatcher.getNameKey(req.nameQuery);
+			if (key.length() > 0) {
+				nameKey = key.getBytes("US-ASCII");
+			}
+		}
 		CollatorStringMatcher matcher = new CollatorStringMatcher(instance, req.nameQuery, 
 				StringMatcherMode.CHECK_STARTS_FROM_SPACE);
 		long time = System.currentTimeMillis();
@@ -222,7 +249,7 @@ public class BinaryMapPoiReaderAdapter {
 					codedIS.seek(offKeys[j] + indexOffset);
 					int len = readInt();
 					int oldLim = codedIS.pushLimit(len);
-					readPoiData(matcher, req, region);
+					readPoiData(matcher, nameKey, req, region);
 					codedIS.popLimit(oldLim);
 					if(req.isCancelled()){
 						return;
@@ -448,7 +475,113 @@ public class BinaryMapPoiReaderAdapter {
 		}
 	}
 	
-	private void readPoiData(CollatorStringMatcher matcher, SearchRequest<Amenity> req, PoiRegion region) throws IOException {
+	protected NameTrigramIndex getNameTrigramIndex(PoiRegion region) throws IOException {
+		// region could be shared by readers of the same file
+		synchronized (region) {
+			if (!region.trigramIndexLookedUp) {
+				codedIS.seek(region.filePointer);
+				int oldLimit = codedIS.pushLimit(region.length);
+				boolean end = false;
+				while (!end) {
+					int t = codedIS.readTag();
+					int tag = WireFormat.getTagFieldNumber(t);
+					switch (tag) {
+					case 0:
+						end = true;
+						break;
+					case BinaryMapNameTrigramReaderAdapter.POI_TRIGRAM_INDEX_FIELD_NUMBER:
+						region.trigramIndex = new NameTrigramIndex(codedIS.getTotalBytesRead());
+						codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
+						end = true;
+						break;
+					default:
+						skipUnknownField(t);
+						break;
+					}
+				}
+				codedIS.popLimit(oldLimit);
+				region.trigramIndexLookedUp = true;
+			}
+		}
+		return region.trigramIndex;
+	}
+	
+	/**
+	 * Reads poi found by trigram index which names are similar to name query of request
+	 */
+	protected void searchPoiByNameFuzzy(PoiRegion region, SearchRequest<Amenity> req, List<Amenity> found, 
+			TIntArrayList nameDistances) throws IOException {
+		NameTrigramIndex index = getNameTrigramIndex(region);
+		List<String> queryWords = CollatorStringMatcher.getWordKeys(req.nameQuery);
+		if (index == null || queryWords.isEmpty()) {
+			return;
+		}
+		int[] candidates = trigramAdapter.searchCandidates(index, queryWords, req, BinaryMapNameTrigramReaderAdapter.MAX_CANDIDATES);
+		// zoom, x, y of poi box data
+		TIntObjectHashMap<int[]> boxes = new TIntObjectHashMap<int[]>();
+		for (int shift : candidates) {
+			if (req.isCancelled()) {
+				return;
+			}
+			int p = index.findParent(shift);
+			if (p < 0) {
+				continue;
+			}
+			int[] box = boxes.get(index.parents[p]);
+			if (box == null) {
+				box = readPoiBoxDataTile(region.filePointer + index.parents[p]);
+				boxes.put(index.parents[p], box);
+			}
+			codedIS.seek(region.filePointer + shift);
+			int len = codedIS.readRawVarint32();
+			int oldLimit = codedIS.pushLimit(len);
+			Amenity am = readPoiPoint(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, box[1], box[2], box[0], req, region, false, null);
+			codedIS.popLimit(oldLimit);
+			if (am != null) {
+				int d = BinaryMapNameTrigramReaderAdapter.getNameDistance(queryWords,
+						BinaryMapNameTrigramReaderAdapter.getNameWordKeys(am.getName(), am.getEnName()));
+				if (d >= 0) {
+					found.add(am);
+					nameDistances.add(d);
+				}
+			}
+		}
+	}
+	
+	private int[] readPoiBoxDataTile(int offset) throws IOException {
+		codedIS.seek(offset);
+		int length = readInt();
+		int oldLimit = codedIS.pushLimit(length);
+		int[] box = new int[3];
+		boolean end = false;
+		while (!end) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case OsmandOdb.OsmAndPoiBoxData.ZOOM_FIELD_NUMBER :
+				box[0] = codedIS.readUInt32();
+				break;
+			case OsmandOdb.OsmAndPoiBoxData.X_FIELD_NUMBER :
+				box[1] = codedIS.readUInt32();
+				break;
+			case OsmandOdb.OsmAndPoiBoxData.Y_FIELD_NUMBER :
+				box[2] = codedIS.readUInt32();
+				break;
+			case 0:
+			case OsmandOdb.OsmAndPoiBoxData.POIDATA_FIELD_NUMBER :
+				// tile is written before poi
+				end = true;
+				break;
+			default:
+				skipUnknownField(t);
+				break;
+			}
+		}
+		codedIS.popLimit(oldLimit);
+		return box;
+	}
+	
+	private void readPoiData(CollatorStringMatcher matcher, byte[] nameKey, SearchRequest<Amenity> req, PoiRegion region) throws IOException {
 		int x = 0;
 		int y = 0;
 		int zoom = 0;
@@ -473,7 +606,7 @@ public class BinaryMapPoiReaderAdapter {
 			case OsmandOdb.OsmAndPoiBoxData.POIDATA_FIELD_NUMBER:
 				int len = codedIS.readRawVarint32();
 				int oldLim = codedIS.pushLimit(len);
-				Amenity am = readPoiPoint(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, x, y, zoom, req, region, false);
+				Amenity am = readPoiPoint(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, x, y, zoom, req, region, false, nameKey);
 				codedIS.popLimit(oldLim);
 				if (am != null) {
 					if(matcher.matches(am.getName(false)) || matcher.matches(am.getName(true))) {
@@ -514,7 +647,7 @@ public class BinaryMapPoiReaderAdapter {
 			case OsmandOdb.OsmAndPoiBoxData.POIDATA_FIELD_NUMBER:
 				int len = codedIS.readRawVarint32();
 				int oldLim = codedIS.pushLimit(len);
-				Amenity am = readPoiPoint(left31, right31, top31, bottom31, x, y, zoom, req, region, true);
+				Amenity am = readPoiPoint(left31, right31, top31, bottom31, x, y, zoom, req, region, true, null);
 				codedIS.popLimit(oldLim);
 				if (am != null) {
 					if (toSkip != null) {
@@ -541,8 +674,11 @@ public class BinaryMapPoiReaderAdapter {
 		}
 	}
 	
+	/**
+	 * @param nameKey if it is specified, atoms with name keys not matching it are skipped without decoding
+	 */
 	private Amenity readPoiPoint(int left31, int right31, int top31, int bottom31, 
-			int px, int py, int zoom, SearchRequest<Amenity> req, PoiRegion region, boolean checkBounds) throws IOException {
+			int px, int py, int zoom, SearchRequest<Amenity> req, PoiRegion region, boolean checkBounds, byte[] nameKey) throws IOException {
 		Amenity am = null;
 		int x = 0;
 		int y = 0;
@@ -555,6 +691,14 @@ public class BinaryMapPoiReaderAdapter {
 				return null;
 			}
 			switch (tag) {
+			case NAME_KEY_FIELD_NUMBER :
+				if (nameKey == null) {
+					skipUnknownField(t);
+				} else if (!CollatorStringMatcher.matchesWordStartsKey(nameKey, codedIS.readRawBytes(codedIS.readRawVarint32()))) {
+					codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
+					return null;
+				}
+				break;
 			case 0:
 				if(Algoritms.isEmpty(am.getEnName())){
 					am.setEnName(Junidecode.unidecode(am.getName()));
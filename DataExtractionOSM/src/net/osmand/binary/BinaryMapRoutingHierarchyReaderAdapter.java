@@ -0,0 +1,309 @@
+package net.osmand.binary;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStreamRAF;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Reads routing hierarchy (contraction hierarchy) section of the file (see OsmAndRoutingHierarchy in osmand_odb.proto).
+ * Field numbers are declared here because that message is not a part of generated OsmandOdb.
+ */
+public class BinaryMapRoutingHierarchyReaderAdapter {
+
+	public final static int ROUTING_HIERARCHY_FIELD_NUMBER = 6; // OsmAndStructure.routingHierarchy
+
+	public final static int NAME_FIELD_NUMBER = 1;
+	public final static int NODES_COUNT_FIELD_NUMBER = 2;
+	public final static int EDGES_COUNT_FIELD_NUMBER = 3;
+	public final static int NODES_FIELD_NUMBER = 4;
+	public final static int NODE_EDGES_FIELD_NUMBER = 5;
+	public final static int EDGE_TARGETS_FIELD_NUMBER = 6;
+	public final static int EDGE_WEIGHTS_FIELD_NUMBER = 7;
+	public final static int EDGE_FLAGS_FIELD_NUMBER = 8;
+	public final static int SHORTCUT_EDGES_FIELD_NUMBER = 9;
+	public final static int ROAD_IDS_FIELD_NUMBER = 10;
+	public final static int ROAD_POINTS_FIELD_NUMBER = 11;
+
+	// edge goes from node with higher rank (target) to node where it is stored
+	public final static int EDGE_FLAG_DOWNWARD = 1;
+	public final static int EDGE_FLAG_SHORTCUT = 2;
+
+	private CodedInputStreamRAF codedIS;
+	private final BinaryMapIndexReader map;
+
+	protected BinaryMapRoutingHierarchyReaderAdapter(BinaryMapIndexReader map){
+		this.codedIS = map.codedIS;
+		this.map = map;
+	}
+
+	private void skipUnknownField(int t) throws IOException {
+		map.skipUnknownField(t);
+	}
+
+	public static class RoutingHierarchyIndex extends BinaryIndexPart {
+		int nodesCount = 0;
+		int edgesCount = 0;
+
+		boolean loaded = false;
+		int[] nodeX;
+		int[] nodeY;
+		// edges of node i are [nodeEdges[i], nodeEdges[i + 1])
+		int[] nodeEdges;
+		int[] edgeSource;
+		int[] edgeTarget;
+		int[] edgeWeight;
+		byte[] edgeFlags;
+		// for shortcuts index of first & second replaced edge, -1 for original edges
+		int[] shortcutFirst;
+		int[] shortcutSecond;
+		// for original edges road id and indexes of road points where edge starts and ends (in travel direction)
+		long[] roadId;
+		int[] roadStart;
+		int[] roadEnd;
+		TLongObjectHashMap<int[]> roadEdges;
+
+		public boolean isLoaded() {
+			return loaded;
+		}
+
+		public int getNodesCount() {
+			return nodesCount;
+		}
+
+		public int getEdgesCount() {
+			return edgesCount;
+		}
+
+		public int getNodeX(int node) {
+			return nodeX[node];
+		}
+
+		public int getNodeY(int node) {
+			return nodeY[node];
+		}
+
+		/**
+		 * Edges are stored at node with lower rank and lead to node with higher rank
+		 */
+		public int getFirstEdge(int node) {
+			return nodeEdges[node];
+		}
+
+		public int getLastEdge(int node) {
+			return nodeEdges[node + 1];
+		}
+
+		public int getEdgeTarget(int edge) {
+			return edgeTarget[edge];
+		}
+
+		public int getEdgeWeight(int edge) {
+			return edgeWeight[edge];
+		}
+
+		public boolean isEdgeDownward(int edge) {
+			return (edgeFlags[edge] & EDGE_FLAG_DOWNWARD) != 0;
+		}
+
+		public boolean isShortcut(int edge) {
+			return (edgeFlags[edge] & EDGE_FLAG_SHORTCUT) != 0;
+		}
+
+		public int getEdgeStartNode(int edge) {
+			return isEdgeDownward(edge) ? edgeTarget[edge] : edgeSource[edge];
+		}
+
+		public int getEdgeEndNode(int edge) {
+			return isEdgeDownward(edge) ? edgeSource[edge] : edgeTarget[edge];
+		}
+
+		public int getShortcutFirst(int edge) {
+			return shortcutFirst[edge];
+		}
+
+		public int getShortcutSecond(int edge) {
+			return shortcutSecond[edge];
+		}
+
+		public long getRoadId(int edge) {
+			return roadId[edge];
+		}
+
+		public int getRoadStart(int edge) {
+			return roadStart[edge];
+		}
+
+		public int getRoadEnd(int edge) {
+			return roadEnd[edge];
+		}
+
+		/**
+		 * @return original edges lying on the road or null
+		 */
+		public int[] getRoadEdges(long id) {
+			return roadEdges.get(id);
+		}
+	}
+
+	protected void readRoutingHierarchyHeader(RoutingHierarchyIndex ind) throws IOException {
+		while(true){
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			switch (tag) {
+			case 0:
+				return;
+			case NAME_FIELD_NUMBER :
+				ind.name = codedIS.readString();
+				break;
+			case NODES_COUNT_FIELD_NUMBER :
+				ind.nodesCount = codedIS.readUInt32();
+				break;
+			case EDGES_COUNT_FIELD_NUMBER :
+				ind.edgesCount = codedIS.readUInt32();
+				break;
+			default:
+				// graph itself is read on demand
+				return;
+			}
+		}
+	}
+
+	protected void readRoutingHierarchy(RoutingHierarchyIndex ind) throws IOException {
+		int nodesCount = ind.nodesCount;
+		int edgesCount = ind.edgesCount;
+		ind.nodeX = new int[nodesCount];
+		ind.nodeY = new int[nodesCount];
+		ind.nodeEdges = new int[nodesCount + 1];
+		ind.edgeSource = new int[edgesCount];
+		ind.edgeTarget = new int[edgesCount];
+		ind.edgeWeight = new int[edgesCount];
+		ind.edgeFlags = new byte[edgesCount];
+		ind.shortcutFirst = new int[edgesCount];
+		ind.shortcutSecond = new int[edgesCount];
+		ind.roadId = new long[edgesCount];
+		ind.roadStart = new int[edgesCount];
+		ind.roadEnd = new int[edgesCount];
+		TIntArrayList shortcuts = new TIntArrayList();
+		TIntArrayList roadPoints = new TIntArrayList();
+		TLongObjectHashMap<TIntArrayList> roadEdges = new TLongObjectHashMap<TIntArrayList>();
+		int px = 0;
+		int py = 0;
+		long pid = 0;
+		int i;
+		codedIS.seek(ind.filePointer);
+		int oldLimit = codedIS.pushLimit(ind.length);
+		while (true) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			if (tag == 0) {
+				break;
+			} else if (WireFormat.getTagWireType(t) != WireFormat.WIRETYPE_LENGTH_DELIMITED || tag == NAME_FIELD_NUMBER) {
+				skipUnknownField(t);
+				continue;
+			}
+			int length = codedIS.readRawVarint32();
+			int old = codedIS.pushLimit(length);
+			switch (tag) {
+			case NODES_FIELD_NUMBER:
+				i = 0;
+				while (codedIS.getBytesUntilLimit() > 0) {
+					px += codedIS.readSInt32();
+					py += codedIS.readSInt32();
+					ind.nodeX[i] = px;
+					ind.nodeY[i] = py;
+					i++;
+				}
+				break;
+			case NODE_EDGES_FIELD_NUMBER:
+				i = 0;
+				while (codedIS.getBytesUntilLimit() > 0) {
+					int cnt = codedIS.readUInt32();
+					ind.nodeEdges[i + 1] = ind.nodeEdges[i] + cnt;
+					for (int k = ind.nodeEdges[i]; k < ind.nodeEdges[i + 1]; k++) {
+						ind.edgeSource[k] = i;
+					}
+					i++;
+				}
+				break;
+			case EDGE_TARGETS_FIELD_NUMBER:
+				i = 0;
+				while (codedIS.getBytesUntilLimit() > 0) {
+					ind.edgeTarget[i++] = codedIS.readUInt32();
+				}
+				break;
+			case EDGE_WEIGHTS_FIELD_NUMBER:
+				i = 0;
+				while (codedIS.getBytesUntilLimit() > 0) {
+					ind.edgeWeight[i++] = codedIS.readUInt32();
+				}
+				break;
+			case EDGE_FLAGS_FIELD_NUMBER:
+				i = 0;
+				while (codedIS.getBytesUntilLimit() > 0) {
+					ind.edgeFlags[i++] = (byte) codedIS.readUInt32();
+				}
+				break;
+			case SHORTCUT_EDGES_FIELD_NUMBER:
+				while (codedIS.getBytesUntilLimit() > 0) {
+					shortcuts.add(codedIS.readUInt32());
+				}
+				break;
+			case ROAD_IDS_FIELD_NUMBER:
+				i = 0;
+				while (codedIS.getBytesUntilLimit() > 0) {
+					pid += codedIS.readSInt64();
+					// road ids are stored only for original edges, put them to the first edges and spread after
+					ind.roadId[i++] = pid;
+				}
+				break;
+			case ROAD_POINTS_FIELD_NUMBER:
+				while (codedIS.getBytesUntilLimit() > 0) {
+					roadPoints.add(codedIS.readUInt32());
+				}
+				break;
+			default:
+				codedIS.skipRawBytes(codedIS.getBytesUntilLimit());
+				break;
+			}
+			codedIS.popLimit(old);
+		}
+		codedIS.popLimit(oldLimit);
+
+		// spread shortcuts and road information by edges (flags are already known)
+		int originals = roadPoints.size() / 2;
+		int shortcut = shortcuts.size() / 2;
+		int original = originals;
+		for (int e = edgesCount - 1; e >= 0; e--) {
+			if (ind.isShortcut(e)) {
+				shortcut--;
+				ind.shortcutFirst[e] = shortcuts.get(2 * shortcut);
+				ind.shortcutSecond[e] = shortcuts.get(2 * shortcut + 1);
+				ind.roadId[e] = 0;
+				ind.roadStart[e] = ind.roadEnd[e] = -1;
+			} else {
+				original--;
+				ind.shortcutFirst[e] = ind.shortcutSecond[e] = -1;
+				// e >= original so road id is not overwritten yet
+				ind.roadId[e] = ind.roadId[original];
+				ind.roadStart[e] = roadPoints.get(2 * original);
+				ind.roadEnd[e] = roadPoints.get(2 * original + 1);
+				TIntArrayList l = roadEdges.get(ind.roadId[e]);
+				if (l == null) {
+					l = new TIntArrayList(2);
+					roadEdges.put(ind.roadId[e], l);
+				}
+				l.add(e);
+			}
+		}
+		ind.roadEdges = new TLongObjectHashMap<int[]>(roadEdges.size());
+		for (long id : roadEdges.keys()) {
+			ind.roadEdges.put(id, roadEdges.get(id).toArray());
+		}
+		ind.loaded = true;
+	}
+
+}
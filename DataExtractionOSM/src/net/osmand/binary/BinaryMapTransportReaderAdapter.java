@@ -6,9 +6,12 @@ import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.osmand.binary.BinaryMapIndexReader.SearchRequest;
+import net.osmand.data.TransportRoute;
 import net.osmand.data.TransportStop;
 import net.osmand.osm.MapUtils;
 import net.sf.junidecode.Junidecode;
@@ -17,9 +20,23 @@ import com.google.protobuf.CodedInputStreamRAF;
 import com.google.protobuf.WireFormat;
 
 public class BinaryMapTransportReaderAdapter {
+	private static final int SIZE_OFFSET_ARRAY = 100;
+	private static final int DEFAULT_ROUTES_CACHE_SIZE = 200;
+	
 	private CodedInputStreamRAF codedIS;
 	private final BinaryMapIndexReader map;
 	
+	// decoded routes (with stops) by file pointer, least recently used are removed
+	int routesCacheSize = DEFAULT_ROUTES_CACHE_SIZE;
+	private final Map<Integer, TransportRoute> routesCache = new LinkedHashMap<Integer, TransportRoute>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, TransportRoute> eldest) {
+			return size() > routesCacheSize;
+		}
+	};
+	
 	protected BinaryMapTransportReaderAdapter(BinaryMapIndexReader map){
 		this.codedIS = map.codedIS;
 		this.map = map;
@@ -68,7 +85,11 @@ public class BinaryMapTransportReaderAdapter {
 
 		// offset from start for each SIZE_OFFSET_ARRAY elements
 		// (SIZE_OFFSET_ARRAY + 1) offset = offsets[0] + skipOneString()
+		// (filled when table is read)
 		TIntArrayList offsets = new TIntArrayList();
+		
+		// strings decoded once (table is shared by readers of the same file so access is synchronized on table)
+		TIntObjectHashMap<String> decodedStrings = new TIntObjectHashMap<String>();
 
 	}
 	
@@ -97,6 +118,7 @@ public class BinaryMapTransportReaderAdapter {
 				IndexStringTable st = new IndexStringTable();
 				st.length = codedIS.readRawVarint32();
 				st.fileOffset = codedIS.getTotalBytesRead();
+				st.offsets.add(0);
 				// Do not cache for now save memory
 				// readStringTable(st, 0, 20, true);
 				ind.stringTable = st;
@@ -311,35 +333,81 @@ public class BinaryMapTransportReaderAdapter {
 		return dataObject;
 	}
 	
+	protected TransportRoute getCachedTransportRoute(int filePointer) {
+		return routesCache.get(filePointer);
+	}
+	
+	protected void cacheTransportRoute(int filePointer, TransportRoute route) {
+		if (routesCacheSize > 0) {
+			routesCache.put(filePointer, route);
+		}
+	}
+	
+	protected void clearTransportRoutesCache() {
+		routesCache.clear();
+	}
+	
+	/**
+	 * Strings already decoded for the index are not read again, others are read from the nearest known offset
+	 */
 	protected void initializeStringTable(TransportIndex ind, TIntObjectHashMap<String> stringTable) throws IOException {
+		IndexStringTable st = ind.stringTable;
 		int[] values = stringTable.keys();
 		Arrays.sort(values);
-		codedIS.seek(ind.stringTable.fileOffset);
-		int oldLimit = codedIS.pushLimit(ind.stringTable.length);
-		int current = 0;
-		int i = 0;
-		while (i < values.length) {
+		synchronized (st) {
+			int oldLimit = -1;
+			// index of string at current position (-1 if position is unknown)
+			int current = -1;
+			for (int i = 0; i < values.length; i++) {
+				String value = st.decodedStrings.get(values[i]);
+				if (value == null) {
+					int offsetIndex = Math.min(values[i] / SIZE_OFFSET_ARRAY, st.offsets.size() - 1);
+					if (current == -1 || current > values[i] || offsetIndex * SIZE_OFFSET_ARRAY > current) {
+						if (oldLimit != -1) {
+							codedIS.popLimit(oldLimit);
+						}
+						codedIS.seek(st.fileOffset + st.offsets.get(offsetIndex));
+						oldLimit = codedIS.pushLimit(st.length - st.offsets.get(offsetIndex));
+						current = offsetIndex * SIZE_OFFSET_ARRAY;
+					}
+					value = readStringTableValue(st, current, values[i]);
+					current = value == null ? -1 : values[i] + 1;
+					st.decodedStrings.put(values[i], value == null ? "" : value); //$NON-NLS-1$
+				}
+				stringTable.put(values[i], st.decodedStrings.get(values[i]));
+			}
+			if (oldLimit != -1) {
+				codedIS.popLimit(oldLimit);
+			}
+		}
+	}
+	
+	/**
+	 * Reads table from string with index current till string with index value 
+	 * @return null if table is over
+	 */
+	private String readStringTableValue(IndexStringTable st, int current, int value) throws IOException {
+		while (true) {
+			if (current % SIZE_OFFSET_ARRAY == 0 && current / SIZE_OFFSET_ARRAY == st.offsets.size()) {
+				st.offsets.add(codedIS.getTotalBytesRead() - st.fileOffset);
+			}
 			int t = codedIS.readTag();
 			int tag = WireFormat.getTagFieldNumber(t);
 			switch (tag) {
 			case 0:
-				break;
+				return null;
 			case OsmandOdb.StringTable.S_FIELD_NUMBER:
-				if (current == values[i]) {
-					String value = codedIS.readString();
-					stringTable.put(values[i], value);
-					i++;
-				} else {
-					skipUnknownField(t);
+				if (current == value) {
+					return codedIS.readString();
 				}
-				current ++;
+				skipUnknownField(t);
+				current++;
 				break;
 			default:
 				skipUnknownField(t);
 				break;
 			}
 		}
-		codedIS.popLimit(oldLimit);
 	}
 
 	protected void initializeNames(boolean onlyDescription, net.osmand.data.TransportRoute dataObject,
@@ -25,20 +25,24 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import net.osmand.Algoritms;
+import net.osmand.IProgress;
 import net.osmand.LogUtil;
 import net.osmand.binary.BinaryMapIndexReader;
 import net.osmand.data.IndexConstants;
 import net.osmand.data.index.ExtractGooglecodeAuthorization.GooglecodeUploadTokens;
 import net.osmand.data.index.IndexZipper.OneFileException;
 import net.osmand.data.preparation.DBDialect;
+import net.osmand.data.preparation.AbstractIndexPartCreator;
 import net.osmand.data.preparation.IndexCreator;
 import net.osmand.data.preparation.MapZooms;
+import net.osmand.data.preparation.NodeCoordinatesStore;
 import net.osmand.impl.ConsoleProgressImplementation;
 import net.osmand.osm.MapRenderingTypes;
 import net.osmand.swing.OsmExtractionUI;
@@ -61,6 +65,10 @@ public class IndexBatchCreator {
 	private final static double MIN_SIZE_TO_UPLOAD = 0.015d;
 	private final static double MAX_SIZE_TO_NOT_SPLIT = 190d; 
 	private final static double MAX_UPLOAD_SIZE = 195d;
+	// rough estimation of memory (mb) used by generation for 1 mb of input file
+	private final static double MEMORY_PER_OSM_MB = 1.5d;
+	private final static double MEMORY_PER_COMPRESSED_MB = 15d;
+	private final static long MIN_GENERATION_MEMORY = 256;
 	
 	
 	public static class RegionCountries {
@@ -72,6 +80,7 @@ public class IndexBatchCreator {
 	
 	private static class RegionSpecificData {
 		public String cityAdminLevel;
+		public NodeCoordinatesStore.StoreType nodeCoordinatesStoreType;
 	}
 	
 	private boolean uploadToOsmandGooglecode = true;
@@ -86,6 +95,16 @@ public class IndexBatchCreator {
 	Integer zoomWaySmoothness = null; 
 	MapRenderingTypes types = MapRenderingTypes.getDefault();
 	boolean deleteFilesAfterUploading = true;
+	// number of regions generated at once
+	int generationThreads = 1;
+	// memory (mb) available for regions generated at once, 0 - not limited
+	long generationMemory = 0;
+	// threads to decode pbf blocks of one region
+	int parseThreads = 1;
+	// store to resolve way nodes by lookup (null - sql join), could be set for region
+	NodeCoordinatesStore.StoreType nodeCoordinatesStoreType = null;
+	// buildings and street nodes of address index kept in memory (0 - address objects are kept in map db)
+	int inMemoryAddressObjects = 0;
 	
 	File osmDirFiles;
 	File indexDirFiles;
@@ -96,6 +115,10 @@ public class IndexBatchCreator {
 	boolean indexTransport = false;
 	boolean indexAddress = false;
 	boolean indexMap = false;
+	boolean indexNameTrigrams = false;
+	boolean indexRoutingHierarchy = false;
+	boolean streamOsmData = false;
+	boolean concurrentIndexing = false;
 	
 	
 	String user;
@@ -109,6 +132,13 @@ public class IndexBatchCreator {
 	String pagegen = "";
 	String token = "";
 	
+	// scheduled generation (generationThreads > 1)
+	private final PriorityQueue<GenerationJob> pendingJobs = new PriorityQueue<GenerationJob>();
+	private int runningJobs = 0;
+	private long runningJobsMemory = 0;
+	private final Object uploadLock = new Object();
+	private final List<String> generationSummary = new ArrayList<String>();
+	
 	
 	public static void main(String[] args) {
 		
@@ -185,6 +215,10 @@ public class IndexBatchCreator {
 		indexMap = Boolean.parseBoolean(process.getAttribute("indexMap"));
 		indexTransport = Boolean.parseBoolean(process.getAttribute("indexTransport"));
 		indexAddress = Boolean.parseBoolean(process.getAttribute("indexAddress"));
+		indexNameTrigrams = Boolean.parseBoolean(process.getAttribute("indexNameTrigrams"));
+		indexRoutingHierarchy = Boolean.parseBoolean(process.getAttribute("indexRoutingHierarchy"));
+		streamOsmData = Boolean.parseBoolean(process.getAttribute("streamOsmData"));
+		concurrentIndexing = Boolean.parseBoolean(process.getAttribute("concurrentIndexing"));
 		parseProcessAttributes(process);
 		
 		list = doc.getElementsByTagName("process_attributes");
@@ -292,6 +326,7 @@ public class IndexBatchCreator {
 					String name = ncountry.getAttribute("name");
 					RegionSpecificData data = new RegionSpecificData();
 					data.cityAdminLevel = ncountry.getAttribute("cityAdminLevel");
+					data.nodeCoordinatesStoreType = parseNodeCoordinatesStoreType(ncountry.getAttribute("nodeCoordinatesStore"));
 					if(name != null && !Boolean.parseBoolean(ncountry.getAttribute("skip"))){
 						countries.regionNames.put(name, data);
 					}
@@ -336,11 +371,48 @@ public class IndexBatchCreator {
 			} catch (RuntimeException e) {
 			}
 		}
+		
+		String threads = process.getAttribute("generationThreads");
+		if (threads != null && threads.length() > 0) {
+			generationThreads = Integer.parseInt(threads);
+		}
+		String memory = process.getAttribute("generationMemory");
+		if (memory != null && memory.length() > 0) {
+			generationMemory = Long.parseLong(memory);
+		}
+		String pbfThreads = process.getAttribute("parseThreads");
+		if (pbfThreads != null && pbfThreads.length() > 0) {
+			parseThreads = Integer.parseInt(pbfThreads);
+		}
+		String addressObjects = process.getAttribute("inMemoryAddressObjects");
+		if (addressObjects != null && addressObjects.length() > 0) {
+			inMemoryAddressObjects = Integer.parseInt(addressObjects);
+		}
+		NodeCoordinatesStore.StoreType storeType = parseNodeCoordinatesStoreType(process.getAttribute("nodeCoordinatesStore"));
+		if (storeType != null) {
+			nodeCoordinatesStoreType = storeType;
+		}
+	}
+	
+	private static NodeCoordinatesStore.StoreType parseNodeCoordinatesStoreType(String storeType) {
+		if (storeType == null || storeType.length() == 0) {
+			return null;
+		}
+		return NodeCoordinatesStore.StoreType.valueOf(storeType.toUpperCase());
 	}
 	
 	public void runBatch(List<RegionCountries> countriesToDownload ){
-		Set<String> alreadyUploadedFiles = new LinkedHashSet<String>();
-		Set<String> alreadyGeneratedFiles = new LinkedHashSet<String>();
+		// indexes could be generated and uploaded from several threads
+		Set<String> alreadyUploadedFiles = Collections.synchronizedSet(new LinkedHashSet<String>());
+		Set<String> alreadyGeneratedFiles = Collections.synchronizedSet(new LinkedHashSet<String>());
+		if (generationThreads > 1) {
+			// lazily initialized tables of rendering types are shared by all generated regions
+			types.getEncodingRuleTypes();
+			types.getObjectTypeMinZoom();
+			types.getAmenityNameToType();
+			MapRenderingTypes.getAmenityType("", ""); //$NON-NLS-1$ //$NON-NLS-2$
+			MapRenderingTypes.getAmenitySubtypePrefix("", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 		if(downloadFiles){
 			downloadFilesAndGenerateIndex(countriesToDownload, alreadyGeneratedFiles, alreadyUploadedFiles);
 		}
@@ -383,6 +455,7 @@ public class IndexBatchCreator {
 			}
 		}
 		System.out.println("DOWNLOADING FILES FINISHED");
+		waitForGenerationJobs();
 	}
 	
 	protected File downloadFile(String url, String regionName, Set<String> alreadyGeneratedFiles, Set<String> alreadyUploadedFiles) {
@@ -483,7 +556,17 @@ public class IndexBatchCreator {
 	}
 	
 	protected void generatedIndexes(Set<String> alreadyGeneratedFiles, Set<String> alreadyUploadedFiles) {
-		for (File f : getSortedFiles(osmDirFiles)) {
+		File[] files = getSortedFiles(osmDirFiles);
+		if (generationThreads > 1) {
+			// the largest regions should be started first
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File o1, File o2) {
+					return Long.valueOf(o2.length()).compareTo(o1.length());
+				}
+			});
+		}
+		for (File f : files) {
 			if (alreadyGeneratedFiles.contains(f.getName())) {
 				continue;
 			}
@@ -491,6 +574,7 @@ public class IndexBatchCreator {
 				generateIndex(f, null, null, alreadyGeneratedFiles, alreadyUploadedFiles);
 			}
 		}
+		waitForGenerationJobs();
 		System.out.println("GENERATING INDEXES FINISHED ");
 	}
 	
@@ -500,11 +584,28 @@ public class IndexBatchCreator {
 		if (!generateIndexes) {
 			return;
 		}
+		if (generationThreads > 1) {
+			alreadyGeneratedFiles.add(f.getName());
+			GenerationJob job = new GenerationJob(f, rName, regionSpecificData, alreadyGeneratedFiles, alreadyUploadedFiles);
+			synchronized (pendingJobs) {
+				pendingJobs.add(job);
+				startGenerationJobs();
+			}
+			return;
+		}
+		// be independent of previous results
+		RTree.clearCache();
+		generateIndex(f, rName, regionSpecificData, alreadyGeneratedFiles, alreadyUploadedFiles, workDir);
+	}
+	
+	protected void generateIndex(File f, String rName, RegionSpecificData regionSpecificData, Set<String> alreadyGeneratedFiles,
+			Set<String> alreadyUploadedFiles, File workDir) {
+		long time = System.currentTimeMillis();
+		StageTimingProgress progress = new StageTimingProgress(new ConsoleProgressImplementation(3));
+		String regionName = f.getName();
+		boolean success = false;
 		try {
-			// be independent of previous results
-			RTree.clearCache();
-			
-			String regionName = f.getName();
+
 			System.out.println("-----------------------------------------------");
 			System.out.println("----------- Generate " + f.getName());
 			System.out.println("\n\n\n\n");
@@ -523,6 +624,12 @@ public class IndexBatchCreator {
 			indexCreator.setIndexPOI(indexPOI);
 			indexCreator.setIndexTransport(indexTransport);
 			indexCreator.setIndexMap(indexMap);
+			indexCreator.setIndexNameTrigrams(indexNameTrigrams);
+			indexCreator.setIndexRoutingHierarchy(indexRoutingHierarchy);
+			indexCreator.setParseThreads(parseThreads);
+			indexCreator.setStreamOsmData(streamOsmData);
+			indexCreator.setConcurrentIndexing(concurrentIndexing);
+			indexCreator.setInMemoryAddressObjects(inMemoryAddressObjects);
 			indexCreator.setLastModifiedDate(f.lastModified());
 			indexCreator.setNormalizeStreets(true);
 			indexCreator.setSaveAddressWays(true);
@@ -530,6 +637,11 @@ public class IndexBatchCreator {
 			if (regionSpecificData != null && regionSpecificData.cityAdminLevel != null) {
 				indexCreator.setCityAdminLevel(regionSpecificData.cityAdminLevel);
 			}
+			if (regionSpecificData != null && regionSpecificData.nodeCoordinatesStoreType != null) {
+				indexCreator.setNodeCoordinatesStoreType(regionSpecificData.nodeCoordinatesStoreType);
+			} else {
+				indexCreator.setNodeCoordinatesStoreType(nodeCoordinatesStoreType);
+			}
 			if(zoomWaySmoothness != null){
 				indexCreator.setZoomWaySmothness(zoomWaySmoothness);
 			}
@@ -539,15 +651,23 @@ public class IndexBatchCreator {
 			String mapFileName = regionName + "_" + IndexConstants.BINARY_MAP_VERSION + IndexConstants.BINARY_MAP_INDEX_EXT;
 			indexCreator.setMapFileName(mapFileName);
 			try {
+				if (generationThreads > 1) {
+					// rtree node cache is shared by regions, file names of finished regions should be released from its keys
+					AbstractIndexPartCreator.resetRTreeCache();
+				}
 				alreadyGeneratedFiles.add(f.getName());
-				indexCreator.generateIndexes(f, new ConsoleProgressImplementation(3),  null, mapZooms, types);
+				indexCreator.generateIndexes(f, progress,  null, mapZooms, types);
+				progress.finishTask();
 				
 				File generated = new File(workDir, mapFileName);
 				File ready = new File(indexDirFiles, mapFileName);
 				generated.renameTo(ready);
+				success = true;
 				// Do not upload poi files any more
 				if (indexMap || indexAddress || indexTransport || indexPOI) {
-					uploadIndex(ready, alreadyUploadedFiles);
+					synchronized (uploadLock) {
+						uploadIndex(ready, alreadyUploadedFiles);
+					}
 				}
 			} catch (Exception e) {
 				log.error("Exception generating indexes for " + f.getName(), e); //$NON-NLS-1$ 
@@ -557,9 +677,190 @@ public class IndexBatchCreator {
 			log.error("OutOfMemory", e);
 
 		}
+		String summary = MessageFormat.format("{0} : {1} in {2} s ({3})", regionName, success ? "generated" : "failed",  //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				(System.currentTimeMillis() - time) / 1000, progress.getStageTimings());
+		log.info(summary);
+		synchronized (generationSummary) {
+			generationSummary.add(summary);
+		}
 		System.gc();
 	}
 	
+	private long estimateGenerationMemory(File f) {
+		double mb = (double) f.length() / MB;
+		if (f.getName().endsWith(".osm")) { //$NON-NLS-1$
+			mb *= MEMORY_PER_OSM_MB;
+		} else {
+			mb *= MEMORY_PER_COMPRESSED_MB;
+		}
+		return Math.max(MIN_GENERATION_MEMORY, (long) mb);
+	}
+	
+	/**
+	 * Starts the largest pending jobs while there are free threads and memory (should be called under lock of pending jobs).
+	 * Job is always started if nothing is running, so regions exceeding memory are generated one by one.
+	 */
+	private void startGenerationJobs() {
+		while (!pendingJobs.isEmpty()) {
+			final GenerationJob job = pendingJobs.peek();
+			if (runningJobs > 0 && (runningJobs >= generationThreads || 
+					(generationMemory > 0 && runningJobsMemory + job.memory > generationMemory))) {
+				return;
+			}
+			pendingJobs.poll();
+			if (runningJobs == 0) {
+				// rtree package keeps nodes of all trees in one static cache, it could be reset only if nothing is running
+				RTree.clearCache();
+			}
+			runningJobs++;
+			runningJobsMemory += job.memory;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// every region has own directory, because names of temporary files are fixed
+						File regionWorkDir = new File(workDir, job.file.getName() + ".tmp"); //$NON-NLS-1$
+						regionWorkDir.mkdirs();
+						generateIndex(job.file, job.regionName, job.regionSpecificData, job.alreadyGeneratedFiles, job.alreadyUploadedFiles,
+								regionWorkDir);
+						// ready index is already moved, other files are temporary
+						Algoritms.removeAllFiles(regionWorkDir);
+					} finally {
+						synchronized (pendingJobs) {
+							runningJobs--;
+							runningJobsMemory -= job.memory;
+							startGenerationJobs();
+							pendingJobs.notifyAll();
+						}
+					}
+				}
+			}, "Generate " + job.file.getName()); //$NON-NLS-1$
+			log.info("Start generation of " + job.file.getName() + " (estimated memory " + job.memory + " mb), running " + runningJobs); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			thread.start();
+		}
+	}
+	
+	private void waitForGenerationJobs() {
+		synchronized (pendingJobs) {
+			while (runningJobs > 0 || !pendingJobs.isEmpty()) {
+				try {
+					pendingJobs.wait();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		synchronized (generationSummary) {
+			if (!generationSummary.isEmpty()) {
+				StringBuilder b = new StringBuilder("Generation summary :"); //$NON-NLS-1$
+				for (String s : generationSummary) {
+					b.append("\n\t").append(s); //$NON-NLS-1$
+				}
+				log.info(b.toString());
+				generationSummary.clear();
+			}
+		}
+	}
+	
+	private class GenerationJob implements Comparable<GenerationJob> {
+		private final File file;
+		private final String regionName;
+		private final RegionSpecificData regionSpecificData;
+		private final Set<String> alreadyGeneratedFiles;
+		private final Set<String> alreadyUploadedFiles;
+		private final long memory;
+
+		public GenerationJob(File file, String regionName, RegionSpecificData regionSpecificData, Set<String> alreadyGeneratedFiles,
+				Set<String> alreadyUploadedFiles) {
+			this.file = file;
+			this.regionName = regionName;
+			this.regionSpecificData = regionSpecificData;
+			this.alreadyGeneratedFiles = alreadyGeneratedFiles;
+			this.alreadyUploadedFiles = alreadyUploadedFiles;
+			this.memory = estimateGenerationMemory(file);
+		}
+
+		@Override
+		public int compareTo(GenerationJob o) {
+			// the largest first
+			return Long.valueOf(o.file.length()).compareTo(file.length());
+		}
+	}
+	
+	/**
+	 * Progress that remembers duration of every task
+	 */
+	private static class StageTimingProgress implements IProgress {
+		private final IProgress progress;
+		private final StringBuilder timings = new StringBuilder();
+		private String currentTask;
+		private long taskStarted;
+
+		public StageTimingProgress(IProgress progress) {
+			this.progress = progress;
+		}
+
+		public String getStageTimings() {
+			return timings.toString();
+		}
+
+		@Override
+		public void startTask(String taskName, int work) {
+			if (!Algoritms.objectEquals(currentTask, taskName)) {
+				recordTiming();
+				currentTask = taskName;
+				taskStarted = System.currentTimeMillis();
+			}
+			progress.startTask(taskName, work);
+		}
+
+		@Override
+		public void finishTask() {
+			recordTiming();
+			progress.finishTask();
+		}
+
+		private void recordTiming() {
+			if (currentTask != null) {
+				if (timings.length() > 0) {
+					timings.append(", "); //$NON-NLS-1$
+				}
+				timings.append(currentTask).append(' ').append(System.currentTimeMillis() - taskStarted).append(" ms"); //$NON-NLS-1$
+				currentTask = null;
+			}
+		}
+
+		@Override
+		public void startWork(int work) {
+			progress.startWork(work);
+		}
+
+		@Override
+		public void progress(int deltaWork) {
+			progress.progress(deltaWork);
+		}
+
+		@Override
+		public void remaining(int remainingWork) {
+			progress.remaining(remainingWork);
+		}
+
+		@Override
+		public void setGeneralProgress(String genProgress) {
+			progress.setGeneralProgress(genProgress);
+		}
+
+		@Override
+		public boolean isIndeterminate() {
+			return progress.isIndeterminate();
+		}
+
+		@Override
+		public boolean isInterrupted() {
+			return progress.isInterrupted();
+		}
+	}
+	
 	protected File[] getSortedFiles(File dir){
 		File[] listFiles = dir.listFiles();
 		Arrays.sort(listFiles, new Comparator<File>(){
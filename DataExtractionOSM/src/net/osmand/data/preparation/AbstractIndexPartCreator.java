@@ -12,6 +12,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import rtree.Element;
+import rtree.NodeWriteException;
 import rtree.Pack;
 import rtree.RTree;
 import rtree.RTreeException;
@@ -23,6 +24,24 @@ public class AbstractIndexPartCreator {
 	
 	protected Map<PreparedStatement, Integer> pStatements = new LinkedHashMap<PreparedStatement, Integer>();
 	
+	// rtree package keeps nodes of all trees in one static cache (packing resets it, keys are limited by 1024 file names),
+	// so when several regions are generated at once their rtrees are used only under this lock
+	protected static final Object RTREE_LOCK = new Object();
+	
+	/**
+	 * Writes and forgets cached nodes of all rtrees with their file names (opened trees read nodes again).
+	 * Should be called before region generation if other regions are generated at the same time.
+	 */
+	public static void resetRTreeCache() throws IOException {
+		synchronized (RTREE_LOCK) {
+			try {
+				RTree.flushCache();
+			} catch (NodeWriteException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
 	public PreparedStatement createPrepareStatement(Connection mapConnection,
 			String string) throws SQLException {
 		PreparedStatement prepareStatement = mapConnection.prepareStatement(string);
@@ -95,6 +114,12 @@ public class AbstractIndexPartCreator {
 	}
 	
 	protected RTree packRtreeFile(RTree tree, String nonPackFileName, String packFileName) throws IOException {
+		synchronized (RTREE_LOCK) {
+			return packRtreeFileUnderLock(tree, nonPackFileName, packFileName);
+		}
+	}
+	
+	private RTree packRtreeFileUnderLock(RTree tree, String nonPackFileName, String packFileName) throws IOException {
 		try {
 			assert rtree.Node.MAX < 50 : "It is better for search performance"; //$NON-NLS-1$
 			tree.flush();
@@ -0,0 +1,205 @@
+package net.osmand.data.preparation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.osmand.osm.Entity;
+import net.osmand.osm.Entity.EntityId;
+import net.osmand.osm.Entity.EntityType;
+import net.osmand.osm.Node;
+import net.osmand.osm.Relation;
+import net.osmand.osm.Way;
+
+/**
+ * Compact value format of entities for leveldb (replaces text arrays of {@link com.anvisics.jleveldb.ArraySerializer}).
+ * Leveldb accessor accepts only strings, so numbers are written as variable length sequences of ascii chars
+ * (6 bits per char, no zero chars) : node ids and relation members are delta coded, coordinates are fixed point.
+ * Tag keys, short tag values and roles are replaced by ids of dictionary, dictionary entries should be
+ * stored by writer ({@link #getDictionaryEntry(int)}) and registered by reader before reading entities.
+ */
+public class BinaryEntitySerializer {
+
+	// first char of value, text format starts with '['
+	public static final char BINARY_FORMAT = '~';
+
+	private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+	// longer values are mostly names
+	private static final int MAX_INTERNED_VALUE_LENGTH = 16;
+	// terminal digit is in [0x40, 0x7f], continuation digits are in [0x01, 0x3f]
+	private static final int TERMINAL_BASE = 64;
+	private static final int CONTINUATION_BASE = 63;
+
+	private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+	private final List<String> dictionaryEntries = new ArrayList<String>();
+
+	private StringBuilder builder = new StringBuilder();
+
+	public static boolean isBinaryValue(String value) {
+		return value.length() > 0 && value.charAt(0) == BINARY_FORMAT;
+	}
+
+	public int getDictionarySize() {
+		return dictionaryEntries.size();
+	}
+
+	public String getDictionaryEntry(int id) {
+		return dictionaryEntries.get(id);
+	}
+
+	public void registerDictionaryEntry(int id, String s) {
+		while (dictionaryEntries.size() <= id) {
+			dictionaryEntries.add(null);
+		}
+		dictionaryEntries.set(id, s);
+		dictionary.put(s, id);
+	}
+
+	public String serialize(Entity e) {
+		builder.setLength(0);
+		builder.append(BINARY_FORMAT);
+		writeNumber(e.getTags().size());
+		for (Entry<String, String> es : e.getTags().entrySet()) {
+			writeString(es.getKey(), true);
+			writeString(es.getValue(), es.getValue().length() <= MAX_INTERNED_VALUE_LENGTH);
+		}
+		if (e instanceof Node) {
+			writeSignedNumber(NodeCoordinatesStore.toFixedPoint(((Node) e).getLatitude()));
+			writeSignedNumber(NodeCoordinatesStore.toFixedPoint(((Node) e).getLongitude()));
+		} else if (e instanceof Way) {
+			List<Long> ids = ((Way) e).getNodeIds();
+			writeNumber(ids.size());
+			long prev = 0;
+			for (Long l : ids) {
+				writeSignedNumber(l - prev);
+				prev = l;
+			}
+		} else {
+			Map<EntityId, String> members = ((Relation) e).getMembersMap();
+			writeNumber(members.size());
+			long prev = 0;
+			for (Entry<EntityId, String> l : members.entrySet()) {
+				writeNumber(l.getKey().getType().ordinal());
+				writeSignedNumber(l.getKey().getId() - prev);
+				prev = l.getKey().getId();
+				writeString(l.getValue(), true);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Ways are read with node ids only (without nodes).
+	 * @return null if entity has no tags and skipIfEmptyTags
+	 */
+	public Entity deserialize(EntityType type, long id, String value, boolean skipIfEmptyTags) {
+		ValueReader r = new ValueReader(value);
+		int tags = (int) r.readNumber();
+		if (tags == 0 && skipIfEmptyTags) {
+			return null;
+		}
+		Entity e;
+		if (type == EntityType.NODE) {
+			e = new Node(0, 0, id);
+		} else if (type == EntityType.WAY) {
+			e = new Way(id);
+		} else {
+			e = new Relation(id);
+		}
+		for (int i = 0; i < tags; i++) {
+			String tagKey = r.readString();
+			e.putTag(tagKey, r.readString());
+		}
+		if (type == EntityType.NODE) {
+			((Node) e).setLatitude(NodeCoordinatesStore.fromFixedPoint((int) r.readSignedNumber()));
+			((Node) e).setLongitude(NodeCoordinatesStore.fromFixedPoint((int) r.readSignedNumber()));
+		} else if (type == EntityType.WAY) {
+			int size = (int) r.readNumber();
+			long prev = 0;
+			for (int i = 0; i < size; i++) {
+				prev += r.readSignedNumber();
+				((Way) e).addNode(prev);
+			}
+		} else {
+			int size = (int) r.readNumber();
+			long prev = 0;
+			EntityType[] types = EntityType.values();
+			for (int i = 0; i < size; i++) {
+				EntityType t = types[(int) r.readNumber()];
+				prev += r.readSignedNumber();
+				((Relation) e).addMember(prev, t, r.readString());
+			}
+		}
+		return e;
+	}
+
+	private void writeString(String s, boolean intern) {
+		Integer id = dictionary.get(s);
+		if (id == null && intern && dictionaryEntries.size() < MAX_DICTIONARY_SIZE) {
+			id = dictionaryEntries.size();
+			dictionaryEntries.add(s);
+			dictionary.put(s, id);
+		}
+		if (id != null) {
+			writeNumber(((long) id) << 1);
+		} else {
+			writeNumber((((long) s.length()) << 1) | 1);
+			builder.append(s);
+		}
+	}
+
+	private void writeSignedNumber(long l) {
+		writeNumber((l << 1) ^ (l >> 63));
+	}
+
+	/**
+	 * @param l should not be negative
+	 */
+	private void writeNumber(long l) {
+		while (l >= TERMINAL_BASE) {
+			builder.append((char) (1 + l % CONTINUATION_BASE));
+			l /= CONTINUATION_BASE;
+		}
+		builder.append((char) (TERMINAL_BASE + l));
+	}
+
+	// entities are read from several threads (iteration and loading of linked entities)
+	private class ValueReader {
+		private final String value;
+		private int pos = 1;
+
+		public ValueReader(String value) {
+			this.value = value;
+		}
+
+		private String readString() {
+			long l = readNumber();
+			if ((l & 1) == 0) {
+				return dictionaryEntries.get((int) (l >> 1));
+			}
+			int length = (int) (l >> 1);
+			String s = value.substring(pos, pos + length);
+			pos += length;
+			return s;
+		}
+
+		private long readSignedNumber() {
+			long l = readNumber();
+			return (l >>> 1) ^ -(l & 1);
+		}
+
+		private long readNumber() {
+			long l = 0;
+			long mult = 1;
+			char c = value.charAt(pos++);
+			while (c < TERMINAL_BASE) {
+				l += (c - 1) * mult;
+				mult *= CONTINUATION_BASE;
+				c = value.charAt(pos++);
+			}
+			return l + (c - TERMINAL_BASE) * mult;
+		}
+	}
+}
@@ -3,12 +3,16 @@ package net.osmand.data.preparation;
 import gnu.trove.list.TLongList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -17,7 +21,12 @@ import java.util.Set;
 import java.util.Stack;
 
 import net.osmand.Algoritms;
+import net.osmand.CollatorStringMatcher;
+import net.osmand.binary.BinaryMapAddressReaderAdapter;
 import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.binary.BinaryMapNameTrigramReaderAdapter;
+import net.osmand.binary.BinaryMapPoiReaderAdapter;
+import net.osmand.binary.BinaryMapRoutingHierarchyReaderAdapter;
 import net.osmand.binary.OsmandOdb;
 import net.osmand.binary.OsmandOdb.CityIndex;
 import net.osmand.binary.OsmandOdb.InteresectedStreets;
@@ -45,6 +54,7 @@ import net.osmand.osm.Node;
 import net.osmand.osm.MapRenderingTypes.MapRulType;
 import net.sf.junidecode.Junidecode;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.WireFormat;
@@ -81,6 +91,70 @@ public class BinaryMapIndexWriter {
 	private Stack<Integer> state = new Stack<Integer>();
 	private Stack<Long> stackSizes = new Stack<Long>();
 	
+	// address name index is written after all address records
+	private long addressIndexStart;
+	private List<AddressNameIndexAtom> addressNameIndex = new ArrayList<AddressNameIndexAtom>();
+	private final static int ADDRESS_NAME_INDEX_BLOCK_SIZE = 32;
+	
+	private static class AddressNameIndexAtom implements Comparable<AddressNameIndexAtom> {
+		private final String key;
+		private final int type;
+		private final int shift;
+		private final int cityShift;
+		
+		public AddressNameIndexAtom(String key, int type, int shift, int cityShift) {
+			this.key = key;
+			this.type = type;
+			this.shift = shift;
+			this.cityShift = cityShift;
+		}
+
+		@Override
+		public int compareTo(AddressNameIndexAtom o) {
+			int c = key.compareTo(o.key);
+			if (c == 0) {
+				c = shift < o.shift ? -1 : (shift == o.shift ? 0 : 1);
+			}
+			return c;
+		}
+	}
+	
+	// trigram index of names of current poi or address index, written after all its records (null if it is not needed)
+	private NameTrigramIndex nameTrigramIndex = null;
+	private long poiIndexStart;
+	
+	private static class NameTrigramIndex {
+		// object shifts by trigram
+		private final TIntObjectHashMap<TIntArrayList> postings = new TIntObjectHashMap<TIntArrayList>();
+		// shift << 32 | index of parent in lists below
+		private final TLongArrayList parents = new TLongArrayList();
+		private final TIntArrayList parentTypes = new TIntArrayList();
+		private final TIntArrayList parentX24 = new TIntArrayList();
+		private final TIntArrayList parentY24 = new TIntArrayList();
+		
+		public void addRecord(int shift, String name, String enName) {
+			TIntArrayList trigrams = new TIntArrayList();
+			for (String k : BinaryMapNameTrigramReaderAdapter.getNameWordKeys(name, enName)) {
+				BinaryMapNameTrigramReaderAdapter.addTrigrams(k, trigrams);
+			}
+			for (int i = 0; i < trigrams.size(); i++) {
+				TIntArrayList list = postings.get(trigrams.get(i));
+				if (list == null) {
+					list = new TIntArrayList(4);
+					postings.put(trigrams.get(i), list);
+				}
+				list.add(shift);
+			}
+		}
+		
+		public void addParent(int shift, int type, int x24, int y24) {
+			parents.add((((long) shift) << 32) | parentTypes.size());
+			parentTypes.add(type);
+			parentX24.add(x24);
+			parentY24.add(y24);
+		}
+	}
+	
 	private final static int OSMAND_STRUCTURE_INIT = 1;
 	private final static int MAP_INDEX_INIT = 2;
 	private final static int MAP_ROOT_LEVEL_INIT = 3;
@@ -415,7 +489,8 @@ public class BinaryMapIndexWriter {
 	public void startWriteAddressIndex(String name) throws IOException {
 		pushState(ADDRESS_INDEX_INIT, OSMAND_STRUCTURE_INIT);
 		codedOutStream.writeTag(OsmandOdb.OsmAndStructure.ADDRESSINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
-		preserveInt32Size();
+		addressIndexStart = preserveInt32Size();
+		addressNameIndex.clear();
 		
 		codedOutStream.writeString(OsmandOdb.OsmAndAddressIndex.NAME_FIELD_NUMBER, name);
 		
@@ -493,7 +568,173 @@ public class BinaryMapIndexWriter {
 			StreetIndex streetInd = createStreetAndBuildings(s, cx, cy, null);
 			cityInd.addStreets(streetInd);
 		}
-		codedOutStream.writeMessage(OsmandOdb.CitiesIndex.CITIES_FIELD_NUMBER, cityInd.build());
+		CityIndex msg = cityInd.build();
+		
+		// register names, streets are written the last inside city message
+		codedOutStream.flush();
+		long cityPointer = raf.getFilePointer() + CodedOutputStream.computeTagSize(OsmandOdb.CitiesIndex.CITIES_FIELD_NUMBER);
+		int cityShift = (int) (cityPointer - addressIndexStart);
+		int type = state.peek() == CITY_INDEX_INIT ? BinaryMapAddressReaderAdapter.CITY_TOWN_TYPE : BinaryMapAddressReaderAdapter.VILLAGES_TYPE;
+		registerAddressName(city, type, cityShift, 0);
+		long streetPointer = cityPointer + CodedOutputStream.computeRawVarint32Size(msg.getSerializedSize()) + msg.getSerializedSize();
+		for (int i = 0; i < msg.getStreetsCount(); i++) {
+			streetPointer -= CodedOutputStream.computeMessageSize(OsmandOdb.CityIndex.STREETS_FIELD_NUMBER, msg.getStreets(i));
+		}
+		for (int i = 0; i < msg.getStreetsCount(); i++) {
+			int streetShift = (int) (streetPointer + CodedOutputStream.computeTagSize(OsmandOdb.CityIndex.STREETS_FIELD_NUMBER) - addressIndexStart);
+			registerAddressName(streets.get(i), BinaryMapAddressReaderAdapter.STREET_TYPE, streetShift, cityShift);
+			streetPointer += CodedOutputStream.computeMessageSize(OsmandOdb.CityIndex.STREETS_FIELD_NUMBER, msg.getStreets(i));
+		}
+		codedOutStream.writeMessage(OsmandOdb.CitiesIndex.CITIES_FIELD_NUMBER, msg);
+	}
+	
+	private void registerAddressName(MapObject o, int type, int shift, int cityShift) {
+		List<String> keys = CollatorStringMatcher.getWordStartKeys(o.getName(), BinaryMapAddressReaderAdapter.NAME_KEY_LENGTH);
+		if (o.getEnName() != null) {
+			for (String k : CollatorStringMatcher.getWordStartKeys(o.getEnName(), BinaryMapAddressReaderAdapter.NAME_KEY_LENGTH)) {
+				if (!keys.contains(k)) {
+					keys.add(k);
+				}
+			}
+		}
+		for (String k : keys) {
+			addressNameIndex.add(new AddressNameIndexAtom(k, type, shift, cityShift));
+		}
+		if (nameTrigramIndex != null) {
+			nameTrigramIndex.addRecord(shift, o.getName(), o.getEnName());
+			if (type != BinaryMapAddressReaderAdapter.STREET_TYPE) {
+				nameTrigramIndex.addParent(shift, type, MapUtils.get31TileNumberX(o.getLocation().getLongitude()) >> 7,
+						MapUtils.get31TileNumberY(o.getLocation().getLatitude()) >> 7);
+			}
+		}
+	}
+	
+	/**
+	 * Starts to collect names of poi or address records written after it to write them by {@link #writeNameTrigramIndex()} 
+	 */
+	public void startNameTrigramIndex() {
+		checkPeekState(POI_INDEX_INIT, ADDRESS_INDEX_INIT);
+		nameTrigramIndex = new NameTrigramIndex();
+	}
+	
+	/**
+	 * Writes trigram index of names of poi or address records (see OsmAndNameTrigramIndex in osmand_odb.proto)
+	 */
+	public void writeNameTrigramIndex() throws IOException {
+		checkPeekState(POI_INDEX_INIT, ADDRESS_INDEX_INIT);
+		boolean poi = state.peek() == POI_INDEX_INIT;
+		codedOutStream.writeTag(poi ? BinaryMapNameTrigramReaderAdapter.POI_TRIGRAM_INDEX_FIELD_NUMBER
+				: BinaryMapNameTrigramReaderAdapter.ADDRESS_TRIGRAM_INDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
+		preserveInt32Size();
+		int[] trigrams = nameTrigramIndex.postings.keys();
+		Arrays.sort(trigrams);
+		// posting lists are delta coded shifts of records
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CodedOutputStream postings = CodedOutputStream.newInstance(out);
+		TIntArrayList trigramDeltas = new TIntArrayList(trigrams.length);
+		TIntArrayList postingSizes = new TIntArrayList(trigrams.length);
+		int prev = 0;
+		for (int t : trigrams) {
+			trigramDeltas.add(t - prev);
+			prev = t;
+			TIntArrayList list = nameTrigramIndex.postings.get(t);
+			list.sort();
+			int size = 0;
+			int prevShift = 0;
+			for (int i = 0; i < list.size(); i++) {
+				size += CodedOutputStream.computeUInt32SizeNoTag(list.get(i) - prevShift);
+				postings.writeUInt32NoTag(list.get(i) - prevShift);
+				prevShift = list.get(i);
+			}
+			postingSizes.add(size);
+		}
+		postings.flush();
+		nameTrigramIndex.parents.sort();
+		TIntArrayList parentDeltas = new TIntArrayList();
+		TIntArrayList parentTypes = new TIntArrayList();
+		TIntArrayList parentLocations = new TIntArrayList();
+		prev = 0;
+		int px = 0;
+		int py = 0;
+		for (int i = 0; i < nameTrigramIndex.parents.size(); i++) {
+			int shift = (int) (nameTrigramIndex.parents.get(i) >> 32);
+			int ind = (int) nameTrigramIndex.parents.get(i);
+			parentDeltas.add(shift - prev);
+			parentTypes.add(nameTrigramIndex.parentTypes.get(ind));
+			parentLocations.add(nameTrigramIndex.parentX24.get(ind) - px);
+			parentLocations.add(nameTrigramIndex.parentY24.get(ind) - py);
+			prev = shift;
+			px = nameTrigramIndex.parentX24.get(ind);
+			py = nameTrigramIndex.parentY24.get(ind);
+		}
+		writePackedInts(BinaryMapNameTrigramReaderAdapter.TRIGRAMS_FIELD_NUMBER, trigramDeltas, false);
+		writePackedInts(BinaryMapNameTrigramReaderAdapter.POSTING_SIZES_FIELD_NUMBER, postingSizes, false);
+		writePackedInts(BinaryMapNameTrigramReaderAdapter.PARENTS_FIELD_NUMBER, parentDeltas, false);
+		if (!poi) {
+			writePackedInts(BinaryMapNameTrigramReaderAdapter.PARENT_TYPES_FIELD_NUMBER, parentTypes, false);
+		}
+		writePackedInts(BinaryMapNameTrigramReaderAdapter.PARENT_LOCATIONS_FIELD_NUMBER, parentLocations, true);
+		byte[] bytes = out.toByteArray();
+		codedOutStream.writeTag(BinaryMapNameTrigramReaderAdapter.POSTINGS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+		codedOutStream.writeRawVarint32(bytes.length);
+		codedOutStream.writeRawBytes(bytes);
+		int len = writeInt32Size();
+		System.out.println("NAME TRIGRAM INDEX size " + len + " trigrams " + trigrams.length);
+		nameTrigramIndex = null;
+	}
+	
+	/**
+	 * Writes index of registered city, village, postcode and street names (see OsmAndAddressNameIndex in osmand_odb.proto)
+	 */
+	public void writeAddressNameIndex() throws IOException {
+		checkPeekState(ADDRESS_INDEX_INIT);
+		codedOutStream.writeTag(BinaryMapAddressReaderAdapter.NAME_INDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
+		preserveInt32Size();
+		Collections.sort(addressNameIndex);
+		
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		Map<String, Integer> indexedTable = new LinkedHashMap<String, Integer>();
+		int previousSize = 0;
+		for (int i = 0; i < addressNameIndex.size(); i += ADDRESS_NAME_INDEX_BLOCK_SIZE) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			CodedOutputStream block = CodedOutputStream.newInstance(out);
+			int end = Math.min(addressNameIndex.size(), i + ADDRESS_NAME_INDEX_BLOCK_SIZE);
+			for (int j = i; j < end; j++) {
+				AddressNameIndexAtom a = addressNameIndex.get(j);
+				int size = CodedOutputStream.computeStringSize(BinaryMapAddressReaderAdapter.NAME_INDEX_KEY_FIELD_NUMBER, a.key)
+						+ CodedOutputStream.computeUInt32Size(BinaryMapAddressReaderAdapter.NAME_INDEX_TYPE_FIELD_NUMBER, a.type)
+						+ CodedOutputStream.computeUInt32Size(BinaryMapAddressReaderAdapter.NAME_INDEX_SHIFT_FIELD_NUMBER, a.shift);
+				if (a.cityShift != 0) {
+					size += CodedOutputStream.computeUInt32Size(BinaryMapAddressReaderAdapter.NAME_INDEX_CITY_SHIFT_FIELD_NUMBER, a.cityShift);
+				}
+				block.writeTag(BinaryMapAddressReaderAdapter.NAME_INDEX_ATOMS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				block.writeRawVarint32(size);
+				block.writeString(BinaryMapAddressReaderAdapter.NAME_INDEX_KEY_FIELD_NUMBER, a.key);
+				block.writeUInt32(BinaryMapAddressReaderAdapter.NAME_INDEX_TYPE_FIELD_NUMBER, a.type);
+				block.writeUInt32(BinaryMapAddressReaderAdapter.NAME_INDEX_SHIFT_FIELD_NUMBER, a.shift);
+				if (a.cityShift != 0) {
+					block.writeUInt32(BinaryMapAddressReaderAdapter.NAME_INDEX_CITY_SHIFT_FIELD_NUMBER, a.cityShift);
+				}
+			}
+			block.flush();
+			byte[] bytes = out.toByteArray();
+			blocks.add(bytes);
+			// first keys of blocks could be equal, blocks are read sequentially from the block before key
+			if (!indexedTable.containsKey(addressNameIndex.get(i).key)) {
+				indexedTable.put(addressNameIndex.get(i).key, previousSize);
+			}
+			previousSize += CodedOutputStream.computeTagSize(BinaryMapAddressReaderAdapter.NAME_INDEX_BLOCKS_FIELD_NUMBER)
+					+ CodedOutputStream.computeRawVarint32Size(bytes.length) + bytes.length;
+		}
+		writeIndexedTable(BinaryMapAddressReaderAdapter.NAME_INDEX_TABLE_FIELD_NUMBER, indexedTable);
+		for (byte[] bytes : blocks) {
+			codedOutStream.writeTag(BinaryMapAddressReaderAdapter.NAME_INDEX_BLOCKS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			codedOutStream.writeRawVarint32(bytes.length);
+			codedOutStream.writeRawBytes(bytes);
+		}
+		int len = writeInt32Size();
+		System.out.println("ADDRESS NAME INDEX size " + len + " keys " + addressNameIndex.size());
+		addressNameIndex.clear();
 	}
 	
 	public void startCityIndexes(boolean villages) throws IOException {
@@ -543,6 +784,15 @@ public class BinaryMapIndexWriter {
 			StreetIndex streetInd = createStreetAndBuildings(s, cx, cy, postcode);
 			post.addStreets(streetInd);
 		}
+		codedOutStream.flush();
+		int shift = (int) (raf.getFilePointer() + CodedOutputStream.computeTagSize(OsmandOdb.PostcodesIndex.POSTCODES_FIELD_NUMBER) - addressIndexStart);
+		for (String k : CollatorStringMatcher.getWordStartKeys(postcode, BinaryMapAddressReaderAdapter.NAME_KEY_LENGTH)) {
+			addressNameIndex.add(new AddressNameIndexAtom(k, BinaryMapAddressReaderAdapter.POSTCODES_TYPE, shift, 0));
+		}
+		if (nameTrigramIndex != null) {
+			nameTrigramIndex.addRecord(shift, postcode, null);
+			nameTrigramIndex.addParent(shift, BinaryMapAddressReaderAdapter.POSTCODES_TYPE, cx >> 7, cy >> 7);
+		}
 		codedOutStream.writeMessage(OsmandOdb.PostcodesIndex.POSTCODES_FIELD_NUMBER, post.build());
 	}
 	
@@ -761,6 +1011,7 @@ public class BinaryMapIndexWriter {
 		codedOutStream.writeTag(OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		stackBounds.push(new Bounds(0, 0, 0, 0)); // for poi index tree
 		long startPoiIndex = preserveInt32Size();
+		poiIndexStart = startPoiIndex;
 		if(name != null){
 			codedOutStream.writeString(OsmandOdb.OsmAndPoiIndex.NAME_FIELD_NUMBER, name);
 		}
@@ -917,14 +1168,49 @@ public class BinaryMapIndexWriter {
 			builder.setPhone(phone);
 		}
 		
-		codedOutStream.writeMessage(OsmandOdb.OsmAndPoiBoxData.POIDATA_FIELD_NUMBER, builder.build());
-		
+		OsmAndPoiBoxDataAtom atom = builder.build();
+		// key of names is written before atom fields, so search by name could skip atom without decoding it
+		byte[] nameKey = getPoiNameKey(name, nameEn);
+		if (nameTrigramIndex != null && !Algoritms.isEmpty(name)) {
+			codedOutStream.flush();
+			int shift = (int) (raf.getFilePointer() + CodedOutputStream.computeTagSize(OsmandOdb.OsmAndPoiBoxData.POIDATA_FIELD_NUMBER) 
+					- poiIndexStart);
+			nameTrigramIndex.addRecord(shift, name, nameEn);
+		}
+		codedOutStream.writeTag(OsmandOdb.OsmAndPoiBoxData.POIDATA_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+		if (nameKey.length > 0) {
+			ByteString key = ByteString.copyFrom(nameKey);
+			codedOutStream.writeRawVarint32(CodedOutputStream.computeBytesSize(BinaryMapPoiReaderAdapter.NAME_KEY_FIELD_NUMBER, key)
+					+ atom.getSerializedSize());
+			codedOutStream.writeBytes(BinaryMapPoiReaderAdapter.NAME_KEY_FIELD_NUMBER, key);
+		} else {
+			codedOutStream.writeRawVarint32(atom.getSerializedSize());
+		}
+		atom.writeTo(codedOutStream);
+	}
+	
+	private static byte[] getPoiNameKey(String name, String nameEn) throws IOException {
+		if (Algoritms.isEmpty(name)) {
+			return new byte[0];
+		}
+		// names are matched as they are read (english name is transliterated name if it is not specified)
+		String key = CollatorStringMatcher.getWordStartsKey(name);
+		String enKey = CollatorStringMatcher.getWordStartsKey(Algoritms.isEmpty(nameEn) ? Junidecode.unidecode(name) : nameEn);
+		if (!enKey.equals(key) && enKey.length() > 0) {
+			key = key.length() > 0 ? key + ' ' + enKey : enKey;
+		}
+		return key.getBytes("US-ASCII");
 	}
 	
 	public void startWritePoiData(int zoom, int x, int y, long fpPoiIndex, TLongList fpPoiBox) throws IOException {
 		pushState(POI_DATA, POI_INDEX_INIT);
 		codedOutStream.writeTag(OsmandOdb.OsmAndPoiIndex.POIDATA_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		long startPoiData = preserveInt32Size();
+		if (nameTrigramIndex != null) {
+			// center of tile
+			nameTrigramIndex.addParent((int) (startPoiData - fpPoiIndex - 4), 0, ((x << 1) + 1) << (23 - zoom),
+					((y << 1) + 1) << (23 - zoom));
+		}
 		// write shift to that data
 		long filePointer = raf.getFilePointer();
 		for (int i = 0; i < fpPoiBox.size(); i++) {
@@ -981,6 +1267,94 @@ public class BinaryMapIndexWriter {
 		stackBounds.pop();
 	}
 	
+	/**
+	 * Writes contraction hierarchy section (see OsmAndRoutingHierarchy in osmand_odb.proto),
+	 * edges should be grouped by node where they are stored, flags decide whether shortcut or original edge is expected.
+	 */
+	public void writeRoutingHierarchy(String name, TIntArrayList nodes, TIntArrayList nodeEdges, TIntArrayList edgeTargets,
+			TIntArrayList edgeWeights, TIntArrayList edgeFlags, TIntArrayList shortcutEdges, TLongArrayList roadIds,
+			TIntArrayList roadPoints) throws IOException {
+		checkPeekState(OSMAND_STRUCTURE_INIT);
+		codedOutStream.writeTag(BinaryMapRoutingHierarchyReaderAdapter.ROUTING_HIERARCHY_FIELD_NUMBER, 
+				WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
+		preserveInt32Size();
+		codedOutStream.writeString(BinaryMapRoutingHierarchyReaderAdapter.NAME_FIELD_NUMBER, name);
+		codedOutStream.writeUInt32(BinaryMapRoutingHierarchyReaderAdapter.NODES_COUNT_FIELD_NUMBER, nodeEdges.size());
+		codedOutStream.writeUInt32(BinaryMapRoutingHierarchyReaderAdapter.EDGES_COUNT_FIELD_NUMBER, edgeTargets.size());
+		
+		// coordinates are delta coded
+		TIntArrayList deltas = new TIntArrayList(nodes.size());
+		int px = 0;
+		int py = 0;
+		for (int i = 0; i < nodes.size(); i += 2) {
+			deltas.add(nodes.get(i) - px);
+			deltas.add(nodes.get(i + 1) - py);
+			px = nodes.get(i);
+			py = nodes.get(i + 1);
+		}
+		writePackedInts(BinaryMapRoutingHierarchyReaderAdapter.NODES_FIELD_NUMBER, deltas, true);
+		writePackedInts(BinaryMapRoutingHierarchyReaderAdapter.NODE_EDGES_FIELD_NUMBER, nodeEdges, false);
+		writePackedInts(BinaryMapRoutingHierarchyReaderAdapter.EDGE_TARGETS_FIELD_NUMBER, edgeTargets, false);
+		writePackedInts(BinaryMapRoutingHierarchyReaderAdapter.EDGE_WEIGHTS_FIELD_NUMBER, edgeWeights, false);
+		writePackedInts(BinaryMapRoutingHierarchyReaderAdapter.EDGE_FLAGS_FIELD_NUMBER, edgeFlags, false);
+		writePackedInts(BinaryMapRoutingHierarchyReaderAdapter.SHORTCUT_EDGES_FIELD_NUMBER, shortcutEdges, false);
+		
+		int size = 0;
+		long pid = 0;
+		for (int i = 0; i < roadIds.size(); i++) {
+			size += CodedOutputStream.computeSInt64SizeNoTag(roadIds.get(i) - pid);
+			pid = roadIds.get(i);
+		}
+		codedOutStream.writeTag(BinaryMapRoutingHierarchyReaderAdapter.ROAD_IDS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+		codedOutStream.writeRawVarint32(size);
+		pid = 0;
+		for (int i = 0; i < roadIds.size(); i++) {
+			codedOutStream.writeSInt64NoTag(roadIds.get(i) - pid);
+			pid = roadIds.get(i);
+		}
+		writePackedInts(BinaryMapRoutingHierarchyReaderAdapter.ROAD_POINTS_FIELD_NUMBER, roadPoints, false);
+		int len = writeInt32Size();
+		System.out.println("ROUTING HIERARCHY SIZE : " + len);
+	}
+	
+	private void writePackedInts(int fieldNumber, TIntArrayList values, boolean signed) throws IOException {
+		int size = 0;
+		for (int i = 0; i < values.size(); i++) {
+			size += signed ? CodedOutputStream.computeSInt32SizeNoTag(values.get(i)) : 
+				CodedOutputStream.computeUInt32SizeNoTag(values.get(i));
+		}
+		codedOutStream.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+		codedOutStream.writeRawVarint32(size);
+		for (int i = 0; i < values.size(); i++) {
+			if (signed) {
+				codedOutStream.writeSInt32NoTag(values.get(i));
+			} else {
+				codedOutStream.writeUInt32NoTag(values.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * Copies top level index part (fixed32 length delimited) of another file as it is
+	 */
+	public void writeRawIndexPart(int fieldNumber, RandomAccessFile source, long filePointer, int length) throws IOException {
+		checkPeekState(OSMAND_STRUCTURE_INIT);
+		codedOutStream.writeTag(fieldNumber, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
+		codedOutStream.flush();
+		raf.writeInt(length);
+		byte[] buffer = new byte[1 << 16];
+		source.seek(filePointer);
+		int toCopy = length;
+		while (toCopy > 0) {
+			int read = source.read(buffer, 0, Math.min(buffer.length, toCopy));
+			if (read == -1) {
+				throw new IOException("Unexpected end of file"); //$NON-NLS-1$
+			}
+			raf.write(buffer, 0, read);
+			toCopy -= read;
+		}
+	}
+	
 	 
 	private void pushState(int push, int peek){
 		if(state.peek() != peek){
@@ -0,0 +1,246 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.osmand.data.Boundary;
+import net.osmand.data.MapAlgorithms;
+import net.osmand.osm.Node;
+import net.osmand.osm.Way;
+
+/**
+ * Grid over bounding boxes of boundaries to find boundaries containing point
+ * without testing every boundary. Geometry of each boundary is prepared once : segments are
+ * grouped by latitude bands, so containment test (same ray intersection as {@link Boundary#containsPoint(double, double)})
+ * checks only segments that can intersect ray of point.
+ * Index should be updated ({@link #update(Boundary)}) if ways of boundary are changed.
+ * Lookups are thread-safe if index is not modified.
+ */
+public class BoundaryIndex {
+
+	// ray_intersect_lon moves point by 1e-8 if it is on latitude of node
+	private static final double EPSILON = 1e-7;
+	private static final int SEGMENTS_PER_BAND = 8;
+	private static final int MAX_BANDS = 1024;
+
+	private final double cellSize;
+	private final TLongObjectHashMap<List<PreparedBoundary>> cells = new TLongObjectHashMap<List<PreparedBoundary>>();
+	private final Map<Boundary, PreparedBoundary> prepared = new HashMap<Boundary, PreparedBoundary>();
+
+	/**
+	 * @param cellSize size of grid cell in degrees
+	 */
+	public BoundaryIndex(double cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	public void add(Boundary b) {
+		PreparedBoundary p = new PreparedBoundary(b);
+		prepared.put(b, p);
+		if (p.isEmpty()) {
+			return;
+		}
+		int maxCol = getColumn(Math.min(p.maxLon, 180));
+		int maxRow = getRow(p.maxLat);
+		for (int row = getRow(p.minLat); row <= maxRow; row++) {
+			for (int col = getColumn(p.minLon); col <= maxCol; col++) {
+				long key = (((long) row) << 32) | col;
+				List<PreparedBoundary> list = cells.get(key);
+				if (list == null) {
+					list = new ArrayList<PreparedBoundary>(2);
+					cells.put(key, list);
+				}
+				list.add(p);
+			}
+		}
+	}
+
+	public void remove(Boundary b) {
+		PreparedBoundary p = prepared.remove(b);
+		if (p == null || p.isEmpty()) {
+			return;
+		}
+		int maxCol = getColumn(Math.min(p.maxLon, 180));
+		int maxRow = getRow(p.maxLat);
+		for (int row = getRow(p.minLat); row <= maxRow; row++) {
+			for (int col = getColumn(p.minLon); col <= maxCol; col++) {
+				List<PreparedBoundary> list = cells.get((((long) row) << 32) | col);
+				if (list != null) {
+					list.remove(p);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Should be called when ways of boundary are changed
+	 */
+	public void update(Boundary b) {
+		remove(b);
+		add(b);
+	}
+
+	/**
+	 * @return boundaries which bounding box contains point (they do not necessarily contain point)
+	 */
+	public List<Boundary> getCandidates(double latitude, double longitude) {
+		List<Boundary> result = new ArrayList<Boundary>();
+		List<PreparedBoundary> list = cells.get((((long) getRow(latitude)) << 32) | getColumn(longitude));
+		if (list != null) {
+			for (PreparedBoundary p : list) {
+				if (p.boxContains(latitude, longitude)) {
+					result.add(p.boundary);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same as {@link Boundary#containsPoint(double, double)} but uses prepared geometry
+	 */
+	public boolean containsPoint(Boundary b, double latitude, double longitude) {
+		PreparedBoundary p = prepared.get(b);
+		if (p == null) {
+			return b.containsPoint(latitude, longitude);
+		}
+		return p.containsPoint(latitude, longitude);
+	}
+
+	/**
+	 * @return all boundaries that contain point
+	 */
+	public List<Boundary> findBoundaries(double latitude, double longitude) {
+		List<Boundary> result = new ArrayList<Boundary>(2);
+		List<PreparedBoundary> list = cells.get((((long) getRow(latitude)) << 32) | getColumn(longitude));
+		if (list != null) {
+			for (PreparedBoundary p : list) {
+				if (p.containsPoint(latitude, longitude)) {
+					result.add(p.boundary);
+				}
+			}
+		}
+		return result;
+	}
+
+	private int getRow(double latitude) {
+		return (int) Math.floor((latitude + 90) / cellSize);
+	}
+
+	private int getColumn(double longitude) {
+		return (int) Math.floor((longitude + 180) / cellSize);
+	}
+
+	private static class PreparedBoundary {
+		private final Boundary boundary;
+		private final Node[] start;
+		private final Node[] end;
+		private double minLat = Double.POSITIVE_INFINITY;
+		private double maxLat = Double.NEGATIVE_INFINITY;
+		private double minLon = Double.POSITIVE_INFINITY;
+		private double maxLon = Double.NEGATIVE_INFINITY;
+		// segments grouped by latitude (null for small boundaries)
+		private int[][] bands;
+		private int bandsCount;
+		private double bandHeight;
+
+		public PreparedBoundary(Boundary b) {
+			this.boundary = b;
+			List<Node> starts = new ArrayList<Node>();
+			List<Node> ends = new ArrayList<Node>();
+			boolean closedRings = true;
+			List<Way> ways = new ArrayList<Way>(b.getOuterWays());
+			ways.addAll(b.getInnerWays());
+			for (Way w : ways) {
+				List<Node> nodes = w.getNodes();
+				for (int i = 0; i < nodes.size() - 1; i++) {
+					starts.add(nodes.get(i));
+					ends.add(nodes.get(i + 1));
+				}
+				for (Node n : nodes) {
+					minLat = Math.min(minLat, n.getLatitude());
+					maxLat = Math.max(maxLat, n.getLatitude());
+					minLon = Math.min(minLon, n.getLongitude());
+					maxLon = Math.max(maxLon, n.getLongitude());
+				}
+				if (nodes.size() > 1) {
+					Node f = nodes.get(0);
+					Node l = nodes.get(nodes.size() - 1);
+					closedRings &= f.getLatitude() == l.getLatitude() && f.getLongitude() == l.getLongitude();
+				}
+			}
+			start = starts.toArray(new Node[starts.size()]);
+			end = ends.toArray(new Node[ends.size()]);
+			minLat -= EPSILON;
+			maxLat += EPSILON;
+			minLon -= EPSILON;
+			// ray goes to the west, so for not closed rings point to the east of box could be inside
+			maxLon = closedRings ? maxLon + EPSILON : Double.POSITIVE_INFINITY;
+			bandsCount = Math.min(start.length / SEGMENTS_PER_BAND, MAX_BANDS);
+			if (bandsCount > 1) {
+				prepareBands();
+			}
+		}
+
+		private void prepareBands() {
+			bandHeight = (maxLat - minLat) / bandsCount;
+			int[] sizes = new int[bandsCount];
+			for (int i = 0; i < start.length; i++) {
+				int to = getBand(Math.max(start[i].getLatitude(), end[i].getLatitude()) + EPSILON);
+				for (int k = getBand(Math.min(start[i].getLatitude(), end[i].getLatitude()) - EPSILON); k <= to; k++) {
+					sizes[k]++;
+				}
+			}
+			bands = new int[bandsCount][];
+			for (int k = 0; k < bandsCount; k++) {
+				bands[k] = new int[sizes[k]];
+				sizes[k] = 0;
+			}
+			for (int i = 0; i < start.length; i++) {
+				int to = getBand(Math.max(start[i].getLatitude(), end[i].getLatitude()) + EPSILON);
+				for (int k = getBand(Math.min(start[i].getLatitude(), end[i].getLatitude()) - EPSILON); k <= to; k++) {
+					bands[k][sizes[k]++] = i;
+				}
+			}
+		}
+
+		private int getBand(double latitude) {
+			int k = (int) ((latitude - minLat) / bandHeight);
+			return Math.max(0, Math.min(bandsCount - 1, k));
+		}
+
+		public boolean isEmpty() {
+			return start.length == 0;
+		}
+
+		public boolean boxContains(double latitude, double longitude) {
+			return latitude >= minLat && latitude <= maxLat && longitude >= minLon && longitude <= maxLon;
+		}
+
+		public boolean containsPoint(double latitude, double longitude) {
+			if (!boxContains(latitude, longitude)) {
+				return false;
+			}
+			int intersections = 0;
+			if (bands == null) {
+				for (int i = 0; i < start.length; i++) {
+					if (MapAlgorithms.ray_intersect_lon(start[i], end[i], latitude, longitude) != -360d) {
+						intersections++;
+					}
+				}
+			} else {
+				int[] segments = bands[getBand(latitude)];
+				for (int i = 0; i < segments.length; i++) {
+					if (MapAlgorithms.ray_intersect_lon(start[segments[i]], end[segments[i]], latitude, longitude) != -360d) {
+						intersections++;
+					}
+				}
+			}
+			return intersections % 2 == 1;
+		}
+	}
+}
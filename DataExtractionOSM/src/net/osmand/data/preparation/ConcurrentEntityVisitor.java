@@ -0,0 +1,185 @@
+package net.osmand.data.preparation;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.osmand.data.preparation.OsmDbAccessor.OsmDbVisitor;
+import net.osmand.osm.Entity;
+import net.osmand.osm.Entity.EntityId;
+import net.osmand.osm.Node;
+import net.osmand.osm.Relation;
+import net.osmand.osm.Way;
+
+/**
+ * Visitor that passes every entity to several worker threads (one thread per visitor group).
+ * Each worker receives all entities in original order, so index creators of one group keep their single-threaded state.
+ * Creators writing to the same db connection must be placed in one group.
+ * Every group except the last one gets its own copy of entity (with tags and loaded nodes and members)
+ * because creators change entities (for example tags of outer way are copied to multipolygon relation).
+ * {@link OsmDbAccessorContext#loadEntityData(Entity)} is synchronized on the accessor because it is not thread-safe.
+ */
+public class ConcurrentEntityVisitor implements OsmDbVisitor {
+
+	private static final Entity END_ENTITY = new Node(0, 0, -1);
+
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private volatile SynchronizedContext context;
+	private volatile Throwable error;
+
+	public ConcurrentEntityVisitor(List<OsmDbVisitor> groups, int queueSize) {
+		for (int i = 0; i < groups.size(); i++) {
+			Worker w = new Worker(groups.get(i), queueSize);
+			w.setName("Index worker " + i); //$NON-NLS-1$
+			w.setDaemon(true);
+			workers.add(w);
+			w.start();
+		}
+	}
+
+	@Override
+	public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+		checkError();
+		if (context == null || context.ctx != ctx) {
+			context = new SynchronizedContext(ctx);
+		}
+		try {
+			// copies are made before original entity is given to the last group
+			for (int i = 0; i < workers.size(); i++) {
+				workers.get(i).queue.put(i == workers.size() - 1 ? e : copyEntity(e));
+			}
+		} catch (InterruptedException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static Entity copyEntity(Entity e) {
+		Entity c;
+		if (e instanceof Node) {
+			c = new Node(((Node) e).getLatitude(), ((Node) e).getLongitude(), e.getId());
+		} else if (e instanceof Way) {
+			Way w = (Way) e;
+			c = new Way(e.getId());
+			for (Long l : w.getNodeIds()) {
+				((Way) c).addNode(l);
+			}
+			if (!w.getNodes().isEmpty()) {
+				c.initializeLinks(copyLinks(w.getNodes()));
+			}
+		} else {
+			Relation r = (Relation) e;
+			c = new Relation(e.getId());
+			for (Map.Entry<EntityId, String> m : r.getMembersMap().entrySet()) {
+				((Relation) c).addMember(m.getKey().getId(), m.getKey().getType(), m.getValue());
+			}
+			if (!r.getMemberEntities().isEmpty()) {
+				c.initializeLinks(copyLinks(r.getMemberEntities().keySet()));
+			}
+		}
+		for (Map.Entry<String, String> t : e.getTags().entrySet()) {
+			c.putTag(t.getKey(), t.getValue());
+		}
+		if (e.isDataLoaded()) {
+			c.entityDataLoaded();
+		}
+		return c;
+	}
+
+	private static Map<EntityId, Entity> copyLinks(Iterable<? extends Entity> entities) {
+		Map<EntityId, Entity> links = new LinkedHashMap<EntityId, Entity>();
+		for (Entity l : entities) {
+			// nodes missing in file are null
+			if (l != null) {
+				links.put(EntityId.valueOf(l), copyEntity(l));
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Waits until all workers processed queued entities and rethrows first error of workers
+	 */
+	public void finish() throws SQLException {
+		try {
+			for (Worker w : workers) {
+				w.queue.put(END_ENTITY);
+			}
+			for (Worker w : workers) {
+				w.join();
+			}
+		} catch (InterruptedException ex) {
+			throw new IllegalStateException(ex);
+		}
+		checkError();
+	}
+
+	/**
+	 * Stops workers without waiting for queued entities (used when indexing fails)
+	 */
+	public void close() {
+		for (Worker w : workers) {
+			w.interrupt();
+		}
+	}
+
+	private void checkError() throws SQLException {
+		Throwable e = error;
+		if (e instanceof SQLException) {
+			throw (SQLException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		} else if (e != null) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class SynchronizedContext implements OsmDbAccessorContext {
+		private final OsmDbAccessorContext ctx;
+
+		public SynchronizedContext(OsmDbAccessorContext ctx) {
+			this.ctx = ctx;
+		}
+
+		@Override
+		public void loadEntityData(Entity e) throws SQLException {
+			synchronized (ctx) {
+				ctx.loadEntityData(e);
+			}
+		}
+	}
+
+	private class Worker extends Thread {
+		private final OsmDbVisitor visitor;
+		private final BlockingQueue<Entity> queue;
+
+		public Worker(OsmDbVisitor visitor, int queueSize) {
+			this.visitor = visitor;
+			this.queue = new ArrayBlockingQueue<Entity>(queueSize);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Entity e;
+				while ((e = queue.take()) != END_ENTITY) {
+					// skip entities after error (including errors like OutOfMemoryError), so producer is not blocked
+					if (error == null) {
+						try {
+							visitor.iterateEntity(e, context);
+						} catch (Throwable ex) {
+							error = ex;
+						}
+					}
+				}
+			} catch (InterruptedException ex) {
+				// closed
+			}
+		}
+	}
+}
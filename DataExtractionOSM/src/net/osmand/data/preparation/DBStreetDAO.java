@@ -56,6 +56,7 @@ public class DBStreetDAO extends AbstractIndexPartCreator
 
 	private Connection mapConnection;
 	private PreparedStatement addressStreetUpdateCityPart;
+	private PreparedStatement addressBuildingUpdatePostcode;
 
 	public void createDatabaseStructure(Connection mapConnection, DBDialect dialect) throws SQLException {
 		this.mapConnection = mapConnection;
@@ -87,6 +88,7 @@ public class DBStreetDAO extends AbstractIndexPartCreator
 		addressStreetUpdateCityPart = createPrepareStatement(mapConnection,"UPDATE street SET citypart = ? WHERE id = ?");
 		addressSearchBuildingStat = createPrepareStatement(mapConnection,"SELECT id FROM building where ? = id");
 		addressSearchStreetNodeStat = createPrepareStatement(mapConnection,"SELECT way FROM street_node WHERE ? = way");
+		addressBuildingUpdatePostcode = createPrepareStatement(mapConnection,"UPDATE building SET postcode = ? WHERE id = ?");
 	}
 	
 	protected void writeStreetWayNodes(Set<Long> streetIds, Way way) throws SQLException {
@@ -194,8 +196,14 @@ public class DBStreetDAO extends AbstractIndexPartCreator
 		}
 	}
 
+	public void updateBuildingPostcode(long buildingId, String postcode) throws SQLException {
+		addressBuildingUpdatePostcode.setString(1, postcode);
+		addressBuildingUpdatePostcode.setLong(2, buildingId);
+		addBatch(addressBuildingUpdatePostcode);
+	}
+
 	public void close() throws SQLException {
-		closePreparedStatements(addressStreetStat, addressStreetNodeStat, addressBuildingStat);
+		closePreparedStatements(addressStreetStat, addressStreetNodeStat, addressBuildingStat, addressBuildingUpdatePostcode);
 	}
 
 	public DBStreetDAO.SimpleStreet updateStreetCityPart(DBStreetDAO.SimpleStreet street, City city, String cityPart) throws SQLException {
@@ -0,0 +1,138 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.osmand.osm.Node;
+
+/**
+ * Dense store : memory mapped (sparse) file with coordinates at position of node id.
+ * Size of file is defined by max node id, so it is worth for planet-scale files only.
+ */
+public class DenseNodeCoordinatesStore extends NodeCoordinatesStore {
+
+	// lat (int), lon (int)
+	private static final int RECORD_SIZE = 8;
+	// 2^27 nodes (1 Gb) are mapped by one buffer
+	private static final int SEGMENT_SHIFT = 27;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+	// latitude is stored shifted, so 0 means that node is absent
+	private static final int LATITUDE_SHIFT = 1000000000;
+
+	private final File workingDir;
+	private File storeFile;
+	private RandomAccessFile raf;
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	// nodes with negative ids (created by editors) are kept in memory
+	private TLongObjectHashMap<Node> negativeNodes = new TLongObjectHashMap<Node>();
+	private long size = 0;
+	private long maxId = -1;
+
+	public DenseNodeCoordinatesStore(File workingDir) {
+		this.workingDir = workingDir;
+	}
+
+	@Override
+	public void addNode(long id, double latitude, double longitude) throws IOException {
+		if (id < 0) {
+			if (negativeNodes.put(id, new Node(fromFixedPoint(toFixedPoint(latitude)), fromFixedPoint(toFixedPoint(longitude)), id)) == null) {
+				size++;
+			}
+			return;
+		}
+		MappedByteBuffer segment = getSegment(id);
+		int offset = (int) (id & SEGMENT_MASK) * RECORD_SIZE;
+		if (segment.getInt(offset) == 0) {
+			size++;
+		}
+		segment.putInt(offset, toFixedPoint(latitude) + LATITUDE_SHIFT);
+		segment.putInt(offset + 4, toFixedPoint(longitude));
+		maxId = Math.max(maxId, id);
+	}
+
+	@Override
+	public void finishLoading() throws IOException {
+		if (raf != null) {
+			// mapping stays valid after file is closed
+			raf.close();
+			raf = null;
+		}
+	}
+
+	@Override
+	protected Node getNodeInternal(long id) {
+		if (id < 0) {
+			Node n = negativeNodes.get(id);
+			return n == null ? null : new Node(n.getLatitude(), n.getLongitude(), id);
+		}
+		int s = (int) (id >> SEGMENT_SHIFT);
+		if (s >= segments.length || segments[s] == null) {
+			return null;
+		}
+		int offset = (int) (id & SEGMENT_MASK) * RECORD_SIZE;
+		int lat = segments[s].getInt(offset);
+		if (lat == 0) {
+			return null;
+		}
+		return new Node(fromFixedPoint(lat - LATITUDE_SHIFT), fromFixedPoint(segments[s].getInt(offset + 4)), id);
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public long getHeapMemory() {
+		// rough estimate of hash map entry with node
+		return (long) negativeNodes.size() * 64;
+	}
+
+	@Override
+	public long getMappedMemory() {
+		return (maxId + 1) * RECORD_SIZE;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (raf != null) {
+				raf.close();
+				raf = null;
+			}
+		} catch (IOException e) {
+			// file is deleted anyway
+		}
+		segments = new MappedByteBuffer[0];
+		negativeNodes.clear();
+		if (storeFile != null && !storeFile.delete()) {
+			// could be still mapped
+			storeFile.deleteOnExit();
+		}
+	}
+
+	private MappedByteBuffer getSegment(long id) throws IOException {
+		int s = (int) (id >> SEGMENT_SHIFT);
+		if (s >= segments.length) {
+			segments = Arrays.copyOf(segments, s + 1);
+		}
+		if (segments[s] == null) {
+			if (raf == null) {
+				if (storeFile == null) {
+					storeFile = File.createTempFile("nodes", ".dense", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				raf = new RandomAccessFile(storeFile, "rw"); //$NON-NLS-1$
+			}
+			// file is extended by mapping (not written parts do not take disk space)
+			segments[s] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, ((long) s << SEGMENT_SHIFT) * RECORD_SIZE,
+					(long) RECORD_SIZE << SEGMENT_SHIFT);
+		}
+		return segments[s];
+	}
+}
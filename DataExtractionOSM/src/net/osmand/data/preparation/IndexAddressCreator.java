@@ -3,6 +3,7 @@ package net.osmand.data.preparation;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -23,6 +24,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.osmand.Algoritms;
 import net.osmand.IProgress;
@@ -51,6 +57,9 @@ import org.apache.commons.logging.LogFactory;
 public class IndexAddressCreator extends AbstractIndexPartCreator{
 	
 	private static final Log log = LogFactory.getLog(IndexAddressCreator.class);
+	// degrees
+	private static final double BOUNDARY_INDEX_CELL_SIZE = 0.25;
+	private static final int CITIES_PER_TASK = 256;
 
 	private PreparedStatement addressCityStat;
 
@@ -67,6 +76,9 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 	private Map<Boundary,List<City>> boundariesToCities = new HashMap<Boundary,List<City>>();
 	private Set<Boundary> allBoundaries = new HashSet<Boundary>();
 	private TLongHashSet visitedBoundaryWays = new TLongHashSet();
+	// threads to find boundaries of cities
+	private int boundaryThreads = 1;
+	private boolean indexNameTrigrams = false;
 	
 	private boolean normalizeStreets; 
 	private String[] normalizeDefaultSuffixes;
@@ -113,6 +125,26 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 		this.saveAddressWays = saveAddressWays;
 	}
 
+	/**
+	 * Streets, buildings and street nodes are registered in memory (see {@link MemoryStreetDAO}) instead of map db.
+	 * Should be called before {@link #createDatabaseStructure(Connection, DBDialect)}.
+	 * @param maxObjectsInMemory buildings and street nodes kept in memory before they are spilled to disk
+	 */
+	public void setStreetsInMemory(File workingDir, int maxObjectsInMemory) {
+		streetDAO = new MemoryStreetDAO(workingDir, maxObjectsInMemory);
+	}
+
+	public void setBoundaryThreads(int boundaryThreads) {
+		this.boundaryThreads = boundaryThreads;
+	}
+
+	/**
+	 * Trigram index of city, street and postcode names to find them with typos
+	 */
+	public void setIndexNameTrigrams(boolean indexNameTrigrams) {
+		this.indexNameTrigrams = indexNameTrigrams;
+	}
+
 	public void registerCityIfNeeded(Entity e) {
 		if (e instanceof Node && e.getTag(OSMTagKey.PLACE) != null) {
 			City city = new City((Node) e);
@@ -169,6 +201,11 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 
 	public void bindCitiesWithBoundaries(IProgress progress) {
 		progress.startWork(cities.size()*2);
+		long time = System.currentTimeMillis();
+		BoundaryIndex boundaryIndex = new BoundaryIndex(BOUNDARY_INDEX_CELL_SIZE);
+		for (Boundary b : allBoundaries) {
+			boundaryIndex.add(b);
+		}
 		Set<Boundary> freeBoundaries = new HashSet<Boundary>(allBoundaries);
 		freeBoundaries.removeAll(cityBoundaries.values());
 		//for cities without boundaries, try to find the right one
@@ -180,9 +217,9 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 				LatLon location = c.getLocation();
 				Boundary smallestBoundary = null;
 				//try to found boundary
-				for (Boundary b : freeBoundaries) {
-					if (b.getAdminLevel() > smallestAdminLevel) {
-						if (b.containsPoint(location.getLatitude(), location.getLongitude())) {
+				for (Boundary b : boundaryIndex.getCandidates(location.getLatitude(), location.getLongitude())) {
+					if (b.getAdminLevel() > smallestAdminLevel && freeBoundaries.contains(b)) {
+						if (boundaryIndex.containsPoint(b, location.getLatitude(), location.getLongitude())) {
 							//the bigger the admin level, the smaller the boundary :-)
 								smallestAdminLevel = b.getAdminLevel();
 								smallestBoundary = b;
@@ -200,19 +237,63 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 		}
 		
 		//now for each city, try to put it in all boundaries it belongs to
-		for (City c : cities.values()) {
-			progress.progress(1);
-			for (Boundary b : allBoundaries) {
-				if (b.containsPoint(c.getLocation())) {
-					List<City> list = boundariesToCities.get(b);
-					if (list == null) {
-						list = new ArrayList<City>(1);
-						boundariesToCities.put(b, list);
-					}
-					list.add(c);
+		List<City> cityList = new ArrayList<City>(cities.values());
+		List<List<Boundary>> cityInBoundaries = findCitiesBoundaries(cityList, boundaryIndex, progress);
+		for (int i = 0; i < cityList.size(); i++) {
+			for (Boundary b : cityInBoundaries.get(i)) {
+				List<City> list = boundariesToCities.get(b);
+				if (list == null) {
+					list = new ArrayList<City>(1);
+					boundariesToCities.put(b, list);
 				}
+				list.add(cityList.get(i));
 			}
 		}
+		log.info("Bind " + cities.size() + " cities with " + allBoundaries.size() + " boundaries in " //$NON-NLS-1$ //$NON-NLS-2$
+				+ (System.currentTimeMillis() - time) + " ms"); //$NON-NLS-1$
+	}
+
+	private List<List<Boundary>> findCitiesBoundaries(final List<City> cityList, final BoundaryIndex boundaryIndex, IProgress progress) {
+		final List<List<Boundary>> result = new ArrayList<List<Boundary>>(cityList.size());
+		if (boundaryThreads <= 1 || cityList.size() < 2 * CITIES_PER_TASK) {
+			for (City c : cityList) {
+				progress.progress(1);
+				result.add(boundaryIndex.findBoundaries(c.getLocation().getLatitude(), c.getLocation().getLongitude()));
+			}
+			return result;
+		}
+		// index is not modified here, so cities could be checked concurrently
+		ExecutorService executor = Executors.newFixedThreadPool(boundaryThreads);
+		try {
+			List<Future<List<List<Boundary>>>> tasks = new ArrayList<Future<List<List<Boundary>>>>();
+			for (int i = 0; i < cityList.size(); i += CITIES_PER_TASK) {
+				final int start = i;
+				final int end = Math.min(cityList.size(), i + CITIES_PER_TASK);
+				tasks.add(executor.submit(new Callable<List<List<Boundary>>>() {
+					@Override
+					public List<List<Boundary>> call() {
+						List<List<Boundary>> r = new ArrayList<List<Boundary>>(end - start);
+						for (int k = start; k < end; k++) {
+							LatLon l = cityList.get(k).getLocation();
+							r.add(boundaryIndex.findBoundaries(l.getLatitude(), l.getLongitude()));
+						}
+						return r;
+					}
+				}));
+			}
+			for (Future<List<List<Boundary>>> f : tasks) {
+				List<List<Boundary>> r = f.get();
+				progress.progress(r.size());
+				result.addAll(r);
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return result;
 	}
 
 	private int extractBoundaryAdminLevel(Entity e) {
@@ -700,20 +781,13 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 	
 	public void processingPostcodes() throws SQLException {
 		streetDAO.commit();
-		PreparedStatement pstat = mapConnection.prepareStatement("UPDATE building SET postcode = ? WHERE id = ?");
-		pStatements.put(pstat, 0);
 		for (Relation r : postalCodeRelations) {
 			String tag = r.getTag(OSMTagKey.POSTAL_CODE);
 			for (EntityId l : r.getMemberIds()) {
-				pstat.setString(1, tag);
-				pstat.setLong(2, l.getId());
-				addBatch(pstat);
+				streetDAO.updateBuildingPostcode(l.getId(), tag);
 			}
 		}
-		if (pStatements.get(pstat) > 0) {
-			pstat.executeBatch();
-		}
-		pStatements.remove(pstat);
+		streetDAO.commit();
 	}
 
 
@@ -724,6 +798,9 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 		boolean readWayNodes = saveAddressWays;
 
 		writer.startWriteAddressIndex(regionName);
+		if (indexNameTrigrams) {
+			writer.startNameTrigramIndex();
+		}
 		List<City> cities = readCities(mapConnection);
 		Collections.sort(cities, new Comparator<City>() {
 
@@ -825,6 +902,10 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 			writer.writePostcode(s, postcodes.get(s));
 		}
 		writer.endPostcodes();
+		writer.writeAddressNameIndex();
+		if (indexNameTrigrams) {
+			writer.writeNameTrigramIndex();
+		}
 
 		progress.finishTask();
 
@@ -834,6 +915,9 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 		if (readWayNodes) {
 			waynodesStat.close();
 		}
+		if (streetDAO instanceof MemoryStreetDAO) {
+			((MemoryStreetDAO) streetDAO).clear();
+		}
 
 	}
 
@@ -888,34 +972,21 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 			Map<String,Street> streets, PreparedStatement waynodesStat,
 			Map<Street, List<Node>> streetNodes,
 			TLongObjectHashMap<Street> visitedStreets, Map<String,List<StreetAndDistrict>> uniqueNames) throws SQLException {
+		if (streetDAO instanceof MemoryStreetDAO) {
+			readStreetsByBuildingsForCityFromMemory(city, streets, streetNodes, uniqueNames);
+			return;
+		}
 		streetBuildingsStat.setLong(1, city.getId());
 		ResultSet set = streetBuildingsStat.executeQuery();
 		while (set.next()) {
 			long streetId = set.getLong(1);
 			if (!visitedStreets.containsKey(streetId)) {
 				Street street = new Street(null);
-				String streetName = set.getString(2);
 				street.setLocation(set.getDouble(4), set.getDouble(5));
 				street.setId(streetId);
 				//load the street nodes
 				loadStreetNodes(street, waynodesStat, streetNodes);
-				
-				//If there are more streets with same name in different districts. 
-				//Add district name to all other names. If sorting is right, the first street was the one in the city
-				String defaultDistrict = set.getString(12);
-				String district = identifyBestDistrict(street, streetName, " (" + defaultDistrict + ")", uniqueNames, streetNodes);
-				street.setName(streetName + district);
-				street.setEnName(set.getString(3) + district);
-				//if for this street there is already same street, add just nodes to the street.
-				if (!streets.containsKey(street.getName())) {
-					streets.put(street.getName(),street);
-				} else {
-					//add the current streetNodes to the existing street
-					List<Node> firstStreetNodes = streetNodes.get(streets.get(street.getName()));
-					if (firstStreetNodes != null && streetNodes.get(street) != null) {
-						firstStreetNodes.addAll(streetNodes.get(street));
-					}
-				}
+				registerReadStreet(street, set.getString(2), set.getString(3), set.getString(12), streets, streetNodes, uniqueNames);
 				visitedStreets.put(streetId, street); //mark the street as visited
 			}
 			if (set.getObject(6) != null) {
@@ -933,6 +1004,62 @@ public class IndexAddressCreator extends AbstractIndexPartCreator{
 		set.close();
 	}
 
+	private void readStreetsByBuildingsForCityFromMemory(City city, Map<String, Street> streets, Map<Street, List<Node>> streetNodes,
+			Map<String, List<StreetAndDistrict>> uniqueNames) throws SQLException {
+		MemoryStreetDAO memoryStreets = (MemoryStreetDAO) streetDAO;
+		// same order as sql : streets directly in city go first
+		List<MemoryStreetDAO.StreetRecord> records = new ArrayList<MemoryStreetDAO.StreetRecord>();
+		for (MemoryStreetDAO.StreetRecord r : memoryStreets.getStreets(city)) {
+			if (city.getName().equals(r.getCityPart())) {
+				records.add(r);
+			}
+		}
+		for (MemoryStreetDAO.StreetRecord r : memoryStreets.getStreets(city)) {
+			if (!city.getName().equals(r.getCityPart())) {
+				records.add(r);
+			}
+		}
+		List<Building> buildings = new ArrayList<Building>();
+		for (MemoryStreetDAO.StreetRecord r : records) {
+			Street street = new Street(null);
+			street.setLocation(r.getLocation().getLatitude(), r.getLocation().getLongitude());
+			street.setId(r.getId());
+			List<Node> nodes = new ArrayList<Node>();
+			buildings.clear();
+			try {
+				memoryStreets.readStreetObjects(r.getId(), buildings, nodes);
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
+			if (streetNodes != null) {
+				streetNodes.put(street, nodes);
+			}
+			registerReadStreet(street, r.getName(), r.getNameEn(), r.getCityPart(), streets, streetNodes, uniqueNames);
+			for (Building b : buildings) {
+				street.registerBuilding(b);
+			}
+		}
+	}
+
+	private void registerReadStreet(Street street, String streetName, String streetNameEn, String defaultDistrict,
+			Map<String, Street> streets, Map<Street, List<Node>> streetNodes, Map<String, List<StreetAndDistrict>> uniqueNames) {
+		//If there are more streets with same name in different districts. 
+		//Add district name to all other names. If sorting is right, the first street was the one in the city
+		String district = identifyBestDistrict(street, streetName, " (" + defaultDistrict + ")", uniqueNames, streetNodes);
+		street.setName(streetName + district);
+		street.setEnName(streetNameEn + district);
+		//if for this street there is already same street, add just nodes to the street.
+		if (!streets.containsKey(street.getName())) {
+			streets.put(street.getName(),street);
+		} else {
+			//add the current streetNodes to the existing street
+			List<Node> firstStreetNodes = streetNodes.get(streets.get(street.getName()));
+			if (firstStreetNodes != null && streetNodes.get(street) != null) {
+				firstStreetNodes.addAll(streetNodes.get(street));
+			}
+		}
+	}
+
 
 	private void loadStreetNodes(Street street, PreparedStatement waynodesStat, Map<Street, List<Node>> streetNodes)
 			throws SQLException {
@@ -11,6 +11,8 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.osmand.Algoritms;
 import net.osmand.IProgress;
@@ -24,6 +26,7 @@ import net.osmand.osm.MapRenderingTypes;
 import net.osmand.osm.Relation;
 import net.osmand.osm.io.IOsmStorageFilter;
 import net.osmand.osm.io.OsmBaseStorage;
+import net.osmand.router.CarRouter;
 import net.osmand.swing.DataExtractionSettings;
 import net.osmand.swing.Messages;
 
@@ -82,10 +85,25 @@ public class IndexCreator {
 	private IndexAddressCreator indexAddressCreator;
 	private IndexVectorMapCreator indexMapCreator;
 	private OsmDbAccessor accessor;
+	private OsmStreamingAccessor streamingAccessor;
 	// constants to start process from the middle and save temporary results
 	private boolean recreateOnlyBinaryFile = false; // false;
 	private boolean deleteOsmDB = false;
 	private boolean deleteDatabaseIndexes = true;
+	// read osm file once into temporary files instead of nodes db
+	private boolean streamOsmData = false;
+	// threads to decode pbf blocks
+	private int parseThreads = 1;
+	// 0 - streets are registered in map db
+	private int inMemoryAddressObjects = 0;
+	private boolean indexNameTrigrams = false;
+	// car routing hierarchy is appended to map index
+	private boolean indexRoutingHierarchy = false;
+	// run poi creator in parallel with map, address and transport creators in main passes
+	private boolean concurrentIndexing = false;
+	// null - way nodes are joined from nodes db
+	private NodeCoordinatesStore.StoreType nodeCoordinatesStoreType = null;
+	private NodeCoordinatesStore nodeCoordinates;
 
 	private Object dbConn;
 	private File dbFile;
@@ -153,6 +171,88 @@ public class IndexCreator {
 		dbFile = file;
 	}
 
+	/**
+	 * Do not create temporary nodes db (nodes db file is ignored), all index passes are fed
+	 * by {@link OsmStreamingAccessor} from one reading of osm file.
+	 */
+	public void setStreamOsmData(boolean streamOsmData) {
+		this.streamOsmData = streamOsmData;
+	}
+
+	public boolean isStreamOsmData() {
+		return streamOsmData;
+	}
+
+	/**
+	 * @param parseThreads number of threads to inflate and decode blocks of pbf file (entities are still passed to index creators in file order)
+	 */
+	public void setParseThreads(int parseThreads) {
+		this.parseThreads = parseThreads;
+	}
+
+	public int getParseThreads() {
+		return parseThreads;
+	}
+
+	/**
+	 * Streets of address index are registered in memory instead of map db (map db tables are not filled).
+	 * @param maxObjects buildings and street nodes kept in memory, others are spilled to run files in working dir (0 - use map db)
+	 */
+	public void setInMemoryAddressObjects(int maxObjects) {
+		this.inMemoryAddressObjects = maxObjects;
+	}
+
+	public int getInMemoryAddressObjects() {
+		return inMemoryAddressObjects;
+	}
+
+	/**
+	 * Poi and address indexes get trigram index of names to search them with typos
+	 */
+	public void setIndexNameTrigrams(boolean indexNameTrigrams) {
+		this.indexNameTrigrams = indexNameTrigrams;
+	}
+
+	public boolean isIndexNameTrigrams() {
+		return indexNameTrigrams;
+	}
+
+	/**
+	 * Routing hierarchy for car is built from written map index and appended to binary file
+	 */
+	public void setIndexRoutingHierarchy(boolean indexRoutingHierarchy) {
+		this.indexRoutingHierarchy = indexRoutingHierarchy;
+	}
+
+	public boolean isIndexRoutingHierarchy() {
+		return indexRoutingHierarchy;
+	}
+
+	/**
+	 * Main passes over nodes, ways and relations feed independent index creators from separate threads.
+	 * Creators writing to the map db (map, address, transport) run in one thread, poi creator in another.
+	 * Cities are also bound with boundaries by several threads.
+	 */
+	public void setConcurrentIndexing(boolean concurrentIndexing) {
+		this.concurrentIndexing = concurrentIndexing;
+	}
+
+	public boolean isConcurrentIndexing() {
+		return concurrentIndexing;
+	}
+
+	/**
+	 * @param nodeCoordinatesStoreType store to resolve way nodes by lookup instead of sql join
+	 * (dense for planet-scale files, sorted for extracts). Streaming mode uses sorted store by default.
+	 */
+	public void setNodeCoordinatesStoreType(NodeCoordinatesStore.StoreType nodeCoordinatesStoreType) {
+		this.nodeCoordinatesStoreType = nodeCoordinatesStoreType;
+	}
+
+	public NodeCoordinatesStore.StoreType getNodeCoordinatesStoreType() {
+		return nodeCoordinatesStoreType;
+	}
+
 	public void setMapFileName(String mapFileName) {
 		this.mapFileName = mapFileName;
 	}
@@ -213,6 +313,10 @@ public class IndexCreator {
 		if (indexPOI) {
 			indexPoiCreator.iterateEntity(e, ctx);
 		}
+		iterateMainEntityInMapDb(e, ctx);
+	}
+
+	private void iterateMainEntityInMapDb(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 		if (indexTransport) {
 			indexTransportCreator.visitEntityMainStep(e, ctx);
 		}
@@ -224,30 +328,40 @@ public class IndexCreator {
 		}
 	}
 
-	private OsmDbCreator extractOsmToNodesDB(File readFile, IProgress progress, IOsmStorageFilter addFilter) throws FileNotFoundException,
-			IOException, SQLException, SAXException {
-		boolean pbfFile = false;
-		InputStream stream = new BufferedInputStream(new FileInputStream(readFile), 8192 * 4);
-		InputStream streamFile = stream;
-		long st = System.currentTimeMillis();
-		if (readFile.getName().endsWith(".bz2")) { //$NON-NLS-1$
-			if (stream.read() != 'B' || stream.read() != 'Z') {
-				throw new RuntimeException("The source stream must start with the characters BZ if it is to be read as a BZip2 stream."); //$NON-NLS-1$
-			} else {
-				stream = new CBZip2InputStream(stream);
-			}
-		} else if (readFile.getName().endsWith(".pbf")) { //$NON-NLS-1$
-			pbfFile = true;
+	private OsmDbVisitor createMainEntityVisitor() {
+		if (concurrentIndexing && indexPOI && (indexTransport || indexMap || indexAddress)) {
+			List<OsmDbVisitor> groups = new ArrayList<OsmDbVisitor>();
+			groups.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					indexPoiCreator.iterateEntity(e, ctx);
+				}
+			});
+			groups.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					iterateMainEntityInMapDb(e, ctx);
+				}
+			});
+			return new ConcurrentEntityVisitor(groups, 10000);
 		}
+		return new OsmDbVisitor() {
+			@Override
+			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+				iterateMainEntity(e, ctx);
+			}
+		};
+	}
 
+	private OsmBaseStorage createOsmStorage(IOsmStorageFilter addFilter) {
 		OsmBaseStorage storage = new OsmBaseStorage();
 		storage.setSupressWarnings(DataExtractionSettings.getSettings().isSupressWarningsForDuplicatedId());
 		if (addFilter != null) {
 			storage.getFilters().add(addFilter);
 		}
-		
+
 		storage.getFilters().add(new IOsmStorageFilter() {
-			
+
 			@Override
 			public boolean acceptEntityToLoad(OsmBaseStorage storage, EntityId entityId, Entity entity) {
 				indexAddressCreator.registerCityIfNeeded(entity);
@@ -255,6 +369,38 @@ public class IndexCreator {
 				return true;
 			}
 		});
+		return storage;
+	}
+
+	private void parseOsmFile(File readFile, OsmBaseStorage storage, IProgress progress) throws FileNotFoundException, IOException,
+			SAXException {
+		boolean pbfFile = false;
+		InputStream stream = new BufferedInputStream(new FileInputStream(readFile), 8192 * 4);
+		InputStream streamFile = stream;
+		if (readFile.getName().endsWith(".bz2")) { //$NON-NLS-1$
+			if (stream.read() != 'B' || stream.read() != 'Z') {
+				throw new RuntimeException("The source stream must start with the characters BZ if it is to be read as a BZip2 stream."); //$NON-NLS-1$
+			} else {
+				stream = new CBZip2InputStream(stream);
+			}
+		} else if (readFile.getName().endsWith(".pbf")) { //$NON-NLS-1$
+			pbfFile = true;
+		}
+		try {
+			if (pbfFile) {
+				storage.parseOSMPbf(stream, progress, false, parseThreads);
+			} else {
+				storage.parseOSM(stream, progress, streamFile, false);
+			}
+		} finally {
+			streamFile.close();
+		}
+	}
+
+	private OsmDbCreator extractOsmToNodesDB(File readFile, IProgress progress, IOsmStorageFilter addFilter) throws FileNotFoundException,
+			IOException, SQLException, SAXException {
+		long st = System.currentTimeMillis();
+		OsmBaseStorage storage = createOsmStorage(addFilter);
 
 		// 1. Loading osm file
 		OsmDbCreator dbCreator = new OsmDbCreator(this);
@@ -263,13 +409,16 @@ public class IndexCreator {
 			progress.startTask(Messages.getString("IndexCreator.LOADING_FILE") + readFile.getAbsolutePath(), -1); //$NON-NLS-1$
 			// 1 init database to store temporary data
 			dbCreator.initDatabase(dialect, dbConn);
-			storage.getFilters().add(dbCreator);
-			if (pbfFile) {
-				storage.parseOSMPbf(stream, progress, false);
-			} else {
-				storage.parseOSM(stream, progress, streamFile, false);
+			if (nodeCoordinatesStoreType != null) {
+				nodeCoordinates = NodeCoordinatesStore.create(nodeCoordinatesStoreType, workingDir);
+				dbCreator.setNodeCoordinates(nodeCoordinates);
 			}
+			storage.getFilters().add(dbCreator);
+			parseOsmFile(readFile, storage, progress);
 			dbCreator.finishLoading();
+			if (nodeCoordinates != null) {
+				nodeCoordinates.finishLoading();
+			}
 			dialect.commitDatabase(dbConn);
 
 			if (log.isInfoEnabled()) {
@@ -317,10 +466,48 @@ public class IndexCreator {
 				stmt.close();
 			}
 		}
+		// store is filled only when db is created
+		accessor.setNodeCoordinates(nodeCoordinates);
 		accessor.initDatabase(dbConn, dialect, allNodes, allWays, allRelations);
 		return loadFromExistingFile;
 	}
 	
+	private void streamOsmFile(IProgress progress, File readFile, IOsmStorageFilter addFilter) throws FileNotFoundException, IOException,
+			SAXException {
+		long st = System.currentTimeMillis();
+		OsmBaseStorage storage = createOsmStorage(addFilter);
+		streamingAccessor = new OsmStreamingAccessor(workingDir, nodeCoordinatesStoreType == null ? NodeCoordinatesStore.StoreType.SORTED
+				: nodeCoordinatesStoreType);
+		progress.setGeneralProgress("[15 / 100]"); //$NON-NLS-1$
+		progress.startTask(Messages.getString("IndexCreator.LOADING_FILE") + readFile.getAbsolutePath(), -1); //$NON-NLS-1$
+		streamingAccessor.initialize();
+		storage.getFilters().add(streamingAccessor);
+		parseOsmFile(readFile, storage, progress);
+		streamingAccessor.finishLoading();
+		progress.finishTask();
+		log.info("File streamed : " + (System.currentTimeMillis() - st)); //$NON-NLS-1$
+	}
+
+	private int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor) throws SQLException, IOException,
+			InterruptedException {
+		if (streamingAccessor != null) {
+			return streamingAccessor.iterateOverEntities(progress, type, visitor);
+		}
+		return accessor.iterateOverEntities(progress, type, visitor);
+	}
+
+	private int getAllNodes() {
+		return streamingAccessor != null ? streamingAccessor.getAllNodes() : accessor.getAllNodes();
+	}
+
+	private int getAllWays() {
+		return streamingAccessor != null ? streamingAccessor.getAllWays() : accessor.getAllWays();
+	}
+
+	private int getAllRelations() {
+		return streamingAccessor != null ? streamingAccessor.getAllRelations() : accessor.getAllRelations();
+	}
+
 	private void createDatabaseIndexesStructure() throws SQLException, IOException {
 		// 2.1 create temporary sqlite database to put temporary results to it
 		if (indexMap || indexAddress || indexTransport || indexPOI) {
@@ -386,12 +573,24 @@ public class IndexCreator {
 			normalizeSuffixes = DataExtractionSettings.getSettings().getSuffixesToNormalizeStreets();
 		}
 		indexAddressCreator.initSettings(normalizeStreets, normalizeDefaultSuffixes, normalizeSuffixes, saveAddressWays, cityAdminLevel);
+		if (inMemoryAddressObjects > 0) {
+			indexAddressCreator.setStreetsInMemory(workingDir, inMemoryAddressObjects);
+		}
+		indexAddressCreator.setIndexNameTrigrams(indexNameTrigrams);
+		indexPoiCreator.setIndexNameTrigrams(indexNameTrigrams);
+		indexAddressCreator.setBoundaryThreads(concurrentIndexing ? Runtime.getRuntime().availableProcessors() : 1);
+		indexMapCreator.setSimplifyThreads(concurrentIndexing ? Runtime.getRuntime().availableProcessors() : 1);
 
 		// Main generation method
 		try {
 			// ////////////////////////////////////////////////////////////////////////
 			// 1. creating nodes db to fast access for all nodes and simply import all relations, ways, nodes to it
-			boolean loadFromExistingFile = createPlainOsmDb(progress, readFile, addFilter);
+			boolean loadFromExistingFile = false;
+			if (streamOsmData && !recreateOnlyBinaryFile) {
+				streamOsmFile(progress, readFile, addFilter);
+			} else {
+				loadFromExistingFile = createPlainOsmDb(progress, readFile, addFilter);
+			}
 			
 			// do not create temp map file and rtree files
 			if (recreateOnlyBinaryFile) {
@@ -420,10 +619,10 @@ public class IndexCreator {
 				// 3.1 write all cities
 				if (indexAddress) {
 					progress.setGeneralProgress("[20 / 100]"); //$NON-NLS-1$
-					progress.startTask(Messages.getString("IndexCreator.INDEX_CITIES"), accessor.getAllNodes()); //$NON-NLS-1$
+					progress.startTask(Messages.getString("IndexCreator.INDEX_CITIES"), getAllNodes()); //$NON-NLS-1$
 					if (loadFromExistingFile) {
 						// load cities names
-						accessor.iterateOverEntities(progress, EntityType.NODE,  new OsmDbVisitor() {
+						iterateOverEntities(progress, EntityType.NODE,  new OsmDbVisitor() {
 							@Override
 							public void iterateEntity(Entity e, OsmDbAccessorContext ctx) {
 								indexAddressCreator.registerCityIfNeeded(e);
@@ -436,8 +635,8 @@ public class IndexCreator {
 				// 3.2 index address relations
 				if (indexAddress || indexMap) {
 					progress.setGeneralProgress("[30 / 100]"); //$NON-NLS-1$
-					progress.startTask(Messages.getString("IndexCreator.PREINDEX_BOUNDARIES_RELATIONS"), accessor.getAllRelations()); //$NON-NLS-1$
-					accessor.iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
+					progress.startTask(Messages.getString("IndexCreator.PREINDEX_BOUNDARIES_RELATIONS"), getAllRelations()); //$NON-NLS-1$
+					iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
 						@Override
 						public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 							if (indexAddress) {
@@ -451,8 +650,8 @@ public class IndexCreator {
 					});
 					if (indexAddress) {
 						progress.setGeneralProgress("[40 / 100]"); //$NON-NLS-1$
-						progress.startTask(Messages.getString("IndexCreator.PREINDEX_BOUNDARIES_WAYS"), accessor.getAllWays()); //$NON-NLS-1$
-						accessor.iterateOverEntities(progress, EntityType.WAY_BOUNDARY, new OsmDbVisitor() {
+						progress.startTask(Messages.getString("IndexCreator.PREINDEX_BOUNDARIES_WAYS"), getAllWays()); //$NON-NLS-1$
+						iterateOverEntities(progress, EntityType.WAY_BOUNDARY, new OsmDbVisitor() {
 							@Override
 							public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 								indexAddressCreator.indexBoundariesRelation(e, ctx);
@@ -465,8 +664,8 @@ public class IndexCreator {
 						indexAddressCreator.bindCitiesWithBoundaries(progress);
 						
 						progress.setGeneralProgress("[45 / 100]"); //$NON-NLS-1$
-						progress.startTask(Messages.getString("IndexCreator.PREINDEX_ADRESS_MAP"), accessor.getAllRelations()); //$NON-NLS-1$
-						accessor.iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
+						progress.startTask(Messages.getString("IndexCreator.PREINDEX_ADRESS_MAP"), getAllRelations()); //$NON-NLS-1$
+						iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
 							@Override
 							public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 								indexAddressCreator.indexAddressRelation((Relation) e, ctx);
@@ -478,32 +677,27 @@ public class IndexCreator {
 				}
 
 				// 3.3 MAIN iterate over all entities
-				if (indexPOI || indexAddress || indexMap) {
-					progress.setGeneralProgress("[50 / 100]");
-					progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_NODES"), accessor.getAllNodes());
-					accessor.iterateOverEntities(progress, EntityType.NODE, new OsmDbVisitor() {
-						@Override
-						public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-							iterateMainEntity(e, ctx);
-						}
-					});
-					progress.setGeneralProgress("[70 / 100]");
-					progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_WAYS"), accessor.getAllWays());
-					accessor.iterateOverEntities(progress, EntityType.WAY, new OsmDbVisitor() {
-						@Override
-						public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-							iterateMainEntity(e, ctx);
-						}
-					});
-				}
-				progress.setGeneralProgress("[85 / 100]");
-				progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_REL"), accessor.getAllRelations());
-				accessor.iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
-					@Override
-					public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-						iterateMainEntity(e, ctx);
+				OsmDbVisitor mainVisitor = createMainEntityVisitor();
+				try {
+					if (indexPOI || indexAddress || indexMap) {
+						progress.setGeneralProgress("[50 / 100]");
+						progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_NODES"), getAllNodes());
+						iterateOverEntities(progress, EntityType.NODE, mainVisitor);
+						progress.setGeneralProgress("[70 / 100]");
+						progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_WAYS"), getAllWays());
+						iterateOverEntities(progress, EntityType.WAY, mainVisitor);
+					}
+					progress.setGeneralProgress("[85 / 100]");
+					progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_REL"), getAllRelations());
+					iterateOverEntities(progress, EntityType.RELATION, mainVisitor);
+					if (mainVisitor instanceof ConcurrentEntityVisitor) {
+						((ConcurrentEntityVisitor) mainVisitor).finish();
 					}
-				});
+				} finally {
+					if (mainVisitor instanceof ConcurrentEntityVisitor) {
+						((ConcurrentEntityVisitor) mainVisitor).close();
+					}
+				}
 
 				// 3.4 combine all low level ways and simplify them
 				if (indexMap) {
@@ -567,6 +761,11 @@ public class IndexCreator {
 				writer.close();
 				mapRAFile.close();
 				log.info("Finish writing binary file"); //$NON-NLS-1$
+				if (indexMap && indexRoutingHierarchy) {
+					progress.startTask("Writing routing hierarchy to binary file...", -1);
+					IndexRoutingHierarchyCreator.createRoutingHierarchy(mapFile, new CarRouter());
+					progress.finishTask();
+				}
 			}
 		} catch (RuntimeException e) {
 			log.error("Log exception", e); //$NON-NLS-1$
@@ -583,6 +782,16 @@ public class IndexCreator {
 		} finally {
 			try {
 				accessor.closeReadingConnection();
+				if (streamingAccessor != null) {
+					log.info(streamingAccessor.getNodeCoordinates().getStatistics());
+					streamingAccessor.close();
+					streamingAccessor = null;
+				}
+				if (nodeCoordinates != null) {
+					log.info(nodeCoordinates.getStatistics());
+					nodeCoordinates.close();
+					nodeCoordinates = null;
+				}
 
 				indexPoiCreator.commitAndClosePoiFile(lastModifiedDate);
 				if(REMOVE_POI_DB) {
@@ -611,7 +820,7 @@ public class IndexCreator {
 					dialect.closeDatabase(dbConn);
 					dbConn = null;
 				}
-				if (deleteOsmDB) {
+				if (deleteOsmDB && dbFile != null) {
 					if (DBDialect.DERBY == dialect) {
 						try {
 							DriverManager.getConnection("jdbc:derby:;shutdown=true"); //$NON-NLS-1$
@@ -52,12 +52,20 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 	private static final int ZOOM_TO_WRITE_CATEGORIES_END = 16;
 	private static final int CHARACTERS_TO_BUILD = 4;
 	private boolean useInMemoryCreator = true; 
+	private boolean indexNameTrigrams = false;
 	
 
 	private List<Amenity> tempAmenityList = new ArrayList<Amenity>();
 
 	public IndexPoiCreator() {
 	}
+	
+	/**
+	 * Trigram index of poi names to find them with typos
+	 */
+	public void setIndexNameTrigrams(boolean indexNameTrigrams) {
+		this.indexNameTrigrams = indexNameTrigrams;
+	}
 
 	public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 		tempAmenityList.clear();
@@ -289,6 +297,9 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 		int bottom31 = maxY;
 		int top31 = minY;
 		long startFpPoiIndex = writer.startWritePOIIndex(regionName, left31, right31, bottom31, top31);
+		if (indexNameTrigrams) {
+			writer.startNameTrigramIndex();
+		}
 
 		// 2. write categories table
 		Map<String, Map<String, Integer>> categories = rootZoomsTree.node.categories;
@@ -377,6 +388,9 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 		}
 
 		prepareStatement.close();
+		if (indexNameTrigrams) {
+			writer.writeNameTrigramIndex();
+		}
 
 		writer.endWritePOIIndex();
 
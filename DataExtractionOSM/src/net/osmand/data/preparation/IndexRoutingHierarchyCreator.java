@@ -0,0 +1,507 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import net.osmand.binary.BinaryIndexPart;
+import net.osmand.binary.BinaryMapDataObject;
+import net.osmand.binary.BinaryMapDataObjectCursor;
+import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.binary.BinaryMapIndexReader.MapDataObjectVisitor;
+import net.osmand.binary.BinaryMapIndexReader.MapIndex;
+import net.osmand.binary.BinaryMapIndexReader.SearchFilter;
+import net.osmand.binary.BinaryMapIndexReader.SearchRequest;
+import net.osmand.binary.BinaryMapIndexReader.TagValuePair;
+import net.osmand.binary.BinaryMapRoutingHierarchyReaderAdapter;
+import net.osmand.binary.BinaryMapRoutingHierarchyReaderAdapter.RoutingHierarchyIndex;
+import net.osmand.binary.OsmandOdb;
+import net.osmand.osm.MapRenderingTypes;
+import net.osmand.router.BicycleRouter;
+import net.osmand.router.BinaryRoutePlanner;
+import net.osmand.router.CarRouter;
+import net.osmand.router.NodeQueue;
+import net.osmand.router.PedestrianRouter;
+import net.osmand.router.VehicleRouter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.protobuf.CodedInputStreamRAF;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Builds contraction hierarchy of road graph for one vehicle router and appends it to existing .obf file.
+ * Graph nodes are road points shared by several roads and road ends, edge weight is travel time
+ * calculated the same way as A* in {@link BinaryRoutePlanner} does (without turn time, obstacles and restrictions).
+ */
+public class IndexRoutingHierarchyCreator {
+
+	private static final Log log = LogFactory.getLog(IndexRoutingHierarchyCreator.class);
+
+	// limits of witness search (local search which proves that shortcut is not needed)
+	private static final int WITNESS_SETTLED_LIMIT = 500;
+
+	private final VehicleRouter router;
+
+	// graph
+	// sorted (x << 31) + y of nodes
+	private long[] nodePoints;
+	private TIntArrayList nodeX = new TIntArrayList();
+	private TIntArrayList nodeY = new TIntArrayList();
+	private TIntArrayList[] outArcs;
+	private TIntArrayList[] inArcs;
+
+	private TIntArrayList arcFrom = new TIntArrayList();
+	private TIntArrayList arcTo = new TIntArrayList();
+	private TIntArrayList arcWeight = new TIntArrayList();
+	private TIntArrayList arcFirst = new TIntArrayList();
+	private TIntArrayList arcSecond = new TIntArrayList();
+	private TLongArrayList arcRoad = new TLongArrayList();
+	private TIntArrayList arcRoadStart = new TIntArrayList();
+	private TIntArrayList arcRoadEnd = new TIntArrayList();
+
+	// contraction
+	private int[] rank;
+	private int[] contractedNeighbours;
+	private int[] witnessDist;
+	private TIntArrayList witnessTouched = new TIntArrayList();
+	private NodeQueue witnessQueue = new NodeQueue(64);
+
+	public IndexRoutingHierarchyCreator(VehicleRouter router) {
+		this.router = router;
+	}
+
+	public void buildGraph(BinaryMapIndexReader reader) throws IOException {
+		final TLongObjectHashMap<BinaryMapDataObject> roads = new TLongObjectHashMap<BinaryMapDataObject>();
+		SearchFilter searchFilter = new BinaryMapIndexReader.SearchFilter(){
+			@Override
+			public boolean accept(TIntArrayList types, MapIndex index) {
+				for (int j = 0; j < types.size(); j++) {
+					int wholeType = types.get(j);
+					TagValuePair pair = index.decodeType(wholeType);
+					if (pair != null && (wholeType & 3) == MapRenderingTypes.POLYLINE_TYPE && router.acceptLine(pair)) {
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+		SearchRequest<BinaryMapDataObject> request = BinaryMapIndexReader.buildSearchRequest(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE,
+				15, searchFilter);
+		reader.searchMapIndex(request, new MapDataObjectVisitor() {
+			@Override
+			public void visit(BinaryMapDataObjectCursor o) throws IOException {
+				BinaryMapDataObject old = roads.get(o.getId());
+				// the same as in router keep the longest part of the road
+				if (o.getPointsLength() < 2 || (old != null && old.getPointsLength() >= o.getPointsLength())) {
+					return;
+				}
+				roads.put(o.getId(), o.toBinaryMapDataObject(false));
+			}
+		});
+
+		// 1. nodes are points shared by several roads and road ends (road ends are counted twice)
+		int total = 0;
+		for (BinaryMapDataObject road : roads.valueCollection()) {
+			total += road.getPointsLength() + 2;
+		}
+		long[] points = new long[total];
+		int k = 0;
+		for (BinaryMapDataObject road : roads.valueCollection()) {
+			int len = road.getPointsLength();
+			for (int j = 0; j < len; j++) {
+				points[k++] = getPoint(road, j);
+			}
+			points[k++] = getPoint(road, 0);
+			points[k++] = getPoint(road, len - 1);
+		}
+		Arrays.sort(points);
+		TLongArrayList nodeKeys = new TLongArrayList();
+		for (int i = 1; i < total; i++) {
+			if (points[i] == points[i - 1] && (nodeKeys.size() == 0 || nodeKeys.get(nodeKeys.size() - 1) != points[i])) {
+				nodeKeys.add(points[i]);
+			}
+		}
+		points = null;
+		nodePoints = nodeKeys.toArray();
+		for (long l : nodePoints) {
+			nodeX.add((int) (l >> 31));
+			nodeY.add((int) (l & Integer.MAX_VALUE));
+		}
+		// 2. original arcs between consecutive nodes of the road
+		long[] ids = roads.keys();
+		Arrays.sort(ids);
+		for (long id : ids) {
+			BinaryMapDataObject road = roads.get(id);
+			double speed = router.defineSpeed(road);
+			if (speed == 0) {
+				speed = router.getMinDefaultSpeed();
+			}
+			boolean oneway = router.isOneWay(road);
+			int prevNode = Arrays.binarySearch(nodePoints, getPoint(road, 0));
+			int prevPoint = 0;
+			double dist = 0;
+			for (int j = 1; j < road.getPointsLength(); j++) {
+				dist += BinaryRoutePlanner.squareRootDist(road.getPoint31XTile(j - 1), road.getPoint31YTile(j - 1),
+						road.getPoint31XTile(j), road.getPoint31YTile(j));
+				int node = Arrays.binarySearch(nodePoints, getPoint(road, j));
+				if (node < 0) {
+					continue;
+				}
+				if (node != prevNode) {
+					int weight = BinaryRoutePlanner.calculateHierarchyWeight(dist, speed);
+					addArc(prevNode, node, weight, -1, -1, id, prevPoint, j);
+					if (!oneway) {
+						addArc(node, prevNode, weight, -1, -1, id, j, prevPoint);
+					}
+				}
+				prevNode = node;
+				prevPoint = j;
+				dist = 0;
+			}
+		}
+		log.info("Routing graph : roads " + roads.size() + ", nodes " + nodeX.size() + ", arcs " + arcFrom.size());
+	}
+
+	private static long getPoint(BinaryMapDataObject road, int j) {
+		return (((long) road.getPoint31XTile(j)) << 31) + (long) road.getPoint31YTile(j);
+	}
+
+	private int addArc(int from, int to, int weight, int first, int second, long roadId, int roadStart, int roadEnd) {
+		int arc = arcFrom.size();
+		arcFrom.add(from);
+		arcTo.add(to);
+		arcWeight.add(weight);
+		arcFirst.add(first);
+		arcSecond.add(second);
+		arcRoad.add(roadId);
+		arcRoadStart.add(roadStart);
+		arcRoadEnd.add(roadEnd);
+		if (outArcs != null) {
+			outArcs[from].add(arc);
+			inArcs[to].add(arc);
+		}
+		return arc;
+	}
+
+	public void contract() {
+		int nodes = nodeX.size();
+		outArcs = new TIntArrayList[nodes];
+		inArcs = new TIntArrayList[nodes];
+		for (int i = 0; i < nodes; i++) {
+			outArcs[i] = new TIntArrayList(3);
+			inArcs[i] = new TIntArrayList(3);
+		}
+		for (int a = 0; a < arcFrom.size(); a++) {
+			outArcs[arcFrom.get(a)].add(a);
+			inArcs[arcTo.get(a)].add(a);
+		}
+		rank = new int[nodes];
+		Arrays.fill(rank, -1);
+		contractedNeighbours = new int[nodes];
+		witnessDist = new int[nodes];
+		Arrays.fill(witnessDist, Integer.MAX_VALUE);
+
+		// priority is shifted to keep it positive inside queue
+		final int shift = 1 << 20;
+		NodeQueue order = new NodeQueue(nodes);
+		for (int i = 0; i < nodes; i++) {
+			order.push(shift + priority(i), i);
+		}
+		int contracted = 0;
+		long time = System.currentTimeMillis();
+		while (!order.isEmpty()) {
+			int node = order.poll();
+			if (rank[node] != -1) {
+				continue;
+			}
+			// lazy update : priority could be changed after neighbours were contracted
+			int p = shift + priority(node);
+			if (!order.isEmpty() && p > order.peekCost()) {
+				order.push(p, node);
+				continue;
+			}
+			contractNode(node, false);
+			rank[node] = contracted++;
+			if (contracted % 100000 == 0) {
+				log.info("Contracted " + contracted + " nodes of " + nodes + ", arcs " + arcFrom.size());
+			}
+		}
+		log.info("Contraction is finished in " + (System.currentTimeMillis() - time) + " ms, arcs " + arcFrom.size());
+	}
+
+	private int priority(int node) {
+		int degree = 0;
+		for (int k = 0; k < inArcs[node].size(); k++) {
+			if (rank[arcFrom.get(inArcs[node].get(k))] == -1) {
+				degree++;
+			}
+		}
+		for (int k = 0; k < outArcs[node].size(); k++) {
+			if (rank[arcTo.get(outArcs[node].get(k))] == -1) {
+				degree++;
+			}
+		}
+		// edge difference + number of contracted neighbours to contract uniformly
+		return contractNode(node, true) - degree + contractedNeighbours[node];
+	}
+
+	/**
+	 * @return number of shortcuts needed to contract node
+	 */
+	private int contractNode(int node, boolean simulate) {
+		int shortcuts = 0;
+		TIntArrayList in = inArcs[node];
+		TIntArrayList out = outArcs[node];
+		for (int i = 0; i < in.size(); i++) {
+			int inArc = in.get(i);
+			int from = arcFrom.get(inArc);
+			if (rank[from] != -1 || from == node || !isBestArc(in, i, arcFrom)) {
+				continue;
+			}
+			int maxWeight = 0;
+			for (int j = 0; j < out.size(); j++) {
+				int outArc = out.get(j);
+				int to = arcTo.get(outArc);
+				if (rank[to] == -1 && to != from && to != node) {
+					maxWeight = Math.max(maxWeight, arcWeight.get(inArc) + arcWeight.get(outArc));
+				}
+			}
+			if (maxWeight == 0) {
+				continue;
+			}
+			witnessSearch(from, node, maxWeight);
+			for (int j = 0; j < out.size(); j++) {
+				int outArc = out.get(j);
+				int to = arcTo.get(outArc);
+				if (rank[to] != -1 || to == from || to == node || !isBestArc(out, j, arcTo)) {
+					continue;
+				}
+				int weight = arcWeight.get(inArc) + arcWeight.get(outArc);
+				if (witnessDist[to] > weight) {
+					shortcuts++;
+					if (!simulate) {
+						addArc(from, to, weight, inArc, outArc, 0, -1, -1);
+					}
+				}
+			}
+			clearWitnessSearch();
+		}
+		if (!simulate) {
+			for (int i = 0; i < in.size(); i++) {
+				contractedNeighbours[arcFrom.get(in.get(i))]++;
+			}
+			for (int i = 0; i < out.size(); i++) {
+				contractedNeighbours[arcTo.get(out.get(i))]++;
+			}
+		}
+		return shortcuts;
+	}
+
+	// only the lightest of parallel arcs is used for shortcuts
+	private boolean isBestArc(TIntArrayList arcs, int ind, TIntArrayList ends) {
+		int arc = arcs.get(ind);
+		int end = ends.get(arc);
+		int weight = arcWeight.get(arc);
+		for (int k = 0; k < arcs.size(); k++) {
+			int other = arcs.get(k);
+			if (k != ind && ends.get(other) == end) {
+				int w = arcWeight.get(other);
+				if (w < weight || (w == weight && k < ind)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void witnessSearch(int start, int skipNode, int maxWeight) {
+		witnessQueue.clear();
+		witnessDist[start] = 0;
+		witnessTouched.add(start);
+		witnessQueue.push(0, start);
+		int settled = 0;
+		while (!witnessQueue.isEmpty()) {
+			int cost = witnessQueue.peekCost();
+			int node = witnessQueue.poll();
+			if (cost > witnessDist[node]) {
+				continue;
+			}
+			if (cost > maxWeight || settled++ > WITNESS_SETTLED_LIMIT) {
+				break;
+			}
+			TIntArrayList out = outArcs[node];
+			for (int j = 0; j < out.size(); j++) {
+				int arc = out.get(j);
+				int to = arcTo.get(arc);
+				if (to == skipNode || rank[to] != -1) {
+					continue;
+				}
+				int d = cost + arcWeight.get(arc);
+				if (d < witnessDist[to]) {
+					if (witnessDist[to] == Integer.MAX_VALUE) {
+						witnessTouched.add(to);
+					}
+					witnessDist[to] = d;
+					witnessQueue.push(d, to);
+				}
+			}
+		}
+	}
+
+	private void clearWitnessSearch() {
+		for (int i = 0; i < witnessTouched.size(); i++) {
+			witnessDist[witnessTouched.get(i)] = Integer.MAX_VALUE;
+		}
+		witnessTouched.clear();
+	}
+
+	/**
+	 * Each arc is stored at its node with lower rank, arcs are grouped by that node
+	 */
+	public void writeHierarchy(BinaryMapIndexWriter writer, String name) throws IOException {
+		int nodes = nodeX.size();
+		int arcs = arcFrom.size();
+		int[] stored = new int[arcs];
+		int[] counts = new int[nodes + 1];
+		for (int a = 0; a < arcs; a++) {
+			int from = arcFrom.get(a);
+			int to = arcTo.get(a);
+			stored[a] = rank[from] < rank[to] ? from : to;
+			counts[stored[a] + 1]++;
+		}
+		for (int i = 0; i < nodes; i++) {
+			counts[i + 1] += counts[i];
+		}
+		int[] position = new int[arcs];
+		int[] arcAtPosition = new int[arcs];
+		int[] next = Arrays.copyOf(counts, nodes);
+		for (int a = 0; a < arcs; a++) {
+			position[a] = next[stored[a]]++;
+			arcAtPosition[position[a]] = a;
+		}
+
+		TIntArrayList nodesList = new TIntArrayList(nodes * 2);
+		TIntArrayList nodeEdges = new TIntArrayList(nodes);
+		for (int i = 0; i < nodes; i++) {
+			nodesList.add(nodeX.get(i));
+			nodesList.add(nodeY.get(i));
+			nodeEdges.add(counts[i + 1] - counts[i]);
+		}
+		TIntArrayList targets = new TIntArrayList(arcs);
+		TIntArrayList weights = new TIntArrayList(arcs);
+		TIntArrayList flags = new TIntArrayList(arcs);
+		TIntArrayList shortcutEdges = new TIntArrayList();
+		TLongArrayList roadIds = new TLongArrayList();
+		TIntArrayList roadPoints = new TIntArrayList();
+		for (int p = 0; p < arcs; p++) {
+			int a = arcAtPosition[p];
+			int flag = 0;
+			if (stored[a] == arcFrom.get(a)) {
+				targets.add(arcTo.get(a));
+			} else {
+				targets.add(arcFrom.get(a));
+				flag |= BinaryMapRoutingHierarchyReaderAdapter.EDGE_FLAG_DOWNWARD;
+			}
+			weights.add(arcWeight.get(a));
+			if (arcFirst.get(a) != -1) {
+				flag |= BinaryMapRoutingHierarchyReaderAdapter.EDGE_FLAG_SHORTCUT;
+				shortcutEdges.add(position[arcFirst.get(a)]);
+				shortcutEdges.add(position[arcSecond.get(a)]);
+			} else {
+				roadIds.add(arcRoad.get(a));
+				roadPoints.add(arcRoadStart.get(a));
+				roadPoints.add(arcRoadEnd.get(a));
+			}
+			flags.add(flag);
+		}
+		writer.writeRoutingHierarchy(name, nodesList, nodeEdges, targets, weights, flags, shortcutEdges, roadIds, roadPoints);
+	}
+
+	/**
+	 * Rewrites file : all index parts are copied and routing hierarchy (replacing hierarchy with the same name) is added
+	 */
+	public static void createRoutingHierarchy(File file, VehicleRouter router) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, true);
+		IndexRoutingHierarchyCreator creator = new IndexRoutingHierarchyCreator(router);
+		creator.buildGraph(reader);
+		creator.contract();
+
+		int skipPart = -1;
+		for (BinaryIndexPart p : reader.getIndexes()) {
+			if (p instanceof RoutingHierarchyIndex && router.getName().equals(p.getName())) {
+				skipPart = p.getFilePointer();
+			}
+		}
+
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp"); //$NON-NLS-1$
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		out.setLength(0);
+		BinaryMapIndexWriter writer = new BinaryMapIndexWriter(out);
+		RandomAccessFile source = new RandomAccessFile(file, "r");
+		CodedInputStreamRAF codedIS = CodedInputStreamRAF.newInstance(source, 1024);
+		codedIS.setSizeLimit(Integer.MAX_VALUE);
+		while (true) {
+			int t = codedIS.readTag();
+			int tag = WireFormat.getTagFieldNumber(t);
+			if (tag == 0) {
+				break;
+			} else if (tag == OsmandOdb.OsmAndStructure.VERSION_FIELD_NUMBER
+					|| tag == OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER) {
+				codedIS.readUInt32();
+			} else if (WireFormat.getTagWireType(t) == WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED) {
+				int length = 0;
+				for (int i = 0; i < 4; i++) {
+					length = (length << 8) | (codedIS.readRawByte() & 0xff);
+				}
+				int filePointer = codedIS.getTotalBytesRead();
+				if (filePointer != skipPart) {
+					writer.writeRawIndexPart(tag, raf, filePointer, length);
+				}
+				codedIS.seek(filePointer + length);
+			} else {
+				codedIS.skipField(t);
+			}
+		}
+		source.close();
+		creator.writeHierarchy(writer, router.getName());
+		writer.close();
+		out.close();
+		reader.close();
+		// keep original file until new one is in place
+		File backup = new File(file.getParentFile(), file.getName() + ".bak"); //$NON-NLS-1$
+		backup.delete();
+		if (!file.renameTo(backup)) {
+			tmp.delete();
+			throw new IOException("Can't replace " + file.getAbsolutePath()); //$NON-NLS-1$
+		}
+		if (!tmp.renameTo(file)) {
+			backup.renameTo(file);
+			throw new IOException("Can't replace " + file.getAbsolutePath() + ", new file is " + tmp.getAbsolutePath()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		backup.delete();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage : IndexRoutingHierarchyCreator file.obf [car|bicycle|pedestrian]"); //$NON-NLS-1$
+			return;
+		}
+		VehicleRouter router = new CarRouter();
+		if (args.length > 1 && "bicycle".equals(args[1])) { //$NON-NLS-1$
+			router = new BicycleRouter();
+		} else if (args.length > 1 && "pedestrian".equals(args[1])) { //$NON-NLS-1$
+			router = new PedestrianRouter();
+		}
+		long time = System.currentTimeMillis();
+		createRoutingHierarchy(new File(args[0]), router);
+		System.out.println("Routing hierarchy is created in " + (System.currentTimeMillis() - time) + " ms"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
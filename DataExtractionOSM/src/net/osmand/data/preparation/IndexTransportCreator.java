@@ -69,7 +69,9 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 	
 	
 	public void createRTreeFile(String rtreeTransportStopFile) throws RTreeException{
-		transportStopsTree = new RTree(rtreeTransportStopFile);
+		synchronized (RTREE_LOCK) {
+			transportStopsTree = new RTree(rtreeTransportStopFile);
+		}
 	}
 	
 	public void writeBinaryTransportTree(rtree.Node parent, RTree r, BinaryMapIndexWriter writer, 
@@ -113,7 +115,10 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 				}
 			} else {
 				long ptr = ((NonLeafElement) e[i]).getPtr();
-				rtree.Node ns = r.getReadNode(ptr);
+				rtree.Node ns;
+				synchronized (RTREE_LOCK) {
+					ns = r.getReadNode(ptr);
+				}
 
 				writer.startTransportTreeElement(re.getMinX(), re.getMaxX(), re.getMinY(), re.getMaxY());
 				writeBinaryTransportTree(ns, r, writer, selectTransportStop, selectTransportRouteStop, transportRoutes, stringTable);
@@ -162,7 +167,9 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 			if (file.exists()) {
 				file.delete();
 			}
-			transportStopsTree = new RTree(file.getAbsolutePath());
+			synchronized (RTREE_LOCK) {
+				transportStopsTree = new RTree(file.getAbsolutePath());
+			}
 		} catch (RTreeException e) {
 			throw new IOException(e);
 		}
@@ -210,7 +217,9 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 				int y = (int) MapUtils.getTileNumberY(24, s.getLocation().getLatitude());
 				addBatch(transStopsStat);
 				try {
-					transportStopsTree.insert(new LeafElement(new Rect(x, y, x, y), s.getId()));
+					synchronized (RTREE_LOCK) {
+						transportStopsTree.insert(new LeafElement(new Rect(x, y, x, y), s.getId()));
+					}
 				} catch (RTreeInsertException e) {
 					throw new IllegalArgumentException(e);
 				} catch (IllegalValueException e) {
@@ -236,7 +245,9 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 		try {
 			closePreparedStatements(transRouteStat, transRouteStopsStat, transStopsStat);
 			mapConnection.commit();
-			transportStopsTree.flush();
+			synchronized (RTREE_LOCK) {
+				transportStopsTree.flush();
+			}
 			
 			visitedStops = null; // allow gc to collect it
 			PreparedStatement selectTransportRouteData = mapConnection.prepareStatement(
@@ -307,7 +318,11 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 			PreparedStatement selectTransportRouteStop = mapConnection.prepareStatement(
 					"SELECT DISTINCT S.route FROM transport_route_stop S WHERE S.stop = ? "); //$NON-NLS-1$
 			long rootIndex = transportStopsTree.getFileHdr().getRootIndex();
-			rtree.Node root = transportStopsTree.getReadNode(rootIndex);
+			rtree.Node root;
+			// read nodes are copies, so tree is locked only while they are read
+			synchronized (RTREE_LOCK) {
+				root = transportStopsTree.getReadNode(rootIndex);
+			}
 			Rect rootBounds = calcBounds(root);
 			if (rootBounds != null) {
 				writer.startTransportTreeElement(rootBounds.getMinX(), rootBounds.getMaxX(), rootBounds.getMinY(), rootBounds.getMaxY());
@@ -369,7 +384,9 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 	public void commitAndCloseFiles(String rtreeStopsFileName, String rtreeStopsPackFileName, boolean deleteDatabaseIndexes) throws IOException, SQLException {
 		// delete transport rtree files
 		if (transportStopsTree != null) {
-			transportStopsTree.getFileHdr().getFile().close();
+			synchronized (RTREE_LOCK) {
+				transportStopsTree.getFileHdr().getFile().close();
+			}
 			File f = new File(rtreeStopsFileName);
 			if (f.exists() && deleteDatabaseIndexes) {
 				f.delete();
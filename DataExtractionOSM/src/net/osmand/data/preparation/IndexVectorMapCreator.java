@@ -1,9 +1,11 @@
 package net.osmand.data.preparation;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -17,6 +19,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.osmand.Algoritms;
 import net.osmand.IProgress;
@@ -36,14 +43,6 @@ import net.osmand.osm.OSMSettings.OSMTagKey;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import rtree.Element;
-import rtree.IllegalValueException;
-import rtree.LeafElement;
-import rtree.NonLeafElement;
-import rtree.RTree;
-import rtree.RTreeException;
-import rtree.RTreeInsertException;
-import rtree.Rect;
 
 public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
@@ -51,6 +50,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	// map zoom levels <= 2^MAP_LEVELS
 	private static final int MAP_LEVELS_POWER = 3;  
 	private static final int MAP_LEVELS_MAX = 1 << MAP_LEVELS_POWER;
+	private static final int LOW_LEVEL_WAYS_PER_TASK = 256;
 	private MapRenderingTypes renderingTypes;
 	
 	
@@ -67,10 +67,11 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	private PreparedStatement mapBinaryStat;
 	private PreparedStatement mapLowLevelBinaryStat;
 	private int lowLevelWays = -1;
-	private RTree[] mapTree = null;
+	private PackedMapTree[] mapTree = null;
 	private Connection mapConnection;
 	
 	private int zoomWaySmothness = 0;
+	private int simplifyThreads = 1;
 
 
 	public IndexVectorMapCreator() {
@@ -358,7 +359,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		}
 
 		boolean point = (type & 3) == MapRenderingTypes.POINT_TYPE;
-		RTree rtree = null;
+		PackedMapTree rtree = null;
 		long id = convertBaseIdToGeneratedId(baseId, level);
 		rtree = mapTree[level];
 		
@@ -474,16 +475,12 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		return lowLevelWays;
 	}
 	
-	private void loadNodes(byte[] nodes, List<Float> toPut){
-		toPut.clear();
-		for (int i = 0; i < nodes.length;) {
-			int lat = Algoritms.parseIntFromBytes(nodes, i);
-			i += 4;
-			int lon = Algoritms.parseIntFromBytes(nodes, i);
-			i += 4;
-			toPut.add(Float.intBitsToFloat(lat));
-			toPut.add(Float.intBitsToFloat(lon));
+	private static float[] loadNodes(byte[] nodes) {
+		float[] res = new float[nodes.length / 4];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = Float.intBitsToFloat(Algoritms.parseIntFromBytes(nodes, i * 4));
 		}
+		return res;
 	}
 	
 	public void processingLowLevelWays(IProgress progress) throws SQLException {
@@ -494,109 +491,214 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		mapLowLevelBinaryStat = null;
 		mapConnection.commit();
 		
-		PreparedStatement startStat = mapConnection.prepareStatement("SELECT id, start_node, end_node, nodes FROM low_level_map_objects" 
-				+ " WHERE start_node = ? AND type=? AND level = ? AND name=?");
-		PreparedStatement endStat = mapConnection.prepareStatement("SELECT id, start_node, end_node, nodes FROM low_level_map_objects" 
-				+ " WHERE end_node = ? AND type=? AND level = ? AND name=?");
-		Statement selectStatement = mapConnection.createStatement();
-		ResultSet rs = selectStatement.executeQuery("SELECT id, start_node, end_node, name, nodes, type, level FROM low_level_map_objects");
-		Set<Long> visitedWays = new LinkedHashSet<Long>();
-		ArrayList<Float> list = new ArrayList<Float>(100);
-		while(rs.next()){
-			if(lowLevelWays != -1){
-				progress.progress(1);
-			}
-			long id = rs.getLong(1);
-			if(visitedWays.contains(id)){
+		// levels are independent, so every level is loaded and combined separately
+		PreparedStatement selectStat = mapConnection.prepareStatement("SELECT id, start_node, end_node, name, nodes, type FROM low_level_map_objects" 
+				+ " WHERE level = ?");
+		for (int level = 0; level < mapZooms.size(); level++) {
+			long time = System.currentTimeMillis();
+			List<LowLevelWay> ways = new ArrayList<LowLevelWay>();
+			selectStat.setShort(1, (short) level);
+			ResultSet rs = selectStat.executeQuery();
+			while (rs.next()) {
+				if (lowLevelWays != -1) {
+					progress.progress(1);
+				}
+				ways.add(new LowLevelWay(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getString(4), loadNodes(rs.getBytes(5)), 
+						rs.getLong(6)));
+			}
+			rs.close();
+			long loadTime = System.currentTimeMillis() - time;
+			List<LowLevelWay> combined = combineLowLevelWays(ways);
+			ways = null;
+			long combineTime = System.currentTimeMillis() - time - loadTime;
+			List<Way> simplified = simplifyLowLevelWays(combined, level);
+			long simplifyTime = System.currentTimeMillis() - time - loadTime - combineTime;
+			for (int i = 0; i < combined.size(); i++) {
+				if (simplified.get(i) != null) {
+					LowLevelWay w = combined.get(i);
+					int type = decodeTypesFromOneLong(w.type);
+					insertBinaryMapRenderObjectIndex(mapTree[level], simplified.get(i), w.name, 
+							w.id, type, typeUse, 0, restrictionsUse, false, false, false);
+				}
+			}
+			log.info("Low level ways of level " + level + " : " + combined.size() + " combined ways, load " + loadTime + " ms, combine " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					+ combineTime + " ms, simplify " + simplifyTime + " ms, total " + (System.currentTimeMillis() - time) + " ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		selectStat.close();
+	}
+	
+	/**
+	 * Joins ways of the same type and name through their end nodes. Ways are visited in order of table
+	 * and joined in order of table, so result is the same as for sequential lookups of table.
+	 * Ways without name are not joined.
+	 */
+	private List<LowLevelWay> combineLowLevelWays(List<LowLevelWay> ways) {
+		TLongObjectHashMap<TIntArrayList> byStart = new TLongObjectHashMap<TIntArrayList>();
+		TLongObjectHashMap<TIntArrayList> byEnd = new TLongObjectHashMap<TIntArrayList>();
+		for (int i = 0; i < ways.size(); i++) {
+			LowLevelWay w = ways.get(i);
+			if (w.name != null) {
+				addWayToNode(byStart, w.startNode, i);
+				addWayToNode(byEnd, w.endNode, i);
+			}
+		}
+		List<LowLevelWay> result = new ArrayList<LowLevelWay>();
+		boolean[] visited = new boolean[ways.size()];
+		List<float[]> before = new ArrayList<float[]>();
+		List<float[]> after = new ArrayList<float[]>();
+		for (int i = 0; i < ways.size(); i++) {
+			if (visited[i]) {
 				continue;
 			}
-			
-			visitedWays.add(id);
-			int level = rs.getInt(7);
-			int zoom = mapZooms.getLevel(level).getMaxZoom();
-			
-			long startNode = rs.getLong(2);
-			long endNode = rs.getLong(3);
-			
-			String name = rs.getString(4);
-			long ltype = rs.getLong(6);
-			loadNodes(rs.getBytes(5), list);
-			ArrayList<Float> wayNodes = new ArrayList<Float>(list);
-			
-			
+			visited[i] = true;
+			LowLevelWay w = ways.get(i);
+			long startNode = w.startNode;
+			long endNode = w.endNode;
+			before.clear();
+			after.clear();
+			boolean combined = w.name != null;
 			// combine startPoint with EndPoint
-			boolean combined = true;
 			while (combined) {
 				combined = false;
-				endStat.setLong(1, startNode);
-				endStat.setLong(2, ltype);
-				endStat.setShort(3, (short) level);
-				endStat.setString(4, name);
-				ResultSet fs = endStat.executeQuery();
-				while (fs.next()) {
-					if (!visitedWays.contains(fs.getLong(1))) {
+				TIntArrayList list = byEnd.get(startNode);
+				for (int k = 0; list != null && k < list.size(); k++) {
+					LowLevelWay o = ways.get(list.get(k));
+					if (!visited[list.get(k)] && o.type == w.type && o.name.equals(w.name)) {
 						combined = true;
-						long lid = fs.getLong(1);
-						startNode = fs.getLong(2);
-						visitedWays.add(lid);
-						loadNodes(fs.getBytes(4), list);
-						ArrayList<Float> li = new ArrayList<Float>(list);
-						// remove first lat/lon point
-						wayNodes.remove(0);
-						wayNodes.remove(0);
-						li.addAll(wayNodes);
-						wayNodes = li;
+						startNode = o.startNode;
+						visited[list.get(k)] = true;
+						before.add(o.nodes);
 					}
 				}
-				fs.close();
 			}
-			
 			// combined end point
-			combined = true;
+			combined = w.name != null;
 			while (combined) {
 				combined = false;
-				startStat.setLong(1, endNode);
-				startStat.setLong(2, ltype);
-				startStat.setShort(3, (short) level);
-				startStat.setString(4, name);
-				ResultSet fs = startStat.executeQuery();
-				while (fs.next()) {
-					if (!visitedWays.contains(fs.getLong(1))) {
+				TIntArrayList list = byStart.get(endNode);
+				for (int k = 0; list != null && k < list.size(); k++) {
+					LowLevelWay o = ways.get(list.get(k));
+					if (!visited[list.get(k)] && o.type == w.type && o.name.equals(w.name)) {
 						combined = true;
-						long lid = fs.getLong(1);
-						endNode = fs.getLong(3);
-						visitedWays.add(lid);
-						loadNodes(fs.getBytes(4), list);
-						for (int i = 2; i < list.size(); i++) {
-							wayNodes.add(list.get(i));
-						}
+						endNode = o.endNode;
+						visited[list.get(k)] = true;
+						after.add(o.nodes);
 					}
 				}
-				fs.close();
 			}
-			List<Node> wNodes = new ArrayList<Node>();
-			int wNsize = wayNodes.size(); 
-			for (int i = 0; i < wNsize; i += 2) {
-				wNodes.add(new Node(wayNodes.get(i), wayNodes.get(i + 1), i == 0 ? startNode : endNode));
+			float[] nodes = w.nodes;
+			if (!before.isEmpty() || !after.isEmpty()) {
+				// every joined part starts with last point of previous part
+				Collections.reverse(before);
+				before.add(w.nodes);
+				before.addAll(after);
+				int length = before.get(0).length;
+				for (int k = 1; k < before.size(); k++) {
+					length += Math.max(0, before.get(k).length - 2);
+				}
+				nodes = new float[length];
+				int pos = 0;
+				for (int k = 0; k < before.size(); k++) {
+					float[] part = before.get(k);
+					int from = k == 0 ? 0 : Math.min(2, part.length);
+					System.arraycopy(part, from, nodes, pos, part.length - from);
+					pos += part.length - from;
+				}
+			}
+			result.add(new LowLevelWay(w.id, startNode, endNode, w.name, nodes, w.type));
+		}
+		return result;
+	}
+
+	private static void addWayToNode(TLongObjectHashMap<TIntArrayList> map, long node, int way) {
+		TIntArrayList list = map.get(node);
+		if (list == null) {
+			list = new TIntArrayList(1);
+			map.put(node, list);
+		}
+		list.add(way);
+	}
+
+	/**
+	 * @return simplified ways (null if way is skipped) in order of combined ways
+	 */
+	private List<Way> simplifyLowLevelWays(final List<LowLevelWay> ways, int level) {
+		final int zoom = mapZooms.getLevel(level).getMaxZoom();
+		final boolean[] hasMulti = new boolean[ways.size()];
+		for (int i = 0; i < ways.size(); i++) {
+			hasMulti[i] = multiPolygonsWays[level].containsKey(ways.get(i).id >> 3);
+		}
+		final List<Way> result = new ArrayList<Way>(ways.size());
+		if (simplifyThreads <= 1 || ways.size() < 2 * LOW_LEVEL_WAYS_PER_TASK) {
+			for (int i = 0; i < ways.size(); i++) {
+				result.add(simplifyLowLevelWay(ways.get(i), zoom, hasMulti[i]));
 			}
-			boolean skip = false;
-			boolean cycle = startNode == endNode;
-			boolean hasMulti = multiPolygonsWays[level].containsKey(id >> 3);
-			if(cycle || !hasMulti){
-				skip = checkForSmallAreas(wNodes, zoom - 1 + Math.min(zoomWaySmothness / 2, 3), 1, 4);
+			return result;
+		}
+		// ways are not connected after combining, so they could be simplified concurrently
+		ExecutorService executor = Executors.newFixedThreadPool(simplifyThreads);
+		try {
+			List<Future<List<Way>>> tasks = new ArrayList<Future<List<Way>>>();
+			for (int i = 0; i < ways.size(); i += LOW_LEVEL_WAYS_PER_TASK) {
+				final int start = i;
+				final int end = Math.min(ways.size(), i + LOW_LEVEL_WAYS_PER_TASK);
+				tasks.add(executor.submit(new Callable<List<Way>>() {
+					@Override
+					public List<Way> call() {
+						List<Way> r = new ArrayList<Way>(end - start);
+						for (int k = start; k < end; k++) {
+							r.add(simplifyLowLevelWay(ways.get(k), zoom, hasMulti[k]));
+						}
+						return r;
+					}
+				}));
 			}
-			
-			if (!skip) {
-				Way newWs = new Way(id);
-				MapAlgorithms.simplifyDouglasPeucker(wNodes, zoom - 1 + 8 + zoomWaySmothness, 3, newWs);
-				
-				int type = decodeTypesFromOneLong(ltype);
-				insertBinaryMapRenderObjectIndex(mapTree[level], newWs, name, 
-						id, type, typeUse, 0, restrictionsUse, false, false, false);
+			for (Future<List<Way>> f : tasks) {
+				result.addAll(f.get());
 			}
-			
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return result;
+	}
+
+	private Way simplifyLowLevelWay(LowLevelWay w, int zoom, boolean hasMulti) {
+		List<Node> wNodes = new ArrayList<Node>(w.nodes.length / 2);
+		for (int i = 0; i + 1 < w.nodes.length; i += 2) {
+			wNodes.add(new Node(w.nodes[i], w.nodes[i + 1], i == 0 ? w.startNode : w.endNode));
+		}
+		boolean cycle = w.startNode == w.endNode;
+		if (cycle || !hasMulti) {
+			if (checkForSmallAreas(wNodes, zoom - 1 + Math.min(zoomWaySmothness / 2, 3), 1, 4)) {
+				return null;
+			}
+		}
+		Way newWs = new Way(w.id);
+		MapAlgorithms.simplifyDouglasPeucker(wNodes, zoom - 1 + 8 + zoomWaySmothness, 3, newWs);
+		return newWs;
+	}
+
+	private static class LowLevelWay {
+		private final long id;
+		private final long startNode;
+		private final long endNode;
+		private final String name;
+		// lat, lon pairs
+		private final float[] nodes;
+		private final long type;
+
+		public LowLevelWay(long id, long startNode, long endNode, String name, float[] nodes, long type) {
+			this.id = id;
+			this.startNode = startNode;
+			this.endNode = endNode;
+			this.name = name;
+			this.nodes = nodes;
+			this.type = type;
 		}
-		
 	}
 	
 	private boolean checkForSmallAreas(List<Node> nodes, int zoom, int minz, int maxz) {
@@ -654,39 +756,39 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	public void writeBinaryMapIndex(BinaryMapIndexWriter writer, String regionName) throws IOException, SQLException {
 		closePreparedStatements(mapBinaryStat, mapLowLevelBinaryStat);
 		mapConnection.commit();
-		try {
-			PreparedStatement selectData = mapConnection.prepareStatement("SELECT nodes, types, name, highway, restrictions FROM binary_map_objects WHERE id = ?"); //$NON-NLS-1$
+		PreparedStatement selectData = mapConnection.prepareStatement("SELECT nodes, types, name, highway, restrictions FROM binary_map_objects WHERE id = ?"); //$NON-NLS-1$
 
-			writer.startWriteMapIndex(regionName);
+		writer.startWriteMapIndex(regionName);
 
-			for (int i = 0; i < mapZooms.size(); i++) {
-				RTree rtree = mapTree[i];
-				long rootIndex = rtree.getFileHdr().getRootIndex();
-				rtree.Node root = rtree.getReadNode(rootIndex);
-				Rect rootBounds = calcBounds(root);
-				if (rootBounds != null) {
-					boolean last = nodeIsLastSubTree(rtree, rootIndex);
-					writer.startWriteMapLevelIndex(mapZooms.getLevel(i).getMinZoom(), mapZooms.getLevel(i).getMaxZoom(), rootBounds
-							.getMinX(), rootBounds.getMaxX(), rootBounds.getMinY(), rootBounds.getMaxY());
-					if (last) {
-						writer.startMapTreeElement(rootBounds.getMinX(), rootBounds.getMaxX(), rootBounds.getMinY(), rootBounds.getMaxY());
-
-					}
-					writeBinaryMapTree(root, rtree, writer, selectData);
-					if (last) {
-						writer.endWriteMapTreeElement();
-					}
-
-					writer.endWriteMapLevelIndex();
+		for (int i = 0; i < mapZooms.size(); i++) {
+			PackedMapTree rtree = mapTree[i];
+			if (!rtree.isEmpty()) {
+				int root = rtree.getHeight() - 1;
+				// root containing only objects is written as one tree element
+				boolean last = root == 0;
+				writer.startWriteMapLevelIndex(mapZooms.getLevel(i).getMinZoom(), mapZooms.getLevel(i).getMaxZoom(), 
+						rtree.getLeftX(root, 0), rtree.getRightX(root, 0), rtree.getTopY(root, 0), rtree.getBottomY(root, 0));
+				if (last) {
+					writer.startMapTreeElement(rtree.getLeftX(root, 0), rtree.getRightX(root, 0), rtree.getTopY(root, 0), 
+							rtree.getBottomY(root, 0));
 				}
+				PackedMapTree.EntryReader entries = rtree.openEntries();
+				try {
+					writeBinaryMapTree(rtree, root, 0, entries, writer, selectData);
+				} finally {
+					entries.close();
+				}
+				if (last) {
+					writer.endWriteMapTreeElement();
+				}
+
+				writer.endWriteMapLevelIndex();
 			}
-			selectData.close();
-			writer.writeMapEncodingRules(renderingTypes.getEncodingRuleTypes());
-			writer.endWriteMapIndex();
-			writer.flush();
-		} catch (RTreeException e) {
-			throw new IllegalStateException(e);
 		}
+		selectData.close();
+		writer.writeMapEncodingRules(renderingTypes.getEncodingRuleTypes());
+		writer.endWriteMapIndex();
+		writer.flush();
 	}
 	
 	private long convertBaseIdToGeneratedId(long baseId, int level) {
@@ -700,13 +802,18 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		return (id >> (MAP_LEVELS_POWER)) + (id & 1);
 	}
 
-	public void writeBinaryMapTree(rtree.Node parent, RTree r, BinaryMapIndexWriter writer, PreparedStatement selectData) throws IOException, RTreeException, SQLException {
-		Element[] e = parent.getAllElements();
-
-		for (int i = 0; i < parent.getTotalElements(); i++) {
-			Rect re = e[i].getRect();
-			if (e[i].getElementType() == rtree.Node.LEAF_NODE) {
-				long id = ((LeafElement) e[i]).getPtr();
+	/**
+	 * Writes children of node, objects are read from entries that are ordered as leaf nodes of tree
+	 */
+	public void writeBinaryMapTree(PackedMapTree r, int level, int node, PackedMapTree.EntryReader entries, BinaryMapIndexWriter writer,
+			PreparedStatement selectData) throws IOException, SQLException {
+		int children = r.getChildrenCount(level, node);
+		for (int i = 0; i < children; i++) {
+			if (level == 0) {
+				if (!entries.next()) {
+					throw new IllegalStateException("Map tree is corrupted"); //$NON-NLS-1$
+				}
+				long id = entries.getId();
 				selectData.setLong(1, id);
 				ResultSet rs = selectData.executeQuery();
 				if (rs.next()) {
@@ -718,53 +825,26 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 					log.error("Something goes wrong with id = " + id); //$NON-NLS-1$
 				}
 			} else {
-				long ptr = ((NonLeafElement) e[i]).getPtr();
-				rtree.Node ns = r.getReadNode(ptr);
+				int child = (int) r.getFirstChild(level, node) + i;
+				writer.startMapTreeElement(r.getLeftX(level - 1, child), r.getRightX(level - 1, child), r.getTopY(level - 1, child),
+						r.getBottomY(level - 1, child));
 
-				writer.startMapTreeElement(re.getMinX(), re.getMaxX(), re.getMinY(), re.getMaxY());
-
-				writeBinaryMapTree(ns, r, writer, selectData);
+				writeBinaryMapTree(r, level - 1, child, entries, writer, selectData);
 				writer.endWriteMapTreeElement();
 			}
 		}
 	}
 
-	public Rect calcBounds(rtree.Node n) {
-		Rect r = null;
-		Element[] e = n.getAllElements();
-		for (int i = 0; i < n.getTotalElements(); i++) {
-			Rect re = e[i].getRect();
-			if (r == null) {
-				try {
-					r = new Rect(re.getMinX(), re.getMinY(), re.getMaxX(), re.getMaxY());
-				} catch (IllegalValueException ex) {
-				}
-			} else {
-				r.expandToInclude(re);
-			}
-		}
-		return r;
-	}
-
 	public void createDatabaseStructure(Connection mapConnection, DBDialect dialect,
 			String rtreeMapIndexNonPackFileName) throws SQLException, IOException {
 		createMapIndexStructure(mapConnection);
 		this.mapConnection = mapConnection;
 		mapBinaryStat = createStatementMapBinaryInsert(mapConnection);
 		mapLowLevelBinaryStat = createStatementLowLevelMapBinaryInsert(mapConnection);
-		try {
-			mapTree = new RTree[mapZooms.size()];
-			for (int i = 0; i < mapZooms.size(); i++) {
-				File file = new File(rtreeMapIndexNonPackFileName + i);
-				if (file.exists()) {
-					file.delete();
-				}
-				mapTree[i] = new RTree(rtreeMapIndexNonPackFileName + i);
-				// very slow
-				// mapTree[i].getFileHdr().setBufferPolicy(true);
-			}
-		} catch (RTreeException e) {
-			throw new IOException(e);
+		mapTree = new PackedMapTree[mapZooms.size()];
+		for (int i = 0; i < mapZooms.size(); i++) {
+			// tree is packed to separate file, only sorted runs are stored in working dir
+			mapTree[i] = new PackedMapTree(new File(rtreeMapIndexNonPackFileName + i).getParentFile());
 		}
 		pStatements.put(mapBinaryStat, 0);
 		pStatements.put(mapLowLevelBinaryStat, 0);
@@ -829,7 +909,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		addBatch(mapLowLevelBinaryStat);
 	}
 	
-	private void insertBinaryMapRenderObjectIndex(RTree mapTree, Entity e, String name,
+	private void insertBinaryMapRenderObjectIndex(PackedMapTree mapTree, Entity e, String name,
 			long id, int type, List<Integer> typeUse, int highwayAttributes, List<Long> restrictions, 	
 			boolean inversePath, boolean writeAsPoint, boolean commit) throws SQLException {
 		if(e instanceof Relation){
@@ -896,26 +976,27 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 			
 			addBatch(mapBinaryStat, commit);
 			try {
-				mapTree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), id));
-			} catch (RTreeInsertException e1) {
-				throw new IllegalArgumentException(e1);
-			} catch (IllegalValueException e1) {
-				throw new IllegalArgumentException(e1);
+				mapTree.insert(id, minX, minY, maxX, maxY);
+			} catch (IOException e1) {
+				throw new IllegalStateException(e1);
 			}
 		}
 	}
 
-	public void createRTreeFiles(String rTreeMapIndexPackFileName) throws RTreeException {
-		mapTree = new RTree[mapZooms.size()];
+	public void createRTreeFiles(String rTreeMapIndexPackFileName) throws IOException {
+		mapTree = new PackedMapTree[mapZooms.size()];
 		for (int i = 0; i < mapZooms.size(); i++) {
-			mapTree[i] = new RTree(rTreeMapIndexPackFileName + i);
+			mapTree[i] = PackedMapTree.load(new File(rTreeMapIndexPackFileName + i));
 		}
 		
 	}
 
 	public void packRtreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName) throws IOException {
 		for (int i = 0; i < mapZooms.size(); i++) {
-			mapTree[i] = packRtreeFile(mapTree[i], rTreeMapIndexNonPackFileName + i, rTreeMapIndexPackFileName + i);
+			long time = System.currentTimeMillis();
+			mapTree[i].pack(new File(rTreeMapIndexPackFileName + i));
+			log.info("Map tree of level " + i + " is packed : " + mapTree[i].getSize() + " objects, height " + mapTree[i].getHeight() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					+ " (" + (System.currentTimeMillis() - time) + " ms)"); //$NON-NLS-1$ //$NON-NLS-2$
 		}		
 	}
 
@@ -925,8 +1006,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		if (mapTree != null) {
 			for (int i = 0; i < mapTree.length; i++) {
 				if (mapTree[i] != null) {
-					RandomAccessFile file = mapTree[i].getFileHdr().getFile();
-					file.close();
+					mapTree[i].close();
 				}
 
 			}
@@ -945,6 +1025,10 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		
 	}
 	
+	public void setSimplifyThreads(int simplifyThreads) {
+		this.simplifyThreads = simplifyThreads;
+	}
+
 	public void setZoomWaySmothness(int zoomWaySmothness) {
 		this.zoomWaySmothness = zoomWaySmothness;
 	}
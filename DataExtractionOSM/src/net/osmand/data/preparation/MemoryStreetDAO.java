@@ -0,0 +1,449 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import net.osmand.data.Building;
+import net.osmand.data.City;
+import net.osmand.osm.Entity;
+import net.osmand.osm.LatLon;
+import net.osmand.osm.Node;
+import net.osmand.osm.Way;
+
+/**
+ * Street registry that does not touch map db : streets are kept in maps by (city, name),
+ * buildings and street nodes are collected in memory and written (sorted by street) to run files
+ * when their count exceeds budget. Data is read by street when address index is written.
+ */
+public class MemoryStreetDAO extends DBStreetDAO {
+
+	public static class StreetRecord {
+		private final long id;
+		private final String name;
+		private final String nameEn;
+		private final LatLon location;
+		private String cityPart;
+
+		public StreetRecord(long id, String name, String nameEn, LatLon location, String cityPart) {
+			this.id = id;
+			this.name = name;
+			this.nameEn = nameEn;
+			this.location = location;
+			this.cityPart = cityPart;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getNameEn() {
+			return nameEn;
+		}
+
+		public LatLon getLocation() {
+			return location;
+		}
+
+		public String getCityPart() {
+			return cityPart;
+		}
+	}
+
+	// building or street node
+	private static class StreetObject {
+		private final long street;
+		private final long order;
+		private final Node node;
+		private final Building building;
+
+		public StreetObject(long street, long order, Node node, Building building) {
+			this.street = street;
+			this.order = order;
+			this.node = node;
+			this.building = building;
+		}
+	}
+
+	private static final Comparator<StreetObject> STREET_ORDER = new Comparator<StreetObject>() {
+		@Override
+		public int compare(StreetObject o1, StreetObject o2) {
+			if (o1.street != o2.street) {
+				return o1.street < o2.street ? -1 : 1;
+			}
+			return o1.order < o2.order ? -1 : (o1.order == o2.order ? 0 : 1);
+		}
+	};
+
+	private final File workingDir;
+	private final int maxObjectsInMemory;
+
+	private Map<String, SimpleStreet> streetsByName = new HashMap<String, SimpleStreet>();
+	private TLongObjectHashMap<StreetRecord> streetsById = new TLongObjectHashMap<StreetRecord>();
+	private TLongObjectHashMap<List<StreetRecord>> streetsByCity = new TLongObjectHashMap<List<StreetRecord>>();
+	private TLongHashSet buildingIds = new TLongHashSet();
+	private TLongHashSet streetWayIds = new TLongHashSet();
+	private TLongObjectHashMap<String> postcodes = new TLongObjectHashMap<String>();
+	private long streetIdSequence = 0;
+
+	private List<StreetObject> objects = new ArrayList<StreetObject>();
+	private long objectsOrder = 0;
+	private final List<File> runs = new ArrayList<File>();
+
+	// index of objects by street (in memory list or merged run file)
+	private boolean finished = false;
+	private long[] indexStreets;
+	private long[] indexPositions;
+	private int indexSize = 0;
+	private File storeFile;
+	private RandomAccessFile store;
+
+	public MemoryStreetDAO(File workingDir, int maxObjectsInMemory) {
+		this.workingDir = workingDir;
+		this.maxObjectsInMemory = maxObjectsInMemory;
+	}
+
+	private String createStreetUniqueName(String name, City city, String cityPart) {
+		return new StringBuilder().append(name).append('_').append(city.getId()).append('_').append(cityPart).toString();
+	}
+
+	private String createStreetUniqueName(String name, City city) {
+		return new StringBuilder().append(name).append('_').append(city.getId()).toString();
+	}
+
+	@Override
+	public SimpleStreet findStreet(String name, City city) {
+		return streetsByName.get(createStreetUniqueName(name, city));
+	}
+
+	@Override
+	public SimpleStreet findStreet(String name, City city, String cityPart) {
+		return streetsByName.get(createStreetUniqueName(name, city, cityPart));
+	}
+
+	@Override
+	public long insertStreet(String name, String nameEn, LatLon location, City city, String cityPart) {
+		long streetId = streetIdSequence++;
+		StreetRecord r = new StreetRecord(streetId, name, nameEn, location, cityPart);
+		streetsById.put(streetId, r);
+		List<StreetRecord> list = streetsByCity.get(city.getId());
+		if (list == null) {
+			list = new ArrayList<StreetRecord>();
+			streetsByCity.put(city.getId(), list);
+		}
+		list.add(r);
+		SimpleStreet ss = new SimpleStreet(streetId, name, cityPart, location);
+		streetsByName.put(createStreetUniqueName(name, city, cityPart), ss);
+		streetsByName.put(createStreetUniqueName(name, city), ss);
+		return streetId;
+	}
+
+	@Override
+	public SimpleStreet updateStreetCityPart(SimpleStreet street, City city, String cityPart) {
+		streetsById.get(street.getId()).cityPart = cityPart;
+		SimpleStreet updatedSS = new SimpleStreet(street.getId(), street.getName(), cityPart, street.getLocation());
+		streetsByName.put(createStreetUniqueName(street.getName(), city), updatedSS);
+		streetsByName.put(createStreetUniqueName(street.getName(), city, cityPart), updatedSS);
+		return updatedSS;
+	}
+
+	@Override
+	protected void writeStreetWayNodes(Set<Long> streetIds, Way way) throws SQLException {
+		for (Long streetId : streetIds) {
+			for (Node n : way.getNodes()) {
+				if (n != null) {
+					addObject(new StreetObject(streetId, objectsOrder++, new Node(n.getLatitude(), n.getLongitude(), n.getId()), null));
+				}
+			}
+		}
+		streetWayIds.add(way.getId());
+	}
+
+	@Override
+	protected void writeBuilding(Set<Long> streetIds, Building building) throws SQLException {
+		Building b = new Building();
+		b.setId(building.getId());
+		b.setName(building.getName());
+		b.setEnName(building.getEnName());
+		b.setLocation(building.getLocation().getLatitude(), building.getLocation().getLongitude());
+		b.setPostcode(building.getPostcode() == null ? null : building.getPostcode().toUpperCase());
+		for (Long streetId : streetIds) {
+			addObject(new StreetObject(streetId, objectsOrder++, null, b));
+		}
+		buildingIds.add(building.getId());
+	}
+
+	@Override
+	public boolean findBuilding(Entity e) {
+		return buildingIds.contains(e.getId());
+	}
+
+	@Override
+	public boolean findStreetNode(Entity e) {
+		return streetWayIds.contains(e.getId());
+	}
+
+	@Override
+	public void updateBuildingPostcode(long buildingId, String postcode) {
+		postcodes.put(buildingId, postcode);
+	}
+
+	@Override
+	public void commit() {
+	}
+
+	/**
+	 * Deletes run files (should be called after streets are read)
+	 */
+	public void clear() {
+		try {
+			if (store != null) {
+				store.close();
+				store = null;
+			}
+		} catch (IOException e) {
+			// file is deleted anyway
+		}
+		if (storeFile != null) {
+			storeFile.delete();
+		}
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+		objects = new ArrayList<StreetObject>();
+	}
+
+	/**
+	 * @return streets of city in order of registration
+	 */
+	public List<StreetRecord> getStreets(City city) {
+		List<StreetRecord> list = streetsByCity.get(city.getId());
+		return list == null ? Collections.<StreetRecord>emptyList() : list;
+	}
+
+	/**
+	 * Reads buildings and nodes of street (in order they were written)
+	 */
+	public void readStreetObjects(long streetId, List<Building> buildings, List<Node> nodes) throws IOException {
+		finishLoading();
+		int ind = Arrays.binarySearch(indexStreets, 0, indexSize, streetId);
+		if (ind < 0) {
+			return;
+		}
+		if (store == null) {
+			for (int i = (int) indexPositions[ind]; i < objects.size() && objects.get(i).street == streetId; i++) {
+				addObject(objects.get(i), buildings, nodes);
+			}
+		} else {
+			long end = ind + 1 < indexSize ? indexPositions[ind + 1] : store.length();
+			byte[] data = new byte[(int) (end - indexPositions[ind])];
+			store.seek(indexPositions[ind]);
+			store.readFully(data);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			StreetObject o;
+			while ((o = readObject(in)) != null) {
+				addObject(o, buildings, nodes);
+			}
+		}
+	}
+
+	private void addObject(StreetObject o, List<Building> buildings, List<Node> nodes) {
+		if (o.node != null) {
+			nodes.add(o.node);
+		} else {
+			String postcode = postcodes.get(o.building.getId());
+			if (postcode != null) {
+				o.building.setPostcode(postcode);
+			}
+			buildings.add(o.building);
+		}
+	}
+
+	private void addObject(StreetObject o) throws SQLException {
+		if (finished) {
+			throw new IllegalStateException("Streets are already read"); //$NON-NLS-1$
+		}
+		objects.add(o);
+		if (objects.size() >= maxObjectsInMemory) {
+			try {
+				writeRun();
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
+		}
+	}
+
+	private void writeRun() throws IOException {
+		Collections.sort(objects, STREET_ORDER);
+		File run = File.createTempFile("streets", ".run", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		for (StreetObject o : objects) {
+			writeObject(out, o);
+		}
+		out.close();
+		objects.clear();
+	}
+
+	private void finishLoading() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		indexStreets = new long[1024];
+		indexPositions = new long[indexStreets.length];
+		if (runs.isEmpty()) {
+			Collections.sort(objects, STREET_ORDER);
+			for (int i = 0; i < objects.size(); i++) {
+				addToIndex(objects.get(i).street, i);
+			}
+			return;
+		}
+		writeRun();
+		objects = null;
+		mergeRuns();
+		store = new RandomAccessFile(storeFile, "r"); //$NON-NLS-1$
+	}
+
+	private void addToIndex(long streetId, long position) {
+		if (indexSize > 0 && indexStreets[indexSize - 1] == streetId) {
+			return;
+		}
+		if (indexSize == indexStreets.length) {
+			indexStreets = Arrays.copyOf(indexStreets, indexSize * 2);
+			indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+		}
+		indexStreets[indexSize] = streetId;
+		indexPositions[indexSize] = position;
+		indexSize++;
+	}
+
+	private static class RunReader {
+		private final DataInputStream in;
+		private StreetObject current;
+
+		public RunReader(File f) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+			current = readObject(in);
+		}
+	}
+
+	private void mergeRuns() throws IOException {
+		storeFile = File.createTempFile("streets", ".objects", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader o1, RunReader o2) {
+				return STREET_ORDER.compare(o1.current, o2.current);
+			}
+		});
+		for (File f : runs) {
+			RunReader r = new RunReader(f);
+			if (r.current != null) {
+				queue.add(r);
+			} else {
+				r.in.close();
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile), 1 << 16));
+		long position = 0;
+		while (!queue.isEmpty()) {
+			RunReader r = queue.poll();
+			addToIndex(r.current.street, position);
+			position += writeObject(out, r.current);
+			r.current = readObject(r.in);
+			if (r.current != null) {
+				queue.add(r);
+			} else {
+				r.in.close();
+			}
+		}
+		out.close();
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * @return count of written bytes
+	 */
+	private static int writeObject(DataOutputStream out, StreetObject o) throws IOException {
+		int size = out.size();
+		out.writeLong(o.street);
+		out.writeLong(o.order);
+		if (o.node != null) {
+			out.writeByte(0);
+			out.writeLong(o.node.getId());
+			out.writeDouble(o.node.getLatitude());
+			out.writeDouble(o.node.getLongitude());
+		} else {
+			Building b = o.building;
+			out.writeByte(1);
+			out.writeLong(b.getId());
+			writeString(out, b.getName());
+			writeString(out, b.getEnName());
+			out.writeDouble(b.getLocation().getLatitude());
+			out.writeDouble(b.getLocation().getLongitude());
+			writeString(out, b.getPostcode());
+		}
+		return out.size() - size;
+	}
+
+	private static StreetObject readObject(DataInputStream in) throws IOException {
+		long street;
+		try {
+			street = in.readLong();
+		} catch (EOFException e) {
+			return null;
+		}
+		long order = in.readLong();
+		if (in.readByte() == 0) {
+			long id = in.readLong();
+			return new StreetObject(street, order, new Node(in.readDouble(), in.readDouble(), id), null);
+		}
+		Building b = new Building();
+		b.setId(in.readLong());
+		b.setName(readString(in));
+		b.setEnName(readString(in));
+		b.setLocation(in.readDouble(), in.readDouble());
+		b.setPostcode(readString(in));
+		return new StreetObject(street, order, null, b);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,136 @@
+package net.osmand.data.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.osmand.osm.Node;
+import net.osmand.osm.Way;
+
+/**
+ * Keeps coordinates of nodes (id -> fixed point lat/lon) outside of database to resolve way geometry by direct lookup.
+ * Store is filled once while osm file is read and used for lookups after {@link #finishLoading()}.
+ * {@link StoreType#SORTED} fits extracts (memory proportional to nodes count),
+ * {@link StoreType#DENSE} fits planet-scale files (memory mapped array indexed by node id).
+ */
+public abstract class NodeCoordinatesStore {
+
+	public static final double COORDINATES_PRECISION = 1e7;
+
+	public enum StoreType {
+		SORTED,
+		DENSE
+	}
+
+	private final AtomicLong lookups = new AtomicLong();
+	// only lookups of way nodes are timed
+	private final AtomicLong timedLookups = new AtomicLong();
+	private final AtomicLong lookupTime = new AtomicLong();
+
+	public static NodeCoordinatesStore create(StoreType type, File workingDir) {
+		if (type == StoreType.DENSE) {
+			return new DenseNodeCoordinatesStore(workingDir);
+		}
+		return new SortedNodeCoordinatesStore(workingDir);
+	}
+
+	public abstract void addNode(long id, double latitude, double longitude) throws IOException;
+
+	/**
+	 * Should be called after all nodes are added and before any lookup
+	 */
+	public abstract void finishLoading() throws IOException;
+
+	/**
+	 * @return count of stored nodes
+	 */
+	public abstract long getSize();
+
+	/**
+	 * @return bytes allocated in java heap
+	 */
+	public abstract long getHeapMemory();
+
+	/**
+	 * @return bytes of files mapped into memory
+	 */
+	public abstract long getMappedMemory();
+
+	public abstract void close();
+
+	protected abstract Node getNodeInternal(long id);
+
+	/**
+	 * @return node without tags or null if node is not in the store
+	 */
+	public Node getNode(long id) {
+		lookups.incrementAndGet();
+		return getNodeInternal(id);
+	}
+
+	/**
+	 * Adds nodes for all ids to the list, ids that are not in the store are skipped (as inner join does).
+	 * @return count of missing nodes
+	 */
+	public int getNodes(List<Long> ids, List<Node> nodes) {
+		long time = System.nanoTime();
+		int missing = 0;
+		int size = ids.size();
+		for (int i = 0; i < size; i++) {
+			Node n = getNodeInternal(ids.get(i));
+			if (n == null) {
+				missing++;
+			} else {
+				nodes.add(n);
+			}
+		}
+		lookupTime.addAndGet(System.nanoTime() - time);
+		timedLookups.addAndGet(size);
+		lookups.addAndGet(size);
+		return missing;
+	}
+
+	/**
+	 * Replaces node ids of way with nodes from the store (ids that are not in the store are removed).
+	 * @return count of missing nodes
+	 */
+	public int resolveWayNodes(Way w) {
+		List<Node> nodes = new ArrayList<Node>(w.getNodeIds().size());
+		int missing = getNodes(w.getNodeIds(), nodes);
+		for (int i = w.getNodeIds().size() - 1; i >= 0; i--) {
+			w.removeNodeByIndex(i);
+		}
+		for (Node n : nodes) {
+			w.addNode(n);
+		}
+		return missing;
+	}
+
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return lookups per second measured by way lookups ({@link #getNodes(List, List)})
+	 */
+	public long getLookupsPerSecond() {
+		long time = lookupTime.get();
+		return time == 0 ? 0 : (long) (timedLookups.get() * 1e9 / time);
+	}
+
+	public String getStatistics() {
+		return getClass().getSimpleName() + " : " + getSize() + " nodes, heap " + (getHeapMemory() >> 20) //$NON-NLS-1$ //$NON-NLS-2$
+				+ " Mb, mapped " + (getMappedMemory() >> 20) + " Mb, " + getLookups() + " lookups, " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ getLookupsPerSecond() + " lookups/sec"; //$NON-NLS-1$
+	}
+
+	protected static int toFixedPoint(double coordinate) {
+		return (int) Math.round(coordinate * COORDINATES_PRECISION);
+	}
+
+	protected static double fromFixedPoint(int coordinate) {
+		return coordinate / COORDINATES_PRECISION;
+	}
+}
@@ -8,8 +8,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -53,6 +55,7 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	private ReadOptions randomAccessOptions;
 	
 	private DBAccessor accessor;
+	private BinaryEntitySerializer serializer = new BinaryEntitySerializer();
 
 	private PreparedStatement iterateNodes;
 
@@ -62,6 +65,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 
 	private PreparedStatement iterateWayBoundaries;
 
+	// way nodes are resolved by lookup in store instead of join with node table
+	private NodeCoordinatesStore nodeCoordinates;
+
 	public interface OsmDbVisitor {
 		public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException;
 	}
@@ -69,6 +75,17 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	public OsmDbAccessor(){
 	}
 	
+	/**
+	 * Should be called before {@link #initDatabase(Object, DBDialect, int, int, int)}, store should contain all nodes of db
+	 */
+	public void setNodeCoordinates(NodeCoordinatesStore nodeCoordinates) {
+		this.nodeCoordinates = nodeCoordinates;
+	}
+
+	public NodeCoordinatesStore getNodeCoordinates() {
+		return nodeCoordinates;
+	}
+
 	public void initDatabase(Object dbConnection, DBDialect dialect, int allNodes, int allWays, int allRelations) throws SQLException {
 		
 		this.dialect = dialect;
@@ -78,27 +95,55 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		if(this.dialect == DBDialect.NOSQL){
 			accessor = (DBAccessor) dbConnection;
 			randomAccessOptions = new ReadOptions();
+			loadDictionaryNoSQL();
 		} else {
 			this.dbConn = (Connection) dbConnection;
 			
 			pselectNode = dbConn.prepareStatement("select n.latitude, n.longitude, t.skeys, t.value from node n left join tags t on n.id = t.id and t.type = 0 where n.id = ?"); //$NON-NLS-1$
-			pselectWay = dbConn.prepareStatement("select w.node, w.ord, t.skeys, t.value, n.latitude, n.longitude " + //$NON-NLS-1$
-					"from ways w left join tags t on w.id = t.id and t.type = 1 and w.ord = 0 inner join node n on w.node = n.id " + //$NON-NLS-1$
-					"where w.id = ? order by w.ord"); //$NON-NLS-1$
+			pselectWay = dbConn.prepareStatement("select w.node, w.ord, t.skeys, t.value" + nodeCoordinatesColumns() + //$NON-NLS-1$
+					" from ways w left join tags t on w.id = t.id and t.type = 1 and w.ord = 0" + nodeCoordinatesJoin() + //$NON-NLS-1$
+					" where w.id = ? order by w.ord"); //$NON-NLS-1$
 			pselectRelation = dbConn.prepareStatement("select r.member, r.type, r.role, r.ord, t.skeys, t.value " + //$NON-NLS-1$
 					"from relations r left join tags t on r.id = t.id and t.type = 2 and r.ord = 0 " + //$NON-NLS-1$
 					"where r.id = ? order by r.ord"); //$NON-NLS-1$
 			pselectTags = dbConn.prepareStatement("select skeys, value from tags where id = ? and type = ?"); //$NON-NLS-1$
 		
 			iterateNodes = dbConn.prepareStatement("select n.id, n.latitude, n.longitude, t.skeys, t.value from node n inner join tags t on n.id = t.id and t.type = 0 order by n.id"); //$NON-NLS-1$
-			iterateWays  = dbConn.prepareStatement("select w.id, w.node, w.ord, t.skeys, t.value, n.latitude, n.longitude " + //$NON-NLS-1$
-					"from ways w left join tags t on w.id = t.id and t.type = 1 and w.ord = 0 inner join node n on w.node = n.id " + //$NON-NLS-1$
-					"order by w.id, w.ord"); //$NON-NLS-1$
+			iterateWays  = dbConn.prepareStatement("select w.id, w.node, w.ord, t.skeys, t.value" + nodeCoordinatesColumns() + //$NON-NLS-1$
+					" from ways w left join tags t on w.id = t.id and t.type = 1 and w.ord = 0" + nodeCoordinatesJoin() + //$NON-NLS-1$
+					" order by w.id, w.ord"); //$NON-NLS-1$
 			iterateWayBoundaries = dbConn.prepareStatement("select t.id from tags t where t.skeys = \"" + OSMTagKey.BOUNDARY.getValue() + "\""); //$NON-NLS-1$
 			iterateRelations = dbConn.prepareStatement("select r.id, t.skeys, t.value  from relations r inner join tags t on t.id = r.id and t.type = 2 and r.ord = 0"); //$NON-NLS-1$
 		}
 	}
 	
+	private String nodeCoordinatesColumns() {
+		return nodeCoordinates == null ? ", n.latitude, n.longitude" : ""; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private String nodeCoordinatesJoin() {
+		return nodeCoordinates == null ? " inner join node n on w.node = n.id" : ""; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private void addWayNode(Way w, ResultSet rs, int idColumn, int latColumn) throws SQLException {
+		if (nodeCoordinates == null) {
+			w.addNode(new Node(rs.getDouble(latColumn), rs.getDouble(latColumn + 1), rs.getLong(idColumn)));
+		} else {
+			// resolved by resolveWayNodes
+			w.addNode(rs.getLong(idColumn));
+		}
+	}
+
+	/**
+	 * @return false if way has no nodes (as inner join with node table would filter it out)
+	 */
+	private boolean resolveWayNodes(Way w) {
+		if (nodeCoordinates != null) {
+			nodeCoordinates.resolveWayNodes(w);
+		}
+		return !w.getNodes().isEmpty();
+	}
+
 	public int getAllNodes() {
 		return allNodes;
 	}
@@ -150,10 +195,11 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 					int ord = rs.getInt(2);
 					if (ord > 0 || first) {
 						first = false;
-						((Way) e).addNode(new Node(rs.getDouble(5), rs.getDouble(6), rs.getLong(1)));
+						addWayNode((Way) e, rs, 1, 5);
 					}
 				}
 				rs.close();
+				resolveWayNodes((Way) e);
 			}
 		}
 		Collection<EntityId> ids = e instanceof Relation ? ((Relation) e).getMemberIds() : ((Way) e).getEntityIds();
@@ -190,12 +236,13 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 						int ord = rs.getInt(2);
 						if (ord > 0 || first) {
 							first = false;
-							way.addNode(new Node(rs.getDouble(5), rs.getDouble(6), rs.getLong(1)));
+							addWayNode(way, rs, 1, 5);
 						}
 						if (ord == 0 && rs.getObject(3) != null) {
 							way.putTag(rs.getString(3), rs.getString(4));
 						}
 					}
+					resolveWayNodes(way);
 					if (way.getNodes() == null) {
 						System.err.println("Strange, way with id:" + i.getId() + " has no nodes?");
 					}
@@ -313,6 +360,41 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		e.initializeLinks(map);
 	}
 	
+	private void loadDictionaryNoSQL() {
+		DBIterator iterator = accessor.newIterator(randomAccessOptions);
+		iterator.seek(OsmDbCreator.DICTIONARY_KEY_PREFIX);
+		while (iterator.valid() && iterator.key().startsWith(OsmDbCreator.DICTIONARY_KEY_PREFIX)) {
+			String key = iterator.key();
+			serializer.registerDictionaryEntry(Integer.parseInt(key.substring(OsmDbCreator.DICTIONARY_KEY_PREFIX.length())), iterator.value());
+			iterator.next();
+		}
+		iterator.delete();
+	}
+
+	private Entity loadEntityBinaryValue(ReadOptions opts, String key, String value, boolean skipIfEmptyTags) {
+		long id = Long.parseLong(key.substring(1));
+		EntityType type = key.charAt(0) == '0' ? EntityType.NODE : (key.charAt(0) == '1' ? EntityType.WAY : EntityType.RELATION);
+		Entity e = serializer.deserialize(type, id, value, skipIfEmptyTags);
+		if (e instanceof Way) {
+			if (nodeCoordinates == null) {
+				Way w = (Way) e;
+				List<Long> ids = new ArrayList<Long>(w.getNodeIds());
+				for (int i = ids.size() - 1; i >= 0; i--) {
+					w.removeNodeByIndex(i);
+				}
+				for (Long l : ids) {
+					String pointId = "0" + l;
+					String pointVal = this.accessor.get(opts, pointId);
+					if (pointVal != null && pointVal.length() > 0) {
+						w.addNode((Node) serializer.deserialize(EntityType.NODE, l, pointVal, false));
+					}
+				}
+			}
+			resolveWayNodes((Way) e);
+		}
+		return e;
+	}
+
 	private void assertToken(int expected, int actual, String value){
 		if(expected != actual){
 			System.err.println("Expected token " + expected + " != " + actual +" actual for : " + value);
@@ -324,6 +406,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		if(value == null){
 			return null;
 		}
+		if (BinaryEntitySerializer.isBinaryValue(value)) {
+			return loadEntityBinaryValue(opts, key, value, skipIfEmptyTags);
+		}
 		Entity e = null;
 		long id = Long.parseLong(key.substring(1));
 		ArraySerializer.EntityValueTokenizer tokenizer = new EntityValueTokenizer();
@@ -372,14 +457,19 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			assertToken(ArraySerializer.START_ARRAY, tokenizer.next(), value);
 			int n = tokenizer.next();
 			while(n == ArraySerializer.ELEMENT){
-				String pointId = "0"+ tokenizer.value();
-				String pointVal = this.accessor.get(opts, pointId);
-				Node node = (Node) loadEntityNoSqlFromValue(opts, pointId, pointVal, false);
-				if(node != null){
-					((Way) e).addNode(node);
+				if (nodeCoordinates != null) {
+					((Way) e).addNode(Long.parseLong(tokenizer.value()));
+				} else {
+					String pointId = "0" + tokenizer.value();
+					String pointVal = this.accessor.get(opts, pointId);
+					Node node = (Node) loadEntityNoSqlFromValue(opts, pointId, pointVal, false);
+					if (node != null) {
+						((Way) e).addNode(node);
+					}
 				}
 				n = tokenizer.next();
 			}
+			resolveWayNodes((Way) e);
 		} else if (key.charAt(0) == '2') {
 			assertToken(ArraySerializer.START_ARRAY, tokenizer.next(), value);
 			int n = tokenizer.next();
@@ -416,6 +506,7 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		}
 		
 		iterator.seek(prefix);
+		long time = System.currentTimeMillis();
 		
 		while(iterator.valid()){
 			String key = iterator.key();
@@ -446,6 +537,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			iterator.next();
 		}
 		iterator.delete();
+		time = System.currentTimeMillis() - time;
+		log.info("Iterated " + count + " entities of type " + type + " in " + time + " ms (" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				+ (time == 0 ? count : count * 1000L / time) + " entities/sec)"); //$NON-NLS-1$
 		return count;
 	}
 
@@ -523,8 +617,8 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 							b.append('?').append(',');
 						}
 						b.deleteCharAt(b.length()-1);
-						iterateWaysByIds =  dbConn.prepareStatement("select w.id, w.node, w.ord, t.skeys, t.value, n.latitude, n.longitude " + //$NON-NLS-1$
-								"from ways w left join tags t on w.id = t.id and t.type = 1 and w.ord = 0 inner join node n on w.node = n.id where w.id in (" + b.toString() + //$NON-NLS-1$
+						iterateWaysByIds =  dbConn.prepareStatement("select w.id, w.node, w.ord, t.skeys, t.value" + nodeCoordinatesColumns() + //$NON-NLS-1$
+								" from ways w left join tags t on w.id = t.id and t.type = 1 and w.ord = 0" + nodeCoordinatesJoin() + " where w.id in (" + b.toString() + //$NON-NLS-1$ //$NON-NLS-2$
 								") order by w.id, w.ord"); //$NON-NLS-1$
 						idsSize = chunk;
 					}
@@ -569,6 +663,13 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 					setName("EntityProducer");
 		}
 
+		private void putEntity(Entity e) throws InterruptedException {
+			if (e instanceof Way && !resolveWayNodes((Way) e)) {
+				return;
+			}
+			toProcess.put(e);
+		}
+
 		@Override
 		public void run() {
 			ResultSet rs;
@@ -598,8 +699,7 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 							e.putTag(rs.getString(4), rs.getString(5));
 						}
 						if (newEntity || ord > 0) {
-							((Way) e).addNode(new Node(rs.getDouble(6), rs
-									.getDouble(7), rs.getLong(2)));
+							addWayNode((Way) e, rs, 2, 6);
 						}
 					} else {
 						if (newEntity) {
@@ -609,14 +709,14 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 					}
 					if (newEntity) {
 						if (prevEntity != null) {
-							toProcess.put(prevEntity);
+							putEntity(prevEntity);
 						}
 						prevEntity = e;
 					}
 					prevId = curId;
 				}
 				if (prevEntity != null) {
-					toProcess.put(prevEntity);
+					putEntity(prevEntity);
 				}
 				rs.close();
 			} catch (SQLException e1) {
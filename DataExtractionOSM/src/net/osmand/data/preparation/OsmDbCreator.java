@@ -1,5 +1,6 @@
 package net.osmand.data.preparation;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
@@ -29,6 +30,8 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	private static final Log log = LogFactory.getLog(OsmDbCreator.class);
 
 	public static final int BATCH_SIZE_OSM = 100000;
+	// keys of entities start with 0, 1, 2 (nodes, ways, relations)
+	public static final String DICTIONARY_KEY_PREFIX = "d"; //$NON-NLS-1$
 
 
 	DBDialect dialect;
@@ -52,12 +55,36 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	private DBAccessor database;
 	private DBWriteBatch batch;
 	private WriteOptions options;
+	private boolean binaryEntities = true;
+	private BinaryEntitySerializer serializer = new BinaryEntitySerializer();
+	private int writtenDictionaryEntries = 0;
+	private long writtenEntities = 0;
+	private long writtenChars = 0;
+	private long serializationTime = 0;
+	private long loadingStartTime;
+
+	private NodeCoordinatesStore nodeCoordinates;
+	private IOException nodeCoordinatesException;
 
 
 	public OsmDbCreator(IndexCreator indexCreator) {
 		this.indexCreator = indexCreator;
 	}
 
+	/**
+	 * @param nodeCoordinates store to put coordinates of all nodes (besides db)
+	 */
+	public void setNodeCoordinates(NodeCoordinatesStore nodeCoordinates) {
+		this.nodeCoordinates = nodeCoordinates;
+	}
+
+	/**
+	 * @param binaryEntities use {@link BinaryEntitySerializer} for leveldb values instead of text arrays
+	 */
+	public void setBinaryEntities(boolean binaryEntities) {
+		this.binaryEntities = binaryEntities;
+	}
+
 	public void initDatabase(DBDialect dialect, Object databaseConn) throws SQLException {
 		
 		this.dialect = dialect;
@@ -65,6 +92,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 			database = (DBAccessor) databaseConn;
 			batch = new DBWriteBatch();
 			options = new WriteOptions();
+			loadingStartTime = System.currentTimeMillis();
 		} else {
 			this.dbConn = (Connection) databaseConn;
 			// prepare tables
@@ -91,7 +119,10 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		}
 	}
 
-	public void finishLoading() throws SQLException {
+	public void finishLoading() throws SQLException, IOException {
+		if (nodeCoordinatesException != null) {
+			throw nodeCoordinatesException;
+		}
 		if (dialect != DBDialect.NOSQL) {
 			if (currentCountNode > 0) {
 				prepNode.executeBatch();
@@ -111,6 +142,11 @@ public class OsmDbCreator implements IOsmStorageFilter {
 			prepTags.close();
 		} else {
 			database.write(options, batch);
+			long time = System.currentTimeMillis() - loadingStartTime;
+			log.info("Written " + writtenEntities + " entities into leveldb in " + (binaryEntities ? "binary" : "text") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					+ " format : " + (writtenChars >> 10) + " Kb of keys and values (" + writtenDictionaryEntries + " dictionary entries), " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					+ (serializationTime / 1000000) + " ms of serialization, " + time + " ms total"); //$NON-NLS-1$ //$NON-NLS-2$
+			log.info(database.getProperty("leveldb.stats")); //$NON-NLS-1$
 		}
 	}
 	
@@ -159,9 +195,26 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		return builder.toString();
 	}
 
+	private void writeNewDictionaryEntries() {
+		for (; writtenDictionaryEntries < serializer.getDictionarySize(); writtenDictionaryEntries++) {
+			String key = DICTIONARY_KEY_PREFIX + writtenDictionaryEntries;
+			String value = serializer.getDictionaryEntry(writtenDictionaryEntries);
+			batch.Put(key, value);
+			writtenChars += key.length() + value.length();
+		}
+	}
+
 	@Override
 	public boolean acceptEntityToLoad(OsmBaseStorage storage, EntityId entityId, Entity e) {
 		// put all nodes into temporary db to get only required nodes after loading all data
+		if (nodeCoordinates != null && e instanceof Node && nodeCoordinatesException == null) {
+			try {
+				nodeCoordinates.addNode(e.getId(), ((Node) e).getLatitude(), ((Node) e).getLongitude());
+			} catch (IOException ex) {
+				// rethrown in finishLoading
+				nodeCoordinatesException = ex;
+			}
+		}
 		if (dialect == DBDialect.NOSQL) {
 			String key;
 			currentCountNode++;
@@ -177,7 +230,13 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				allRelations++;
 				key = "2" + e.getId();
 			}
-			batch.Put(key, serializeEntityWOId(e));
+			long time = System.nanoTime();
+			String value = binaryEntities ? serializer.serialize(e) : serializeEntityWOId(e);
+			serializationTime += System.nanoTime() - time;
+			writeNewDictionaryEntries();
+			batch.Put(key, value);
+			writtenChars += key.length() + value.length();
+			writtenEntities++;
 			if (currentCountNode > BATCH_SIZE_OSM) {
 				database.write(options, batch);
 				batch = new DBWriteBatch();
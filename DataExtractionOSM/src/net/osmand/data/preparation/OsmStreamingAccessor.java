@@ -0,0 +1,531 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.osmand.IProgress;
+import net.osmand.data.preparation.OsmDbAccessor.OsmDbVisitor;
+import net.osmand.osm.Entity;
+import net.osmand.osm.Entity.EntityId;
+import net.osmand.osm.Entity.EntityType;
+import net.osmand.osm.Node;
+import net.osmand.osm.OSMSettings.OSMTagKey;
+import net.osmand.osm.Relation;
+import net.osmand.osm.Way;
+import net.osmand.osm.io.IOsmStorageFilter;
+import net.osmand.osm.io.OsmBaseStorage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Replacement of temporary nodes db ({@link OsmDbCreator} + {@link OsmDbAccessor}) for one pass reading of osm file.
+ * Coordinates of all nodes go to {@link NodeCoordinatesStore}, tagged nodes, ways and relations are written sequentially
+ * to temporary files (only positions of relations are kept in memory to read them by id). When loading is finished 
+ * ways and tagged nodes that are relation members (and boundary ways) are read back into memory, so every pass 
+ * of index creation is a sequential read of temporary file and way nodes are resolved by lookup in coordinates store.
+ */
+public class OsmStreamingAccessor implements OsmDbAccessorContext, IOsmStorageFilter {
+
+	private static final Log log = LogFactory.getLog(OsmStreamingAccessor.class);
+
+	private final File workingDir;
+	private final NodeCoordinatesStore.StoreType storeType;
+	private NodeCoordinatesStore nodeCoordinates;
+	private File nodesFile;
+	private File waysFile;
+	private File relationsFile;
+	private DataOutputStream nodesOut;
+	private DataOutputStream waysOut;
+	private DataOutputStream relationsOut;
+	private IOException writeException;
+
+	// position of relation record in relations file by id
+	private TLongObjectHashMap<Long> relationPositions = new TLongObjectHashMap<Long>();
+	private long relationsFileLength;
+	// relations file opened to read relations by id (when loading is finished)
+	private RandomAccessFile relationsRaf;
+	private int storedRelations;
+	private TLongArrayList boundaryWays = new TLongArrayList();
+	// relation members and boundary ways (without nodes, they are resolved on load)
+	private TLongObjectHashMap<Way> memberWays = new TLongObjectHashMap<Way>();
+	private TLongObjectHashMap<Node> memberNodes = new TLongObjectHashMap<Node>();
+
+	private int allNodes;
+	private int allWays;
+	private int allRelations;
+	private int allBoundaries;
+	private long missingNodes;
+
+	public OsmStreamingAccessor(File workingDir, NodeCoordinatesStore.StoreType storeType) {
+		this.workingDir = workingDir;
+		this.storeType = storeType;
+	}
+
+	public void initialize() throws IOException {
+		nodeCoordinates = NodeCoordinatesStore.create(storeType, workingDir);
+		nodesFile = File.createTempFile("nodes", ".tmp", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		waysFile = File.createTempFile("ways", ".tmp", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		relationsFile = File.createTempFile("relations", ".tmp", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		nodesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(nodesFile), 1 << 16));
+		waysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(waysFile), 1 << 16));
+		relationsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(relationsFile), 1 << 16));
+	}
+
+	@Override
+	public boolean acceptEntityToLoad(OsmBaseStorage storage, EntityId entityId, Entity e) {
+		if (writeException != null) {
+			return false;
+		}
+		try {
+			if (e instanceof Node) {
+				Node n = (Node) e;
+				nodeCoordinates.addNode(n.getId(), n.getLatitude(), n.getLongitude());
+				if (!e.getTags().isEmpty()) {
+					allNodes++;
+					nodesOut.writeLong(n.getId());
+					nodesOut.writeDouble(n.getLatitude());
+					nodesOut.writeDouble(n.getLongitude());
+					writeTags(nodesOut, e);
+				}
+			} else if (e instanceof Way) {
+				allWays++;
+				if (e.getTag(OSMTagKey.BOUNDARY) != null) {
+					allBoundaries++;
+					boundaryWays.add(e.getId());
+				}
+				waysOut.writeLong(e.getId());
+				List<Long> nodeIds = ((Way) e).getNodeIds();
+				writeVarLong(waysOut, nodeIds.size());
+				long prev = 0;
+				for (Long l : nodeIds) {
+					writeVarLong(waysOut, zigzag(l - prev));
+					prev = l;
+				}
+				writeTags(waysOut, e);
+			} else if (e instanceof Relation) {
+				if (!e.getTags().isEmpty()) {
+					allRelations++;
+				}
+				writeRelation((Relation) e);
+			}
+		} catch (IOException ex) {
+			// rethrown in finishLoading
+			writeException = ex;
+		}
+		// do not add to storage
+		return false;
+	}
+
+	public void finishLoading() throws IOException {
+		nodesOut.close();
+		waysOut.close();
+		relationsOut.close();
+		if (writeException != null) {
+			throw writeException;
+		}
+		long time = System.currentTimeMillis();
+		nodeCoordinates.finishLoading();
+
+		TLongHashSet waysToKeep = new TLongHashSet(boundaryWays);
+		TLongHashSet nodesToKeep = new TLongHashSet();
+		DataInputStream in = openInput(relationsFile);
+		try {
+			Relation r;
+			while ((r = readRelation(in)) != null) {
+				for (EntityId id : r.getMemberIds()) {
+					if (id.getType() == EntityType.WAY) {
+						waysToKeep.add(id.getId());
+					} else if (id.getType() == EntityType.NODE) {
+						nodesToKeep.add(id.getId());
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		relationsRaf = new RandomAccessFile(relationsFile, "r"); //$NON-NLS-1$
+		in = openInput(waysFile);
+		try {
+			Way w;
+			while ((w = readWay(in)) != null) {
+				if (waysToKeep.contains(w.getId())) {
+					memberWays.put(w.getId(), w);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		in = openInput(nodesFile);
+		try {
+			Node n;
+			while ((n = readNode(in)) != null) {
+				if (nodesToKeep.contains(n.getId())) {
+					memberNodes.put(n.getId(), n);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		log.info("Nodes coordinates stored : " + nodeCoordinates.getSize() + ", relations : " + storedRelations //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", member ways : " + memberWays.size() + ", member tagged nodes : " + memberNodes.size() //$NON-NLS-1$ //$NON-NLS-2$
+				+ ". Time to prepare : " + (System.currentTimeMillis() - time) + " ms"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	public int getAllNodes() {
+		return allNodes;
+	}
+
+	public int getAllWays() {
+		return allWays;
+	}
+
+	public int getAllRelations() {
+		return allRelations;
+	}
+
+	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor) throws SQLException, IOException {
+		int count = 0;
+		if (type == EntityType.NODE) {
+			progress.startWork(allNodes);
+			DataInputStream in = openInput(nodesFile);
+			try {
+				Node n;
+				while ((n = readNode(in)) != null) {
+					count++;
+					progress.progress(1);
+					visitor.iterateEntity(n, this);
+				}
+			} finally {
+				in.close();
+			}
+		} else if (type == EntityType.WAY) {
+			progress.startWork(allWays);
+			DataInputStream in = openInput(waysFile);
+			try {
+				Way w;
+				while ((w = readWay(in)) != null) {
+					progress.progress(1);
+					resolveWayNodes(w);
+					// as db accessor skip ways without nodes
+					if (!w.getNodes().isEmpty()) {
+						count++;
+						visitor.iterateEntity(w, this);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} else if (type == EntityType.WAY_BOUNDARY) {
+			progress.startWork(allBoundaries);
+			for (int i = 0; i < boundaryWays.size(); i++) {
+				count++;
+				progress.progress(1);
+				visitor.iterateEntity(copyWay(memberWays.get(boundaryWays.get(i))), this);
+			}
+		} else {
+			progress.startWork(allRelations);
+			DataInputStream in = openInput(relationsFile);
+			try {
+				Relation r;
+				while ((r = readRelation(in)) != null) {
+					// as db accessor give only relations with tags
+					if (!r.getTags().isEmpty()) {
+						count++;
+						progress.progress(1);
+						visitor.iterateEntity(r, this);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		if (missingNodes > 0) {
+			log.warn("Nodes not found in file : " + missingNodes); //$NON-NLS-1$
+			missingNodes = 0;
+		}
+		return count;
+	}
+
+	@Override
+	public void loadEntityData(Entity e) throws SQLException {
+		if (e.isDataLoaded()) {
+			return;
+		}
+		if (e instanceof Node || (e instanceof Way && !((Way) e).getNodes().isEmpty())) {
+			// do not load tags for nodes inside way
+			return;
+		}
+		if (e instanceof Way) {
+			resolveWayNodes((Way) e);
+			e.entityDataLoaded();
+			return;
+		}
+		Relation rel = (Relation) e;
+		if (rel.getMemberIds().isEmpty()) {
+			Relation stored = getRelation(e.getId());
+			if (stored != null) {
+				for (Map.Entry<EntityId, String> m : stored.getMembersMap().entrySet()) {
+					rel.addMember(m.getKey().getId(), m.getKey().getType(), m.getValue());
+				}
+			}
+		}
+		Map<EntityId, Entity> map = new LinkedHashMap<EntityId, Entity>();
+		for (EntityId i : rel.getMemberIds()) {
+			Entity member = null;
+			if (i.getType() == EntityType.NODE) {
+				member = getNode(i.getId());
+			} else if (i.getType() == EntityType.WAY) {
+				Way w = memberWays.get(i.getId());
+				if (w != null) {
+					member = copyWay(w);
+				}
+			} else if (i.getType() == EntityType.RELATION) {
+				// do not load relation members recursively
+				member = getRelation(i.getId());
+			}
+			if (member != null) {
+				map.put(i, member);
+			}
+		}
+		e.initializeLinks(map);
+		e.entityDataLoaded();
+	}
+
+	public NodeCoordinatesStore getNodeCoordinates() {
+		return nodeCoordinates;
+	}
+
+	public void close() {
+		if (nodeCoordinates != null) {
+			nodeCoordinates.close();
+		}
+		if (nodesFile != null) {
+			nodesFile.delete();
+		}
+		if (waysFile != null) {
+			waysFile.delete();
+		}
+		if (relationsRaf != null) {
+			try {
+				relationsRaf.close();
+			} catch (IOException e) {
+				log.warn("Relations file is not closed", e); //$NON-NLS-1$
+			}
+		}
+		if (relationsFile != null) {
+			relationsFile.delete();
+		}
+		relationPositions = null;
+		memberWays = null;
+		memberNodes = null;
+	}
+
+	private Node getNode(long id) {
+		Node tagged = memberNodes.get(id);
+		if (tagged != null) {
+			Node n = new Node(tagged.getLatitude(), tagged.getLongitude(), id);
+			for (Map.Entry<String, String> t : tagged.getTags().entrySet()) {
+				n.putTag(t.getKey(), t.getValue());
+			}
+			return n;
+		}
+		Node n = nodeCoordinates.getNode(id);
+		if (n == null) {
+			missingNodes++;
+		}
+		return n;
+	}
+
+	private Way resolveWayNodes(Way w) {
+		// as in db accessor nodes that are not present in file are skipped
+		missingNodes += nodeCoordinates.resolveWayNodes(w);
+		return w;
+	}
+
+	private Way copyWay(Way w) {
+		Way c = new Way(w.getId());
+		for (Long l : w.getNodeIds()) {
+			c.addNode(l);
+		}
+		for (Map.Entry<String, String> t : w.getTags().entrySet()) {
+			c.putTag(t.getKey(), t.getValue());
+		}
+		return resolveWayNodes(c);
+	}
+
+	/**
+	 * @return new instance of relation read from relations file or null if relation is not present in osm file
+	 */
+	private Relation getRelation(long id) throws SQLException {
+		Long position = relationPositions.get(id);
+		if (position == null) {
+			return null;
+		}
+		try {
+			relationsRaf.seek(position);
+			byte[] record = new byte[relationsRaf.readInt()];
+			relationsRaf.readFully(record);
+			return readRelationRecord(new DataInputStream(new ByteArrayInputStream(record)));
+		} catch (IOException e) {
+			throw new SQLException(e);
+		}
+	}
+
+	// relation record is prefixed by its length to read it by position
+	private void writeRelation(Relation r) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeLong(r.getId());
+		Map<EntityId, String> members = r.getMembersMap();
+		writeVarLong(out, members.size());
+		for (Map.Entry<EntityId, String> m : members.entrySet()) {
+			out.writeByte(m.getKey().getType().ordinal());
+			writeVarLong(out, zigzag(m.getKey().getId()));
+			writeString(out, m.getValue());
+		}
+		writeTags(out, r);
+		out.close();
+		relationPositions.put(r.getId(), relationsFileLength);
+		relationsOut.writeInt(record.size());
+		record.writeTo(relationsOut);
+		relationsFileLength += 4 + record.size();
+		storedRelations++;
+	}
+
+	private static Relation readRelation(DataInputStream in) throws IOException {
+		try {
+			in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		return readRelationRecord(in);
+	}
+
+	private static Relation readRelationRecord(DataInputStream in) throws IOException {
+		Relation r = new Relation(in.readLong());
+		int size = (int) readVarLong(in);
+		for (int i = 0; i < size; i++) {
+			EntityType type = EntityType.values()[in.readUnsignedByte()];
+			long l = readVarLong(in);
+			r.addMember((l >>> 1) ^ -(l & 1), type, readString(in));
+		}
+		readTags(in, r);
+		return r;
+	}
+
+	private static DataInputStream openInput(File f) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+	}
+
+	private static Node readNode(DataInputStream in) throws IOException {
+		long id;
+		try {
+			id = in.readLong();
+		} catch (EOFException e) {
+			return null;
+		}
+		Node n = new Node(in.readDouble(), in.readDouble(), id);
+		readTags(in, n);
+		return n;
+	}
+
+	private static Way readWay(DataInputStream in) throws IOException {
+		long id;
+		try {
+			id = in.readLong();
+		} catch (EOFException e) {
+			return null;
+		}
+		Way w = new Way(id);
+		int size = (int) readVarLong(in);
+		long prev = 0;
+		for (int i = 0; i < size; i++) {
+			long l = readVarLong(in);
+			prev += (l >>> 1) ^ -(l & 1);
+			w.addNode(prev);
+		}
+		readTags(in, w);
+		return w;
+	}
+
+	private static void writeTags(DataOutputStream out, Entity e) throws IOException {
+		Map<String, String> tags = e.getTags();
+		writeVarLong(out, tags.size());
+		for (Map.Entry<String, String> t : tags.entrySet()) {
+			writeString(out, t.getKey());
+			writeString(out, t.getValue());
+		}
+	}
+
+	private static void readTags(DataInputStream in, Entity e) throws IOException {
+		int size = (int) readVarLong(in);
+		for (int i = 0; i < size; i++) {
+			String key = readString(in);
+			e.putTag(key, readString(in));
+		}
+	}
+
+	// length prefixed utf-8 bytes (writeUTF is limited by 65535 bytes), 0 length is null
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			writeVarLong(out, 0);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8"); //$NON-NLS-1$
+		writeVarLong(out, b.length + 1);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = (int) readVarLong(in);
+		if (length == 0) {
+			return null;
+		}
+		byte[] b = new byte[length - 1];
+		in.readFully(b);
+		return new String(b, "UTF-8"); //$NON-NLS-1$
+	}
+
+	private static long zigzag(long l) {
+		return (l << 1) ^ (l >> 63);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long l) throws IOException {
+		while ((l & ~0x7fL) != 0) {
+			out.writeByte((int) ((l & 0x7f) | 0x80));
+			l >>>= 7;
+		}
+		out.writeByte((int) l);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long l = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			l |= ((long) (b & 0x7f)) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return l;
+	}
+}
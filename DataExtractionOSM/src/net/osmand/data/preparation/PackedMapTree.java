@@ -0,0 +1,549 @@
+package net.osmand.data.preparation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * R-tree of map objects built by bulk loading (replaces inserts into disk based {@link rtree.RTree} and {@link rtree.Pack}).
+ * Tree is packed with the same Sort-Tile-Recursive algorithm as {@link rtree.Pack} : bounding boxes of objects
+ * (31 tile coordinates) are sorted by x (external sort : memory chunks are written to run files and merged),
+ * vertical slices are sorted by y and cut into leaf nodes, upper levels are packed the same way in memory.
+ * Pack file contains objects in order of depth-first traversal, so only bounds of nodes are kept in memory
+ * and objects are read sequentially when tree is written.
+ */
+public class PackedMapTree {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	// same as rtree.Node.MAX
+	public static final int NODE_SIZE = 40;
+
+	private final File workingDir;
+	private final int chunkSize;
+
+	// current chunk (sort key is sum of coordinates, i.e. doubled center)
+	private long[] keys;
+	private long[] ids;
+	private int[] minXs;
+	private int[] minYs;
+	private int[] maxXs;
+	private int[] maxYs;
+	private int chunkCount = 0;
+	private final List<File> runs = new ArrayList<File>();
+
+	private File packFile;
+	private long size = 0;
+	// levels[0] are leaf nodes, last level contains root only
+	// bounds of nodes (4 ints per node)
+	private final List<int[]> levelBounds = new ArrayList<int[]>();
+	// children of node k are [first[k], first[k + 1]) on lower level (or objects of pack file for leaf nodes)
+	private final List<long[]> levelFirstChild = new ArrayList<long[]>();
+
+	public PackedMapTree(File workingDir) {
+		this(workingDir, DEFAULT_CHUNK_SIZE);
+	}
+
+	public PackedMapTree(File workingDir, int chunkSize) {
+		this.workingDir = workingDir;
+		this.chunkSize = chunkSize;
+		allocateChunk(Math.min(chunkSize, 1 << 12));
+	}
+
+	/**
+	 * Opens tree packed by previous run (tree is packed again to restore nodes)
+	 */
+	public static PackedMapTree load(File packFile) throws IOException {
+		PackedMapTree tree = new PackedMapTree(packFile.getParentFile());
+		EntryReader reader = new EntryReader(packFile);
+		try {
+			while (reader.next()) {
+				tree.insert(reader.id, reader.minX, reader.minY, reader.maxX, reader.maxY);
+			}
+		} finally {
+			reader.close();
+		}
+		tree.pack(packFile);
+		return tree;
+	}
+
+	public void insert(long id, int minX, int minY, int maxX, int maxY) throws IOException {
+		if (packFile != null) {
+			throw new IllegalStateException("Tree is already packed"); //$NON-NLS-1$
+		}
+		if (chunkCount == ids.length) {
+			if (chunkCount >= chunkSize) {
+				setKeys(0, chunkCount, true);
+				sort(0, chunkCount - 1);
+				writeRun();
+			} else {
+				allocateChunk(Math.min(chunkSize, chunkCount * 2));
+			}
+		}
+		ids[chunkCount] = id;
+		minXs[chunkCount] = minX;
+		minYs[chunkCount] = minY;
+		maxXs[chunkCount] = maxX;
+		maxYs[chunkCount] = maxY;
+		chunkCount++;
+		size++;
+	}
+
+	/**
+	 * Packs inserted objects into pack file and builds nodes of tree
+	 */
+	public void pack(File packFile) throws IOException {
+		if (this.packFile != null) {
+			throw new IllegalStateException("Tree is already packed"); //$NON-NLS-1$
+		}
+		this.packFile = packFile;
+		// objects in order of leaf nodes
+		File leavesFile = File.createTempFile("map", ".leaves", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		try {
+			if (runs.isEmpty()) {
+				sortTiles(chunkCount);
+				writeChunk(leavesFile);
+			} else {
+				setKeys(0, chunkCount, true);
+				sort(0, chunkCount - 1);
+				writeRun();
+				mergeRuns(leavesFile);
+			}
+			int[] leafOrder = buildLevels(leavesFile);
+			writePackFile(leavesFile, leafOrder);
+		} finally {
+			leavesFile.delete();
+		}
+		allocateChunk(0);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return number of levels of nodes (0 for empty tree), root is on level height - 1
+	 */
+	public int getHeight() {
+		return levelBounds.size();
+	}
+
+	/**
+	 * @return index of first child node on level - 1 (or first object for level 0)
+	 */
+	public long getFirstChild(int level, int node) {
+		return levelFirstChild.get(level)[node];
+	}
+
+	/**
+	 * @return number of children nodes on level - 1 (or objects for level 0)
+	 */
+	public int getChildrenCount(int level, int node) {
+		long[] first = levelFirstChild.get(level);
+		return (int) (first[node + 1] - first[node]);
+	}
+
+	public int getLeftX(int level, int node) {
+		return levelBounds.get(level)[node * 4];
+	}
+
+	public int getTopY(int level, int node) {
+		return levelBounds.get(level)[node * 4 + 1];
+	}
+
+	public int getRightX(int level, int node) {
+		return levelBounds.get(level)[node * 4 + 2];
+	}
+
+	public int getBottomY(int level, int node) {
+		return levelBounds.get(level)[node * 4 + 3];
+	}
+
+	/**
+	 * @return reader of objects in order of leaf nodes
+	 */
+	public EntryReader openEntries() throws IOException {
+		return new EntryReader(packFile);
+	}
+
+	public void close() {
+		allocateChunk(0);
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+		levelBounds.clear();
+		levelFirstChild.clear();
+	}
+
+	private void allocateChunk(int length) {
+		keys = Arrays.copyOf(keys == null ? new long[0] : keys, length);
+		ids = Arrays.copyOf(ids == null ? new long[0] : ids, length);
+		minXs = Arrays.copyOf(minXs == null ? new int[0] : minXs, length);
+		minYs = Arrays.copyOf(minYs == null ? new int[0] : minYs, length);
+		maxXs = Arrays.copyOf(maxXs == null ? new int[0] : maxXs, length);
+		maxYs = Arrays.copyOf(maxYs == null ? new int[0] : maxYs, length);
+		chunkCount = Math.min(chunkCount, length);
+	}
+
+	private static int getSliceSize(long count) {
+		long leaves = (count + NODE_SIZE - 1) / NODE_SIZE;
+		return (int) Math.ceil(Math.sqrt(leaves)) * NODE_SIZE;
+	}
+
+	/**
+	 * Sorts chunk by x and vertical slices by y, so every NODE_SIZE consecutive elements form node
+	 */
+	private void sortTiles(int count) {
+		setKeys(0, count, true);
+		sort(0, count - 1);
+		sortSlices(count, getSliceSize(count));
+	}
+
+	private void sortSlices(int count, int sliceSize) {
+		for (int start = 0; start < count; start += sliceSize) {
+			int end = Math.min(count, start + sliceSize);
+			setKeys(start, end, false);
+			sort(start, end - 1);
+		}
+	}
+
+	private void setKeys(int start, int end, boolean x) {
+		for (int i = start; i < end; i++) {
+			keys[i] = x ? (long) minXs[i] + maxXs[i] : (long) minYs[i] + maxYs[i];
+		}
+	}
+
+	/**
+	 * Creates nodes of all levels (leaf nodes are groups of objects in leaves file) and renumbers nodes
+	 * of every level in order of depth-first traversal
+	 * @return leaf nodes (indexes of groups in leaves file) in order of traversal
+	 */
+	private int[] buildLevels(File leavesFile) throws IOException {
+		levelBounds.clear();
+		levelFirstChild.clear();
+		if (size == 0) {
+			return new int[0];
+		}
+		List<int[]> bounds = new ArrayList<int[]>();
+		// children in order of packing, children of node k are children[k * NODE_SIZE ...]
+		List<int[]> children = new ArrayList<int[]>();
+		int[] leaves = new int[(int) ((size + NODE_SIZE - 1) / NODE_SIZE) * 4];
+		EntryReader reader = new EntryReader(leavesFile);
+		try {
+			long i = 0;
+			while (reader.next()) {
+				expand(leaves, (int) (i / NODE_SIZE), i % NODE_SIZE == 0, reader.minX, reader.minY, reader.maxX, reader.maxY);
+				i++;
+			}
+		} finally {
+			reader.close();
+		}
+		bounds.add(leaves);
+		children.add(null);
+		int[] lower = leaves;
+		while (lower.length > 4) {
+			int count = lower.length / 4;
+			allocateChunk(Math.max(ids.length, count));
+			for (int i = 0; i < count; i++) {
+				ids[i] = i;
+				minXs[i] = lower[i * 4];
+				minYs[i] = lower[i * 4 + 1];
+				maxXs[i] = lower[i * 4 + 2];
+				maxYs[i] = lower[i * 4 + 3];
+			}
+			sortTiles(count);
+			int[] upper = new int[(count + NODE_SIZE - 1) / NODE_SIZE * 4];
+			int[] upperChildren = new int[count];
+			for (int i = 0; i < count; i++) {
+				upperChildren[i] = (int) ids[i];
+				expand(upper, i / NODE_SIZE, i % NODE_SIZE == 0, minXs[i], minYs[i], maxXs[i], maxYs[i]);
+			}
+			bounds.add(upper);
+			children.add(upperChildren);
+			lower = upper;
+		}
+		chunkCount = 0;
+
+		// depth-first numbering from root
+		int[] order = new int[] { 0 };
+		for (int level = bounds.size() - 1; level >= 0; level--) {
+			int[] b = bounds.get(level);
+			int[] newBounds = new int[b.length];
+			long[] first = new long[order.length + 1];
+			int[] lowerOrder = level == 0 ? null : new int[children.get(level).length];
+			long childrenCount = 0;
+			for (int i = 0; i < order.length; i++) {
+				int node = order[i];
+				System.arraycopy(b, node * 4, newBounds, i * 4, 4);
+				long lowerSize = level == 0 ? size : children.get(level).length;
+				int cnt = (int) Math.min(NODE_SIZE, lowerSize - (long) node * NODE_SIZE);
+				if (lowerOrder != null) {
+					System.arraycopy(children.get(level), node * NODE_SIZE, lowerOrder, (int) childrenCount, cnt);
+				}
+				first[i] = childrenCount;
+				childrenCount += cnt;
+			}
+			first[order.length] = childrenCount;
+			levelBounds.add(0, newBounds);
+			levelFirstChild.add(0, first);
+			if (lowerOrder != null) {
+				order = lowerOrder;
+			}
+		}
+		return order;
+	}
+
+	private void writePackFile(File leavesFile, int[] leafOrder) throws IOException {
+		if (packFile.exists()) {
+			packFile.delete();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packFile), 1 << 16));
+		RandomAccessFile raf = new RandomAccessFile(leavesFile, "r"); //$NON-NLS-1$
+		try {
+			byte[] buf = new byte[NODE_SIZE * EntryReader.RECORD_SIZE];
+			for (int i = 0; i < leafOrder.length; i++) {
+				int len = getChildrenCount(0, i) * EntryReader.RECORD_SIZE;
+				raf.seek((long) leafOrder[i] * buf.length);
+				raf.readFully(buf, 0, len);
+				out.write(buf, 0, len);
+			}
+		} finally {
+			raf.close();
+			out.close();
+		}
+	}
+
+	private static void expand(int[] bounds, int node, boolean init, int minX, int minY, int maxX, int maxY) {
+		int o = node * 4;
+		if (init) {
+			bounds[o] = minX;
+			bounds[o + 1] = minY;
+			bounds[o + 2] = maxX;
+			bounds[o + 3] = maxY;
+		} else {
+			bounds[o] = Math.min(bounds[o], minX);
+			bounds[o + 1] = Math.min(bounds[o + 1], minY);
+			bounds[o + 2] = Math.max(bounds[o + 2], maxX);
+			bounds[o + 3] = Math.max(bounds[o + 3], maxY);
+		}
+	}
+
+	private int compare(int i, int j) {
+		if (keys[i] != keys[j]) {
+			return keys[i] < keys[j] ? -1 : 1;
+		}
+		return ids[i] < ids[j] ? -1 : (ids[i] == ids[j] ? 0 : 1);
+	}
+
+	// quick sort of parallel arrays by (key, id)
+	private void sort(int lo, int hi) {
+		while (lo < hi) {
+			if (hi - lo < 16) {
+				for (int i = lo + 1; i <= hi; i++) {
+					for (int j = i; j > lo && compare(j - 1, j) > 0; j--) {
+						swap(j, j - 1);
+					}
+				}
+				return;
+			}
+			// pivot is moved to the end of range, so it is not swapped while partitioning
+			swap((lo + hi) >>> 1, hi);
+			int i = lo;
+			for (int j = lo; j < hi; j++) {
+				if (compare(j, hi) < 0) {
+					swap(i++, j);
+				}
+			}
+			swap(i, hi);
+			if (i - lo < hi - i) {
+				sort(lo, i - 1);
+				lo = i + 1;
+			} else {
+				sort(i + 1, hi);
+				hi = i - 1;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		long l = keys[i];
+		keys[i] = keys[j];
+		keys[j] = l;
+		l = ids[i];
+		ids[i] = ids[j];
+		ids[j] = l;
+		int t = minXs[i];
+		minXs[i] = minXs[j];
+		minXs[j] = t;
+		t = minYs[i];
+		minYs[i] = minYs[j];
+		minYs[j] = t;
+		t = maxXs[i];
+		maxXs[i] = maxXs[j];
+		maxXs[j] = t;
+		t = maxYs[i];
+		maxYs[i] = maxYs[j];
+		maxYs[j] = t;
+	}
+
+	private void writeChunk(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			for (int i = 0; i < chunkCount; i++) {
+				writeEntry(out, ids[i], minXs[i], minYs[i], maxXs[i], maxYs[i]);
+			}
+		} finally {
+			out.close();
+		}
+		chunkCount = 0;
+	}
+
+	private static void writeEntry(DataOutputStream out, long id, int minX, int minY, int maxX, int maxY) throws IOException {
+		out.writeLong(id);
+		out.writeInt(minX);
+		out.writeInt(minY);
+		out.writeInt(maxX);
+		out.writeInt(maxY);
+	}
+
+	// chunk should be sorted by x
+	private void writeRun() throws IOException {
+		File run = File.createTempFile("map", ".run", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		runs.add(run);
+		writeChunk(run);
+	}
+
+	/**
+	 * Merges runs sorted by x, vertical slices are sorted by y in memory
+	 */
+	private void mergeRuns(File leavesFile) throws IOException {
+		int sliceSize = getSliceSize(size);
+		allocateChunk(sliceSize);
+		PriorityQueue<EntryReader> queue = new PriorityQueue<EntryReader>(runs.size());
+		for (File f : runs) {
+			EntryReader r = new EntryReader(f);
+			if (r.next()) {
+				queue.add(r);
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(leavesFile), 1 << 16));
+		try {
+			while (!queue.isEmpty()) {
+				EntryReader r = queue.poll();
+				ids[chunkCount] = r.id;
+				minXs[chunkCount] = r.minX;
+				minYs[chunkCount] = r.minY;
+				maxXs[chunkCount] = r.maxX;
+				maxYs[chunkCount] = r.maxY;
+				chunkCount++;
+				if (chunkCount == sliceSize) {
+					writeSlice(out);
+				}
+				if (r.next()) {
+					queue.add(r);
+				}
+			}
+			writeSlice(out);
+		} finally {
+			out.close();
+			for (EntryReader r : queue) {
+				r.close();
+			}
+		}
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+	}
+
+	private void writeSlice(DataOutputStream out) throws IOException {
+		setKeys(0, chunkCount, false);
+		sort(0, chunkCount - 1);
+		for (int i = 0; i < chunkCount; i++) {
+			writeEntry(out, ids[i], minXs[i], minYs[i], maxXs[i], maxYs[i]);
+		}
+		chunkCount = 0;
+	}
+
+	/**
+	 * Sequential reader of pack file (or run file)
+	 */
+	public static class EntryReader implements Comparable<EntryReader> {
+		// id (long), minX, minY, maxX, maxY (int)
+		private static final int RECORD_SIZE = 24;
+
+		private final DataInputStream in;
+		private long id;
+		private int minX;
+		private int minY;
+		private int maxX;
+		private int maxY;
+
+		private EntryReader(File f) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		}
+
+		public boolean next() throws IOException {
+			try {
+				id = in.readLong();
+				minX = in.readInt();
+				minY = in.readInt();
+				maxX = in.readInt();
+				maxY = in.readInt();
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public int getLeftX() {
+			return minX;
+		}
+
+		public int getTopY() {
+			return minY;
+		}
+
+		public int getRightX() {
+			return maxX;
+		}
+
+		public int getBottomY() {
+			return maxY;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public int compareTo(EntryReader o) {
+			long key = (long) minX + maxX;
+			long okey = (long) o.minX + o.maxX;
+			if (key != okey) {
+				return key < okey ? -1 : 1;
+			}
+			return id < o.id ? -1 : (id == o.id ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package net.osmand.data.preparation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.osmand.osm.Node;
+
+/**
+ * Sparse store : coordinates of nodes are kept sorted by id.
+ * Nodes are collected in memory chunks, full chunks are sorted and written to run files
+ * that are merged into one file (mapped into memory) when loading is finished.
+ * Small extracts never touch disk.
+ */
+public class SortedNodeCoordinatesStore extends NodeCoordinatesStore {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+	// id (long), lat (int), lon (int)
+	private static final int RECORD_SIZE = 16;
+	// every 2^BLOCK_SHIFT-th id of file is kept in memory to narrow binary search
+	private static final int BLOCK_SHIFT = 8;
+	private static final int SEGMENT_RECORDS = 1 << 26;
+
+	private final File workingDir;
+	private final int chunkSize;
+
+	// current chunk (and all nodes if no run file was written)
+	private long[] ids;
+	private int[] lats;
+	private int[] lons;
+	private int chunkCount = 0;
+	private boolean chunkSorted = true;
+	private final List<File> runs = new ArrayList<File>();
+
+	// merged file
+	private File storeFile;
+	private long[] blockIds;
+	private MappedByteBuffer[] segments;
+	private long size = 0;
+	private boolean finished = false;
+
+	public SortedNodeCoordinatesStore(File workingDir) {
+		this(workingDir, DEFAULT_CHUNK_SIZE);
+	}
+
+	public SortedNodeCoordinatesStore(File workingDir, int chunkSize) {
+		this.workingDir = workingDir;
+		this.chunkSize = chunkSize;
+		ids = new long[Math.min(chunkSize, 1 << 16)];
+		lats = new int[ids.length];
+		lons = new int[ids.length];
+	}
+
+	@Override
+	public void addNode(long id, double latitude, double longitude) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("Store is already finished"); //$NON-NLS-1$
+		}
+		if (chunkCount == ids.length) {
+			if (chunkCount >= chunkSize) {
+				writeRun();
+			} else {
+				int l = Math.min(chunkSize, chunkCount * 2);
+				ids = Arrays.copyOf(ids, l);
+				lats = Arrays.copyOf(lats, l);
+				lons = Arrays.copyOf(lons, l);
+			}
+		}
+		if (chunkCount > 0 && ids[chunkCount - 1] >= id) {
+			chunkSorted = false;
+		}
+		ids[chunkCount] = id;
+		lats[chunkCount] = toFixedPoint(latitude);
+		lons[chunkCount] = toFixedPoint(longitude);
+		chunkCount++;
+		size++;
+	}
+
+	@Override
+	public void finishLoading() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (runs.isEmpty()) {
+			sortChunk();
+			size = chunkCount;
+			return;
+		}
+		writeRun();
+		ids = null;
+		lats = null;
+		lons = null;
+		storeFile = File.createTempFile("nodes", ".coords", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		mergeRuns();
+		mapStoreFile();
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public long getHeapMemory() {
+		if (segments == null) {
+			return ids == null ? 0 : (long) ids.length * RECORD_SIZE;
+		}
+		return (long) blockIds.length * 8;
+	}
+
+	@Override
+	public long getMappedMemory() {
+		return segments == null ? 0 : size * RECORD_SIZE;
+	}
+
+	@Override
+	protected Node getNodeInternal(long id) {
+		long index = findNode(id);
+		if (index < 0) {
+			return null;
+		}
+		if (segments == null) {
+			return new Node(fromFixedPoint(lats[(int) index]), fromFixedPoint(lons[(int) index]), id);
+		}
+		MappedByteBuffer segment = segment(index);
+		int offset = offset(index);
+		return new Node(fromFixedPoint(segment.getInt(offset + 8)), fromFixedPoint(segment.getInt(offset + 12)), id);
+	}
+
+	/**
+	 * @return index of node or -1 if node is not in the store
+	 */
+	private long findNode(long id) {
+		if (segments == null) {
+			long index = binarySearch(ids, 0, chunkCount, id);
+			return index < 0 ? -1 : index;
+		}
+		long block = binarySearch(blockIds, 0, blockIds.length, id);
+		if (block < 0) {
+			block = -block - 2;
+			if (block < 0) {
+				return -1;
+			}
+		}
+		long lo = block << BLOCK_SHIFT;
+		long hi = Math.min(size, lo + (1 << BLOCK_SHIFT)) - 1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			long midId = getId(mid);
+			if (midId < id) {
+				lo = mid + 1;
+			} else if (midId > id) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public void close() {
+		ids = null;
+		lats = null;
+		lons = null;
+		segments = null;
+		blockIds = null;
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+		if (storeFile != null && !storeFile.delete()) {
+			// could be still mapped
+			storeFile.deleteOnExit();
+		}
+	}
+
+	private long getId(long index) {
+		return segment(index).getLong(offset(index));
+	}
+
+	private MappedByteBuffer segment(long index) {
+		return segments[(int) (index / SEGMENT_RECORDS)];
+	}
+
+	private int offset(long index) {
+		return (int) (index % SEGMENT_RECORDS) * RECORD_SIZE;
+	}
+
+	private static long binarySearch(long[] a, int from, int to, long key) {
+		int lo = from;
+		int hi = to - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < key) {
+				lo = mid + 1;
+			} else if (a[mid] > key) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	private void sortChunk() {
+		if (!chunkSorted) {
+			sort(0, chunkCount - 1);
+			chunkSorted = true;
+		}
+	}
+
+	// quick sort of 3 parallel arrays
+	private void sort(int lo, int hi) {
+		while (lo < hi) {
+			if (hi - lo < 16) {
+				for (int i = lo + 1; i <= hi; i++) {
+					for (int j = i; j > lo && ids[j - 1] > ids[j]; j--) {
+						swap(j, j - 1);
+					}
+				}
+				return;
+			}
+			long pivot = ids[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (ids[i] < pivot) {
+					i++;
+				}
+				while (ids[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (j - lo < hi - i) {
+				sort(lo, j);
+				lo = i;
+			} else {
+				sort(i, hi);
+				hi = j;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		long id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		int t = lats[i];
+		lats[i] = lats[j];
+		lats[j] = t;
+		t = lons[i];
+		lons[i] = lons[j];
+		lons[j] = t;
+	}
+
+	private void writeRun() throws IOException {
+		sortChunk();
+		File run = File.createTempFile("nodes", ".run", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			for (int i = 0; i < chunkCount; i++) {
+				out.writeLong(ids[i]);
+				out.writeInt(lats[i]);
+				out.writeInt(lons[i]);
+			}
+		} finally {
+			out.close();
+		}
+		chunkCount = 0;
+	}
+
+	private static class RunReader implements Comparable<RunReader> {
+		final DataInputStream in;
+		long id;
+		int lat;
+		int lon;
+
+		RunReader(File f) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		}
+
+		boolean next() throws IOException {
+			try {
+				id = in.readLong();
+				lat = in.readInt();
+				lon = in.readInt();
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		@Override
+		public int compareTo(RunReader o) {
+			return id < o.id ? -1 : (id == o.id ? 0 : 1);
+		}
+	}
+
+	private void mergeRuns() throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size());
+		for (File f : runs) {
+			RunReader r = new RunReader(f);
+			if (r.next()) {
+				queue.add(r);
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile), 1 << 16));
+		size = 0;
+		long prevId = 0;
+		try {
+			while (!queue.isEmpty()) {
+				RunReader r = queue.poll();
+				// duplicated ids are written once
+				if (size == 0 || r.id != prevId) {
+					out.writeLong(r.id);
+					out.writeInt(r.lat);
+					out.writeInt(r.lon);
+					prevId = r.id;
+					size++;
+				}
+				if (r.next()) {
+					queue.add(r);
+				}
+			}
+		} finally {
+			out.close();
+			for (RunReader r : queue) {
+				r.in.close();
+			}
+		}
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+	}
+
+	private void mapStoreFile() throws IOException {
+		int segmentsCount = (int) ((size + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+		segments = new MappedByteBuffer[segmentsCount];
+		RandomAccessFile raf = new RandomAccessFile(storeFile, "r"); //$NON-NLS-1$
+		try {
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < segmentsCount; i++) {
+				long start = (long) i * SEGMENT_RECORDS;
+				long records = Math.min(SEGMENT_RECORDS, size - start);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start * RECORD_SIZE, records * RECORD_SIZE);
+			}
+		} finally {
+			// mapping stays valid after channel is closed
+			raf.close();
+		}
+		blockIds = new long[(int) ((size + (1 << BLOCK_SHIFT) - 1) >> BLOCK_SHIFT)];
+		for (int i = 0; i < blockIds.length; i++) {
+			blockIds[i] = getId((long) i << BLOCK_SHIFT);
+		}
+	}
+}
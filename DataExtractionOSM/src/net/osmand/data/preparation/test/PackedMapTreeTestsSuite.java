@@ -0,0 +1,189 @@
+package net.osmand.data.preparation.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.osmand.data.preparation.PackedMapTree;
+import rtree.Element;
+import rtree.IllegalValueException;
+import rtree.LeafElement;
+import rtree.NonLeafElement;
+import rtree.Pack;
+import rtree.RTree;
+import rtree.RTreeException;
+import rtree.RTreeInsertException;
+import rtree.Rect;
+
+/**
+ * Compares map tree bulk loaded by {@link PackedMapTree} with tree built by inserts into {@link RTree} and {@link Pack}
+ * (as map index was built before) : time to build and for random requests of zooms 7..17 found objects and number of read
+ * subtrees (subtrees intersecting request, the same check as in BinaryMapIndexReader.searchMapIndex).
+ * Search time of rtree includes reading its nodes from file, nodes of packed map tree are in memory :
+ * <pre>PackedMapTreeTestsSuite [objects [requests [working_dir]]]</pre>
+ */
+public class PackedMapTreeTestsSuite {
+
+	public static void main(String[] args) throws IOException, RTreeException {
+		int objects = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+		File workingDir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir")); //$NON-NLS-1$
+		testMapTree(objects, requests, workingDir);
+	}
+
+	/**
+	 * Objects are points (poi) and small boxes (ways) around several centers like in city extracts
+	 */
+	private static int[][] generateObjects(int count, Random random) {
+		int[][] bounds = new int[count][];
+		int[] centerX = new int[8];
+		int[] centerY = new int[8];
+		for (int i = 0; i < centerX.length; i++) {
+			centerX[i] = (1 << 30) + random.nextInt(1 << 24);
+			centerY[i] = (1 << 29) + random.nextInt(1 << 24);
+		}
+		for (int i = 0; i < count; i++) {
+			int c = random.nextInt(centerX.length);
+			int x = centerX[c] + (int) (random.nextGaussian() * (1 << 20));
+			int y = centerY[c] + (int) (random.nextGaussian() * (1 << 20));
+			if (random.nextInt(5) == 0) {
+				bounds[i] = new int[] { x, y, x + random.nextInt(1 << 14), y + random.nextInt(1 << 14) };
+			} else {
+				bounds[i] = new int[] { x, y, x, y };
+			}
+		}
+		return bounds;
+	}
+
+	private static void testMapTree(int objects, int requests, File workingDir) throws IOException, RTreeException {
+		int[][] bounds = generateObjects(objects, new Random(11));
+
+		long time = System.currentTimeMillis();
+		File nonPackFile = File.createTempFile("map", ".rtree", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		File rtreePackFile = File.createTempFile("map", ".prtree", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		nonPackFile.delete();
+		rtreePackFile.delete();
+		RTree rtree = new RTree(nonPackFile.getAbsolutePath());
+		for (int i = 0; i < objects; i++) {
+			try {
+				rtree.insert(new LeafElement(new Rect(bounds[i][0], bounds[i][1], bounds[i][2], bounds[i][3]), i));
+			} catch (RTreeInsertException e) {
+				throw new IllegalArgumentException(e);
+			} catch (IllegalValueException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		rtree.flush();
+		long insertTime = System.currentTimeMillis() - time;
+		new Pack().packTree(rtree, rtreePackFile.getAbsolutePath());
+		rtree.getFileHdr().getFile().close();
+		rtree = new RTree(rtreePackFile.getAbsolutePath());
+		long rtreeTime = System.currentTimeMillis() - time;
+
+		time = System.currentTimeMillis();
+		PackedMapTree tree = new PackedMapTree(workingDir);
+		for (int i = 0; i < objects; i++) {
+			tree.insert(i, bounds[i][0], bounds[i][1], bounds[i][2], bounds[i][3]);
+		}
+		long packedInsertTime = System.currentTimeMillis() - time;
+		File packFile = File.createTempFile("map", ".pack", workingDir); //$NON-NLS-1$ //$NON-NLS-2$
+		tree.pack(packFile);
+		long packedTime = System.currentTimeMillis() - time;
+		System.out.println(MessageFormat.format("{0} objects : rtree insert {1} ms, pack {2} ms; packed map tree insert {3} ms, pack {4} ms",
+				objects, insertTime, rtreeTime - insertTime, packedInsertTime, packedTime - packedInsertTime));
+
+		// objects of packed tree in order of leaf nodes
+		long[] packedIds = new long[objects];
+		int[][] packedBounds = new int[objects][];
+		PackedMapTree.EntryReader entries = tree.openEntries();
+		for (int i = 0; entries.next(); i++) {
+			packedIds[i] = entries.getId();
+			packedBounds[i] = new int[] { entries.getLeftX(), entries.getTopY(), entries.getRightX(), entries.getBottomY() };
+		}
+
+		Random random = new Random(13);
+		int[] rtreeSubtrees = new int[1];
+		int[] packedSubtrees = new int[1];
+		long rtreeSearchTime = 0;
+		long packedSearchTime = 0;
+		int found = 0;
+		for (int i = 0; i < requests; i++) {
+			int zoom = 7 + i % 11;
+			int[] b = bounds[random.nextInt(objects)];
+			int size = 1 << (31 - zoom);
+			int[] req = new int[] { b[0] - size / 2, b[1] - size / 2, b[0] + size / 2, b[1] + size / 2 };
+
+			long t = System.nanoTime();
+			List<Long> rtreeResult = new ArrayList<Long>();
+			searchRTree(rtree, rtree.getReadNode(rtree.getFileHdr().getRootIndex()), req, rtreeResult, rtreeSubtrees);
+			rtreeSearchTime += System.nanoTime() - t;
+
+			t = System.nanoTime();
+			List<Long> packedResult = new ArrayList<Long>();
+			if (tree.getHeight() > 0) {
+				searchPackedTree(tree, tree.getHeight() - 1, 0, packedIds, packedBounds, req, packedResult, packedSubtrees);
+			}
+			packedSearchTime += System.nanoTime() - t;
+
+			Collections.sort(rtreeResult);
+			Collections.sort(packedResult);
+			if (!rtreeResult.equals(packedResult)) {
+				throw new IllegalArgumentException(MessageFormat.format("Request {0} (zoom {1}) : {2} objects in rtree, {3} in packed map tree",
+						i, zoom, rtreeResult.size(), packedResult.size()));
+			}
+			found += packedResult.size();
+		}
+		System.out.println(MessageFormat.format("{0} requests, same {1} objects found : rtree {2} subtrees read, {3} ms; "
+				+ "packed map tree {4} subtrees read, {5} ms", requests, found, rtreeSubtrees[0], rtreeSearchTime / 1e6,
+				packedSubtrees[0], packedSearchTime / 1e6));
+
+		tree.close();
+		rtree.getFileHdr().getFile().close();
+		packFile.delete();
+		nonPackFile.delete();
+		rtreePackFile.delete();
+	}
+
+	private static boolean intersects(int[] req, int left, int top, int right, int bottom) {
+		return !(right < req[0] || left > req[2] || top > req[3] || bottom < req[1]);
+	}
+
+	private static void searchRTree(RTree r, rtree.Node parent, int[] req, List<Long> result, int[] subtrees) throws RTreeException {
+		Element[] e = parent.getAllElements();
+		for (int i = 0; i < parent.getTotalElements(); i++) {
+			Rect re = e[i].getRect();
+			if (!intersects(req, re.getMinX(), re.getMinY(), re.getMaxX(), re.getMaxY())) {
+				continue;
+			}
+			if (e[i].getElementType() == rtree.Node.LEAF_NODE) {
+				result.add(((LeafElement) e[i]).getPtr());
+			} else {
+				subtrees[0]++;
+				searchRTree(r, r.getReadNode(((NonLeafElement) e[i]).getPtr()), req, result, subtrees);
+			}
+		}
+	}
+
+	private static void searchPackedTree(PackedMapTree tree, int level, int node, long[] ids, int[][] bounds, int[] req,
+			List<Long> result, int[] subtrees) {
+		long first = tree.getFirstChild(level, node);
+		int count = tree.getChildrenCount(level, node);
+		for (int i = 0; i < count; i++) {
+			int child = (int) (first + i);
+			if (level == 0) {
+				int[] b = bounds[child];
+				if (intersects(req, b[0], b[1], b[2], b[3])) {
+					result.add(ids[child]);
+				}
+			} else if (intersects(req, tree.getLeftX(level - 1, child), tree.getTopY(level - 1, child),
+					tree.getRightX(level - 1, child), tree.getBottomY(level - 1, child))) {
+				subtrees[0]++;
+				searchPackedTree(tree, level - 1, child, ids, bounds, req, result, subtrees);
+			}
+		}
+	}
+}
@@ -1,22 +1,35 @@
 package net.osmand.osm.io;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import net.osmand.IProgress;
+import net.osmand.LogUtil;
 import net.osmand.osm.Entity;
 import net.osmand.osm.EntityInfo;
 import net.osmand.osm.Node;
@@ -25,11 +38,16 @@ import net.osmand.osm.Way;
 import net.osmand.osm.Entity.EntityId;
 import net.osmand.osm.Entity.EntityType;
 
+import org.apache.commons.logging.Log;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.google.protobuf.ByteString;
+
 import crosby.binary.BinaryParser;
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
 import crosby.binary.Osmformat.DenseNodes;
 import crosby.binary.Osmformat.HeaderBlock;
 import crosby.binary.Osmformat.Info;
@@ -39,6 +57,10 @@ import crosby.binary.file.BlockInputStream;
 
 public class OsmBaseStorage extends DefaultHandler {
 
+	private static final Log log = LogUtil.getLog(OsmBaseStorage.class);
+	// features of pbf file which parser supports (file requiring other features can't be read)
+	private static final Set<String> SUPPORTED_PBF_FEATURES = new HashSet<String>(Arrays.asList("OsmSchema-V0.6", "DenseNodes")); //$NON-NLS-1$ //$NON-NLS-2$
+
 	protected static final String ELEM_OSM = "osm"; //$NON-NLS-1$
 	protected static final String ELEM_NODE = "node"; //$NON-NLS-1$
 	protected static final String ELEM_TAG = "tag"; //$NON-NLS-1$
@@ -294,191 +316,381 @@ public class OsmBaseStorage extends DefaultHandler {
 	}
 	
 	public synchronized void parseOSMPbf(final InputStream stream, final IProgress progress, final boolean entityInfo) throws IOException {
-		BinaryParser parser = new BinaryParser(){
-			public void updateProgress(int count){
-				progressEntity += count;
-				if(progress != null && progressEntity > moduleProgress &&	!progress.isIndeterminate()){
-					try {
-						progressEntity = 0;
-						progress.remaining(stream.available());
-					} catch (IOException e) {
-						progress.startWork(-1);
+		parseOSMPbf(stream, progress, entityInfo, 1);
+	}
+
+	/**
+	 * @param threads number of threads to inflate and decode blocks (1 - blocks are decoded in caller thread).
+	 * Entities are always registered (and passed to filters) in caller thread in file order.
+	 */
+	public synchronized void parseOSMPbf(final InputStream stream, final IProgress progress, final boolean entityInfo, int threads)
+			throws IOException {
+		this.progressEntity = 0;
+		this.entities.clear();
+		this.entityInfo.clear();
+		if(progress != null){
+			progress.startWork(stream.available());
+		}
+
+		long time = System.currentTimeMillis();
+		int blocks = 0;
+		long count = 0;
+		if (threads <= 1) {
+			OsmPbfParser parser = new OsmPbfParser(stream, progress, entityInfo, false);
+			BlockInputStream bis = new BlockInputStream(stream, parser);
+			bis.process();
+			blocks = parser.blocks;
+			count = parser.count;
+		} else {
+			long[] stat = parseOSMPbfInParallel(stream, progress, entityInfo, threads);
+			blocks = (int) stat[0];
+			count = stat[1];
+		}
+		time = Math.max(System.currentTimeMillis() - time, 1);
+		log.info("Pbf parsed with " + threads + " threads in " + time + " ms : " + blocks + " blocks (" + (blocks * 1000L / time) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ " blocks/sec), " + count + " entities (" + (count * 1000L / time) + " entities/sec)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		if(progress != null){
+			progress.finishTask();
+		}
+		completeReading();
+	}
+
+	/**
+	 * Blocks are read in caller thread, inflated and decoded by executor and registered in file order.
+	 * Not more than 2 * threads decoded blocks wait to be registered.
+	 * @return count of blocks and count of entities
+	 */
+	private long[] parseOSMPbfInParallel(final InputStream stream, final IProgress progress, final boolean entityInfo, int threads)
+			throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Pbf block decoder"); //$NON-NLS-1$
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		int maxDecodedBlocks = threads * 2;
+		LinkedList<Future<OsmPbfParser>> decodedBlocks = new LinkedList<Future<OsmPbfParser>>();
+		long[] stat = new long[2];
+		DataInputStream in = new DataInputStream(stream);
+		try {
+			while (true) {
+				int headerLength;
+				try {
+					headerLength = in.readInt();
+				} catch (EOFException e) {
+					// available() doesn't mean end of file for every stream, so file ends when next block header is not found
+					break;
+				}
+				byte[] header = new byte[headerLength];
+				in.readFully(header);
+				Fileformat.BlockHeader blockHeader = Fileformat.BlockHeader.parseFrom(header);
+				final byte[] blob = new byte[blockHeader.getDatasize()];
+				in.readFully(blob);
+				if ("OSMHeader".equals(blockHeader.getType())) { //$NON-NLS-1$
+					checkRequiredFeatures(HeaderBlock.parseFrom(decodeBlob(blob)));
+					continue;
+				} else if (!"OSMData".equals(blockHeader.getType())) { //$NON-NLS-1$
+					continue;
+				}
+				if (decodedBlocks.size() >= maxDecodedBlocks) {
+					registerDecodedBlock(decodedBlocks.removeFirst(), stat);
+				}
+				decodedBlocks.add(executor.submit(new Callable<OsmPbfParser>() {
+					@Override
+					public OsmPbfParser call() throws IOException {
+						OsmPbfParser parser = new OsmPbfParser(stream, progress, entityInfo, true);
+						parser.parse(Osmformat.PrimitiveBlock.parseFrom(decodeBlob(blob)));
+						return parser;
 					}
+				}));
+			}
+			while (!decodedBlocks.isEmpty()) {
+				registerDecodedBlock(decodedBlocks.removeFirst(), stat);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return stat;
+	}
+
+	private void registerDecodedBlock(Future<OsmPbfParser> f, long[] stat) throws IOException {
+		OsmPbfParser parser;
+		try {
+			parser = f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Parsing is interrupted"); //$NON-NLS-1$
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		int size = parser.decodedEntities.size();
+		for (int i = 0; i < size; i++) {
+			Entity e = parser.decodedEntities.get(i);
+			parser.registerDecodedEntity(EntityType.valueOf(e), e, parser.decodedInfo == null ? null : parser.decodedInfo.get(i));
+		}
+		parser.updateDecodedProgress(size);
+		stat[0]++;
+		stat[1] += size;
+	}
+
+	private static void checkRequiredFeatures(HeaderBlock header) {
+		for (String feature : header.getRequiredFeaturesList()) {
+			if (!SUPPORTED_PBF_FEATURES.contains(feature)) {
+				throw new IllegalArgumentException("Pbf file requires unsupported feature " + feature); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private static ByteString decodeBlob(byte[] data) throws IOException {
+		Fileformat.Blob blob = Fileformat.Blob.parseFrom(data);
+		if (blob.hasRaw()) {
+			return blob.getRaw();
+		} else if (blob.hasZlibData()) {
+			byte[] raw = new byte[blob.getRawSize()];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(blob.getZlibData().toByteArray());
+				inflater.inflate(raw);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted pbf block : " + e.getMessage()); //$NON-NLS-1$
+			} finally {
+				inflater.end();
+			}
+			return ByteString.copyFrom(raw);
+		}
+		throw new IOException("Pbf block compression is not supported"); //$NON-NLS-1$
+	}
+
+	/**
+	 * Converts decoded blocks to entities. Entities are registered right away or
+	 * collected to be registered later (when block is decoded not in the reading thread).
+	 */
+	private class OsmPbfParser extends BinaryParser {
+
+		private final InputStream stream;
+		private final IProgress progress;
+		private final boolean entityInfo;
+		private final boolean collectEntities;
+		private final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"); //$NON-NLS-1$
+
+		private List<Entity> decodedEntities;
+		private List<EntityInfo> decodedInfo;
+		private int blocks = 0;
+		private long count = 0;
+
+		OsmPbfParser(InputStream stream, IProgress progress, boolean entityInfo, boolean collectEntities) {
+			this.stream = stream;
+			this.progress = progress;
+			this.entityInfo = entityInfo;
+			this.collectEntities = collectEntities;
+			if (collectEntities) {
+				decodedEntities = new ArrayList<Entity>();
+				if (entityInfo) {
+					decodedInfo = new ArrayList<EntityInfo>();
 				}
 			}
-			
-			public void registerEntity(EntityType type, Entity e, EntityInfo info) {
-				EntityId entityId = new EntityId(type, e.getId());
-				if (acceptEntityToLoad(entityId, e)) {
-					Entity oldEntity = entities.put(entityId, e);
-					if (info != null) {
-						OsmBaseStorage.this.entityInfo.put(entityId, info);
-					}
-					if (!supressWarnings && oldEntity != null) {
-						throw new UnsupportedOperationException("Entity with id=" + oldEntity.getId() + " is duplicated in osm map"); //$NON-NLS-1$ //$NON-NLS-2$
-					}
+		}
+
+		@Override
+		public void parse(Osmformat.PrimitiveBlock block) {
+			blocks++;
+			super.parse(block);
+		}
+
+		void updateDecodedProgress(int count) {
+			progressEntity += count;
+			if (progress != null && progressEntity > moduleProgress && !progress.isIndeterminate()) {
+				try {
+					progressEntity = 0;
+					progress.remaining(stream.available());
+				} catch (IOException e) {
+					progress.startWork(-1);
 				}
 			}
-			
-			@Override
-			protected void parse(HeaderBlock header) {
+		}
+
+		void updateProgress(int count) {
+			if (!collectEntities) {
+				updateDecodedProgress(count);
 			}
-			
-			private DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"); //$NON-NLS-1$
+		}
 
-			@Override
-			protected void parseDense(DenseNodes n) {
-				EntityInfo info = null;
-				long changeset = 0;
-				long timestamp = 0;
-				int uid = 0;
-				int user = 0;
-				long id = 0;
-				long lat = 0;
-				long lon = 0;
-				int keyInd = 0;
-				boolean tagsEmpty = n.getKeysValsCount() == 0;
-				for(int i=0; i<n.getIdCount(); i++){
-					id += n.getId(i);
-					lat += n.getLat(i);
-					lon += n.getLon(i);
-					Node node = new Node(parseLat(lat), parseLon(lon), id);
-					
-					if (entityInfo && n.getDenseinfo() != null) {
-						info = new EntityInfo();
-						changeset += n.getDenseinfo().getChangeset(i);
-						timestamp += n.getDenseinfo().getTimestamp(i);
-						uid += n.getDenseinfo().getUid(i);
-						user += n.getDenseinfo().getUserSid(i);
-						info.setChangeset((changeset) + ""); //$NON-NLS-1$
-						info.setTimestamp(format.format(new Date(date_granularity * (timestamp))));
-						info.setUser(getStringById(user));
-						info.setUid(uid + ""); //$NON-NLS-1$
-						info.setVersion(n.getDenseinfo().getVersion(i) + ""); //$NON-NLS-1$
-						info.setVisible("true"); //$NON-NLS-1$
-					}
-					if (!tagsEmpty) {
-						while (n.getKeysVals(keyInd) != 0) {
-							String key = getStringById(n.getKeysVals(keyInd));
-							String val = getStringById(n.getKeysVals(keyInd + 1));
-							node.putTag(key, val);
-							keyInd += 2;
-						}
-						keyInd++;
-					}
-					registerEntity(EntityType.NODE, node, info);
+		void registerEntity(EntityType type, Entity e, EntityInfo info) {
+			if (collectEntities) {
+				decodedEntities.add(e);
+				if (decodedInfo != null) {
+					decodedInfo.add(info);
 				}
-				updateProgress(n.getIdCount());
+			} else {
+				registerDecodedEntity(type, e, info);
 			}
-			
-			protected EntityInfo parseEntityInfo(Info i){
-				EntityInfo info = new EntityInfo();
-				info.setChangeset(i.getChangeset()+""); //$NON-NLS-1$
-				info.setTimestamp(format.format(getDate(i)));
-				info.setUser(getStringById(i.getUserSid()));
-				info.setUid(i.getUid()+""); //$NON-NLS-1$
-				info.setVersion(i.getVersion()+""); //$NON-NLS-1$
-				info.setVisible("true"); //$NON-NLS-1$
-				return info;
+		}
+
+		void registerDecodedEntity(EntityType type, Entity e, EntityInfo info) {
+			count++;
+			EntityId entityId = new EntityId(type, e.getId());
+			if (acceptEntityToLoad(entityId, e)) {
+				Entity oldEntity = entities.put(entityId, e);
+				if (info != null) {
+					OsmBaseStorage.this.entityInfo.put(entityId, info);
+				}
+				if (!supressWarnings && oldEntity != null) {
+					throw new UnsupportedOperationException("Entity with id=" + oldEntity.getId() + " is duplicated in osm map"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
 			}
+		}
 
-			@Override
-			protected void parseNodes(List<crosby.binary.Osmformat.Node> n) {
-				EntityInfo info = null;
-				int nsize = n.size();
-				for(int i=0; i<nsize; i++){
-					crosby.binary.Osmformat.Node nod = n.get(i);
-					Node e = new Node(parseLat(nod.getLat()), parseLon(nod.getLon()), nod.getId());
-					for(int j=0; j<nod.getKeysCount(); j++){
-						String key = getStringById(nod.getKeys(j));
-						String val = getStringById(nod.getVals(j));
-						e.putTag(key, val);
-					}
-					if(entityInfo){
-						info = parseEntityInfo(nod.getInfo());
+		@Override
+		protected void parse(HeaderBlock header) {
+			checkRequiredFeatures(header);
+		}
+
+		@Override
+		protected void parseDense(DenseNodes n) {
+			EntityInfo info = null;
+			long changeset = 0;
+			long timestamp = 0;
+			int uid = 0;
+			int user = 0;
+			long id = 0;
+			long lat = 0;
+			long lon = 0;
+			int keyInd = 0;
+			boolean tagsEmpty = n.getKeysValsCount() == 0;
+			for(int i=0; i<n.getIdCount(); i++){
+				id += n.getId(i);
+				lat += n.getLat(i);
+				lon += n.getLon(i);
+				Node node = new Node(parseLat(lat), parseLon(lon), id);
+
+				if (entityInfo && n.getDenseinfo() != null) {
+					info = new EntityInfo();
+					changeset += n.getDenseinfo().getChangeset(i);
+					timestamp += n.getDenseinfo().getTimestamp(i);
+					uid += n.getDenseinfo().getUid(i);
+					user += n.getDenseinfo().getUserSid(i);
+					info.setChangeset((changeset) + ""); //$NON-NLS-1$
+					info.setTimestamp(format.format(new Date(date_granularity * (timestamp))));
+					info.setUser(getStringById(user));
+					info.setUid(uid + ""); //$NON-NLS-1$
+					info.setVersion(n.getDenseinfo().getVersion(i) + ""); //$NON-NLS-1$
+					info.setVisible("true"); //$NON-NLS-1$
+				}
+				if (!tagsEmpty) {
+					while (n.getKeysVals(keyInd) != 0) {
+						String key = getStringById(n.getKeysVals(keyInd));
+						String val = getStringById(n.getKeysVals(keyInd + 1));
+						node.putTag(key, val);
+						keyInd += 2;
 					}
-					registerEntity(EntityType.NODE, e, info);
+					keyInd++;
 				}
-				updateProgress(nsize);
+				registerEntity(EntityType.NODE, node, info);
 			}
+			updateProgress(n.getIdCount());
+		}
 
-			@Override
-			protected void parseRelations(List<crosby.binary.Osmformat.Relation> r) {
-				EntityInfo info = null;
-				int rsize = r.size();
-				for(int i=0; i<rsize; i++){
-					crosby.binary.Osmformat.Relation rel = r.get(i);
-					Relation e = new Relation(rel.getId());
-					long id = 0;
-					for(int j=0; j<rel.getMemidsCount(); j++){
-						id += rel.getMemids(j);
-						String role = getStringById(rel.getRolesSid(j));
-						MemberType t = rel.getTypes(j);
-						EntityType ts = EntityType.NODE;
-						switch(t){
-						case NODE : ts = EntityType.NODE; break;
-						case WAY : ts = EntityType.WAY; break;
-						case RELATION : ts = EntityType.RELATION; break;
-						}
-						e.addMember(id, ts, role);
-					}
-					for(int j=0; j<rel.getKeysCount(); j++){
-						String key = getStringById(rel.getKeys(j));
-						String val = getStringById(rel.getVals(j));
-						e.putTag(key, val);
-					}
-					if(entityInfo){
-						info = parseEntityInfo(rel.getInfo());
-					}
-					registerEntity(EntityType.RELATION, e, info);
+		protected EntityInfo parseEntityInfo(Info i){
+			EntityInfo info = new EntityInfo();
+			info.setChangeset(i.getChangeset()+""); //$NON-NLS-1$
+			info.setTimestamp(format.format(getDate(i)));
+			info.setUser(getStringById(i.getUserSid()));
+			info.setUid(i.getUid()+""); //$NON-NLS-1$
+			info.setVersion(i.getVersion()+""); //$NON-NLS-1$
+			info.setVisible("true"); //$NON-NLS-1$
+			return info;
+		}
+
+		@Override
+		protected void parseNodes(List<crosby.binary.Osmformat.Node> n) {
+			EntityInfo info = null;
+			int nsize = n.size();
+			for(int i=0; i<nsize; i++){
+				crosby.binary.Osmformat.Node nod = n.get(i);
+				Node e = new Node(parseLat(nod.getLat()), parseLon(nod.getLon()), nod.getId());
+				for(int j=0; j<nod.getKeysCount(); j++){
+					String key = getStringById(nod.getKeys(j));
+					String val = getStringById(nod.getVals(j));
+					e.putTag(key, val);
+				}
+				if(entityInfo){
+					info = parseEntityInfo(nod.getInfo());
 				}
-				updateProgress(rsize);
+				registerEntity(EntityType.NODE, e, info);
 			}
+			updateProgress(nsize);
+		}
 
-			@Override
-			protected void parseWays(List<crosby.binary.Osmformat.Way> w) {
-				EntityInfo info = null;
-				int wsize = w.size();
-				for(int i=0; i<wsize; i++){
-					crosby.binary.Osmformat.Way way = w.get(i);
-					Way e = new Way(way.getId());
-					long id = 0;
-					for(int j=0; j<way.getRefsCount(); j++){
-						id += way.getRefs(j);
-						e.addNode(id);
-					}
-					for(int j=0; j<way.getKeysCount(); j++){
-						String key = getStringById(way.getKeys(j));
-						String val = getStringById(way.getVals(j));
-						e.putTag(key, val);
-					}
-					if(entityInfo){
-						info = parseEntityInfo(way.getInfo());
+		@Override
+		protected void parseRelations(List<crosby.binary.Osmformat.Relation> r) {
+			EntityInfo info = null;
+			int rsize = r.size();
+			for(int i=0; i<rsize; i++){
+				crosby.binary.Osmformat.Relation rel = r.get(i);
+				Relation e = new Relation(rel.getId());
+				long id = 0;
+				for(int j=0; j<rel.getMemidsCount(); j++){
+					id += rel.getMemids(j);
+					String role = getStringById(rel.getRolesSid(j));
+					MemberType t = rel.getTypes(j);
+					EntityType ts = EntityType.NODE;
+					switch(t){
+					case NODE : ts = EntityType.NODE; break;
+					case WAY : ts = EntityType.WAY; break;
+					case RELATION : ts = EntityType.RELATION; break;
 					}
-					registerEntity(EntityType.WAY, e, info);
+					e.addMember(id, ts, role);
+				}
+				for(int j=0; j<rel.getKeysCount(); j++){
+					String key = getStringById(rel.getKeys(j));
+					String val = getStringById(rel.getVals(j));
+					e.putTag(key, val);
 				}
-				updateProgress(wsize);
+				if(entityInfo){
+					info = parseEntityInfo(rel.getInfo());
+				}
+				registerEntity(EntityType.RELATION, e, info);
 			}
+			updateProgress(rsize);
+		}
 
-			@Override
-			public void complete() {
+		@Override
+		protected void parseWays(List<crosby.binary.Osmformat.Way> w) {
+			EntityInfo info = null;
+			int wsize = w.size();
+			for(int i=0; i<wsize; i++){
+				crosby.binary.Osmformat.Way way = w.get(i);
+				Way e = new Way(way.getId());
+				long id = 0;
+				for(int j=0; j<way.getRefsCount(); j++){
+					id += way.getRefs(j);
+					e.addNode(id);
+				}
+				for(int j=0; j<way.getKeysCount(); j++){
+					String key = getStringById(way.getKeys(j));
+					String val = getStringById(way.getVals(j));
+					e.putTag(key, val);
+				}
+				if(entityInfo){
+					info = parseEntityInfo(way.getInfo());
+				}
+				registerEntity(EntityType.WAY, e, info);
 			}
-			
-		};
-		
-		this.progressEntity = 0;
-		this.entities.clear();
-		this.entityInfo.clear();
-		if(progress != null){
-			progress.startWork(stream.available());
+			updateProgress(wsize);
 		}
-		
-		BlockInputStream bis = new BlockInputStream(stream, parser);
-		bis.process();
-		
-		if(progress != null){
-			progress.finishTask();
+
+		@Override
+		public void complete() {
 		}
-		completeReading();
 	}
 }
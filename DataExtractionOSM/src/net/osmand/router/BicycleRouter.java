@@ -67,6 +67,11 @@ public class BicycleRouter extends VehicleRouter {
 		bicyclePriorityValues.put("steps", 0.6d);
 	}
 
+	@Override
+	public String getName() {
+		return "bicycle";
+	}
+
 	@Override
 	public boolean acceptLine(TagValuePair pair) {
 		if (pair.tag.equals("highway")) {
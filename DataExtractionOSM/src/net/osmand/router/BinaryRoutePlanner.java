@@ -1,23 +1,31 @@
 package net.osmand.router;
 
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntLongHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.osmand.LogUtil;
 import net.osmand.binary.BinaryMapDataObject;
+import net.osmand.binary.BinaryMapDataObjectCursor;
 import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.binary.BinaryMapIndexReader.MapDataObjectVisitor;
 import net.osmand.binary.BinaryMapIndexReader.MapIndex;
 import net.osmand.binary.BinaryMapIndexReader.SearchFilter;
 import net.osmand.binary.BinaryMapIndexReader.SearchRequest;
 import net.osmand.binary.BinaryMapIndexReader.TagValuePair;
+import net.osmand.binary.BinaryMapRoutingHierarchyReaderAdapter.RoutingHierarchyIndex;
 import net.osmand.osm.LatLon;
 import net.osmand.osm.MapRenderingTypes;
 import net.osmand.osm.MapUtils;
@@ -29,6 +37,8 @@ public class BinaryRoutePlanner {
 	private final static boolean PRINT_TO_CONSOLE_ROUTE_INFORMATION_TO_TEST = true;
 	private final int REVERSE_WAY_RESTRICTION_ONLY = 1024;
 	private final BinaryMapIndexReader[] map;
+	// files of map readers (the same order), they are opened once more for threads searching in background
+	private File[] mapFiles;
 	
 	
 	
@@ -38,8 +48,49 @@ public class BinaryRoutePlanner {
 		this.map = map;
 	}
 	
+	/**
+	 * Files of map readers (in the same order) let background threads (tile prefetching, reverse direction of parallel search) 
+	 * read maps with their own readers. Otherwise not memory mapped readers are shared between threads under lock. 
+	 */
+	public void setMapFiles(File... mapFiles) {
+		this.mapFiles = mapFiles;
+	}
+	
+	/**
+	 * @return planner with own readers of the same maps (parsed index parts are shared) to search from another thread
+	 * or this planner if readers could not be opened (they should be closed by {@link #closeThreadPlanner(BinaryRoutePlanner)})
+	 */
+	BinaryRoutePlanner openThreadPlanner() throws IOException {
+		for (int i = 0; i < map.length; i++) {
+			if (!map[i].isMemoryMapped() && (mapFiles == null || mapFiles.length != map.length)) {
+				return this;
+			}
+		}
+		BinaryMapIndexReader[] readers = new BinaryMapIndexReader[map.length];
+		for (int i = 0; i < map.length; i++) {
+			RandomAccessFile raf = map[i].isMemoryMapped() ? null : new RandomAccessFile(mapFiles[i], "r"); //$NON-NLS-1$
+			readers[i] = new BinaryMapIndexReader(raf, map[i]);
+		}
+		BinaryRoutePlanner planner = new BinaryRoutePlanner(readers);
+		planner.mapFiles = mapFiles;
+		return planner;
+	}
 	
-	private static double squareRootDist(int x1, int y1, int x2, int y2) {
+	void closeThreadPlanner(BinaryRoutePlanner planner) {
+		if (planner == this) {
+			return;
+		}
+		for (BinaryMapIndexReader r : planner.map) {
+			try {
+				r.close();
+			} catch (IOException e) {
+				log.warn("Reader is not closed", e); //$NON-NLS-1$
+			}
+		}
+	}
+	
+	
+	public static double squareRootDist(int x1, int y1, int x2, int y2) {
 		// translate into meters 
 		double dy = convert31YToMeters(y1, y2);
 		double dx = convert31XToMeters(x1, x2);
@@ -68,12 +119,65 @@ public class BinaryRoutePlanner {
    
 	public void loadRoutes(final RoutingContext ctx, int tileX, int tileY) throws IOException {
 		int tileC = (tileX << ctx.getZoomToLoadTileWithRoads()) + tileY;
-		if(ctx.loadedTiles.contains(tileC)){
+		if(ctx.accessTile(tileC)){
 			return;
 		}
 		long now = System.nanoTime();
-		
-		int zoomToLoad = 31 - ctx.getZoomToLoadTileWithRoads();
+		// tile graph keeps points of all roads inside the tile 
+		final RoutingTile.Builder tile = new RoutingTile.Builder(new RoutingTile(tileX, tileY, ctx.getZoomToLoadTileWithRoads()));
+		final TLongObjectHashMap<BinaryMapDataObject> tileRoads = new TLongObjectHashMap<BinaryMapDataObject>();
+		List<BinaryMapDataObject> prefetched = ctx.prefetcher == null ? null : ctx.prefetcher.take(ctx, tileC);
+		if (prefetched != null) {
+			for (BinaryMapDataObject road : prefetched) {
+				addTileRoad(ctx, tileRoads, tile, road);
+			}
+		} else {
+			// stream objects and copy only roads that are not loaded yet
+			MapDataObjectVisitor visitor = new MapDataObjectVisitor() {
+				@Override
+				public void visit(BinaryMapDataObjectCursor o) throws IOException {
+					BinaryMapDataObject old = ctx.idObjects.get(o.getId());
+					addTileRoad(ctx, tileRoads, tile, old != null && old.getPointsLength() >= o.getPointsLength() ? old : 
+						o.toBinaryMapDataObject(true));
+				}
+			};
+			searchTileRoads(ctx.getRouter(), ctx.getZoomToLoadTileWithRoads(), tileX, tileY, visitor);
+		}
+		ctx.registerTile(tileC, tile.build());
+		ctx.timeToLoad += (System.nanoTime() - now);
+	}
+	
+	private static void addTileRoad(RoutingContext ctx, TLongObjectHashMap<BinaryMapDataObject> tileRoads, RoutingTile.Builder tile,
+			BinaryMapDataObject road) {
+		BinaryMapDataObject old = ctx.idObjects.get(road.getId());
+		// sometimes way are presented only partially in one index
+		if (old != null && old.getPointsLength() >= road.getPointsLength()) {
+			road = old;
+		} else {
+			ctx.idObjects.put(road.getId(), road);
+		}
+		if (tileRoads.get(road.getId()) != road) {
+			tileRoads.put(road.getId(), road);
+			tile.addRoad(road);
+		}
+	}
+	
+	/**
+	 * Reads all roads of the tile accepted by router (could be called from any thread, it doesn't use routing context)
+	 */
+	List<BinaryMapDataObject> readTileRoads(VehicleRouter router, int zoom, int tileX, int tileY) throws IOException {
+		final List<BinaryMapDataObject> roads = new ArrayList<BinaryMapDataObject>();
+		searchTileRoads(router, zoom, tileX, tileY, new MapDataObjectVisitor() {
+			@Override
+			public void visit(BinaryMapDataObjectCursor o) throws IOException {
+				roads.add(o.toBinaryMapDataObject(true));
+			}
+		});
+		return roads;
+	}
+	
+	private void searchTileRoads(final VehicleRouter router, int zoom, int tileX, int tileY, MapDataObjectVisitor visitor) throws IOException {
+		int zoomToLoad = 31 - zoom;
 		SearchFilter searchFilter = new BinaryMapIndexReader.SearchFilter(){
 			@Override
 			public boolean accept(TIntArrayList types, MapIndex index) {
@@ -83,11 +187,11 @@ public class BinaryRoutePlanner {
 					if (pair != null) {
 						int t = wholeType & 3;
 						if(t == MapRenderingTypes.POINT_TYPE){
-							if(ctx.getRouter().acceptPoint(pair)){
+							if(router.acceptPoint(pair)){
 								return true;
 							}
 						} else if(t == MapRenderingTypes.POLYLINE_TYPE){
-							if(ctx.getRouter().acceptLine(pair)){
+							if(router.acceptLine(pair)){
 								return true;
 							}
 						}
@@ -100,27 +204,38 @@ public class BinaryRoutePlanner {
 				(tileX + 1) << zoomToLoad, tileY << zoomToLoad, 
 				(tileY + 1) << zoomToLoad, 15, searchFilter);
 		for (BinaryMapIndexReader r : map) {
-			r.searchMapIndex(request);
-			for (BinaryMapDataObject o : request.getSearchResults()) {
-				BinaryMapDataObject old = ctx.idObjects.get(o.getId());
-				// sometimes way are presented only partially in one index
-				if (old != null && old.getPointsLength() >= o.getPointsLength()) {
-					continue;
-				}
-				ctx.idObjects.put(o.getId(), o);
-				for (int j = 0; j < o.getPointsLength(); j++) {
-					long l = (((long) o.getPoint31XTile(j)) << 31) + (long) o.getPoint31YTile(j);
-					RouteSegment segment = new RouteSegment();
-					segment.road = o;
-					segment.segmentEnd = segment.segmentStart = j;
-					if (ctx.routes.get(l) != null) {
-						segment.next = ctx.routes.get(l);
-					}
-					ctx.routes.put(l, segment);
-				}
+			// reader could be shared with another thread if it couldn't open own readers
+			synchronized (r) {
+				r.searchMapIndex(request, visitor);
 			}
-			ctx.loadedTiles.add(tileC);
-			ctx.timeToLoad += (System.nanoTime() - now);
+		}
+	}
+	
+	/**
+	 * Starts background loading of tiles which search could reach soon : 
+	 * tiles of the road ends and neighbour tiles in the direction of the target
+	 */
+	private void prefetchTiles(RoutingContext ctx, RouteSegment segment, int targetX, int targetY) {
+		if (ctx.prefetcher == null) {
+			return;
+		}
+		int shift = 31 - ctx.getZoomToLoadTileWithRoads();
+		BinaryMapDataObject road = segment.road;
+		int tileX = road.getPoint31XTile(segment.segmentStart) >> shift;
+		int tileY = road.getPoint31YTile(segment.segmentStart) >> shift;
+		int dx = Integer.signum((targetX >> shift) - tileX);
+		int dy = Integer.signum((targetY >> shift) - tileY);
+		ctx.prefetcher.prefetch(ctx, road.getPoint31XTile(0) >> shift, road.getPoint31YTile(0) >> shift);
+		int last = road.getPointsLength() - 1;
+		ctx.prefetcher.prefetch(ctx, road.getPoint31XTile(last) >> shift, road.getPoint31YTile(last) >> shift);
+		if (dx != 0) {
+			ctx.prefetcher.prefetch(ctx, tileX + dx, tileY);
+		}
+		if (dy != 0) {
+			ctx.prefetcher.prefetch(ctx, tileX, tileY + dy);
+		}
+		if (dx != 0 && dy != 0) {
+			ctx.prefetcher.prefetch(ctx, tileX + dx, tileY + dy);
 		}
 	}
 	
@@ -198,9 +313,40 @@ public class BinaryRoutePlanner {
 	 * return list of segments
 	 */
 	public List<RouteSegmentResult> searchRoute(final RoutingContext ctx, RouteSegment start, RouteSegment end) throws IOException {
-		
+		if (ctx.isUseRoutingHierarchy()) {
+			List<RouteSegmentResult> result = searchRouteWithHierarchy(ctx, start, end);
+			if (result != null) {
+				return result;
+			}
+		}
+		startTilePrefetching(ctx);
+		try {
+			return searchRouteWithAStar(ctx, start, end);
+		} finally {
+			stopTilePrefetching(ctx);
+		}
+	}
+	
+	private void startTilePrefetching(RoutingContext ctx) {
+		if (ctx.getTilePrefetchThreads() > 0 && ctx.prefetcher == null) {
+			ctx.prefetcher = new RoutingTilePrefetcher(this, ctx.getTilePrefetchThreads());
+		}
+	}
+	
+	private void stopTilePrefetching(RoutingContext ctx) {
+		if (ctx.prefetcher != null) {
+			ctx.prefetcher.shutdown();
+			ctx.timeToLoadInBackground += ctx.prefetcher.getTimeToLoad();
+			ctx.prefetcher = null;
+		}
+	}
+	
+	private List<RouteSegmentResult> searchRouteWithAStar(final RoutingContext ctx, RouteSegment start, RouteSegment end) throws IOException {
 		// measure time
 		ctx.timeToLoad = 0;
+		ctx.timeToLoadInBackground = 0;
+		ctx.prefetchedTilesCount = 0;
+		ctx.usedPrefetchedTilesCount = 0;
 		ctx.visitedSegments = 0;
 		long startNanoTime = System.nanoTime();
 
@@ -222,9 +368,13 @@ public class BinaryRoutePlanner {
 		PriorityQueue<RouteSegment> graphDirectSegments = new PriorityQueue<RouteSegment>(50, segmentsComparator);
 		PriorityQueue<RouteSegment> graphReverseSegments = new PriorityQueue<RouteSegment>(50, segmentsComparator);
 		
+		// direct and reverse searches could run in 2 threads, then reverse search has own context
+		boolean parallel = ctx.isUseParallelBidirectionalSearch() && ctx.planRouteIn2Directions();
+		RoutingContext reverseCtx = parallel ? new RoutingContext(ctx) : ctx;
+		
 		// Set to not visit one segment twice (stores road.id << X + segmentStart)
-		TLongObjectHashMap<RouteSegment> visitedDirectSegments = new TLongObjectHashMap<RouteSegment>();
-		TLongObjectHashMap<RouteSegment> visitedOppositeSegments = new TLongObjectHashMap<RouteSegment>();
+		TLongObjectHashMap<RouteSegment> visitedDirectSegments = parallel ? new SynchronizedSegmentsMap() : new TLongObjectHashMap<RouteSegment>();
+		TLongObjectHashMap<RouteSegment> visitedOppositeSegments = parallel ? new SynchronizedSegmentsMap() : new TLongObjectHashMap<RouteSegment>();
 		
 		int targetEndX = end.road.getPoint31XTile(end.segmentStart);
 		int targetEndY = end.road.getPoint31YTile(end.segmentStart);
@@ -238,7 +388,13 @@ public class BinaryRoutePlanner {
 		// it matters when start point is intersection of different roads
 		// add start segment to priority queue
 		visitAllStartSegments(ctx, start, graphDirectSegments, visitedDirectSegments, startX, startY);
-		visitAllStartSegments(ctx, end, graphReverseSegments, visitedOppositeSegments, targetEndX, targetEndY);
+		visitAllStartSegments(reverseCtx, end, graphReverseSegments, visitedOppositeSegments, targetEndX, targetEndY);
+		
+		if (parallel) {
+			RoutePair pair = searchRouteInParallel(ctx, reverseCtx, start, end, graphDirectSegments, graphReverseSegments,
+					visitedDirectSegments, visitedOppositeSegments, startX, startY, targetEndX, targetEndY);
+			return prepareResult(ctx, start, end, startNanoTime, pair == null ? null : pair.a, pair == null ? null : pair.b);
+		}
 		
 		// final segment before end
 		RouteSegment finalDirectRoute = null;
@@ -252,6 +408,8 @@ public class BinaryRoutePlanner {
 			RouteSegment segment = graphSegments.poll();
 			
 			ctx.visitedSegments ++;
+			ctx.setSearchFrontier(inverse, segment.road.getPoint31XTile(segment.segmentStart), segment.road.getPoint31YTile(segment.segmentStart));
+			prefetchTiles(ctx, segment, inverse ? startX : targetEndX, inverse ? startY : targetEndY);
 			// for debug purposes
 			if (ctx.visitor != null) {
 				ctx.visitor.visitSegment(segment);
@@ -294,6 +452,339 @@ public class BinaryRoutePlanner {
 	}
 	
 
+	/**
+	 * Calculate route between start.segmentStart and end.segmentStart using routing hierarchy built for the router
+	 * (bidirectional Dijkstra which goes only through edges leading to nodes with higher rank).
+	 * Turn time, obstacles and turn restrictions are not taken into account by hierarchy.
+	 * @return null if maps don't contain hierarchy or route could not be found by it
+	 */
+	public List<RouteSegmentResult> searchRouteWithHierarchy(final RoutingContext ctx, RouteSegment start, RouteSegment end) throws IOException {
+		RoutingHierarchyIndex hierarchy = null;
+		for (BinaryMapIndexReader r : map) {
+			hierarchy = r.getRoutingHierarchy(ctx.getRouter().getName());
+			if (hierarchy != null) {
+				break;
+			}
+		}
+		if (hierarchy == null) {
+			return null;
+		}
+		ctx.timeToLoad = 0;
+		ctx.visitedSegments = 0;
+		long startNanoTime = System.nanoTime();
+		int[] startEdges = hierarchy.getRoadEdges(start.road.getId());
+		int[] endEdges = hierarchy.getRoadEdges(end.road.getId());
+		if (startEdges == null || endEdges == null) {
+			return null;
+		}
+		int ps = start.segmentStart;
+		int pe = end.segmentStart;
+
+		// visited nodes : distance (1/10 of second) << 32 | edge used to reach node, 
+		// seed edges (passed partially) are coded as -2 - edge
+		TIntLongHashMap visitedDirect = new TIntLongHashMap();
+		TIntLongHashMap visitedReverse = new TIntLongHashMap();
+		NodeQueue graphDirect = new NodeQueue(64);
+		NodeQueue graphReverse = new NodeQueue(64);
+		int best = Integer.MAX_VALUE;
+		int meetNode = -1;
+		int directEdge = -1;
+		for (int e : startEdges) {
+			int a = hierarchy.getRoadStart(e);
+			int b = hierarchy.getRoadEnd(e);
+			if (!isPointOnEdge(a, ps, b) || !isNodePoint(hierarchy, hierarchy.getEdgeEndNode(e), start.road, b)) {
+				continue;
+			}
+			int cost = calculateTimeOnRoad(ctx, start.road, ps, b);
+			pushHierarchyNode(graphDirect, visitedDirect, hierarchy.getEdgeEndNode(e), cost, -2 - e);
+			// start and end are on the same edge
+			if (end.road.getId() == start.road.getId() && isPointOnEdge(a, ps, pe) && isPointOnEdge(ps, pe, b)) {
+				cost = calculateTimeOnRoad(ctx, start.road, ps, pe);
+				if (cost < best) {
+					best = cost;
+					directEdge = e;
+				}
+			}
+		}
+		for (int e : endEdges) {
+			int a = hierarchy.getRoadStart(e);
+			int b = hierarchy.getRoadEnd(e);
+			if (!isPointOnEdge(a, pe, b) || !isNodePoint(hierarchy, hierarchy.getEdgeStartNode(e), end.road, a)) {
+				continue;
+			}
+			int cost = calculateTimeOnRoad(ctx, end.road, a, pe);
+			pushHierarchyNode(graphReverse, visitedReverse, hierarchy.getEdgeStartNode(e), cost, -2 - e);
+		}
+
+		// both searches go up by rank, direct search uses upward edges and reverse search downward edges
+		while (!graphDirect.isEmpty() || !graphReverse.isEmpty()) {
+			boolean reverse = graphDirect.isEmpty() || (!graphReverse.isEmpty() && graphReverse.peekCost() < graphDirect.peekCost());
+			NodeQueue graph = reverse ? graphReverse : graphDirect;
+			if (graph.peekCost() >= best) {
+				// route could not be improved in that direction
+				graph.clear();
+				continue;
+			}
+			TIntLongHashMap visited = reverse ? visitedReverse : visitedDirect;
+			TIntLongHashMap opposite = reverse ? visitedDirect : visitedReverse;
+			int cost = graph.peekCost();
+			int node = graph.poll();
+			if (cost > (int) (visited.get(node) >>> 32)) {
+				continue;
+			}
+			ctx.visitedSegments++;
+			if (opposite.containsKey(node) && cost + (int) (opposite.get(node) >>> 32) < best) {
+				best = cost + (int) (opposite.get(node) >>> 32);
+				meetNode = node;
+				directEdge = -1;
+			}
+			for (int e = hierarchy.getFirstEdge(node); e < hierarchy.getLastEdge(node); e++) {
+				if (hierarchy.isEdgeDownward(e) == reverse) {
+					pushHierarchyNode(graph, visited, hierarchy.getEdgeTarget(e), cost + hierarchy.getEdgeWeight(e), e);
+				}
+			}
+		}
+		if (best == Integer.MAX_VALUE) {
+			return null;
+		}
+
+		// collect original edges of the route
+		List<RouteSegmentResult> result = new ArrayList<RouteSegmentResult>();
+		if (directEdge != -1) {
+			addRouteSegmentResult(result, start.road, ps, pe);
+		} else {
+			TIntArrayList edges = new TIntArrayList();
+			int node = meetNode;
+			while ((int) visitedDirect.get(node) >= 0) {
+				int e = (int) visitedDirect.get(node);
+				edges.add(e);
+				node = hierarchy.getEdgeStartNode(e);
+			}
+			int startEdge = -2 - (int) visitedDirect.get(node);
+			edges.reverse();
+			node = meetNode;
+			while ((int) visitedReverse.get(node) >= 0) {
+				int e = (int) visitedReverse.get(node);
+				edges.add(e);
+				node = hierarchy.getEdgeEndNode(e);
+			}
+			int endEdge = -2 - (int) visitedReverse.get(node);
+
+			addRouteSegmentResult(result, start.road, ps, hierarchy.getRoadEnd(startEdge));
+			TIntArrayList stack = new TIntArrayList();
+			for (int i = 0; i < edges.size(); i++) {
+				stack.add(edges.get(i));
+				while (stack.size() > 0) {
+					int e = stack.removeAt(stack.size() - 1);
+					if (hierarchy.isShortcut(e)) {
+						stack.add(hierarchy.getShortcutSecond(e));
+						stack.add(hierarchy.getShortcutFirst(e));
+					} else {
+						BinaryMapDataObject road = loadHierarchyRoad(ctx, hierarchy, e);
+						if (road == null) {
+							log.warn("Road " + (hierarchy.getRoadId(e) >> 1) + " of routing hierarchy is not found in map");
+							return null;
+						}
+						addRouteSegmentResult(result, road, hierarchy.getRoadStart(e), hierarchy.getRoadEnd(e));
+					}
+				}
+			}
+			addRouteSegmentResult(result, end.road, hierarchy.getRoadStart(endEdge), pe);
+		}
+		for (RouteSegmentResult res : result) {
+			res.startPoint = convertPoint(res.object, res.startPointIndex);
+			res.endPoint = convertPoint(res.object, res.endPointIndex);
+		}
+		if (PRINT_TO_CONSOLE_ROUTE_INFORMATION_TO_TEST) {
+			printRouteInformation(start, end, result);
+		}
+		ctx.timeToCalculate = (System.nanoTime() - startNanoTime);
+		log.info("Time to calculate with hierarchy : " + ctx.timeToCalculate / 1e6 + ", time to load : " + ctx.timeToLoad / 1e6
+				+ ", route time " + best / 10d + " s, visited nodes " + ctx.visitedSegments);
+		return result;
+	}
+
+	private static void pushHierarchyNode(NodeQueue graph, TIntLongHashMap visited, int node, int cost, int parentEdge) {
+		if (!visited.containsKey(node) || cost < (int) (visited.get(node) >>> 32)) {
+			visited.put(node, (((long) cost) << 32) | (parentEdge & 0xffffffffl));
+			graph.push(cost, node);
+		}
+	}
+
+	// point is between start and end (including them)
+	private static boolean isPointOnEdge(int start, int point, int end) {
+		return start <= end ? (start <= point && point <= end) : (end <= point && point <= start);
+	}
+
+	private static boolean isNodePoint(RoutingHierarchyIndex hierarchy, int node, BinaryMapDataObject road, int point) {
+		return point < road.getPointsLength() && road.getPoint31XTile(point) == hierarchy.getNodeX(node)
+				&& road.getPoint31YTile(point) == hierarchy.getNodeY(node);
+	}
+
+	/**
+	 * Weight of road part in routing hierarchy (1/10 of second), non empty road part costs at least 1
+	 * so that hierarchy edges and partial edges of query are rounded the same way
+	 */
+	public static int calculateHierarchyWeight(double dist, double speed) {
+		if (dist <= 0) {
+			return 0;
+		}
+		return Math.max(1, (int) Math.round(dist / speed * 10));
+	}
+
+	private static int calculateTimeOnRoad(RoutingContext ctx, BinaryMapDataObject road, int start, int end) {
+		double dist = 0;
+		for (int j = Math.min(start, end); j < Math.max(start, end); j++) {
+			dist += squareRootDist(road.getPoint31XTile(j), road.getPoint31YTile(j), road.getPoint31XTile(j + 1), road.getPoint31YTile(j + 1));
+		}
+		double speed = ctx.getRouter().defineSpeed(road);
+		if (speed == 0) {
+			speed = ctx.getRouter().getMinDefaultSpeed();
+		}
+		return calculateHierarchyWeight(dist, speed);
+	}
+
+	private BinaryMapDataObject loadHierarchyRoad(RoutingContext ctx, RoutingHierarchyIndex hierarchy, int edge) throws IOException {
+		int startNode = hierarchy.getEdgeStartNode(edge);
+		int endNode = hierarchy.getEdgeEndNode(edge);
+		int zoomShift = 31 - ctx.getZoomToLoadTileWithRoads();
+		// road could be presented partially in the loaded tile so check that edge points are on it
+		for (int i = 0; i < 2; i++) {
+			BinaryMapDataObject road = ctx.idObjects.get(hierarchy.getRoadId(edge));
+			if (road != null && isNodePoint(hierarchy, startNode, road, hierarchy.getRoadStart(edge))
+					&& isNodePoint(hierarchy, endNode, road, hierarchy.getRoadEnd(edge))) {
+				return road;
+			}
+			int node = i == 0 ? startNode : endNode;
+			loadRoutes(ctx, hierarchy.getNodeX(node) >> zoomShift, hierarchy.getNodeY(node) >> zoomShift);
+		}
+		BinaryMapDataObject road = ctx.idObjects.get(hierarchy.getRoadId(edge));
+		if (road != null && isNodePoint(hierarchy, startNode, road, hierarchy.getRoadStart(edge))
+				&& isNodePoint(hierarchy, endNode, road, hierarchy.getRoadEnd(edge))) {
+			return road;
+		}
+		return null;
+	}
+
+	// consecutive parts of the same road are joined
+	static void addRouteSegmentResult(List<RouteSegmentResult> result, BinaryMapDataObject road, int start, int end) {
+		if (start == end) {
+			return;
+		}
+		if (result.size() > 0) {
+			RouteSegmentResult last = result.get(result.size() - 1);
+			if (last.object == road && last.endPointIndex == start
+					&& (last.startPointIndex < last.endPointIndex) == (start < end)) {
+				last.endPointIndex = end;
+				return;
+			}
+		}
+		RouteSegmentResult res = new RouteSegmentResult();
+		res.object = road;
+		res.startPointIndex = start;
+		res.endPointIndex = end;
+		result.add(res);
+	}
+
+	/**
+	 * Runs reverse search in separate thread (with its own routing context) while direct search runs in current thread.
+	 * Search which reaches segment visited by the opposite search stops both of them.
+	 * @return pair of direct and reverse segments where searches met or null if route is not found
+	 */
+	private RoutePair searchRouteInParallel(RoutingContext ctx, final RoutingContext reverseCtx, final RouteSegment start, RouteSegment end,
+			PriorityQueue<RouteSegment> graphDirectSegments, final PriorityQueue<RouteSegment> graphReverseSegments,
+			final TLongObjectHashMap<RouteSegment> visitedDirectSegments, final TLongObjectHashMap<RouteSegment> visitedOppositeSegments,
+			final int startX, final int startY, int targetEndX, int targetEndY) throws IOException {
+		final AtomicReference<RoutePair> meeting = new AtomicReference<RoutePair>();
+		final AtomicBoolean finished = new AtomicBoolean(false);
+		final Exception[] reverseSearchError = new Exception[1];
+		// reverse search reads tiles with its own readers
+		final BinaryRoutePlanner reversePlanner = openThreadPlanner();
+		Thread reverseSearch = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reversePlanner.startTilePrefetching(reverseCtx);
+				try {
+					reversePlanner.searchInOneDirection(reverseCtx, start, true, graphReverseSegments, visitedOppositeSegments, startX,
+							startY, visitedDirectSegments, meeting, finished);
+				} catch (IOException e) {
+					reverseSearchError[0] = e;
+				} catch (RuntimeException e) {
+					reverseSearchError[0] = e;
+				} finally {
+					reversePlanner.stopTilePrefetching(reverseCtx);
+					finished.set(true);
+				}
+			}
+		}, "Reverse route search"); //$NON-NLS-1$
+		reverseSearch.start();
+		try {
+			searchInOneDirection(ctx, end, false, graphDirectSegments, visitedDirectSegments, targetEndX, targetEndY,
+					visitedOppositeSegments, meeting, finished);
+		} finally {
+			finished.set(true);
+			// route segments of reverse search could be read only after it is stopped
+			boolean interrupted = false;
+			while (reverseSearch.isAlive()) {
+				try {
+					reverseSearch.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			closeThreadPlanner(reversePlanner);
+		}
+		if (reverseSearchError[0] instanceof IOException) {
+			throw (IOException) reverseSearchError[0];
+		} else if (reverseSearchError[0] != null) {
+			throw (RuntimeException) reverseSearchError[0];
+		}
+		// searches run at the same time so time to load is measured only for direct search (current thread)
+		ctx.timeToLoadInBackground += reverseCtx.timeToLoadInBackground;
+		ctx.prefetchedTilesCount += reverseCtx.prefetchedTilesCount;
+		ctx.usedPrefetchedTilesCount += reverseCtx.usedPrefetchedTilesCount;
+		ctx.visitedSegments += reverseCtx.visitedSegments;
+		ctx.loadedTilesCount += reverseCtx.loadedTilesCount;
+		ctx.unloadedTilesCount += reverseCtx.unloadedTilesCount;
+		ctx.reloadedTilesCount += reverseCtx.reloadedTilesCount;
+		
+		RoutePair pair = meeting.get();
+		if (pair != null) {
+			// segment ends could be changed by the other search before it was stopped
+			pair.a.segmentEnd = pair.aEnd;
+			pair.b.segmentEnd = pair.bEnd;
+		}
+		return pair;
+	}
+	
+	private void searchInOneDirection(RoutingContext ctx, RouteSegment target, boolean reverseWaySearch,
+			PriorityQueue<RouteSegment> graphSegments, TLongObjectHashMap<RouteSegment> visitedSegments, int targetEndX, int targetEndY,
+			TLongObjectHashMap<RouteSegment> oppositeSegments, AtomicReference<RoutePair> meeting, AtomicBoolean finished) throws IOException {
+		while (!graphSegments.isEmpty() && !finished.get()) {
+			RouteSegment segment = graphSegments.poll();
+			ctx.visitedSegments++;
+			// for debug purposes (visitor is shared by both searches)
+			if (ctx.visitor != null) {
+				synchronized (ctx.visitor) {
+					ctx.visitor.visitSegment(segment);
+				}
+			}
+			ctx.setSearchFrontier(reverseWaySearch, segment.road.getPoint31XTile(segment.segmentStart), 
+					segment.road.getPoint31YTile(segment.segmentStart));
+			prefetchTiles(ctx, segment, targetEndX, targetEndY);
+			RoutePair pair = processRouteSegment(ctx, target, reverseWaySearch, graphSegments, visitedSegments, targetEndX, targetEndY,
+					segment, oppositeSegments);
+			if (pair != null) {
+				meeting.compareAndSet(null, reverseWaySearch ? pair.swap() : pair);
+				break;
+			}
+		}
+		finished.set(true);
+	}
+
 	private void visitAllStartSegments(final RoutingContext ctx, RouteSegment start, PriorityQueue<RouteSegment> graphDirectSegments,
 			TLongObjectHashMap<RouteSegment> visitedSegments, int startX, int startY) throws IOException {
 		// mark as visited code seems to be duplicated
@@ -302,8 +793,7 @@ public class BinaryRoutePlanner {
 		graphDirectSegments.add(start);
 		
 		loadRoutes(ctx, (startX >> (31 - ctx.getZoomToLoadTileWithRoads())), (startY >> (31 - ctx.getZoomToLoadTileWithRoads())));
-		long ls = (((long) startX) << 31) + (long) startY;
-		RouteSegment startNbs = ctx.routes.get(ls);
+		RouteSegment startNbs = ctx.getRouteSegment(startX, startY);
 		while(startNbs != null) { // startNbs.road.id >> 1, start.road.id >> 1
 			if(startNbs.road.getId() != start.road.getId()){
 				startNbs.parentRoute = start;
@@ -334,9 +824,9 @@ public class BinaryRoutePlanner {
 		long nt = (road.getId() << 8l) + middle;
 		// avoid empty segments to connect but mark the point as visited
 		visitedSegments.put(nt, null);
-		if (oppositeSegments.contains(nt) && oppositeSegments.get(nt) != null) {
+		RouteSegment opposite = oppositeSegments.get(nt);
+		if (opposite != null) {
 			segment.segmentEnd = middle;
-			RouteSegment opposite = oppositeSegments.get(nt);
 			opposite.segmentEnd = middle;
 			return new RoutePair(segment, opposite);
 		}
@@ -375,9 +865,9 @@ public class BinaryRoutePlanner {
 
 			// if we found end point break cycle
 			long nts = (road.getId() << 8l) + segmentEnd;
-			if (oppositeSegments.contains(nts) && oppositeSegments.get(nt) != null) {
+			opposite = oppositeSegments.get(nts);
+			if (opposite != null && oppositeSegments.get(nt) != null) {
 				segment.segmentEnd = segmentEnd;
-				RouteSegment opposite = oppositeSegments.get(nts);
 				opposite.segmentEnd = segmentEnd;
 				return new RoutePair(segment, opposite);
 			}
@@ -387,8 +877,7 @@ public class BinaryRoutePlanner {
 			int x = road.getPoint31XTile(segmentEnd);
 			int y = road.getPoint31YTile(segmentEnd);
 			loadRoutes(ctx, (x >> (31 - ctx.getZoomToLoadTileWithRoads())), (y >> (31 - ctx.getZoomToLoadTileWithRoads())));
-			long l = (((long) x) << 31) + (long) y;
-			RouteSegment next = ctx.routes.get(l);
+			RouteSegment next = ctx.getRouteSegment(x, y);
 
 			// 3. get intersected ways
 			if (next != null) {
@@ -436,7 +925,9 @@ public class BinaryRoutePlanner {
 		RouteSegment next = inputNext;
 		while (next != null) {
 			long nts = (next.road.getId() << 8l) + next.segmentStart;
-			boolean oppositeConnectionFound = oppositeSegments.containsKey(nts) && oppositeSegments.get(nts) != null;
+			// opposite segments could be changed by other thread so read them once
+			RouteSegment oppSegment = oppositeSegments.get(nts);
+			boolean oppositeConnectionFound = oppSegment != null;
 			
 			boolean processRoad = true;
 			if (ctx.isUseStrategyOfIncreasingRoadPriorities()) {
@@ -489,7 +980,6 @@ public class BinaryRoutePlanner {
 				} else {
 					// no restriction can go out
 					if(oppositeConnectionFound){
-						RouteSegment oppSegment = oppositeSegments.get(nts);
 						oppSegment.segmentEnd = next.segmentStart;
 						return oppSegment;
 					}
@@ -615,27 +1105,35 @@ public class BinaryRoutePlanner {
 		
 		
 		if (PRINT_TO_CONSOLE_ROUTE_INFORMATION_TO_TEST) {
-			System.out.println("ROUTE : ");
-			double startLat = MapUtils.get31LatitudeY(start.road.getPoint31YTile(start.segmentEnd));
-			double startLon = MapUtils.get31LongitudeX(start.road.getPoint31XTile(start.segmentEnd));
-			double endLat = MapUtils.get31LatitudeY(end.road.getPoint31YTile(end.segmentStart));
-			double endLon = MapUtils.get31LongitudeX(end.road.getPoint31XTile(end.segmentEnd));
-			System.out.println(MessageFormat.format("<test regions=\"\" description=\"\" best_percent=\"\" vehicle=\"\" \n" +
-					"    start_lat=\"{0}\" start_lon=\"{1}\" target_lat=\"{2}\" target_lon=\"{3}\">", 
-					startLat+"", startLon+"", endLat+"", endLon+""));
-			for (RouteSegmentResult res : result) {
-				// (res.object.getId() >> 1)
-				System.out.println(MessageFormat.format("\t<segment id=\"{0}\" start=\"{1}\" end=\"{2}\" name=\"{3}\"/>", 
-						(res.object.getId() >> 1)+"", res.startPointIndex, res.endPointIndex, (res.object.getName()+"").replace(MapRenderingTypes.REF_CHAR, ' ')));
-			}
-			System.out.println("</test>");
+			printRouteInformation(start, end, result);
 		}
 		
 		ctx.timeToCalculate = (System.nanoTime() - startNanoTime);
-		log.info("Time to calculate : " + ctx.timeToCalculate / 1e6 +", time to load : " + ctx.timeToLoad / 1e6	 + ", loaded tiles : " + ctx.loadedTiles.size() + 
-				", visited segments " + ctx.visitedSegments );
+		log.info("Time to calculate : " + ctx.timeToCalculate / 1e6 + " (compute " + (ctx.timeToCalculate - ctx.timeToLoad) / 1e6 
+				+ "), time to load : " + ctx.timeToLoad / 1e6 + ", time to load in background : " + ctx.getTimeToLoadInBackground() / 1e6 
+				+ ", prefetched tiles : " + ctx.prefetchedTilesCount + " (used " + ctx.usedPrefetchedTilesCount + ")" 
+				+ ", loaded tiles : " + ctx.loadedTiles.size() + 
+				" (loaded " + ctx.loadedTilesCount + ", unloaded " + ctx.unloadedTilesCount + ", reloaded " + ctx.reloadedTilesCount
+				+ "), visited segments " + ctx.visitedSegments );
 		return result;
 	}
+
+	private void printRouteInformation(RouteSegment start, RouteSegment end, List<RouteSegmentResult> result) {
+		System.out.println("ROUTE : ");
+		double startLat = MapUtils.get31LatitudeY(start.road.getPoint31YTile(start.segmentEnd));
+		double startLon = MapUtils.get31LongitudeX(start.road.getPoint31XTile(start.segmentEnd));
+		double endLat = MapUtils.get31LatitudeY(end.road.getPoint31YTile(end.segmentStart));
+		double endLon = MapUtils.get31LongitudeX(end.road.getPoint31XTile(end.segmentEnd));
+		System.out.println(MessageFormat.format("<test regions=\"\" description=\"\" best_percent=\"\" vehicle=\"\" \n" +
+				"    start_lat=\"{0}\" start_lon=\"{1}\" target_lat=\"{2}\" target_lon=\"{3}\">", 
+				startLat+"", startLon+"", endLat+"", endLon+""));
+		for (RouteSegmentResult res : result) {
+			// (res.object.getId() >> 1)
+			System.out.println(MessageFormat.format("\t<segment id=\"{0}\" start=\"{1}\" end=\"{2}\" name=\"{3}\"/>", 
+					(res.object.getId() >> 1)+"", res.startPointIndex, res.endPointIndex, (res.object.getName()+"").replace(MapRenderingTypes.REF_CHAR, ' ')));
+		}
+		System.out.println("</test>");
+	}
 	
 	private LatLon convertPoint(BinaryMapDataObject o, int ind){
 		return new LatLon(MapUtils.get31LatitudeY(o.getPoint31YTile(ind)), MapUtils.get31LongitudeX(o.getPoint31XTile(ind)));
@@ -689,13 +1187,50 @@ public class BinaryRoutePlanner {
 	private static class RoutePair {
 		RouteSegment a;
 		RouteSegment b;
+		// segment ends at the moment of meeting
+		int aEnd;
+		int bEnd;
 		public RoutePair(RouteSegment a, RouteSegment b) {
 			super();
 			this.a = a;
 			this.b = b;
+			this.aEnd = a.segmentEnd;
+			this.bEnd = b.segmentEnd;
+		}
+		
+		public RoutePair swap() {
+			RoutePair p = new RoutePair(b, a);
+			p.aEnd = bEnd;
+			p.bEnd = aEnd;
+			return p;
 		}
+	}
+	
+	/**
+	 * Visited segments of one search which are read by opposite search running in parallel thread
+	 */
+	private static class SynchronizedSegmentsMap extends TLongObjectHashMap<RouteSegment> {
+		private static final long serialVersionUID = 1L;
 		
+		@Override
+		public synchronized RouteSegment get(long key) {
+			return super.get(key);
+		}
 		
+		@Override
+		public synchronized RouteSegment put(long key, RouteSegment value) {
+			return super.put(key, value);
+		}
+		
+		@Override
+		public synchronized boolean containsKey(long key) {
+			return super.containsKey(key);
+		}
+		
+		@Override
+		public synchronized boolean contains(long val) {
+			return super.contains(val);
+		}
 	}
 
 	
@@ -51,6 +51,11 @@ public class CarRouter extends VehicleRouter {
 		autoPriorityValues.put("living_street", 0.1d);
 	}
 
+	@Override
+	public String getName() {
+		return "car";
+	}
+
 	@Override
 	public boolean acceptLine(TagValuePair pair) {
 		if (pair.tag.equals("highway")) {
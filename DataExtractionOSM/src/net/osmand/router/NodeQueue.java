@@ -0,0 +1,78 @@
+package net.osmand.router;
+
+/**
+ * Binary min heap of (cost, node) pairs packed into longs (used by graph searches on routing hierarchy).
+ * Cost should be not negative, there is no decrease key : node is pushed again and old entries are skipped by caller.
+ */
+public class NodeQueue {
+
+	private long[] heap;
+	private int size = 0;
+
+	public NodeQueue(int capacity) {
+		heap = new long[Math.max(capacity, 4)];
+	}
+
+	public void push(int cost, int node) {
+		if (size == heap.length) {
+			long[] n = new long[heap.length * 2];
+			System.arraycopy(heap, 0, n, 0, size);
+			heap = n;
+		}
+		long v = (((long) cost) << 32) | (node & 0xffffffffl);
+		int i = size++;
+		while (i > 0) {
+			int p = (i - 1) >> 1;
+			if (heap[p] <= v) {
+				break;
+			}
+			heap[i] = heap[p];
+			i = p;
+		}
+		heap[i] = v;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int peekCost() {
+		return (int) (heap[0] >>> 32);
+	}
+
+	public int peekNode() {
+		return (int) heap[0];
+	}
+
+	/**
+	 * Removes min element
+	 * @return node of removed element
+	 */
+	public int poll() {
+		int node = (int) heap[0];
+		long last = heap[--size];
+		int i = 0;
+		int half = size >> 1;
+		while (i < half) {
+			int c = 2 * i + 1;
+			if (c + 1 < size && heap[c + 1] < heap[c]) {
+				c++;
+			}
+			if (last <= heap[c]) {
+				break;
+			}
+			heap[i] = heap[c];
+			i = c;
+		}
+		heap[i] = last;
+		return node;
+	}
+}
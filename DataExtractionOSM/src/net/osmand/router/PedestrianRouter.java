@@ -81,6 +81,11 @@ public class PedestrianRouter extends VehicleRouter {
 		return false;
 	}
 
+	@Override
+	public String getName() {
+		return "pedestrian";
+	}
+
 	@Override
 	public boolean acceptLine(TagValuePair pair) {
 		if (pair.tag.equals("highway")) {
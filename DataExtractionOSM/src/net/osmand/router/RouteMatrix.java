@@ -0,0 +1,75 @@
+package net.osmand.router;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Travel times and distances between sources and targets calculated by {@link RouteMatrixCalculator}
+ */
+public class RouteMatrix {
+
+	public static final double UNREACHABLE = -1;
+
+	private final double[][] durations;
+	private final double[][] distances;
+	// routes of source i are kept from i * targets, null if geometries are not calculated
+	private final List<List<RouteSegmentResult>> routes;
+
+	RouteMatrix(int sources, int targets, boolean calculateRoutes) {
+		durations = new double[sources][targets];
+		distances = new double[sources][targets];
+		for (int i = 0; i < sources; i++) {
+			for (int j = 0; j < targets; j++) {
+				durations[i][j] = UNREACHABLE;
+				distances[i][j] = UNREACHABLE;
+			}
+		}
+		if (calculateRoutes) {
+			routes = new ArrayList<List<RouteSegmentResult>>(Collections.<List<RouteSegmentResult>> nCopies(sources * targets, null));
+		} else {
+			routes = null;
+		}
+	}
+
+	void setRoute(int source, int target, double duration, double distance, List<RouteSegmentResult> route) {
+		durations[source][target] = duration;
+		distances[source][target] = distance;
+		if (routes != null) {
+			routes.set(source * getTargetsCount() + target, route);
+		}
+	}
+
+	public int getSourcesCount() {
+		return durations.length;
+	}
+
+	public int getTargetsCount() {
+		return durations.length == 0 ? 0 : durations[0].length;
+	}
+
+	/**
+	 * @return time in seconds or {@link #UNREACHABLE}
+	 */
+	public double getDuration(int source, int target) {
+		return durations[source][target];
+	}
+
+	/**
+	 * @return distance in meters or {@link #UNREACHABLE}
+	 */
+	public double getDistance(int source, int target) {
+		return distances[source][target];
+	}
+
+	public boolean isReachable(int source, int target) {
+		return durations[source][target] != UNREACHABLE;
+	}
+
+	/**
+	 * @return route segments or null if target is not reachable or geometries were not requested
+	 */
+	public List<RouteSegmentResult> getRoute(int source, int target) {
+		return routes == null ? null : routes.get(source * getTargetsCount() + target);
+	}
+}
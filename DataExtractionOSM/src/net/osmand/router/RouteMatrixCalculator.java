@@ -0,0 +1,245 @@
+package net.osmand.router;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.osmand.LogUtil;
+import net.osmand.binary.BinaryMapDataObject;
+import net.osmand.osm.LatLon;
+import net.osmand.osm.MapUtils;
+import net.osmand.router.BinaryRoutePlanner.RouteSegment;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Calculates travel times (and optionally routes) from several sources to several targets.
+ * Start and end segments are found once and for every source one Dijkstra search goes till all targets are reached.
+ * Searches run over packed tiles of one routing context (tiles are loaded once and shared by searches of all sources),
+ * so they could run in parallel.
+ * Turn time and turn restrictions are not taken into account (obstacles are).
+ */
+public class RouteMatrixCalculator {
+
+	private static final Log log = LogUtil.getLog(RouteMatrixCalculator.class);
+
+	private final BinaryRoutePlanner planner;
+	private final RoutingContext ctx;
+
+	public RouteMatrixCalculator(BinaryRoutePlanner planner, RoutingContext ctx) {
+		this.planner = planner;
+		this.ctx = ctx;
+	}
+
+	private static class MatrixNode {
+		// point is reached by road from parent point to point
+		BinaryMapDataObject road;
+		int parentPoint;
+		int point;
+		MatrixNode parent;
+		double duration;
+		double distance;
+		boolean settled;
+
+		long getKey() {
+			return (((long) road.getPoint31XTile(point)) << 31) + (long) road.getPoint31YTile(point);
+		}
+	}
+
+	/**
+	 * @param threads number of threads to process sources (1 - search in current thread)
+	 */
+	public RouteMatrix calculate(List<LatLon> sources, List<LatLon> targets, boolean calculateRoutes, int threads) throws IOException {
+		long now = System.nanoTime();
+		final RouteMatrix matrix = new RouteMatrix(sources.size(), targets.size(), calculateRoutes);
+		final RouteSegment[] startSegments = new RouteSegment[sources.size()];
+		for (int i = 0; i < sources.size(); i++) {
+			startSegments[i] = planner.findRouteSegment(sources.get(i).getLatitude(), sources.get(i).getLongitude(), ctx);
+		}
+		// targets by point of road where they are
+		final TLongObjectHashMap<TIntArrayList> targetPoints = new TLongObjectHashMap<TIntArrayList>();
+		for (int j = 0; j < targets.size(); j++) {
+			RouteSegment end = planner.findRouteSegment(targets.get(j).getLatitude(), targets.get(j).getLongitude(), ctx);
+			if (end != null) {
+				long l = (((long) end.road.getPoint31XTile(end.segmentStart)) << 31) + (long) end.road.getPoint31YTile(end.segmentStart);
+				if (!targetPoints.containsKey(l)) {
+					targetPoints.put(l, new TIntArrayList(1));
+				}
+				targetPoints.get(l).add(j);
+			}
+		}
+
+		if (threads <= 1) {
+			for (int i = 0; i < startSegments.length; i++) {
+				calculateFromSource(matrix, i, startSegments[i], targetPoints, calculateRoutes);
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Void>> futures = new ArrayList<Future<Void>>();
+				for (int i = 0; i < startSegments.length; i++) {
+					final int source = i;
+					final boolean routes = calculateRoutes;
+					futures.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							calculateFromSource(matrix, source, startSegments[source], targetPoints, routes);
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> f : futures) {
+					f.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Route matrix calculation is interrupted"); //$NON-NLS-1$
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				} else if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		log.info("Time to calculate route matrix " + sources.size() + "x" + targets.size() + " : " + (System.nanoTime() - now) / 1e6
+				+ ", loaded tiles : " + ctx.loadedTiles.size());
+		return matrix;
+	}
+
+	private void calculateFromSource(RouteMatrix matrix, int source, RouteSegment start, TLongObjectHashMap<TIntArrayList> targetPoints,
+			boolean calculateRoutes) throws IOException {
+		if (start == null) {
+			return;
+		}
+		// tiles taken from context by that search
+		TIntObjectHashMap<RoutingTile> tiles = new TIntObjectHashMap<RoutingTile>();
+		// best node for every reached point
+		TLongObjectHashMap<MatrixNode> visited = new TLongObjectHashMap<MatrixNode>();
+		PriorityQueue<MatrixNode> queue = new PriorityQueue<MatrixNode>(64, new Comparator<MatrixNode>() {
+			@Override
+			public int compare(MatrixNode o1, MatrixNode o2) {
+				return Double.compare(o1.duration, o2.duration);
+			}
+		});
+		VehicleRouter router = ctx.getRouter();
+		MatrixNode first = new MatrixNode();
+		first.road = start.road;
+		first.point = first.parentPoint = start.segmentStart;
+		visited.put(first.getKey(), first);
+		queue.add(first);
+		int targetsLeft = targetPoints.size();
+		while (!queue.isEmpty() && targetsLeft > 0) {
+			MatrixNode node = queue.poll();
+			long key = node.getKey();
+			if (node.settled || visited.get(key) != node) {
+				continue;
+			}
+			node.settled = true;
+			TIntArrayList pointTargets = targetPoints.get(key);
+			if (pointTargets != null) {
+				targetsLeft--;
+				List<RouteSegmentResult> route = calculateRoutes ? collectRoute(node) : null;
+				for (int k = 0; k < pointTargets.size(); k++) {
+					matrix.setRoute(source, pointTargets.get(k), node.duration, node.distance, route);
+				}
+			}
+
+			int x = node.road.getPoint31XTile(node.point);
+			int y = node.road.getPoint31YTile(node.point);
+			RoutingTile tile = getTile(tiles, x, y);
+			int p = tile == null ? -1 : tile.findPoint(x, y);
+			if (p < 0) {
+				continue;
+			}
+			double obstaclesTime = 0;
+			if (node != first) {
+				for (int o = tile.getFirstOccurrence(p); o < tile.getLastOccurrence(p); o++) {
+					obstaclesTime += router.defineObstacle(tile.getOccurrenceRoad(o), tile.getOccurrencePoint(o));
+				}
+			}
+			for (int o = tile.getFirstOccurrence(p); o < tile.getLastOccurrence(p); o++) {
+				BinaryMapDataObject road = tile.getOccurrenceRoad(o);
+				int point = tile.getOccurrencePoint(o);
+				boolean oneway = router.isOneWay(road);
+				double speed = router.defineSpeed(road);
+				if (speed == 0) {
+					speed = router.getMinDefaultSpeed();
+				}
+				for (int d = -1; d <= 1; d += 2) {
+					int next = point + d;
+					if ((oneway && d < 0) || next < 0 || next >= road.getPointsLength()) {
+						continue;
+					}
+					double dist = BinaryRoutePlanner.squareRootDist(x, y, road.getPoint31XTile(next), road.getPoint31YTile(next));
+					double duration = node.duration + obstaclesTime + dist / speed;
+					long nextKey = (((long) road.getPoint31XTile(next)) << 31) + (long) road.getPoint31YTile(next);
+					MatrixNode old = visited.get(nextKey);
+					if (old == null || (!old.settled && duration < old.duration)) {
+						MatrixNode n = new MatrixNode();
+						n.road = road;
+						n.parentPoint = point;
+						n.point = next;
+						n.parent = node;
+						n.duration = duration;
+						n.distance = node.distance + dist;
+						visited.put(nextKey, n);
+						queue.add(n);
+					}
+				}
+			}
+		}
+	}
+
+	private RoutingTile getTile(TIntObjectHashMap<RoutingTile> tiles, int x31, int y31) throws IOException {
+		int zoom = ctx.getZoomToLoadTileWithRoads();
+		int tileX = x31 >> (31 - zoom);
+		int tileY = y31 >> (31 - zoom);
+		int tileC = (tileX << zoom) + tileY;
+		RoutingTile tile = tiles.get(tileC);
+		if (tile == null) {
+			// context is shared by searches running in parallel, tile is kept by search even if context unloads it
+			synchronized (ctx) {
+				planner.loadRoutes(ctx, tileX, tileY);
+				tile = ctx.loadedTiles.get(tileC);
+			}
+			tiles.put(tileC, tile);
+		}
+		return tile;
+	}
+
+	private static List<RouteSegmentResult> collectRoute(MatrixNode node) {
+		List<MatrixNode> nodes = new ArrayList<MatrixNode>();
+		while (node.parent != null) {
+			nodes.add(node);
+			node = node.parent;
+		}
+		Collections.reverse(nodes);
+		List<RouteSegmentResult> result = new ArrayList<RouteSegmentResult>();
+		for (MatrixNode n : nodes) {
+			BinaryRoutePlanner.addRouteSegmentResult(result, n.road, n.parentPoint, n.point);
+		}
+		for (RouteSegmentResult res : result) {
+			res.startPoint = new LatLon(MapUtils.get31LatitudeY(res.object.getPoint31YTile(res.startPointIndex)),
+					MapUtils.get31LongitudeX(res.object.getPoint31XTile(res.startPointIndex)));
+			res.endPoint = new LatLon(MapUtils.get31LatitudeY(res.object.getPoint31YTile(res.endPointIndex)),
+					MapUtils.get31LongitudeX(res.object.getPoint31XTile(res.endPointIndex)));
+		}
+		return result;
+	}
+}
@@ -1,11 +1,15 @@
 package net.osmand.router;
 
+import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 
 import net.osmand.binary.BinaryMapDataObject;
 import net.osmand.router.BinaryRoutePlanner.RouteSegment;
@@ -27,27 +31,193 @@ public class RoutingContext {
 	private boolean useDynamicRoadPrioritising = true;
 	// not used right now
 	private boolean usingShortestWay = false;
+	// use precalculated routing hierarchy (contraction hierarchy) if map contains it for the router
+	private boolean useRoutingHierarchy = false;
+	// estimated memory (bytes) for loaded tiles, least recently used tiles are unloaded when it is exceeded (0 - unlimited)
+	private long memoryLimit = 0;
+	// run direct and reverse search in 2 threads
+	private boolean useParallelBidirectionalSearch = false;
+	// threads to read tiles in background before search reaches them (0 - tiles are read only by search thread)
+	private int tilePrefetchThreads = 0;
 
 	
 	// 2. Routing memory cache
 	TLongObjectMap<BinaryMapDataObject> idObjects = new TLongObjectHashMap<BinaryMapDataObject>();
+	// packed road graph of loaded tiles ((tileX << zoom) + tileY)
+	TIntObjectMap<RoutingTile> loadedTiles = new TIntObjectHashMap<RoutingTile>();
+	// route segments are created only for points reached by search ((x << 31) + y)
 	TLongObjectMap<RouteSegment> routes = new TLongObjectHashMap<RouteSegment>();
-	TIntSet loadedTiles = new TIntHashSet();
+	// tiles unloaded at least once
+	TIntSet unloadedTiles = new TIntHashSet();
+	long memoryUsed = 0;
+	// not null while search is running with tile prefetching
+	RoutingTilePrefetcher prefetcher = null;
+	private long accessCounter = 0;
+	// tiles around current segments of direct and reverse search are not unloaded (-1 - not set)
+	private int directFrontierTileX = -1;
+	private int directFrontierTileY = -1;
+	private int reverseFrontierTileX = -1;
+	private int reverseFrontierTileY = -1;
 
 	// 3. debug information (package accessor)
+	// time search thread is blocked by loading tiles
 	long timeToLoad = 0;
+	long timeToLoadInBackground = 0;
+	int prefetchedTilesCount = 0;
+	int usedPrefetchedTilesCount = 0;
 	long timeToCalculate = 0;
 	int visitedSegments = 0;
+	// counters since context is created
+	int loadedTilesCount = 0;
+	int unloadedTilesCount = 0;
+	int reloadedTilesCount = 0;
 	// callback of processing segments
 	RouteSegmentVisitor visitor = null;
 	
 	
+	public RoutingContext() {
+	}
+	
+	/**
+	 * Creates context with the same routing parameters (and visitor) but with empty memory cache
+	 */
+	public RoutingContext(RoutingContext params) {
+		this.heuristicCoefficient = params.heuristicCoefficient;
+		this.zoomToLoadTileWithRoads = params.zoomToLoadTileWithRoads;
+		this.useStrategyOfIncreasingRoadPriorities = params.useStrategyOfIncreasingRoadPriorities;
+		this.planRoadDirection = params.planRoadDirection;
+		this.router = params.router;
+		this.useDynamicRoadPrioritising = params.useDynamicRoadPrioritising;
+		this.usingShortestWay = params.usingShortestWay;
+		this.useRoutingHierarchy = params.useRoutingHierarchy;
+		this.memoryLimit = params.memoryLimit;
+		this.useParallelBidirectionalSearch = params.useParallelBidirectionalSearch;
+		this.tilePrefetchThreads = params.tilePrefetchThreads;
+		this.visitor = params.visitor;
+	}
+	
 	public RouteSegmentVisitor getVisitor() {
 		return visitor;
 	}
 	
-	public TLongObjectMap<RouteSegment> getLoadedRoutes() {
-		return routes;
+	/**
+	 * Returns segments of all roads going through the point (linked through next) 
+	 * or null if there are no roads or tile of the point is not loaded yet
+	 */
+	public RouteSegment getRouteSegment(int x31, int y31) {
+		long l = (((long) x31) << 31) + (long) y31;
+		RouteSegment segment = routes.get(l);
+		if (segment == null) {
+			int shift = 31 - zoomToLoadTileWithRoads;
+			RoutingTile tile = loadedTiles.get(((x31 >> shift) << zoomToLoadTileWithRoads) + (y31 >> shift));
+			if (tile != null) {
+				int point = tile.findPoint(x31, y31);
+				if (point >= 0) {
+					// last loaded road goes first
+					for (int o = tile.getFirstOccurrence(point); o < tile.getLastOccurrence(point); o++) {
+						RouteSegment s = new RouteSegment();
+						s.road = tile.getOccurrenceRoad(o);
+						s.segmentStart = s.segmentEnd = tile.getOccurrencePoint(o);
+						s.next = segment;
+						segment = s;
+					}
+					int created = tile.getLastOccurrence(point) - tile.getFirstOccurrence(point);
+					tile.segments += created;
+					memoryUsed += (long) RoutingTile.ROUTE_SEGMENT_MEMORY * created;
+					routes.put(l, segment);
+				}
+			}
+		}
+		return segment;
+	}
+	
+	/**
+	 * @return true if tile is loaded (and marks it as recently used)
+	 */
+	boolean accessTile(int tileC) {
+		RoutingTile tile = loadedTiles.get(tileC);
+		if (tile != null) {
+			tile.lastAccess = accessCounter++;
+			return true;
+		}
+		return false;
+	}
+	
+	void registerTile(int tileC, RoutingTile tile) {
+		tile.lastAccess = accessCounter++;
+		loadedTiles.put(tileC, tile);
+		memoryUsed += tile.getMemoryEstimate();
+		loadedTilesCount++;
+		if (unloadedTiles.contains(tileC)) {
+			reloadedTilesCount++;
+		}
+		if (memoryLimit > 0 && memoryUsed > memoryLimit) {
+			unloadLeastRecentlyUsedTiles(tile);
+		}
+	}
+	
+	void setSearchFrontier(boolean reverse, int x31, int y31) {
+		int shift = 31 - zoomToLoadTileWithRoads;
+		if (reverse) {
+			reverseFrontierTileX = x31 >> shift;
+			reverseFrontierTileY = y31 >> shift;
+		} else {
+			directFrontierTileX = x31 >> shift;
+			directFrontierTileY = y31 >> shift;
+		}
+	}
+	
+	private boolean isNearFrontier(RoutingTile tile) {
+		return (directFrontierTileX != -1 && Math.abs(tile.tileX - directFrontierTileX) <= 1 && Math.abs(tile.tileY - directFrontierTileY) <= 1)
+				|| (reverseFrontierTileX != -1 && Math.abs(tile.tileX - reverseFrontierTileX) <= 1 && Math.abs(tile.tileY - reverseFrontierTileY) <= 1);
+	}
+	
+	/**
+	 * Unloads least recently used tiles (except tiles near search frontiers) till 3/4 of memory limit is used.
+	 * Unloaded tiles are loaded again by planner when they are needed. 
+	 */
+	private void unloadLeastRecentlyUsedTiles(RoutingTile loadedTile) {
+		RoutingTile[] tiles = loadedTiles.values(new RoutingTile[loadedTiles.size()]);
+		Arrays.sort(tiles, new Comparator<RoutingTile>() {
+			@Override
+			public int compare(RoutingTile o1, RoutingTile o2) {
+				return o1.lastAccess < o2.lastAccess ? -1 : (o1.lastAccess == o2.lastAccess ? 0 : 1);
+			}
+		});
+		long limit = memoryLimit * 3 / 4;
+		for (int i = 0; i < tiles.length && memoryUsed > limit; i++) {
+			if (tiles[i] != loadedTile && !isNearFrontier(tiles[i])) {
+				unloadTile(tiles[i]);
+			}
+		}
+	}
+	
+	private void unloadTile(RoutingTile tile) {
+		int tileC = (tile.tileX << zoomToLoadTileWithRoads) + tile.tileY;
+		loadedTiles.remove(tileC);
+		unloadedTiles.add(tileC);
+		unloadedTilesCount++;
+		memoryUsed -= tile.getMemoryEstimate();
+		for (int i = 0; i < tile.getPointsCount(); i++) {
+			routes.remove((((long) tile.getPointX(i)) << 31) + (long) tile.getPointY(i));
+		}
+		// road is kept while it has points in other loaded tiles
+		int shift = 31 - zoomToLoadTileWithRoads;
+		for (int k = 0; k < tile.getRoadsCount(); k++) {
+			BinaryMapDataObject road = tile.getRoad(k);
+			if (idObjects.get(road.getId()) != road) {
+				continue;
+			}
+			boolean used = false;
+			for (int j = 0; j < road.getPointsLength() && !used; j++) {
+				int x = road.getPoint31XTile(j) >> shift;
+				int y = road.getPoint31YTile(j) >> shift;
+				used = loadedTiles.containsKey((x << zoomToLoadTileWithRoads) + y);
+			}
+			if (!used) {
+				idObjects.remove(road.getId());
+			}
+		}
 	}
 	
 	public void setVisitor(RouteSegmentVisitor visitor) {
@@ -77,6 +247,88 @@ public class RoutingContext {
 	public boolean isUsingShortestWay() {
 		return usingShortestWay;
 	}
+	
+	public void setUseRoutingHierarchy(boolean useRoutingHierarchy) {
+		this.useRoutingHierarchy = useRoutingHierarchy;
+	}
+	
+	public boolean isUseRoutingHierarchy() {
+		return useRoutingHierarchy;
+	}
+	
+	/**
+	 * Direct and reverse searches run in 2 threads (only when route is planned in 2 directions).
+	 * Reverse search loads tiles into its own context, so memory limit is applied to each search.
+	 * It reads tiles with own readers if maps are memory mapped or their files are given to planner.
+	 */
+	public void setUseParallelBidirectionalSearch(boolean useParallelBidirectionalSearch) {
+		this.useParallelBidirectionalSearch = useParallelBidirectionalSearch;
+	}
+	
+	public boolean isUseParallelBidirectionalSearch() {
+		return useParallelBidirectionalSearch;
+	}
+	
+	/**
+	 * @param memoryLimit estimated memory in bytes for loaded road tiles (0 - unlimited)
+	 */
+	public void setMemoryLimit(long memoryLimit) {
+		this.memoryLimit = memoryLimit;
+	}
+	
+	public long getMemoryLimit() {
+		return memoryLimit;
+	}
+	
+	public long getMemoryUsed() {
+		return memoryUsed;
+	}
+	
+	public int getLoadedTilesCount() {
+		return loadedTilesCount;
+	}
+	
+	public int getUnloadedTilesCount() {
+		return unloadedTilesCount;
+	}
+	
+	public int getReloadedTilesCount() {
+		return reloadedTilesCount;
+	}
+	
+	/**
+	 * @return time (nanoseconds) search thread was blocked by loading tiles
+	 */
+	public long getTimeToLoad() {
+		return timeToLoad;
+	}
+	
+	/**
+	 * @return time (nanoseconds) spent by background threads to read prefetched tiles
+	 */
+	public long getTimeToLoadInBackground() {
+		return timeToLoadInBackground + (prefetcher == null ? 0 : prefetcher.getTimeToLoad());
+	}
+	
+	public int getPrefetchedTilesCount() {
+		return prefetchedTilesCount;
+	}
+	
+	public int getUsedPrefetchedTilesCount() {
+		return usedPrefetchedTilesCount;
+	}
+	
+	/**
+	 * @param tilePrefetchThreads threads reading tiles in the direction of the target in background (0 - no prefetching),
+	 * they read tiles with own readers if maps are memory mapped or their files are given to planner
+	 */
+	public void setTilePrefetchThreads(int tilePrefetchThreads) {
+		this.tilePrefetchThreads = tilePrefetchThreads;
+	}
+	
+	public int getTilePrefetchThreads() {
+		return tilePrefetchThreads;
+	}
 
 	public void setRouter(VehicleRouter router) {
 		this.router = router;
@@ -0,0 +1,183 @@
+package net.osmand.router;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.osmand.binary.BinaryMapDataObject;
+
+/**
+ * Packed road graph of one loaded tile : sorted points of roads lying inside the tile
+ * and for each point (CSR) the roads going through it with index of the point on the road.
+ * Tile is built once when it is loaded and is not changed after.
+ */
+class RoutingTile {
+
+	static final int ROAD_MEMORY = 64;
+	static final int ROUTE_SEGMENT_MEMORY = 80;
+
+	final int tileX;
+	final int tileY;
+	final int zoom;
+
+	// points sorted by x, then y
+	private int[] pointX;
+	private int[] pointY;
+	// occurrences of point i are [pointRoads[i], pointRoads[i + 1])
+	private int[] pointRoads;
+	// occurrence columns : index in roads table and index of point on the road
+	private int[] roadIndex;
+	private int[] roadPoint;
+	private BinaryMapDataObject[] roads;
+
+	// access stamp to unload least recently used tiles
+	long lastAccess;
+	// number of route segments created for points of the tile
+	int segments;
+
+	RoutingTile(int tileX, int tileY, int zoom) {
+		this.tileX = tileX;
+		this.tileY = tileY;
+		this.zoom = zoom;
+	}
+
+	/**
+	 * Builder collects points in the order roads are loaded
+	 */
+	static class Builder {
+		private final RoutingTile tile;
+		private final List<BinaryMapDataObject> roads = new ArrayList<BinaryMapDataObject>();
+		private final TLongArrayList points = new TLongArrayList();
+		private final TIntArrayList roadIndex = new TIntArrayList();
+		private final TIntArrayList roadPoint = new TIntArrayList();
+
+		Builder(RoutingTile tile) {
+			this.tile = tile;
+		}
+
+		void addRoad(BinaryMapDataObject road) {
+			int shift = 31 - tile.zoom;
+			int ind = roads.size();
+			roads.add(road);
+			for (int j = 0; j < road.getPointsLength(); j++) {
+				int x = road.getPoint31XTile(j);
+				int y = road.getPoint31YTile(j);
+				if ((x >> shift) == tile.tileX && (y >> shift) == tile.tileY) {
+					points.add((((long) x) << 31) + (long) y);
+					roadIndex.add(ind);
+					roadPoint.add(j);
+				}
+			}
+		}
+
+		RoutingTile build() {
+			long[] keys = points.toArray();
+			Arrays.sort(keys);
+			int unique = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (i == 0 || keys[i] != keys[i - 1]) {
+					keys[unique++] = keys[i];
+				}
+			}
+			keys = Arrays.copyOf(keys, unique);
+			int[] counts = new int[unique + 1];
+			int[] pointOfOccurrence = new int[points.size()];
+			for (int i = 0; i < points.size(); i++) {
+				pointOfOccurrence[i] = Arrays.binarySearch(keys, points.get(i));
+				counts[pointOfOccurrence[i] + 1]++;
+			}
+			for (int i = 0; i < unique; i++) {
+				counts[i + 1] += counts[i];
+			}
+			// keep order of loading for occurrences of the same point
+			int[] next = Arrays.copyOf(counts, unique);
+			tile.roadIndex = new int[points.size()];
+			tile.roadPoint = new int[points.size()];
+			for (int i = 0; i < points.size(); i++) {
+				int pos = next[pointOfOccurrence[i]]++;
+				tile.roadIndex[pos] = roadIndex.get(i);
+				tile.roadPoint[pos] = roadPoint.get(i);
+			}
+			tile.pointRoads = counts;
+			tile.pointX = new int[unique];
+			tile.pointY = new int[unique];
+			for (int i = 0; i < unique; i++) {
+				tile.pointX[i] = (int) (keys[i] >> 31);
+				tile.pointY[i] = (int) (keys[i] & Integer.MAX_VALUE);
+			}
+			tile.roads = roads.toArray(new BinaryMapDataObject[roads.size()]);
+			return tile;
+		}
+	}
+
+	int getPointsCount() {
+		return pointX.length;
+	}
+
+	int getPointX(int point) {
+		return pointX[point];
+	}
+
+	int getPointY(int point) {
+		return pointY[point];
+	}
+
+	/**
+	 * Rough estimation of memory in bytes taken by tile, its roads and created route segments
+	 * (roads crossing several tiles are counted in each of them)
+	 */
+	long getMemoryEstimate() {
+		long mem = 8l * pointX.length + 12l * roadIndex.length + 4l * roads.length;
+		for (BinaryMapDataObject road : roads) {
+			mem += ROAD_MEMORY + 8 * road.getPointsLength() + 4 * road.getTypes().length + 8 * road.getRestrictionCount();
+		}
+		return mem + (long) ROUTE_SEGMENT_MEMORY * segments;
+	}
+
+	int getRoadsCount() {
+		return roads.length;
+	}
+
+	BinaryMapDataObject getRoad(int ind) {
+		return roads[ind];
+	}
+
+	/**
+	 * @return index of point or -1
+	 */
+	int findPoint(int x31, int y31) {
+		int low = 0;
+		int high = pointX.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = pointX[mid] != x31 ? (pointX[mid] < x31 ? -1 : 1) : (pointY[mid] < y31 ? -1 : (pointY[mid] == y31 ? 0 : 1));
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	int getFirstOccurrence(int point) {
+		return pointRoads[point];
+	}
+
+	int getLastOccurrence(int point) {
+		return pointRoads[point + 1];
+	}
+
+	BinaryMapDataObject getOccurrenceRoad(int occurrence) {
+		return roads[roadIndex[occurrence]];
+	}
+
+	int getOccurrencePoint(int occurrence) {
+		return roadPoint[occurrence];
+	}
+}
@@ -0,0 +1,142 @@
+package net.osmand.router;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.osmand.binary.BinaryMapDataObject;
+
+/**
+ * Reads roads of tiles in background threads before search reaches them.
+ * Prefetcher is used only by the search thread of one routing context,
+ * read roads are put into the context by planner when the tile is needed.
+ * Every thread reads tiles with its own readers if planner could open them.
+ */
+class RoutingTilePrefetcher {
+
+	private final BinaryRoutePlanner planner;
+	private final ExecutorService executor;
+	private final int maxRunning;
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong timeToLoad = new AtomicLong();
+	private final TIntObjectHashMap<Future<List<BinaryMapDataObject>>> pending = new TIntObjectHashMap<Future<List<BinaryMapDataObject>>>();
+	// planners with own readers of prefetching threads, they are closed on shutdown
+	private final ThreadLocal<BinaryRoutePlanner> threadPlanner = new ThreadLocal<BinaryRoutePlanner>();
+	private final List<BinaryRoutePlanner> threadPlanners = new ArrayList<BinaryRoutePlanner>();
+
+	RoutingTilePrefetcher(BinaryRoutePlanner planner, int threads) {
+		this.planner = planner;
+		this.maxRunning = threads * 4;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Routing tile prefetcher"); //$NON-NLS-1$
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	void prefetch(RoutingContext ctx, final int tileX, final int tileY) {
+		final int zoom = ctx.getZoomToLoadTileWithRoads();
+		if (tileX < 0 || tileY < 0 || tileX >= (1 << zoom) || tileY >= (1 << zoom)) {
+			return;
+		}
+		int tileC = (tileX << zoom) + tileY;
+		if (running.get() >= maxRunning || pending.containsKey(tileC) || ctx.loadedTiles.containsKey(tileC)) {
+			return;
+		}
+		final VehicleRouter router = ctx.getRouter();
+		running.incrementAndGet();
+		pending.put(tileC, executor.submit(new Callable<List<BinaryMapDataObject>>() {
+			@Override
+			public List<BinaryMapDataObject> call() throws IOException {
+				long now = System.nanoTime();
+				try {
+					return getThreadPlanner().readTileRoads(router, zoom, tileX, tileY);
+				} finally {
+					timeToLoad.addAndGet(System.nanoTime() - now);
+					running.decrementAndGet();
+				}
+			}
+		}));
+		ctx.prefetchedTilesCount++;
+	}
+
+	private BinaryRoutePlanner getThreadPlanner() throws IOException {
+		BinaryRoutePlanner p = threadPlanner.get();
+		if (p == null) {
+			p = planner.openThreadPlanner();
+			threadPlanner.set(p);
+			synchronized (threadPlanners) {
+				threadPlanners.add(p);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * @return roads of the tile (waits while they are being read) or null if tile was not prefetched
+	 */
+	List<BinaryMapDataObject> take(RoutingContext ctx, int tileC) throws IOException {
+		Future<List<BinaryMapDataObject>> f = pending.remove(tileC);
+		if (f == null) {
+			return null;
+		}
+		ctx.usedPrefetchedTilesCount++;
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Loading of tile is interrupted"); //$NON-NLS-1$
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return time (nanoseconds) spent to read tiles in background threads
+	 */
+	long getTimeToLoad() {
+		return timeToLoad.get();
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+		pending.clear();
+		// readers of threads could be closed only when tiles are not read anymore
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (threadPlanners) {
+			for (BinaryRoutePlanner p : threadPlanners) {
+				planner.closeThreadPlanner(p);
+			}
+			threadPlanners.clear();
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package net.osmand.router;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.osmand.LogUtil;
+import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.data.TransportRoute;
+import net.osmand.data.TransportStop;
+import net.osmand.osm.LatLon;
+import net.osmand.osm.MapUtils;
+import net.osmand.router.TransportRouteResult.TransportRouteResultSegment;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Public transport planner based on RAPTOR (round-based public transit routing) :
+ * round k finds earliest arrival to every stop using k vehicles, so journeys with different number of transfers are found
+ * by one search. Every round scans only patterns going through stops improved by previous round and then relaxes
+ * walking transfers from stops improved by vehicles.
+ * There are no timetables in transport index so vehicle is assumed to be ready after average waiting time
+ * (see {@link TransportRoutingContext#getBoardingTime()}).
+ */
+public class TransportRoutePlanner {
+
+	private static final Log log = LogUtil.getLog(TransportRoutePlanner.class);
+
+	private static final double UNREACHED = Double.POSITIVE_INFINITY;
+
+	private final BinaryMapIndexReader[] map;
+
+	public TransportRoutePlanner(BinaryMapIndexReader... map) {
+		this.map = map;
+	}
+
+	/**
+	 * Loads all routes going through stops of area into context (previously loaded network is replaced)
+	 */
+	public void loadNetwork(TransportRoutingContext ctx, double topLatitude, double leftLongitude, double bottomLatitude,
+			double rightLongitude) throws IOException {
+		long now = System.nanoTime();
+		int sleft = MapUtils.get31TileNumberX(leftLongitude);
+		int sright = MapUtils.get31TileNumberX(rightLongitude);
+		int stop = MapUtils.get31TileNumberY(topLatitude);
+		int sbottom = MapUtils.get31TileNumberY(bottomLatitude);
+		List<TransportRoute> routes = new ArrayList<TransportRoute>();
+		TLongHashSet routeIds = new TLongHashSet();
+		for (BinaryMapIndexReader reader : map) {
+			if (!reader.containTransportData(topLatitude, leftLongitude, bottomLatitude, rightLongitude)) {
+				continue;
+			}
+			List<TransportStop> stops = reader.searchTransportIndex(BinaryMapIndexReader.buildSearchTransportRequest(sleft, sright, stop,
+					sbottom, -1, null));
+			TIntHashSet pointers = new TIntHashSet();
+			for (TransportStop s : stops) {
+				pointers.addAll(s.getReferencesToRoutes());
+			}
+			int[] filePointers = pointers.toArray();
+			Arrays.sort(filePointers);
+			TIntObjectHashMap<TransportRoute> loaded = reader.getTransportRoutes(filePointers);
+			for (int filePointer : filePointers) {
+				TransportRoute route = loaded.get(filePointer);
+				if (route != null && routeIds.add(route.getId())) {
+					routes.add(route);
+				}
+			}
+		}
+		buildNetwork(ctx, routes);
+		ctx.timeToLoad = System.nanoTime() - now;
+		log.info("Transport network is loaded : " + ctx.getStopsCount() + " stops, " + ctx.getPatternsCount() + " patterns, " //$NON-NLS-1$ //$NON-NLS-2$
+				+ ctx.getTransfersCount() + " transfers, " + ctx.timeToLoad / 1e6 + " ms"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Packs routes into compact arrays of context (stops with the same id are merged)
+	 */
+	public void buildNetwork(TransportRoutingContext ctx, List<TransportRoute> routes) {
+		TLongObjectHashMap<TransportStop> stopsById = new TLongObjectHashMap<TransportStop>();
+		List<TransportStop> stops = new ArrayList<TransportStop>();
+		for (TransportRoute route : routes) {
+			for (int d = 0; d < 2; d++) {
+				List<TransportStop> list = d == 0 ? route.getForwardStops() : route.getBackwardStops();
+				for (int i = 0; i < list.size() && list.size() > 1; i++) {
+					TransportStop s = list.get(i);
+					if (!stopsById.containsKey(s.getId())) {
+						stopsById.put(s.getId(), s);
+						stops.add(s);
+					}
+				}
+			}
+		}
+		Collections.sort(stops, new Comparator<TransportStop>() {
+			@Override
+			public int compare(TransportStop o1, TransportStop o2) {
+				return Double.compare(o1.getLocation().getLatitude(), o2.getLocation().getLatitude());
+			}
+		});
+		int n = stops.size();
+		ctx.stops = stops.toArray(new TransportStop[n]);
+		ctx.stopLatitudes = new double[n];
+		ctx.stopLongitudes = new double[n];
+		TLongObjectHashMap<Integer> stopIndexes = new TLongObjectHashMap<Integer>();
+		for (int i = 0; i < n; i++) {
+			ctx.stopLatitudes[i] = ctx.stops[i].getLocation().getLatitude();
+			ctx.stopLongitudes[i] = ctx.stops[i].getLocation().getLongitude();
+			stopIndexes.put(ctx.stops[i].getId(), i);
+		}
+
+		// patterns
+		List<TransportRoute> patternRoutes = new ArrayList<TransportRoute>();
+		TIntArrayList patternForward = new TIntArrayList();
+		TIntArrayList patternStart = new TIntArrayList();
+		TIntArrayList patternStops = new TIntArrayList();
+		TIntArrayList patternTimes = new TIntArrayList();
+		int[] stopPatternsCount = new int[n + 1];
+		for (TransportRoute route : routes) {
+			double speed = ctx.getSpeed(route.getType());
+			for (int d = 0; d < 2; d++) {
+				List<TransportStop> list = d == 0 ? route.getForwardStops() : route.getBackwardStops();
+				if (list.size() < 2) {
+					continue;
+				}
+				patternRoutes.add(route);
+				patternForward.add(d == 0 ? 1 : 0);
+				patternStart.add(patternStops.size());
+				double time = 0;
+				int prev = -1;
+				for (TransportStop s : list) {
+					int ind = stopIndexes.get(s.getId());
+					if (prev != -1) {
+						time += MapUtils.getDistance(ctx.stopLatitudes[prev], ctx.stopLongitudes[prev], ctx.stopLatitudes[ind],
+								ctx.stopLongitudes[ind]) / speed;
+					}
+					patternStops.add(ind);
+					patternTimes.add((int) time);
+					stopPatternsCount[ind]++;
+					prev = ind;
+				}
+			}
+		}
+		patternStart.add(patternStops.size());
+		ctx.patternRoutes = patternRoutes.toArray(new TransportRoute[patternRoutes.size()]);
+		ctx.patternForward = new boolean[patternForward.size()];
+		for (int p = 0; p < ctx.patternForward.length; p++) {
+			ctx.patternForward[p] = patternForward.get(p) == 1;
+		}
+		ctx.patternStart = patternStart.toArray();
+		ctx.patternStops = patternStops.toArray();
+		ctx.patternTimes = patternTimes.toArray();
+
+		// patterns by stop
+		ctx.stopPatternStart = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			ctx.stopPatternStart[i + 1] = ctx.stopPatternStart[i] + stopPatternsCount[i];
+		}
+		ctx.stopPatterns = new int[ctx.patternStops.length];
+		ctx.stopPatternPositions = new int[ctx.patternStops.length];
+		int[] filled = new int[n];
+		for (int p = 0; p < ctx.patternRoutes.length; p++) {
+			for (int i = ctx.patternStart[p]; i < ctx.patternStart[p + 1]; i++) {
+				int s = ctx.patternStops[i];
+				int ind = ctx.stopPatternStart[s] + filled[s]++;
+				ctx.stopPatterns[ind] = p;
+				ctx.stopPatternPositions[ind] = i - ctx.patternStart[p];
+			}
+		}
+
+		buildTransfers(ctx);
+	}
+
+	private void buildTransfers(TransportRoutingContext ctx) {
+		int n = ctx.stops.length;
+		int maxDistance = ctx.getMaxTransferWalkDistance();
+		// stops are sorted by latitude so only stops in latitude window are checked
+		double latitudeWindow = maxDistance / 110000d;
+		List<TIntArrayList> transfers = new ArrayList<TIntArrayList>(n);
+		for (int i = 0; i < n; i++) {
+			transfers.add(new TIntArrayList(0));
+		}
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n && ctx.stopLatitudes[j] - ctx.stopLatitudes[i] <= latitudeWindow; j++) {
+				double dist = MapUtils.getDistance(ctx.stopLatitudes[i], ctx.stopLongitudes[i], ctx.stopLatitudes[j],
+						ctx.stopLongitudes[j]);
+				if (dist <= maxDistance) {
+					transfers.get(i).add(j);
+					transfers.get(j).add(i);
+					count += 2;
+				}
+			}
+		}
+		ctx.transferStart = new int[n + 1];
+		ctx.transferStops = new int[count];
+		ctx.transferDistances = new int[count];
+		for (int i = 0; i < n; i++) {
+			TIntArrayList l = transfers.get(i);
+			int start = ctx.transferStart[i];
+			for (int k = 0; k < l.size(); k++) {
+				int j = l.get(k);
+				ctx.transferStops[start + k] = j;
+				ctx.transferDistances[start + k] = (int) MapUtils.getDistance(ctx.stopLatitudes[i], ctx.stopLongitudes[i],
+						ctx.stopLatitudes[j], ctx.stopLongitudes[j]);
+			}
+			ctx.transferStart[i + 1] = start + l.size();
+		}
+	}
+
+	/**
+	 * @return journeys faster than walking from start to end by loaded network, each next journey has more transfers and
+	 * arrives earlier than previous (empty list if walking is the fastest)
+	 */
+	public List<TransportRouteResult> searchRoute(TransportRoutingContext ctx, LatLon start, LatLon end) {
+		long now = System.nanoTime();
+		int n = ctx.stops.length;
+		double walkSpeed = ctx.getWalkSpeed();
+		int rounds = ctx.getMaxTransfers() + 1;
+		// labels of round k (arrays of rounds which are not reached stay null), times are in seconds and are not rounded
+		// so walking through a stop never looks faster than walking directly
+		double[][] arrival = new double[rounds + 1][];
+		int[][] walkFrom = new int[rounds + 1][];
+		double[][] vehicleArrival = new double[rounds + 1][];
+		int[][] vehiclePattern = new int[rounds + 1][];
+		int[][] boardPosition = new int[rounds + 1][];
+		int[][] alightPosition = new int[rounds + 1][];
+
+		TIntArrayList marked = new TIntArrayList();
+		boolean[] isMarked = new boolean[n];
+		double bestTarget = MapUtils.getDistance(start, end) / walkSpeed;
+		arrival[0] = new double[n];
+		Arrays.fill(arrival[0], UNREACHED);
+		int maxWalk = ctx.getMaxWalkDistanceToStop();
+		for (int s = getFirstStop(ctx, start.getLatitude(), maxWalk); s < n && isInLatitudeWindow(ctx, s, start.getLatitude(), maxWalk); s++) {
+			double dist = getDistance(ctx, s, start);
+			if (dist <= maxWalk) {
+				arrival[0][s] = dist / walkSpeed;
+				marked.add(s);
+				isMarked[s] = true;
+			}
+		}
+		TIntArrayList egressStops = new TIntArrayList();
+		for (int s = getFirstStop(ctx, end.getLatitude(), maxWalk); s < n && isInLatitudeWindow(ctx, s, end.getLatitude(), maxWalk); s++) {
+			double dist = getDistance(ctx, s, end);
+			if (dist <= maxWalk) {
+				egressStops.add(s);
+			}
+		}
+		double[] egressTimes = new double[egressStops.size()];
+		for (int i = 0; i < egressTimes.length; i++) {
+			egressTimes[i] = getDistance(ctx, egressStops.get(i), end) / walkSpeed;
+		}
+
+		List<TransportRouteResult> results = new ArrayList<TransportRouteResult>();
+		int[] patternQueue = new int[ctx.patternRoutes.length];
+		Arrays.fill(patternQueue, -1);
+		TIntArrayList queuedPatterns = new TIntArrayList();
+		int boardingTime = ctx.getBoardingTime();
+		for (int k = 1; k <= rounds && !marked.isEmpty() && !egressStops.isEmpty(); k++) {
+			// patterns are scanned from the first improved stop
+			for (int m = 0; m < marked.size(); m++) {
+				int s = marked.get(m);
+				isMarked[s] = false;
+				for (int i = ctx.stopPatternStart[s]; i < ctx.stopPatternStart[s + 1]; i++) {
+					int p = ctx.stopPatterns[i];
+					int pos = ctx.stopPatternPositions[i];
+					if (patternQueue[p] == -1) {
+						queuedPatterns.add(p);
+						patternQueue[p] = pos;
+					} else if (pos < patternQueue[p]) {
+						patternQueue[p] = pos;
+					}
+				}
+			}
+			marked.clear();
+
+			double[] prev = arrival[k - 1];
+			double[] cur = arrival[k] = prev.clone();
+			double[] vehicle = vehicleArrival[k] = new double[n];
+			Arrays.fill(vehicle, UNREACHED);
+			int[] pattern = vehiclePattern[k] = new int[n];
+			Arrays.fill(pattern, -1);
+			int[] walk = walkFrom[k] = new int[n];
+			Arrays.fill(walk, -1);
+			int[] board = boardPosition[k] = new int[n];
+			int[] alight = alightPosition[k] = new int[n];
+			for (int q = 0; q < queuedPatterns.size(); q++) {
+				int p = queuedPatterns.get(q);
+				int first = ctx.patternStart[p];
+				int last = ctx.patternStart[p + 1];
+				int boardPos = -1;
+				// arrival to stop i of pattern is boardBase + patternTimes[i]
+				double boardBase = UNREACHED;
+				for (int i = first + patternQueue[p]; i < last; i++) {
+					int s = ctx.patternStops[i];
+					int time = ctx.patternTimes[i];
+					if (boardPos != -1) {
+						double arr = boardBase + time;
+						if (arr < cur[s] && arr < bestTarget) {
+							cur[s] = arr;
+							vehicle[s] = arr;
+							pattern[s] = p;
+							board[s] = boardPos;
+							alight[s] = i - first;
+							if (!isMarked[s]) {
+								isMarked[s] = true;
+								marked.add(s);
+							}
+						}
+					}
+					if (prev[s] != UNREACHED && prev[s] + boardingTime - time < boardBase) {
+						boardBase = prev[s] + boardingTime - time;
+						boardPos = i - first;
+					}
+				}
+				patternQueue[p] = -1;
+			}
+			ctx.scannedPatterns += queuedPatterns.size();
+			queuedPatterns.clear();
+
+			// walking transfers from stops reached by vehicles
+			int reachedByVehicles = marked.size();
+			for (int m = 0; m < reachedByVehicles; m++) {
+				int s = marked.get(m);
+				for (int i = ctx.transferStart[s]; i < ctx.transferStart[s + 1]; i++) {
+					int t = ctx.transferStops[i];
+					double arr = vehicle[s] + ctx.transferDistances[i] / walkSpeed;
+					if (arr < cur[t] && arr < bestTarget) {
+						cur[t] = arr;
+						walk[t] = s;
+						if (!isMarked[t]) {
+							isMarked[t] = true;
+							marked.add(t);
+						}
+					}
+				}
+			}
+
+			int bestStop = -1;
+			for (int i = 0; i < egressStops.size(); i++) {
+				int s = egressStops.get(i);
+				// labels are improved only strictly so stop which is only walked to from start keeps label of round 0
+				if (cur[s] < arrival[0][s] && cur[s] + egressTimes[i] < bestTarget) {
+					bestTarget = cur[s] + egressTimes[i];
+					bestStop = s;
+				}
+			}
+			if (bestStop != -1) {
+				TransportRouteResult result = new TransportRouteResult();
+				result.duration = bestTarget;
+				double walkDistance = getDistance(ctx, bestStop, end);
+				int s = bestStop;
+				for (int r = k; r > 0; r--) {
+					if (walkFrom[r][s] != -1) {
+						walkDistance += getDistance(ctx, walkFrom[r][s], s);
+						s = walkFrom[r][s];
+					} else if (vehiclePattern[r][s] == -1 || vehicleArrival[r][s] != arrival[r][s]) {
+						// stop is not improved in that round
+						continue;
+					}
+					int p = vehiclePattern[r][s];
+					TransportRouteResultSegment segment = new TransportRouteResultSegment();
+					segment.route = ctx.patternRoutes[p];
+					segment.forward = ctx.patternForward[p];
+					segment.startStopIndex = boardPosition[r][s];
+					segment.endStopIndex = alightPosition[r][s];
+					segment.arrivalTime = vehicleArrival[r][s];
+					int boardStop = ctx.patternStops[ctx.patternStart[p] + segment.startStopIndex];
+					segment.boardingTime = arrival[r - 1][boardStop] + boardingTime;
+					if (result.segments.isEmpty()) {
+						result.finalWalkDistance = walkDistance;
+					} else {
+						result.segments.get(result.segments.size() - 1).walkDistance = walkDistance;
+					}
+					result.segments.add(segment);
+					walkDistance = 0;
+					s = boardStop;
+				}
+				if (result.segments.isEmpty()) {
+					log.warn("Journey without vehicles is found from " + start + " to " + end); //$NON-NLS-1$ //$NON-NLS-2$
+					continue;
+				}
+				result.segments.get(result.segments.size() - 1).walkDistance = walkDistance + getDistance(ctx, s, start);
+				Collections.reverse(result.segments);
+				results.add(result);
+			}
+		}
+		ctx.timeToCalculate = System.nanoTime() - now;
+		return results;
+	}
+
+	private static double getDistance(TransportRoutingContext ctx, int s, LatLon l) {
+		return MapUtils.getDistance(ctx.stopLatitudes[s], ctx.stopLongitudes[s], l.getLatitude(), l.getLongitude());
+	}
+
+	private static double getDistance(TransportRoutingContext ctx, int s1, int s2) {
+		return MapUtils.getDistance(ctx.stopLatitudes[s1], ctx.stopLongitudes[s1], ctx.stopLatitudes[s2], ctx.stopLongitudes[s2]);
+	}
+
+	/**
+	 * @return first stop (stops are sorted by latitude) which could be closer than distance to latitude
+	 */
+	private static int getFirstStop(TransportRoutingContext ctx, double latitude, int distance) {
+		double minLatitude = latitude - distance / 110000d;
+		int lo = 0;
+		int hi = ctx.stopLatitudes.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ctx.stopLatitudes[mid] < minLatitude) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static boolean isInLatitudeWindow(TransportRoutingContext ctx, int s, double latitude, int distance) {
+		return ctx.stopLatitudes[s] <= latitude + distance / 110000d;
+	}
+}
@@ -0,0 +1,71 @@
+package net.osmand.router;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.osmand.data.TransportRoute;
+import net.osmand.data.TransportStop;
+
+/**
+ * Journey found by {@link TransportRoutePlanner} : walking to first stop, rides with walking transfers between them
+ * and walking from last stop to end point
+ */
+public class TransportRouteResult {
+
+	public static class TransportRouteResultSegment {
+		public TransportRoute route;
+		// forward or backward stops of route
+		public boolean forward;
+		public int startStopIndex;
+		public int endStopIndex;
+		// walking from start point (or from previous segment end stop) to start stop
+		public double walkDistance;
+		// seconds from departure
+		public double boardingTime;
+		public double arrivalTime;
+
+		public List<TransportStop> getStops() {
+			List<TransportStop> stops = forward ? route.getForwardStops() : route.getBackwardStops();
+			return stops.subList(startStopIndex, endStopIndex + 1);
+		}
+
+		public TransportStop getStart() {
+			return (forward ? route.getForwardStops() : route.getBackwardStops()).get(startStopIndex);
+		}
+
+		public TransportStop getEnd() {
+			return (forward ? route.getForwardStops() : route.getBackwardStops()).get(endStopIndex);
+		}
+	}
+
+	public List<TransportRouteResultSegment> segments = new ArrayList<TransportRouteResultSegment>();
+	// walking from last stop to end point
+	public double finalWalkDistance;
+	// seconds
+	public double duration;
+
+	public int getTransfers() {
+		return Math.max(segments.size() - 1, 0);
+	}
+
+	public double getWalkDistance() {
+		double d = finalWalkDistance;
+		for (TransportRouteResultSegment s : segments) {
+			d += s.walkDistance;
+		}
+		return d;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append((int) duration).append(" s"); //$NON-NLS-1$
+		for (TransportRouteResultSegment s : segments) {
+			b.append(", walk ").append((int) s.walkDistance).append(" m, "); //$NON-NLS-1$ //$NON-NLS-2$
+			b.append(s.route.getType()).append(' ').append(s.route.getRef()).append(" : ").append(s.getStart().getName()); //$NON-NLS-1$
+			b.append(" - ").append(s.getEnd().getName()); //$NON-NLS-1$
+		}
+		b.append(", walk ").append((int) finalWalkDistance).append(" m"); //$NON-NLS-1$ //$NON-NLS-2$
+		return b.toString();
+	}
+}
@@ -0,0 +1,151 @@
+package net.osmand.router;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.osmand.data.TransportRoute;
+import net.osmand.data.TransportStop;
+
+/**
+ * Parameters of public transport routing and transport network loaded by {@link TransportRoutePlanner}.
+ * Network is kept in compact arrays : stops are sorted by latitude, every direction of route is a pattern (sequence of stops).
+ * Transport data doesn't contain timetables so time on board is calculated by average speed of route type
+ * and every boarding costs average waiting time.
+ */
+public class TransportRoutingContext {
+
+	private static final double DEFAULT_TRANSPORT_SPEED = 6; // m/s
+
+	// 1. parameters of routing
+	// m/s
+	private double walkSpeed = 1.4;
+	// max distance to walk from start point to stop and from stop to end point
+	private int maxWalkDistanceToStop = 1000;
+	// max distance to walk between stops of different routes
+	private int maxTransferWalkDistance = 300;
+	// average waiting time of vehicle (seconds) added on every boarding
+	private int boardingTime = 180;
+	// max number of changes between vehicles
+	private int maxTransfers = 4;
+	// m/s by route type
+	private Map<String, Double> speeds = new HashMap<String, Double>();
+	{
+		speeds.put("bus", 5.5d); //$NON-NLS-1$
+		speeds.put("trolleybus", 5.5d); //$NON-NLS-1$
+		speeds.put("share_taxi", 7d); //$NON-NLS-1$
+		speeds.put("tram", 5.5d); //$NON-NLS-1$
+		speeds.put("subway", 11d); //$NON-NLS-1$
+		speeds.put("train", 14d); //$NON-NLS-1$
+		speeds.put("ferry", 4d); //$NON-NLS-1$
+	}
+
+	// 2. loaded network (package accessor)
+	// stops sorted by latitude
+	TransportStop[] stops = new TransportStop[0];
+	double[] stopLatitudes = new double[0];
+	double[] stopLongitudes = new double[0];
+	// patterns : stops of pattern p are patternStops[patternStart[p]..patternStart[p + 1]),
+	// time (seconds) to get from first stop of pattern to the stop is in patternTimes
+	TransportRoute[] patternRoutes = new TransportRoute[0];
+	boolean[] patternForward = new boolean[0];
+	int[] patternStart = new int[] { 0 };
+	int[] patternStops = new int[0];
+	int[] patternTimes = new int[0];
+	// patterns going through stop s are stopPatterns[stopPatternStart[s]..stopPatternStart[s + 1]),
+	// stopPatternPositions keeps position of stop in the pattern
+	int[] stopPatternStart = new int[] { 0 };
+	int[] stopPatterns = new int[0];
+	int[] stopPatternPositions = new int[0];
+	// stops reachable by walking from stop s are transferStops[transferStart[s]..transferStart[s + 1])
+	int[] transferStart = new int[] { 0 };
+	int[] transferStops = new int[0];
+	int[] transferDistances = new int[0];
+
+	// 3. debug information (package accessor)
+	long timeToLoad = 0;
+	long timeToCalculate = 0;
+	int scannedPatterns = 0;
+
+
+	public TransportRoutingContext() {
+	}
+
+	public double getWalkSpeed() {
+		return walkSpeed;
+	}
+
+	public void setWalkSpeed(double walkSpeed) {
+		this.walkSpeed = walkSpeed;
+	}
+
+	public int getMaxWalkDistanceToStop() {
+		return maxWalkDistanceToStop;
+	}
+
+	public void setMaxWalkDistanceToStop(int maxWalkDistanceToStop) {
+		this.maxWalkDistanceToStop = maxWalkDistanceToStop;
+	}
+
+	public int getMaxTransferWalkDistance() {
+		return maxTransferWalkDistance;
+	}
+
+	/**
+	 * Transfers between stops are calculated when network is loaded so it should be set before
+	 */
+	public void setMaxTransferWalkDistance(int maxTransferWalkDistance) {
+		this.maxTransferWalkDistance = maxTransferWalkDistance;
+	}
+
+	public int getBoardingTime() {
+		return boardingTime;
+	}
+
+	public void setBoardingTime(int boardingTime) {
+		this.boardingTime = boardingTime;
+	}
+
+	public int getMaxTransfers() {
+		return maxTransfers;
+	}
+
+	public void setMaxTransfers(int maxTransfers) {
+		this.maxTransfers = maxTransfers;
+	}
+
+	public double getSpeed(String routeType) {
+		Double speed = routeType == null ? null : speeds.get(routeType);
+		return speed == null ? DEFAULT_TRANSPORT_SPEED : speed;
+	}
+
+	/**
+	 * Speeds are used when network is loaded so they should be set before
+	 */
+	public void setSpeed(String routeType, double speed) {
+		speeds.put(routeType, speed);
+	}
+
+	public int getStopsCount() {
+		return stops.length;
+	}
+
+	public int getPatternsCount() {
+		return patternRoutes.length;
+	}
+
+	public int getTransfersCount() {
+		return transferStops.length;
+	}
+
+	public long getTimeToLoad() {
+		return timeToLoad;
+	}
+
+	public long getTimeToCalculate() {
+		return timeToCalculate;
+	}
+
+	public int getScannedPatterns() {
+		return scannedPatterns;
+	}
+}
@@ -7,6 +7,11 @@ import net.osmand.router.BinaryRoutePlanner.RouteSegment;
 
 public abstract class VehicleRouter {
 
+	/**
+	 * Name of the router (precalculated routing data such as routing hierarchy is stored by that name)
+	 */
+	public abstract String getName();
+
 	/**
 	 * Accepts line to use it for routing
 	 * 
@@ -1,9 +1,13 @@
 package net.osmand.router.test;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
@@ -17,6 +21,7 @@ import net.osmand.router.CarRouter;
 import net.osmand.router.PedestrianRouter;
 import net.osmand.router.RouteSegmentResult;
 import net.osmand.router.RoutingContext;
+import net.osmand.router.VehicleRouter;
 import net.osmand.router.BinaryRoutePlanner.RouteSegment;
 
 import org.w3c.dom.Document;
@@ -45,19 +50,25 @@ public class RouterTestsSuite {
 
 	}
 	
-	private static BinaryMapIndexReader[] getMapRegions(String regions, Properties properties) throws FileNotFoundException, IOException {
+	private static File[] getMapFiles(String regions, Properties properties) {
 		String[] regionsSplit = regions.split(",");
-		BinaryMapIndexReader[] readers = new BinaryMapIndexReader[regionsSplit.length];
+		File[] files = new File[regionsSplit.length];
 		int i = 0;
 		for (String reg : regionsSplit) {
 			reg = reg.toUpperCase().trim();
 			if (!properties.containsKey(reg)) {
 				throw new IllegalArgumentException("Region " + reg + " is not found in the source.properties file");
 			}
-			BinaryMapIndexReader r = new BinaryMapIndexReader(new RandomAccessFile((String) properties.get(reg), "r"), true);
-			readers[i++] = r;
+			files[i++] = new File((String) properties.get(reg));
+		}
+		return files;
+	}
+	
+	private static BinaryMapIndexReader[] getMapRegions(File[] files) throws FileNotFoundException, IOException {
+		BinaryMapIndexReader[] readers = new BinaryMapIndexReader[files.length];
+		for (int i = 0; i < files.length; i++) {
+			readers[i] = new BinaryMapIndexReader(new RandomAccessFile(files[i], "r"), true);
 		}
-
 		return readers;
 	}
 
@@ -68,17 +79,19 @@ public class RouterTestsSuite {
 		
 		for(int i=0; i < tests.getLength(); i++){
 			Element e = (Element) tests.item(i);
-			BinaryMapIndexReader[] regions = getMapRegions(e.getAttribute("regions"), properties);
+			File[] files = getMapFiles(e.getAttribute("regions"), properties);
 			
-			testRoute(e, regions);
+			testRoute(e, getMapRegions(files), files);
 		}
 		
 		return true;
 		
 	}
 
-	private static void testRoute(Element testCase, BinaryMapIndexReader[] regions) throws IOException {
+	private static void testRoute(Element testCase, BinaryMapIndexReader[] regions, File[] files) throws IOException {
 		BinaryRoutePlanner planner = new BinaryRoutePlanner(regions);
+		// prefetching threads open own readers
+		planner.setMapFiles(files);
 		RoutingContext ctx = new RoutingContext();
 		String vehicle = testCase.getAttribute("vehicle");
 		String testDescription = testCase.getAttribute("description");
@@ -95,6 +108,16 @@ public class RouterTestsSuite {
 		} else {
 			ctx.setRouter(new CarRouter());
 		}
+		// threads to prefetch tiles (optional)
+		String prefetchThreads = testCase.getAttribute("prefetch_threads");
+		if (prefetchThreads != null && prefetchThreads.length() > 0) {
+			ctx.setTilePrefetchThreads(Integer.parseInt(prefetchThreads));
+		}
+		// memory limit for loaded road tiles in Mb (optional)
+		String memoryLimit = testCase.getAttribute("memory_limit");
+		if (memoryLimit != null && memoryLimit.length() > 0) {
+			ctx.setMemoryLimit(Long.parseLong(memoryLimit) << 20);
+		}
 		double startLat = Double.parseDouble(testCase.getAttribute("start_lat"));
 		double startLon = Double.parseDouble(testCase.getAttribute("start_lon"));
 		RouteSegment startSegment = planner.findRouteSegment(startLat, startLon, ctx);
@@ -108,7 +131,14 @@ public class RouterTestsSuite {
 			throw new IllegalArgumentException("End segment is not found for test : " + testDescription);
 		}
 		
+		long time = System.nanoTime();
 		List<RouteSegmentResult> route = planner.searchRoute(ctx, startSegment, endSegment);
+		time = System.nanoTime() - time;
+		System.out.println(MessageFormat.format("Test ''{0}'' : tiles loaded {1}, unloaded {2}, reloaded {3}, time to load {4} ms " +
+				"(in background {5} ms), memory {6} Kb",
+				testDescription, ctx.getLoadedTilesCount(), ctx.getUnloadedTilesCount(), ctx.getReloadedTilesCount(),
+				ctx.getTimeToLoad() / 1e6, ctx.getTimeToLoadInBackground() / 1e6, ctx.getMemoryUsed() >> 10));
+		compareWithRoutingHierarchy(testDescription, regions, ctx.getRouter(), startLat, startLon, endLat, endLon, route, time);
 		
 		
 		NodeList segments = testCase.getElementsByTagName("segment");
@@ -141,5 +171,42 @@ public class RouterTestsSuite {
 			throw new IllegalArgumentException("Expected route is more lengthy than calculated for test : " + testDescription);
 		}
 	}
+	
+	private static void compareWithRoutingHierarchy(String testDescription, BinaryMapIndexReader[] regions, VehicleRouter router, 
+			double startLat, double startLon, double endLat, double endLon, List<RouteSegmentResult> route, long time) throws IOException {
+		boolean hierarchy = false;
+		for (BinaryMapIndexReader r : regions) {
+			hierarchy |= r.hasRoutingHierarchy(router.getName());
+		}
+		if (!hierarchy) {
+			return;
+		}
+		BinaryRoutePlanner planner = new BinaryRoutePlanner(regions);
+		RoutingContext ctx = new RoutingContext();
+		ctx.setRouter(router);
+		ctx.setUseRoutingHierarchy(true);
+		RouteSegment startSegment = planner.findRouteSegment(startLat, startLon, ctx);
+		RouteSegment endSegment = planner.findRouteSegment(endLat, endLon, ctx);
+		long hierarchyTime = System.nanoTime();
+		List<RouteSegmentResult> hierarchyRoute = planner.searchRouteWithHierarchy(ctx, startSegment, endSegment);
+		hierarchyTime = System.nanoTime() - hierarchyTime;
+		if (hierarchyRoute == null) {
+			System.err.println("Routing hierarchy could not calculate route for test : " + testDescription);
+			return;
+		}
+		// start and end are not cut by hierarchy so compare only roads in the middle
+		List<Long> roads = new ArrayList<Long>();
+		for (RouteSegmentResult r : route) {
+			roads.add(r.object.getId() >> 1);
+		}
+		List<Long> hierarchyRoads = new ArrayList<Long>();
+		for (RouteSegmentResult r : hierarchyRoute) {
+			hierarchyRoads.add(r.object.getId() >> 1);
+		}
+		List<Long> middle = roads.size() > 2 ? roads.subList(1, roads.size() - 1) : roads;
+		boolean sameRoads = Collections.indexOfSubList(hierarchyRoads, middle) != -1;
+		System.out.println(MessageFormat.format("Test ''{0}'' : A* {1} ms ({2} segments), routing hierarchy {3} ms ({4} segments), same roads : {5}",
+				testDescription, time / 1e6, route.size(), hierarchyTime / 1e6, hierarchyRoute.size(), sameRoads));
+	}
 
 }
@@ -0,0 +1,159 @@
+package net.osmand.router.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.data.TransportRoute;
+import net.osmand.data.TransportStop;
+import net.osmand.osm.LatLon;
+import net.osmand.osm.MapUtils;
+import net.osmand.router.TransportRoutePlanner;
+import net.osmand.router.TransportRouteResult;
+import net.osmand.router.TransportRoutingContext;
+
+/**
+ * Checks public transport planner on small generated networks and measures it on transport index of city :
+ * <pre>TransportRouterTestsSuite [file.obf top_lat left_lon bottom_lat right_lon [queries]]</pre>
+ */
+public class TransportRouterTestsSuite {
+
+	public static void main(String[] args) throws IOException {
+		testStopOnDirectLine();
+		testOneRide();
+		System.out.println("Generated networks are successfull");
+		if (args.length >= 5) {
+			int queries = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+			testCity(new File(args[0]), Double.parseDouble(args[1]), Double.parseDouble(args[2]), Double.parseDouble(args[3]),
+					Double.parseDouble(args[4]), queries);
+		}
+	}
+
+	private static TransportStop createStop(long id, double lat, double lon) {
+		TransportStop s = new TransportStop();
+		s.setId(id);
+		s.setName("Stop " + id);
+		s.setLocation(lat, lon);
+		return s;
+	}
+
+	private static TransportRoute createRoute(long id, TransportStop... stops) {
+		TransportRoute r = new TransportRoute();
+		r.setId(id);
+		r.setRef(String.valueOf(id));
+		r.setType("bus");
+		for (TransportStop s : stops) {
+			r.getForwardStops().add(s);
+		}
+		return r;
+	}
+
+	/**
+	 * Stop lying on line between start and end is reached faster by walking only than by vehicle,
+	 * so it should never be taken as last stop of journey
+	 */
+	private static void testStopOnDirectLine() {
+		TransportRoutePlanner planner = new TransportRoutePlanner();
+		TransportRoutingContext ctx = new TransportRoutingContext();
+		LatLon start = new LatLon(53.9031, 27.52);
+		LatLon end = new LatLon(53.9035, 27.54);
+		TransportRoute route = createRoute(1, createStop(1, 53.90, 27.50), createStop(2, 53.95, 27.50));
+		for (int i = 0; i < 200; i++) {
+			double lat = start.getLatitude() + (end.getLatitude() - start.getLatitude()) * i / 200;
+			double lon = start.getLongitude() + (end.getLongitude() - start.getLongitude()) * i / 200;
+			TransportRoute other = createRoute(2, createStop(3, lat, lon), createStop(4, 53.99, 27.60));
+			planner.buildNetwork(ctx, Arrays.asList(route, other));
+			List<TransportRouteResult> results = planner.searchRoute(ctx, start, end);
+			checkResults("stop on direct line " + i, ctx, start, end, results);
+			if (!results.isEmpty()) {
+				throw new IllegalArgumentException("Journey is found instead of walking for stop on direct line " + i + " : " + results);
+			}
+		}
+	}
+
+	private static void testOneRide() {
+		TransportRoutePlanner planner = new TransportRoutePlanner();
+		TransportRoutingContext ctx = new TransportRoutingContext();
+		TransportRoute route = createRoute(1, createStop(1, 53.90, 27.50), createStop(2, 53.95, 27.50));
+		planner.buildNetwork(ctx, Collections.singletonList(route));
+		LatLon start = new LatLon(53.899, 27.501);
+		LatLon end = new LatLon(53.951, 27.499);
+		List<TransportRouteResult> results = planner.searchRoute(ctx, start, end);
+		checkResults("one ride", ctx, start, end, results);
+		if (results.size() != 1 || results.get(0).segments.size() != 1) {
+			throw new IllegalArgumentException("One ride is expected : " + results);
+		}
+	}
+
+	private static void checkResults(String description, TransportRoutingContext ctx, LatLon start, LatLon end,
+			List<TransportRouteResult> results) {
+		double walk = MapUtils.getDistance(start, end) / ctx.getWalkSpeed();
+		for (TransportRouteResult r : results) {
+			if (r.segments.isEmpty()) {
+				throw new IllegalArgumentException("Journey without vehicles for test : " + description);
+			}
+			if (r.duration >= walk) {
+				throw new IllegalArgumentException("Journey is slower than walking for test : " + description + " : " + r);
+			}
+		}
+	}
+
+	/**
+	 * Loads network of area and searches journeys between random stops (start and end are moved from stops a little)
+	 * and journeys which start and end on both sides of random stop
+	 */
+	private static void testCity(File file, double topLatitude, double leftLongitude, double bottomLatitude, double rightLongitude,
+			int queries) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		BinaryMapIndexReader reader = new BinaryMapIndexReader(raf);
+		TransportRoutePlanner planner = new TransportRoutePlanner(reader);
+		TransportRoutingContext ctx = new TransportRoutingContext();
+		planner.loadNetwork(ctx, topLatitude, leftLongitude, bottomLatitude, rightLongitude);
+		List<TransportStop> stops = reader.searchTransportIndex(BinaryMapIndexReader.buildSearchTransportRequest(
+				MapUtils.get31TileNumberX(leftLongitude), MapUtils.get31TileNumberX(rightLongitude),
+				MapUtils.get31TileNumberY(topLatitude), MapUtils.get31TileNumberY(bottomLatitude), -1, null));
+		System.out.println(MessageFormat.format("City ''{0}'' : {1} stops, {2} patterns, {3} transfers, time to load {4} ms",
+				file.getName(), ctx.getStopsCount(), ctx.getPatternsCount(), ctx.getTransfersCount(), ctx.getTimeToLoad() / 1e6));
+		if (stops.isEmpty()) {
+			throw new IllegalArgumentException("There are no transport stops in area");
+		}
+		Random random = new Random(7);
+		for (int t = 0; t < 2; t++) {
+			boolean throughStop = t == 1;
+			long total = 0;
+			long max = 0;
+			int found = 0;
+			for (int i = 0; i < queries; i++) {
+				LatLon s = stops.get(random.nextInt(stops.size())).getLocation();
+				double dlat = (random.nextDouble() - 0.5) * 0.004;
+				double dlon = (random.nextDouble() - 0.5) * 0.006;
+				LatLon start;
+				LatLon end;
+				if (throughStop) {
+					start = new LatLon(s.getLatitude() + dlat, s.getLongitude() + dlon);
+					end = new LatLon(s.getLatitude() - dlat, s.getLongitude() - dlon);
+				} else {
+					LatLon e = stops.get(random.nextInt(stops.size())).getLocation();
+					start = new LatLon(s.getLatitude() + dlat / 4, s.getLongitude() + dlon / 4);
+					end = new LatLon(e.getLatitude() - dlat / 4, e.getLongitude() - dlon / 4);
+				}
+				List<TransportRouteResult> results = planner.searchRoute(ctx, start, end);
+				checkResults("query " + i + " from " + start + " to " + end, ctx, start, end, results);
+				total += ctx.getTimeToCalculate();
+				max = Math.max(max, ctx.getTimeToCalculate());
+				if (!results.isEmpty()) {
+					found++;
+				}
+			}
+			System.out.println(MessageFormat.format("{0} : {1} queries, journeys found for {2}, average time {3} ms, max time {4} ms",
+					throughStop ? "Start and end around stop" : "Between stops", queries, found, total / 1e6 / queries, max / 1e6));
+		}
+		raf.close();
+	}
+}
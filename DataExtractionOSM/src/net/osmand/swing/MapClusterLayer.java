@@ -204,9 +204,8 @@ public class MapClusterLayer implements MapPanelLayer {
 		TLongHashSet visitedIds = new TLongHashSet();
 		queue.add(st);
 		BinaryMapDataObject startRoad = st.getRoad();
-		long lstart = (((long) startRoad.getPoint31XTile(st.getSegmentStart())) << 31) + 
-				(long) startRoad.getPoint31YTile(st.getSegmentStart());
-		RouteSegment next = ctx.getLoadedRoutes().get(lstart);
+		RouteSegment next = ctx.getRouteSegment(startRoad.getPoint31XTile(st.getSegmentStart()), 
+				startRoad.getPoint31YTile(st.getSegmentStart()));
 		while (next != null) {
 			if(next.getRoad().getId() != st.getRoad().getId()){
 				queue.add(next);
@@ -275,8 +274,7 @@ public class MapClusterLayer implements MapPanelLayer {
 
 				router.loadRoutes(ctx, (x >> (31 - ctx.getZoomToLoadTileWithRoads())),
 						(y >> (31 - ctx.getZoomToLoadTileWithRoads())));
-				long l = (((long) x) << 31) + (long) y;
-				next = ctx.getLoadedRoutes().get(l);
+				next = ctx.getRouteSegment(x, y);
 				boolean addToQueue = true;;
 				while (next != null) {
 					TagValuePair pair = next.getRoad().getTagValue(0);
@@ -293,7 +291,7 @@ public class MapClusterLayer implements MapPanelLayer {
 				}
 				
 				if (addToQueue) {
-					next = ctx.getLoadedRoutes().get(l);
+					next = ctx.getRouteSegment(x, y);
 					while (next != null) {
 						if (!visitedIds.contains(calculateId(next, next.getSegmentStart()))) {
 							queue.add(next);
@@ -73,6 +73,17 @@ public class RTree //the tree that would be made
 	  fileList = new HashMap();
 	  CachedNodes.clearFileNamesMap();
   }
+  /**
+     Writes cached nodes of all trees and forgets them together with file names used as cache keys,
+     opened trees stay usable (their nodes are read again).
+  */
+  public static void flushCache()
+    throws NodeWriteException
+  {
+	  if(chdNodes != null)
+		  chdNodes.removeAll();
+	  CachedNodes.clearFileNamesMap();
+  }
   
   public RTree(String fileName)
     throws  RTreeException
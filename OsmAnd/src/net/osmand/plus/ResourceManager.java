@@ -467,7 +467,7 @@ public class ResourceManager {
 							if (index.hasTransportData()) {
 								try {
 									RandomAccessFile raf = new RandomAccessFile(f, "r"); //$NON-NLS-1$
-									transportRepositories.add(new TransportIndexRepositoryBinary(new BinaryMapIndexReader(raf)));
+									transportRepositories.add(new TransportIndexRepositoryBinary(new BinaryMapIndexReader(raf, index)));
 								} catch (IOException e) {
 									log.error("Exception reading " + f.getAbsolutePath(), e); //$NON-NLS-1$
 									warnings.add(MessageFormat.format(context.getString(R.string.version_index_is_not_supported), f.getName())); //$NON-NLS-1$
@@ -476,7 +476,7 @@ public class ResourceManager {
 							if(index.containsMapData()){
 								try {
 									RandomAccessFile raf = new RandomAccessFile(f, "r"); //$NON-NLS-1$
-									routingMapFiles.put(f.getAbsolutePath(), new BinaryMapIndexReader(raf, true));
+									routingMapFiles.put(f.getAbsolutePath(), new BinaryMapIndexReader(raf, index));
 								} catch (IOException e) {
 									log.error("Exception reading " + f.getAbsolutePath(), e); //$NON-NLS-1$
 									warnings.add(MessageFormat.format(context.getString(R.string.version_index_is_not_supported), f.getName())); //$NON-NLS-1$
@@ -485,7 +485,7 @@ public class ResourceManager {
 							if(index.containsPoiData()) {
 								try {
 									RandomAccessFile raf = new RandomAccessFile(f, "r"); //$NON-NLS-1$
-									amenityRepositories.add(new AmenityIndexRepositoryBinary(new BinaryMapIndexReader(raf)));
+									amenityRepositories.add(new AmenityIndexRepositoryBinary(new BinaryMapIndexReader(raf, index)));
 								} catch (IOException e) {
 									log.error("Exception reading " + f.getAbsolutePath(), e); //$NON-NLS-1$
 									warnings.add(MessageFormat.format(context.getString(R.string.version_index_is_not_supported), f.getName())); //$NON-NLS-1$
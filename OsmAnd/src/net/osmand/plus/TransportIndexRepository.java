@@ -40,6 +40,8 @@ public interface TransportIndexRepository {
 		private TransportStop start;
 		private TransportStop stop;
 		private TransportRoute route;
+		// stops of route direction starting from start stop
+		private List<TransportStop> stops;
 		private int stopNumbers;
 		private int distToLocation;
 		private boolean direction;
@@ -88,6 +90,14 @@ public interface TransportIndexRepository {
 			this.route = route;
 		}
 		
+		public List<TransportStop> getStops() {
+			return stops;
+		}
+		
+		public void setStops(List<TransportStop> stops) {
+			this.stops = stops;
+		}
+		
 		public void setDistToLocation(int distToLocation) {
 			this.distToLocation = distToLocation;
 		}
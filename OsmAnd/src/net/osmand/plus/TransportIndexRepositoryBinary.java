@@ -166,14 +166,16 @@ public class TransportIndexRepositoryBinary implements TransportIndexRepository
 				for (int i = 0; i < 2; i++) {
 					boolean direction = i == 0;
 					List<TransportStop> stps = direction ? route.getForwardStops() : route.getBackwardStops();
-					// load only part
-					
-					while (!stps.isEmpty() && (stps.get(0).getId().longValue() != s.getId().longValue())) {
-						stps.remove(0);
+					// only part from the stop (route is cached by reader so its stops are not modified)
+					int start = 0;
+					while (start < stps.size() && (stps.get(start).getId().longValue() != s.getId().longValue())) {
+						start++;
 					}
+					stps = stps.subList(start, stps.size());
 					if (!stps.isEmpty()) {
 						RouteInfoLocation r = new RouteInfoLocation();
 						r.setRoute(route);
+						r.setStops(stps);
 						r.setStart(stps.get(0));
 						r.setDirection(direction);
 						if (locationToGo != null) {
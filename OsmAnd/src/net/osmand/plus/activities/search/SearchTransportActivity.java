@@ -272,7 +272,7 @@ public class SearchTransportActivity extends ListActivity implements SearchActiv
 		final RouteInfoLocation item = ((TransportStopAdapter)getListAdapter()).getItem(position);
 		Builder builder = new AlertDialog.Builder(this);
 		List<String> items = new ArrayList<String>();
-		final List<TransportStop> stops = item.getDirection() ? item.getRoute().getForwardStops() : item.getRoute().getBackwardStops();
+		final List<TransportStop> stops = item.getStops();
 		LatLon locationToGo = getLocationToGo();
 		LatLon locationToStart = getLocationToStart();
 		builder.setTitle(getString(R.string.transport_stop_to_go_out)+"\n"+getInformation(item, stops, getCurrentRouteLocation(), true)); //$NON-NLS-1$
@@ -342,7 +342,7 @@ public class SearchTransportActivity extends ListActivity implements SearchActiv
 	
 	public void showContextMenuOnRoute(final RouteInfoLocation route, final int routeInd) {
 		Builder b = new AlertDialog.Builder(this);
-		List<TransportStop> stops = route.getDirection() ? route.getRoute().getForwardStops() : route.getRoute().getBackwardStops();
+		List<TransportStop> stops = route.getStops();
 		boolean en = settings.usingEnglishNames();
 		
 		String info = getInformation(route, stops, routeInd, false);
@@ -67,10 +67,9 @@ public class TransportInfoLayer extends OsmandMapLayer {
 					// once l is null in list
 					continue;
 				}
-				TransportRoute route = l.getRoute();
 				boolean start = false;
 				boolean end = false;
-				List<TransportStop> stops = l.getDirection() ? route.getForwardStops() : route.getBackwardStops();
+				List<TransportStop> stops = l.getStops();
 				for(int i=0; i<stops.size() && !end;  i++){
 					Paint toShow = paintInt;
 					TransportStop st = stops.get(i);
@@ -123,7 +122,7 @@ public class TransportInfoLayer extends OsmandMapLayer {
 				TransportRoute route = l.getRoute();
 				boolean start = false;
 				boolean end = false;
-				List<TransportStop> stops = l.getDirection() ? route.getForwardStops() : route.getBackwardStops();
+				List<TransportStop> stops = l.getStops();
 				for (int i = 0; i < stops.size() && !end; i++) {
 					TransportStop st = stops.get(i);
 					if (!start) {